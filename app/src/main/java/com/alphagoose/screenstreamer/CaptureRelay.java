@@ -0,0 +1,359 @@
+package com.alphagoose.screenstreamer;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Crops the virtual display to a region of interest on the way to the encoder, and fans it out
+ * to every simulcast layer's encoder.
+ *
+ * A VirtualDisplay can only scale the whole screen into one surface, so it renders into a
+ * SurfaceTexture instead, and each frame is drawn again with just the region stretched over each
+ * encoder's input surface, at that surface's size. The frame's timestamp is passed through, so
+ * capture latency is still measured from composition. All GL work happens on the relay's own thread.
+ */
+final class CaptureRelay implements SurfaceTexture.OnFrameAvailableListener {
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n"
+            + "uniform vec4 uCrop;\n"
+            + "attribute vec2 aPosition;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_Position = vec4(aPosition, 0.0, 1.0);\n"
+            + "    vec2 uv = aPosition * 0.5 + 0.5;\n"
+            // The crop is measured from the top of the screen, texture coordinates from the bottom
+            + "    vec2 source = vec2(uCrop.x + uv.x * uCrop.z, 1.0 - uCrop.y - (1.0 - uv.y) * uCrop.w);\n"
+            + "    vTexCoord = (uTexMatrix * vec4(source, 0.0, 1.0)).xy;\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "uniform samplerExternalOES uTexture;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = texture2D(uTexture, vTexCoord);\n"
+            + "}\n";
+
+    private static final float[] QUAD = {-1, -1, 1, -1, -1, 1, 1, 1};
+
+    /**
+     * One encoder input surface, at the size the encoder was configured for.
+     */
+    private static final class Output {
+        final EGLSurface surface;
+        final int width;
+        final int height;
+
+        Output(EGLSurface surface, int width, int height) {
+            this.surface = surface;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final float[] texMatrix = new float[16];
+    private final FloatBuffer quad;
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig eglConfig;
+    // Keeps the context current while there is no encoder to draw to
+    private EGLSurface idleSurface = EGL14.EGL_NO_SURFACE;
+    // Drawn in order, the primary encoder first
+    private final List<Output> outputs = new ArrayList<>();
+    private int program;
+    private int texMatrixLocation;
+    private int cropLocation;
+    private int positionLocation;
+    private int textureId;
+    private SurfaceTexture surfaceTexture;
+    private Surface inputSurface;
+    private float cropLeft;
+    private float cropTop;
+    private float cropWidth = 1;
+    private float cropHeight = 1;
+
+    /**
+     * Sets up GL on a new thread and returns once the input surface is ready.
+     *
+     * @throws IllegalStateException if EGL or the shaders fail to initialize
+     */
+    CaptureRelay() {
+        quad = ByteBuffer.allocateDirect(QUAD.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD).position(0);
+        thread = new HandlerThread("CaptureRelay");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        RuntimeException[] failure = new RuntimeException[1];
+        runAndWait(() -> {
+            try {
+                initialize();
+            } catch (RuntimeException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            release();
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Where the virtual display should render while cropping.
+     */
+    Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    /**
+     * Points the relay at new encoder surfaces and a region. Each surface is drawn at its own
+     * size, so one crop feeds every simulcast layer. Takes effect from the next frame the display
+     * produces; returns once the old outputs are no longer drawn to.
+     *
+     * @throws IllegalStateException if an encoder surface cannot be drawn to; none are then
+     */
+    void setOutputs(CaptureGeometry.Layout layout, Surface... encoderSurfaces) {
+        RuntimeException[] failure = new RuntimeException[1];
+        runAndWait(() -> {
+            surfaceTexture.setDefaultBufferSize(layout.displayWidth, layout.displayHeight);
+            releaseOutputSurfaces();
+            try {
+                for (Surface encoderSurface : encoderSurfaces) {
+                    EGLSurface surface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, encoderSurface,
+                            new int[]{EGL14.EGL_NONE}, 0);
+                    checkEgl("eglCreateWindowSurface");
+                    int[] size = new int[2];
+                    EGL14.eglQuerySurface(eglDisplay, surface, EGL14.EGL_WIDTH, size, 0);
+                    EGL14.eglQuerySurface(eglDisplay, surface, EGL14.EGL_HEIGHT, size, 1);
+                    outputs.add(new Output(surface, size[0], size[1]));
+                    makeCurrent(surface);
+                }
+            } catch (RuntimeException e) {
+                releaseOutputSurfaces();
+                failure[0] = e;
+                return;
+            }
+            cropLeft = layout.cropLeft;
+            cropTop = layout.cropTop;
+            cropWidth = layout.cropRight - layout.cropLeft;
+            cropHeight = layout.cropBottom - layout.cropTop;
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    void release() {
+        runAndWait(() -> {
+            releaseOutputSurfaces();
+            if (surfaceTexture != null) {
+                surfaceTexture.setOnFrameAvailableListener(null);
+                surfaceTexture.release();
+                surfaceTexture = null;
+            }
+            if (inputSurface != null) {
+                inputSurface.release();
+                inputSurface = null;
+            }
+            if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+                EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+                if (idleSurface != EGL14.EGL_NO_SURFACE) {
+                    EGL14.eglDestroySurface(eglDisplay, idleSurface);
+                }
+                if (eglContext != EGL14.EGL_NO_CONTEXT) {
+                    EGL14.eglDestroyContext(eglDisplay, eglContext);
+                }
+                EGL14.eglReleaseThread();
+                EGL14.eglTerminate(eglDisplay);
+            }
+            eglDisplay = EGL14.EGL_NO_DISPLAY;
+            eglContext = EGL14.EGL_NO_CONTEXT;
+            idleSurface = EGL14.EGL_NO_SURFACE;
+        });
+        thread.quitSafely();
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture texture) {
+        if (surfaceTexture == null) {
+            return;
+        }
+        // Always latch, or the display stalls waiting for its buffer back
+        surfaceTexture.updateTexImage();
+        if (outputs.isEmpty()) {
+            return;
+        }
+        surfaceTexture.getTransformMatrix(texMatrix);
+        long timestampNs = surfaceTexture.getTimestamp();
+        for (int i = 0; i < outputs.size(); i++) {
+            Output output = outputs.get(i);
+            // The context follows the surface being drawn; the program and texture stay bound
+            makeCurrent(output.surface);
+            GLES20.glViewport(0, 0, output.width, output.height);
+            GLES20.glUseProgram(program);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+            GLES20.glUniformMatrix4fv(texMatrixLocation, 1, false, texMatrix, 0);
+            GLES20.glUniform4f(cropLocation, cropLeft, cropTop, cropWidth, cropHeight);
+            GLES20.glEnableVertexAttribArray(positionLocation);
+            GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, 0, quad);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            GLES20.glDisableVertexAttribArray(positionLocation);
+            EGLExt.eglPresentationTimeANDROID(eglDisplay, output.surface, timestampNs);
+            if (!EGL14.eglSwapBuffers(eglDisplay, output.surface)) {
+                // The encoder went away under us; the next setOutputs replaces the surface
+                Log.w("MediaProjectionService", "Capture relay lost output " + i + ": 0x"
+                        + Integer.toHexString(EGL14.eglGetError()));
+                makeCurrent(idleSurface);
+                EGL14.eglDestroySurface(eglDisplay, output.surface);
+                outputs.remove(i--);
+            }
+        }
+    }
+
+    private void initialize() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw new IllegalStateException("eglInitialize failed");
+        }
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!EGL14.eglChooseConfig(eglDisplay, configAttributes, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+            throw new IllegalStateException("No recordable EGL config");
+        }
+        eglConfig = configs[0];
+        eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        checkEgl("eglCreateContext");
+        idleSurface = EGL14.eglCreatePbufferSurface(eglDisplay, eglConfig,
+                new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+        checkEgl("eglCreatePbufferSurface");
+        makeCurrent(idleSurface);
+
+        program = createProgram();
+        texMatrixLocation = GLES20.glGetUniformLocation(program, "uTexMatrix");
+        cropLocation = GLES20.glGetUniformLocation(program, "uCrop");
+        positionLocation = GLES20.glGetAttribLocation(program, "aPosition");
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        textureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        // Linear filtering, since a scaled region is usually drawn smaller than it was rendered
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        surfaceTexture = new SurfaceTexture(textureId);
+        surfaceTexture.setOnFrameAvailableListener(this, handler);
+        inputSurface = new Surface(surfaceTexture);
+    }
+
+    private void releaseOutputSurfaces() {
+        if (outputs.isEmpty()) {
+            return;
+        }
+        makeCurrent(idleSurface);
+        for (Output output : outputs) {
+            EGL14.eglDestroySurface(eglDisplay, output.surface);
+        }
+        outputs.clear();
+    }
+
+    private void makeCurrent(EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(eglDisplay, surface, surface, eglContext)) {
+            throw new IllegalStateException("eglMakeCurrent failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+    }
+
+    private int createProgram() {
+        int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        int relayProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(relayProgram, vertexShader);
+        GLES20.glAttachShader(relayProgram, fragmentShader);
+        GLES20.glLinkProgram(relayProgram);
+        int[] linked = new int[1];
+        GLES20.glGetProgramiv(relayProgram, GLES20.GL_LINK_STATUS, linked, 0);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        if (linked[0] == 0) {
+            String log = GLES20.glGetProgramInfoLog(relayProgram);
+            GLES20.glDeleteProgram(relayProgram);
+            throw new IllegalStateException("Relay program failed to link: " + log);
+        }
+        return relayProgram;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("Relay shader failed to compile: " + log);
+        }
+        return shader;
+    }
+
+    private static void checkEgl(String operation) {
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new IllegalStateException(operation + " failed: 0x" + Integer.toHexString(error));
+        }
+    }
+
+    private void runAndWait(Runnable task) {
+        CountDownLatch done = new CountDownLatch(1);
+        if (!handler.post(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        })) {
+            return;
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.alphagoose.screenstreamer;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Reads thermal and battery state for {@link StreamingGovernor} from PowerManager and
+ * BatteryManager. Thermal status needs Android 10 and the headroom forecast Android 11; on older
+ * versions they read as unknown and only the battery steers the governor.
+ */
+final class DeviceSignalSource implements StreamingGovernor.SignalSource {
+    // How far ahead the headroom forecast looks; about the time a profile change takes to cool
+    private static final int HEADROOM_FORECAST_S = 10;
+
+    private final PowerManager powerManager;
+    private final BatteryManager batteryManager;
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+
+    DeviceSignalSource(Context context) {
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+    }
+
+    @Override
+    public StreamingGovernor.Signals read() {
+        int thermalStatus = StreamingGovernor.Signals.THERMAL_UNKNOWN;
+        float headroom = Float.NaN;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            thermalStatus = powerManager.getCurrentThermalStatus();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // NaN if the device has no forecast or we asked too recently
+            headroom = powerManager.getThermalHeadroom(HEADROOM_FORECAST_S);
+        }
+        int batteryPercent = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        if (batteryPercent < 0 || batteryPercent > 100) {
+            batteryPercent = -1;
+        }
+        return new StreamingGovernor.Signals(thermalStatus, headroom, batteryPercent, batteryManager.isCharging());
+    }
+
+    /**
+     * Runs {@code onChange} on the main thread whenever the thermal status changes, so the
+     * governor does not wait for its next poll. Does nothing before Android 10.
+     */
+    void start(Runnable onChange) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && thermalListener == null) {
+            thermalListener = status -> onChange.run();
+            powerManager.addThermalStatusListener(thermalListener);
+        }
+    }
+
+    void stop() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && thermalListener != null) {
+            powerManager.removeThermalStatusListener(thermalListener);
+            thermalListener = null;
+        }
+    }
+}
@@ -5,34 +5,57 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
 import android.media.projection.MediaProjectionManager;
 import android.os.IBinder;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.Switch;
 import android.widget.TextView;
+import android.widget.Toast;
 import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
 public class MainActivity extends Activity {
     private static final int REQUEST_MEDIA = 713;
+    private static final int REQUEST_AUDIO = 714;
+    private static final long METRICS_REFRESH_MS = 1000;
     private WebSocketService webSocketService;
     private MediaProjectionService mediaProjectionService;
     private boolean isWebSocketServiceBound = false;
     private boolean isMediaProjectionServiceBound = false;
+    private final Handler handler = new Handler(Looper.getMainLooper());
 
 
     @Override
     protected void onStart() {
         super.onStart();
         LocalBroadcastManager.getInstance(this).registerReceiver(messageReceiver, new IntentFilter("WebSocketServiceUpdate"));
+        handler.post(refreshMetrics);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
         LocalBroadcastManager.getInstance(this).unregisterReceiver(messageReceiver);
+        handler.removeCallbacks(refreshMetrics);
     }
 
     @Override
@@ -65,11 +88,20 @@ public class MainActivity extends Activity {
         Button pingButton = findViewById(R.id.pingButton);
         pingButton.setOnClickListener(v -> pingWebService());
 
+        Button exportMetricsButton = findViewById(R.id.exportMetricsButton);
+        exportMetricsButton.setOnClickListener(v -> exportMetrics());
+
         Button startRecordingButton = findViewById(R.id.startButton);
         startRecordingButton.setOnClickListener(v -> requestMediaProjection());
 
         Button stopRecordingButton = findViewById(R.id.stopButton);
         stopRecordingButton.setOnClickListener(v -> stopMediaProjectionService());
+
+        Switch archiveSwitch = findViewById(R.id.archiveSwitch);
+        archiveSwitch.setOnCheckedChangeListener((button, isChecked) -> setArchiving(button, isChecked));
+
+        Switch hlsSwitch = findViewById(R.id.hlsSwitch);
+        hlsSwitch.setOnCheckedChangeListener((button, isChecked) -> setServingHls(button, isChecked));
     }
 
     private void startWebSocketService() {
@@ -93,12 +125,111 @@ public class MainActivity extends Activity {
         }
     }
 
+    private final Runnable refreshMetrics = new Runnable() {
+        @Override
+        public void run() {
+            TextView overlay = findViewById(R.id.metricsOverlay);
+            overlay.setText(MetricsRegistry.getInstance().formatSummary());
+            handler.postDelayed(this, METRICS_REFRESH_MS);
+        }
+    };
+
+    /**
+     * Writes a JSON snapshot of every metric to the app's external files directory, where it
+     * can be pulled with adb without extra permissions.
+     */
+    private void exportMetrics() {
+        long now = System.currentTimeMillis();
+        File directory = getExternalFilesDir(null);
+        File file = new File(directory != null ? directory : getFilesDir(), "metrics-" + now + ".json");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(MetricsRegistry.getInstance().toJson(now).getBytes(StandardCharsets.UTF_8));
+            Toast.makeText(this, "Metrics saved to " + file.getPath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e("MainActivity", "Could not write " + file, e);
+            Toast.makeText(this, "Could not save metrics", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_AUDIO) {
+            // Audio is optional, so start capture whether or not it was granted
+            startScreenCapture();
+        }
+    }
+
     private void requestMediaProjection() {
+        if (checkSelfPermission(android.Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{android.Manifest.permission.RECORD_AUDIO}, REQUEST_AUDIO);
+            return;
+        }
+        startScreenCapture();
+    }
+
+    private void startScreenCapture() {
         MediaProjectionManager projectionManager = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
         startActivityForResult(projectionManager.createScreenCaptureIntent(), REQUEST_MEDIA);
     }
 
+    private void setArchiving(CompoundButton button, boolean enabled) {
+        if (!isMediaProjectionServiceBound) {
+            // Nothing is being captured yet
+            button.setChecked(false);
+            return;
+        }
+        if (!enabled) {
+            mediaProjectionService.stopArchive();
+        } else if (!mediaProjectionService.startArchive()) {
+            button.setChecked(false);
+        }
+    }
+
+    private void setServingHls(CompoundButton button, boolean enabled) {
+        TextView hlsAddress = findViewById(R.id.hlsAddress);
+        if (!isMediaProjectionServiceBound) {
+            button.setChecked(false);
+            return;
+        }
+        if (!enabled) {
+            mediaProjectionService.stopHls();
+            hlsAddress.setText("");
+        } else if (mediaProjectionService.startHls()) {
+            InetAddress address = findLanAddress();
+            hlsAddress.setText("http://" + (address != null ? address.getHostAddress() : "localhost") + ":"
+                    + MediaProjectionService.HLS_PORT + HlsServer.PLAYLIST_PATH);
+        } else {
+            button.setChecked(false);
+        }
+    }
+
+    /**
+     * The first site-local IPv4 address, which is what other devices on the Wi-Fi can reach.
+     */
+    private static InetAddress findLanAddress() {
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                        return address;
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // Fall through and show localhost
+        }
+        return null;
+    }
+
     private void stopMediaProjectionService() {
+        Switch archiveSwitch = findViewById(R.id.archiveSwitch);
+        archiveSwitch.setChecked(false);
+        Switch hlsSwitch = findViewById(R.id.hlsSwitch);
+        hlsSwitch.setChecked(false);
         if (isMediaProjectionServiceBound) {
             unbindService(mediaProjectionServiceConnection);
             isMediaProjectionServiceBound = false;
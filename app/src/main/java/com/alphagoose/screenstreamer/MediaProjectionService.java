@@ -8,39 +8,168 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioPlaybackCaptureConfiguration;
+import android.media.AudioRecord;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
+import android.media.MediaRecorder;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.Range;
 import android.view.Surface;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class MediaProjectionService extends Service {
     private static final String CHANNEL_ID = "MediaProjectionServiceChannel";
     private static final long TIMEOUT_US = 10000; // Timeout for dequeuing
+    private static final int VIDEO_START_BIT_RATE = 5000000;
+    private static final int VIDEO_MIN_BIT_RATE = 300000;
+    private static final int VIDEO_MAX_BIT_RATE = 8000000;
+    private static final int VIDEO_FRAME_RATE = 30;
+    // Keyframes are produced on request, for joining viewers, lost packets and HLS segment cuts;
+    // the GOP only bounds how long an unrequested stream goes without one
+    private static final int VIDEO_KEY_FRAME_INTERVAL_S = 60;
+    private static final int KEY_FRAME_BURST = 3;
+    private static final long KEY_FRAME_REFILL_MS = 1000;
+    private static final long KEY_FRAME_REQUEST_TIMEOUT_MS = 1000;
+    // A fatal encoder error restarts the encoder at most this often; a repeat within it stops video
+    private static final long ENCODER_RESTART_MIN_INTERVAL_MS = 10000;
+    // Thermal and battery governor: polled every few seconds, and a full minute clear of each
+    // threshold before stepping back up, since a device cools far slower than it heats
+    private static final long GOVERNOR_POLL_INTERVAL_MS = 5000;
+    private static final long GOVERNOR_STEP_UP_HOLD_MS = 60000;
+    // When the screen is static the encoder repeats the last frame once a second as keep-alive
+    private static final long IDLE_REPEAT_FRAME_AFTER_US = 1000000;
+    private static final long IDLE_AFTER_MS = 2000;
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+    private static final long IDLE_REPORT_INTERVAL_MS = 60000;
+    // Low-latency AAC-LC: one 1024-sample frame is ~21 ms at 48 kHz
+    private static final int AUDIO_SAMPLE_RATE = 48000;
+    private static final int AUDIO_CHANNEL_COUNT = 2;
+    private static final int AUDIO_BIT_RATE = 96000;
+    private static final int AUDIO_FRAME_SAMPLES = 1024;
+    private static final int AUDIO_BYTES_PER_FRAME = AUDIO_CHANNEL_COUNT * 2; // 16-bit PCM
+    private static final long AUDIO_MAX_DRIFT_US = 40000;
+    private static final String ENCODER_REGISTRY_PREFERENCES = "encoder_registry";
+    private static final Map<String, EncoderRegistry> ENCODER_REGISTRY_CACHE = new HashMap<>();
+    // Local archive: one-minute segments, with up to ~4 s of frames buffered for a slow disk
+    private static final long ARCHIVE_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long ARCHIVE_SEGMENT_DURATION_US = 60000000;
+    private static final int ARCHIVE_QUEUE_FRAMES = 120;
+    private static final long ARCHIVE_QUEUE_BYTES = 16L * 1024 * 1024;
+    private static final long ARCHIVE_STOP_TIMEOUT_MS = 2000;
+    // LL-HLS egress: half-second parts in two-second segments, the usual low-latency trade-off
+    public static final int HLS_PORT = 8080;
+    private static final long HLS_PART_TARGET_US = 500000;
+    private static final long HLS_SEGMENT_TARGET_US = 2000000;
+    private static final int HLS_WINDOW_SEGMENTS = 6;
+    private static final long HLS_HOLD_TIMEOUT_MS = 3 * HLS_SEGMENT_TARGET_US / 1000;
+    // Simulcast: a lower layer is only worth an encoder session down to this size, and is never
+    // given less than this bitrate however far the top layer drops
+    private static final int LAYER_MIN_LONG_EDGE = 240;
+    private static final int LAYER_MIN_BIT_RATE = 150000;
+    private static final LayerEncoder[] NO_LAYERS = new LayerEncoder[0];
     private final IBinder binder = new LocalBinder();
     private MediaProjectionManager mediaProjectionManager;
     private MediaProjection mediaProjection;
     private VirtualDisplay virtualDisplay;
     private Surface inputSurface;
-    private MediaCodec videoEncoder;
+    private volatile MediaCodec videoEncoder;
+    private volatile EncoderMode encoderMode = EncoderMode.POLLING;
+    private Set<String> viewerMimeTypes = Collections.singleton(EncoderRegistry.MIME_AVC);
+    private EncoderDescriptor selectedEncoder;
+    private int encodedWidth;
+    private int encodedHeight;
+    // Every histogram and gauge this service put in MetricsRegistry, removed again in onDestroy
+    private final List<String> registeredMetrics = new ArrayList<>();
+    private final LatencyHistogram pollingSendLatency = new LatencyHistogram("video.send_latency_us.polling");
+    private final LatencyHistogram callbackSendLatency = new LatencyHistogram("video.send_latency_us.callback");
+    // Surface input gives no separate encode-finished time, so capture-to-dequeue covers the encode
+    private final LatencyHistogram captureToDequeue = MetricsRegistry.getInstance().histogram("video.capture_to_dequeue_us");
+    private final LatencyHistogram dequeueToDispatch = MetricsRegistry.getInstance().histogram("video.dequeue_to_dispatch_us");
+    private final MetricsRegistry.Counter encodedFrames = MetricsRegistry.getInstance().counter("video.frames_encoded");
+    private final MetricsRegistry.Counter encodedBytes = MetricsRegistry.getInstance().counter("video.bytes_encoded");
+    private final MetricsRegistry.Counter encodedKeyFrames = MetricsRegistry.getInstance().counter("video.key_frames");
+    private final MetricsRegistry.Counter encoderErrors = MetricsRegistry.getInstance().counter("video.encoder_errors");
+    private long lastEncoderRestartMs = Long.MIN_VALUE / 2;
+    private final KeyFrameRateLimiter keyFrameLimiter = new KeyFrameRateLimiter(() -> requestSyncFrame(videoEncoder),
+            KEY_FRAME_BURST, KEY_FRAME_REFILL_MS, KEY_FRAME_REQUEST_TIMEOUT_MS);
+    private int captureWidth;
+    private int captureHeight;
+    private int captureDensity;
+    private volatile CaptureGeometry captureGeometry = CaptureGeometry.full();
+    private volatile CaptureGeometry.Layout captureLayout;
+    // Only while cropping; scaling alone is done by the virtual display
+    private CaptureRelay captureRelay;
+    private volatile CaptureModeStats captureModeStats;
+    private DeviceSignalSource deviceSignals;
+    private StreamingGovernor governor;
+    private volatile StreamingGovernor.Profile streamingProfile = StreamingGovernor.Profile.FULL;
+    private int videoBitRate = VIDEO_START_BIT_RATE;
+    private volatile boolean simulcastEnabled;
+    // Lower simulcast layers, MEDIUM first; the primary encoder is the top layer
+    private volatile LayerEncoder[] layerEncoders = NO_LAYERS;
+    private CongestionController congestionController;
+    private volatile boolean idleCaptureEnabled = true;
+    private IdleDetector idleDetector;
+    private long lastIdleReportMs;
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private Thread audioThread;
+    // Cleared to stop audioThread; each capture gets its own so a late thread cannot be revived
+    private AtomicBoolean capturingAudio;
+    private volatile VideoStreamIndex videoIndex;
+    private SegmentRecorder archiveRecorder;
+    private EncodedFrameDispatcher.Sink archiveSink;
+    private HlsServer hlsServer;
+    private LlHlsPackager hlsPackager;
+    private EncodedFrameDispatcher.Sink hlsSink;
+
+    /**
+     * How encoded output is pulled from the video encoder. POLLING drains on a thread that
+     * waits up to TIMEOUT_US per dequeue; CALLBACK uses MediaCodec's asynchronous mode on a
+     * dedicated HandlerThread and handles each buffer as soon as it is ready.
+     */
+    public enum EncoderMode {
+        POLLING,
+        CALLBACK
+    }
 
     public class LocalBinder extends Binder {
         MediaProjectionService getService() {
@@ -75,6 +204,45 @@ public class MediaProjectionService extends Service {
 
         // Start service in the foreground.
         startForeground(1, notification);
+
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            // Debug builds only: tracking costs a stack trace per buffer
+            SharedMediaBuffer.getInstance().getBufferPool().setLeakListener((capacity, acquiredAt) ->
+                    Log.e("MediaProjectionService", "Pooled buffer of " + capacity + " bytes was never released",
+                            acquiredAt));
+        }
+
+        register(pollingSendLatency);
+        register(callbackSendLatency);
+        registerGauge("video.bit_rate_bps", () -> videoBitRate);
+        DirectBufferPool bufferPool = SharedMediaBuffer.getInstance().getBufferPool();
+        registerGauge("buffers.outstanding_bytes", bufferPool::getOutstandingBytes);
+        registerGauge("video.key_frame_requests", keyFrameLimiter::getRequestCount);
+        registerGauge("video.key_frame_requests_sent", keyFrameLimiter::getForwardedCount);
+        registerGauge("capture.pixel_fraction", () -> {
+            CaptureGeometry.Layout layout = captureLayout;
+            return layout != null ? layout.pixelFraction : 1.0;
+        });
+        registerGauge("simulcast.layers", () -> layerEncoders.length + 1);
+        registerGauge("governor.profile", () -> streamingProfile.ordinal());
+        registerGauge("device.thermal_status", () -> {
+            StreamingGovernor.Signals signals = governor != null ? governor.getLastSignals() : null;
+            return signals != null ? signals.thermalStatus : StreamingGovernor.Signals.THERMAL_UNKNOWN;
+        });
+        registerGauge("device.battery_percent", () -> {
+            StreamingGovernor.Signals signals = governor != null ? governor.getLastSignals() : null;
+            return signals != null ? signals.batteryPercent : -1;
+        });
+    }
+
+    private void register(LatencyHistogram histogram) {
+        MetricsRegistry.getInstance().register(histogram);
+        registeredMetrics.add(histogram.getName());
+    }
+
+    private void registerGauge(String name, MetricsRegistry.Gauge gauge) {
+        MetricsRegistry.getInstance().registerGauge(name, gauge);
+        registeredMetrics.add(name);
     }
 
     @Override
@@ -118,80 +286,1134 @@ public class MediaProjectionService extends Service {
             int flags = DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC;
             int width = metrics.widthPixels;
             int height = metrics.heightPixels;
+            captureWidth = width;
+            captureHeight = height;
+            captureDensity = density;
+            captureModeStats = new CaptureModeStats((long) width * height);
+
+            CaptureGeometry.Layout layout = captureGeometry.layout(width, height, 1);
+            congestionController = new CongestionController(congestionListener, videoBitRate,
+                    VIDEO_MIN_BIT_RATE, VIDEO_MAX_BIT_RATE, layout.encodedWidth, layout.encodedHeight,
+                    VIDEO_FRAME_RATE);
+            SharedMediaBuffer.getInstance().setEncoderControl(encoderControl);
+            idleDetector = new IdleDetector(idleListener, VIDEO_FRAME_RATE, IDLE_AFTER_MS);
+            lastIdleReportMs = SystemClock.elapsedRealtime();
+            mainThreadHandler.postDelayed(checkIdle, IDLE_CHECK_INTERVAL_MS);
+            startGovernor();
 
-            initializeVideoEncoder(width, height);
-            handleEncodedOutputData(videoEncoder);
+            layout = captureGeometry.layout(width, height, streamingProfile.maxResolutionScale);
+            initializeVideoEncoder(layout.encodedWidth, layout.encodedHeight);
+            layerEncoders = startLayerEncoders(layout);
+            updateLayerBitrates();
 
             // Assume you have an initialized encoder with an input surface
             virtualDisplay = mediaProjection.createVirtualDisplay("MediaProjectionService",
-                    width, height, density, flags, inputSurface, null, null);
+                    layout.displayWidth, layout.displayHeight, density, flags, inputSurface, null, null);
+            routeCapture(layout);
+
+            startAudioCapture();
         } else {
             Log.e("MediaProjectionService", "createVirtualDisplay called before mediaProjection initialized");
         }
     }
 
-    private MediaCodecInfo selectCodec(String mimeType) {
+    /**
+     * Starts writing the encoded stream to MPEG-TS segments in app storage, alongside streaming.
+     *
+     * @return false if the current codec cannot be archived or capture has not started
+     */
+    public boolean startArchive() {
+        if (archiveRecorder != null) {
+            return true;
+        }
+        if (selectedEncoder == null || TsMuxer.streamTypeFor(selectedEncoder.mimeType) < 0) {
+            Log.e("MediaProjectionService", "Cannot archive " + (selectedEncoder == null ? "before capture starts"
+                    : selectedEncoder.mimeType));
+            return false;
+        }
+        File directory = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES),
+                "archive-" + System.currentTimeMillis());
+        if (!directory.mkdirs()) {
+            Log.e("MediaProjectionService", "Unable to create " + directory);
+            return false;
+        }
+        SegmentRecorder recorder = new SegmentRecorder(directory, selectedEncoder.mimeType,
+                ARCHIVE_SEGMENT_BYTES, ARCHIVE_SEGMENT_DURATION_US, ARCHIVE_QUEUE_FRAMES, ARCHIVE_QUEUE_BYTES,
+                new SegmentRecorder.Listener() {
+                    @Override
+                    public void onSegmentClosed(File file, long durationUs, long bytes) {
+                        Log.i("MediaProjectionService", "Archived " + file.getName() + ": "
+                                + durationUs / 1000 + " ms, " + bytes + " bytes");
+                    }
+
+                    @Override
+                    public void onError(IOException e) {
+                        Log.e("MediaProjectionService", "Archive stopped: " + e.getMessage());
+                    }
+                }, encoderControl::requestKeyFrame);
+        ByteBuffer config = getVideoCodecConfig();
+        if (config != null) {
+            recorder.setParameterSets(config);
+        }
+        recorder.start();
+        // Segments open on a keyframe; don't wait up to a GOP for the first one
+        EncodedFrameDispatcher.Sink sink = startFromKeyFrame(recorder);
+        SharedMediaBuffer.getInstance().getVideoDispatcher().addSink(sink);
+        archiveRecorder = recorder;
+        archiveSink = sink;
+        Log.i("MediaProjectionService", "Archiving to " + directory);
+        return true;
+    }
+
+    public void stopArchive() {
+        SegmentRecorder recorder = archiveRecorder;
+        if (recorder == null) {
+            return;
+        }
+        SharedMediaBuffer.getInstance().getVideoDispatcher().removeSink(archiveSink);
+        archiveRecorder = null;
+        archiveSink = null;
+        recorder.stop();
+        // Flushing the queue can take a moment on a slow card; keep it off the main thread
+        new Thread(() -> {
+            try {
+                if (!recorder.join(ARCHIVE_STOP_TIMEOUT_MS)) {
+                    Log.w("MediaProjectionService", "Archive still flushing after " + ARCHIVE_STOP_TIMEOUT_MS + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "SegmentRecorderStop").start();
+    }
+
+    public boolean isArchiving() {
+        return archiveRecorder != null;
+    }
+
+    /**
+     * Starts serving the stream as low-latency HLS on {@link #HLS_PORT}, for audiences too large
+     * for one WebRTC connection per viewer.
+     *
+     * @return false if the current codec is not H.264, capture has not started or the port is taken
+     */
+    public boolean startHls() {
+        if (hlsServer != null) {
+            return true;
+        }
+        if (selectedEncoder == null || !EncoderRegistry.MIME_AVC.equals(selectedEncoder.mimeType)) {
+            Log.e("MediaProjectionService", "Cannot serve HLS for " + (selectedEncoder == null ? "capture not started"
+                    : selectedEncoder.mimeType));
+            return false;
+        }
+        HlsStream stream = new HlsStream(HLS_WINDOW_SEGMENTS, HLS_PART_TARGET_US, HLS_SEGMENT_TARGET_US);
+        HlsServer server = new HlsServer(stream, new InetSocketAddress(HLS_PORT), HLS_HOLD_TIMEOUT_MS);
+        server.setErrorListener(e -> {
+            Log.e("MediaProjectionService", "HLS server failed: " + e.getMessage());
+            mainThreadHandler.post(() -> {
+                if (hlsServer == server) {
+                    stopHls();
+                }
+            });
+        });
+        try {
+            server.start();
+        } catch (IOException e) {
+            Log.e("MediaProjectionService", "Unable to start HLS server: " + e.getMessage());
+            server.stop();
+            return false;
+        }
+        LlHlsPackager packager = new LlHlsPackager(stream, encoderControl::requestKeyFrame);
+        ByteBuffer config = getVideoCodecConfig();
+        if (config != null) {
+            packager.setParameterSets(config, encodedWidth, encodedHeight);
+        }
+        EncodedFrameDispatcher.Sink sink = startFromKeyFrame(packager);
+        SharedMediaBuffer.getInstance().getVideoDispatcher().addSink(sink);
+        hlsServer = server;
+        hlsPackager = packager;
+        hlsSink = sink;
+        Log.i("MediaProjectionService", "Serving HLS on port " + server.getPort());
+        return true;
+    }
+
+    public void stopHls() {
+        HlsServer server = hlsServer;
+        if (server == null) {
+            return;
+        }
+        SharedMediaBuffer.getInstance().getVideoDispatcher().removeSink(hlsSink);
+        hlsServer = null;
+        hlsPackager = null;
+        hlsSink = null;
+        // The server thread closes its connections and exits on its own
+        server.stop();
+        Log.i("MediaProjectionService", "Stopped HLS after " + server.getRequestsServed() + " requests, "
+                + server.getBytesSent() + " bytes");
+    }
+
+    public boolean isServingHls() {
+        return hlsServer != null;
+    }
+
+    /**
+     * Wraps a sink that has to start on a keyframe so it starts from the one still held in the
+     * video ring, and only asks the encoder for a new keyframe if that one has been overwritten.
+     */
+    private EncodedFrameDispatcher.Sink startFromKeyFrame(EncodedFrameDispatcher.Sink sink) {
+        SharedMediaBuffer sharedBuffer = SharedMediaBuffer.getInstance();
+        return new CatchUpSink(sharedBuffer.getVideoRing(), sink, sharedBuffer.getBufferPool(),
+                encoderControl::requestKeyFrame);
+    }
+
+    private ByteBuffer getVideoCodecConfig() {
+        VideoStreamIndex index = videoIndex;
+        return index == null ? null : index.getCodecConfig();
+    }
+
+    @Override
+    public void onDestroy() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        for (String name : registeredMetrics) {
+            metrics.remove(name);
+        }
+        registeredMetrics.clear();
+        mainThreadHandler.removeCallbacks(pollGovernor);
+        if (deviceSignals != null) {
+            deviceSignals.stop();
+        }
+        LayerEncoder[] layers = layerEncoders;
+        layerEncoders = NO_LAYERS;
+        retireLayerEncoders(layers);
+        SharedMediaBuffer.getInstance().setLayerBitrates(new int[1]);
+        if (captureRelay != null) {
+            captureRelay.release();
+            captureRelay = null;
+        }
+        stopArchive();
+        stopHls();
+        SharedMediaBuffer.getInstance().setEncoderControl(null);
+        SharedMediaBuffer.getInstance().setLayerStreamIndex(0, null);
+        mainThreadHandler.removeCallbacks(checkIdle);
+        mainThreadHandler.removeCallbacks(pollKeyFrameLimiter);
+        stopAudioCapture();
+        super.onDestroy();
+    }
+
+    private final EncoderControl encoderControl = new EncoderControl() {
+        @Override
+        public void onNetworkStats(long nowMs, double rttMs, double lossFraction, long availableBitrateBps) {
+            // Stats arrive on WebSocketService's signaling thread; keep the controller single-threaded
+            mainThreadHandler.post(() -> {
+                if (congestionController != null) {
+                    congestionController.onNetworkSample(nowMs, rttMs, lossFraction, availableBitrateBps);
+                }
+            });
+        }
+
+        @Override
+        public void onViewerCodecsNegotiated(Set<String> mimeTypes) {
+            mainThreadHandler.post(() -> {
+                viewerMimeTypes = mimeTypes;
+                if (videoEncoder == null) {
+                    return;
+                }
+                // Ranked at the size actually being encoded, as initializeVideoEncoder does
+                EncoderDescriptor best = loadEncoderRegistry(encodedWidth, encodedHeight)
+                        .select(mimeTypes, VIDEO_FRAME_RATE);
+                if (best != null && selectedEncoder != null && !best.name.equals(selectedEncoder.name)) {
+                    Log.i("MediaProjectionService", "Switching encoder to " + best);
+                    resizeCapture();
+                }
+            });
+        }
+
+        @Override
+        public void setMaxBitrate(int bitrateBps) {
+            mainThreadHandler.post(() -> {
+                if (congestionController != null) {
+                    congestionController.setBitrateCap(bitrateBps);
+                }
+            });
+        }
+
+        @Override
+        public void requestKeyFrame() {
+            // Forwarded requests skip the main-thread hop to keep join latency low; only deferred
+            // ones wait there for a token
+            if (!keyFrameLimiter.request(SystemClock.elapsedRealtime())) {
+                mainThreadHandler.removeCallbacks(pollKeyFrameLimiter);
+                mainThreadHandler.post(pollKeyFrameLimiter);
+            }
+        }
+
+        @Override
+        public void requestKeyFrame(int layer) {
+            if (layer == 0) {
+                requestKeyFrame();
+                return;
+            }
+            LayerEncoder[] layers = layerEncoders;
+            if (layer <= layers.length) {
+                layers[layer - 1].requestKeyFrame();
+            }
+        }
+    };
+
+    private final Runnable pollKeyFrameLimiter = new Runnable() {
+        @Override
+        public void run() {
+            long delayMs = keyFrameLimiter.poll(SystemClock.elapsedRealtime());
+            if (delayMs >= 0) {
+                mainThreadHandler.postDelayed(this, delayMs);
+            }
+        }
+    };
+
+    private static void requestSyncFrame(MediaCodec encoder) {
+        // setParameters is safe from any thread
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w("MediaProjectionService", "Unable to request keyframe: " + e.getMessage());
+        }
+    }
+
+    private final CongestionController.Listener congestionListener = new CongestionController.Listener() {
+        @Override
+        public void onTargetBitrateChanged(int bitrateBps) {
+            videoBitRate = bitrateBps;
+            MediaCodec encoder = videoEncoder;
+            if (encoder == null) {
+                return;
+            }
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrateBps);
+            try {
+                encoder.setParameters(params);
+            } catch (IllegalStateException e) {
+                Log.w("MediaProjectionService", "Unable to update bitrate: " + e.getMessage());
+            }
+            updateLayerBitrates();
+        }
+
+        @Override
+        public void onResolutionScaleChanged(float scale) {
+            resizeCapture();
+        }
+    };
+
+    private void startGovernor() {
+        if (governor != null) {
+            return;
+        }
+        deviceSignals = new DeviceSignalSource(this);
+        governor = new StreamingGovernor(deviceSignals, governorListener, GOVERNOR_STEP_UP_HOLD_MS);
+        // The first poll runs before the encoder starts, so a hot device starts out light
+        governor.poll(SystemClock.elapsedRealtime());
+        deviceSignals.start(() -> {
+            mainThreadHandler.removeCallbacks(pollGovernor);
+            mainThreadHandler.post(pollGovernor);
+        });
+        mainThreadHandler.postDelayed(pollGovernor, GOVERNOR_POLL_INTERVAL_MS);
+    }
+
+    private final Runnable pollGovernor = new Runnable() {
+        @Override
+        public void run() {
+            StreamingGovernor current = governor;
+            if (current == null) {
+                return;
+            }
+            current.poll(SystemClock.elapsedRealtime());
+            mainThreadHandler.removeCallbacks(this);
+            mainThreadHandler.postDelayed(this, GOVERNOR_POLL_INTERVAL_MS);
+        }
+    };
+
+    private final StreamingGovernor.Listener governorListener = (profile, signals) -> {
+        Log.i("MediaProjectionService", "Streaming profile " + streamingProfile + " -> " + profile + " (" + signals
+                + ", " + profile.frameRate + " fps, scale <= " + profile.maxResolutionScale + ")");
+        streamingProfile = profile;
+        // Frame rate and complexity are part of the codec format, so this restarts the encoder
+        resizeCapture();
+    };
+
+    private final IdleDetector.Listener idleListener = idle ->
+            Log.i("MediaProjectionService", (idle ? "Screen idle" : "Screen active") + ", " + describeIdleStats());
+
+    private final Runnable checkIdle = new Runnable() {
+        @Override
+        public void run() {
+            IdleDetector detector = idleDetector;
+            if (detector == null) {
+                return;
+            }
+            long nowMs = SystemClock.elapsedRealtime();
+            detector.checkIdle(nowMs);
+            if (nowMs - lastIdleReportMs >= IDLE_REPORT_INTERVAL_MS) {
+                lastIdleReportMs = nowMs;
+                Log.i("MediaProjectionService", describeIdleStats());
+                Log.i("MediaProjectionService", "Capture modes:\n" + describeCaptureModes());
+            }
+            mainThreadHandler.postDelayed(this, IDLE_CHECK_INTERVAL_MS);
+        }
+    };
+
+    private String describeIdleStats() {
+        long nowMs = SystemClock.elapsedRealtime();
+        return "encoded frames/min: " + idleDetector.getEncodedFramesLastMinute(nowMs)
+                + ", bytes saved: " + idleDetector.getEstimatedBytesSaved(nowMs)
+                + ", keyframes: " + encodedKeyFrames.get() + " (" + keyFrameLimiter.getRequestCount()
+                + " requested, " + keyFrameLimiter.getForwardedCount() + " sent to encoder)"
+                + ", profile " + streamingProfile;
+    }
+
+    /**
+     * Enables or disables simulcast: lower-resolution layers encoded alongside the primary one
+     * from the same capture, so each viewer can be sent the largest its link carries. Restarts
+     * the encoders if capture is running.
+     */
+    public void setSimulcastEnabled(boolean enabled) {
+        if (enabled == simulcastEnabled) {
+            return;
+        }
+        simulcastEnabled = enabled;
+        mainThreadHandler.post(() -> {
+            if (videoEncoder != null) {
+                resizeCapture();
+            }
+        });
+    }
+
+    public boolean isSimulcastEnabled() {
+        return simulcastEnabled;
+    }
+
+    /**
+     * Enables or disables collapsing a static screen to keep-alive frames. Restarts the
+     * encoder if capture is running, since the setting is part of the codec format.
+     */
+    public void setIdleCaptureEnabled(boolean enabled) {
+        if (enabled == idleCaptureEnabled) {
+            return;
+        }
+        idleCaptureEnabled = enabled;
+        mainThreadHandler.post(() -> {
+            if (videoEncoder != null) {
+                resizeCapture();
+            }
+        });
+    }
+
+    public IdleDetector getIdleDetector() {
+        return idleDetector;
+    }
+
+    /**
+     * Changes what part of the screen is captured and how large it is encoded. Applied live,
+     * like a congestion resize: the MediaProjection stays, only the encoder is replaced.
+     */
+    public void setCaptureGeometry(CaptureGeometry geometry) {
+        mainThreadHandler.post(() -> {
+            captureGeometry = geometry;
+            if (congestionController == null) {
+                return;
+            }
+            // The congestion ladder scales whatever this mode encodes at full quality
+            CaptureGeometry.Layout base = geometry.layout(captureWidth, captureHeight, 1);
+            congestionController.setFullResolution(base.encodedWidth, base.encodedHeight);
+            Log.i("MediaProjectionService", "Capture " + geometry + ", so far:\n" + describeCaptureModes());
+            if (videoEncoder != null) {
+                resizeCapture();
+            }
+        });
+    }
+
+    public CaptureGeometry getCaptureGeometry() {
+        return captureGeometry;
+    }
+
+    /**
+     * Bitrate and encoder load per capture mode used this session, against full capture.
+     */
+    public String describeCaptureModes() {
+        CaptureModeStats stats = captureModeStats;
+        return stats == null ? "" : stats.formatSummary(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Moves the virtual display onto a new encoder sized for the capture geometry and congestion
+     * scale, without touching the MediaProjection. The old encoder drains what it has and then
+     * shuts itself down.
+     */
+    private void resizeCapture() {
+        if (virtualDisplay == null) {
+            return;
+        }
+        float scale = Math.min(congestionController.getResolutionScale(), streamingProfile.maxResolutionScale);
+        CaptureGeometry.Layout layout = captureGeometry.layout(captureWidth, captureHeight, scale);
+        MediaCodec oldEncoder = videoEncoder;
+        Surface oldSurface = inputSurface;
+        LayerEncoder[] oldLayers = layerEncoders;
+
+        initializeVideoEncoder(layout.encodedWidth, layout.encodedHeight);
+        if (videoEncoder == oldEncoder) {
+            return;
+        }
+        // The old layers still hold their encoder sessions, so fewer may start now than will
+        // next time; routing below moves the capture off the old ones either way
+        layerEncoders = startLayerEncoders(layout);
+        updateLayerBitrates();
+        routeCapture(layout);
+        retireLayerEncoders(oldLayers);
+
+        if (oldEncoder != null) {
+            try {
+                oldEncoder.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                Log.w("MediaProjectionService", "Old encoder already stopped: " + e.getMessage());
+            }
+        }
+        if (oldSurface != null) {
+            oldSurface.release();
+        }
+        Log.i("MediaProjectionService", "Capture resized to " + layout);
+    }
+
+    /**
+     * Replaces the primary encoder after a fatal error in callback mode, the same way a resize
+     * does. If that fails, or the previous restart was too recent, video is stopped rather than
+     * left stalled on a dead encoder. Either way the failed encoder is released here, since no
+     * end of stream will come out of it.
+     */
+    private void onEncoderFailed(VideoOutput output, HandlerThread callbackThread) {
+        encoderErrors.increment();
+        if (output.encoder == videoEncoder) {
+            long nowMs = SystemClock.elapsedRealtime();
+            if (nowMs - lastEncoderRestartMs >= ENCODER_RESTART_MIN_INTERVAL_MS) {
+                lastEncoderRestartMs = nowMs;
+                Log.w("MediaProjectionService", "Restarting the video encoder after a fatal error");
+                resizeCapture();
+            }
+            if (output.encoder == videoEncoder) {
+                Log.e("MediaProjectionService", "Video encoder could not be restarted, stopping video");
+                stopVideo();
+            }
+        }
+        output.release();
+        callbackThread.quitSafely();
+    }
+
+    /**
+     * Takes the capture off every encoder and releases the primary's input, leaving audio and
+     * the MediaProjection running.
+     */
+    private void stopVideo() {
+        LayerEncoder[] layers = layerEncoders;
+        layerEncoders = NO_LAYERS;
+        retireLayerEncoders(layers);
+        updateLayerBitrates();
+        if (virtualDisplay != null) {
+            virtualDisplay.setSurface(null);
+        }
+        if (captureRelay != null) {
+            captureRelay.release();
+            captureRelay = null;
+        }
+        videoEncoder = null;
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+    }
+
+    /**
+     * Points the virtual display at the current encoders, through the relay if the layout needs
+     * a crop or there are simulcast layers to feed. Without a working relay the whole screen is
+     * scaled into the primary encoder and the lower layers are stopped.
+     */
+    private void routeCapture(CaptureGeometry.Layout layout) {
+        Surface target = inputSurface;
+        int displayWidth = layout.encodedWidth;
+        int displayHeight = layout.encodedHeight;
+        LayerEncoder[] layers = layerEncoders;
+        if (layout.isCropped() || layers.length > 0) {
+            Surface[] outputs = new Surface[layers.length + 1];
+            outputs[0] = inputSurface;
+            for (int i = 0; i < layers.length; i++) {
+                outputs[i + 1] = layers[i].inputSurface;
+            }
+            try {
+                if (captureRelay == null) {
+                    captureRelay = new CaptureRelay();
+                }
+                captureRelay.setOutputs(layout, outputs);
+                target = captureRelay.getInputSurface();
+                displayWidth = layout.displayWidth;
+                displayHeight = layout.displayHeight;
+            } catch (IllegalStateException e) {
+                Log.e("MediaProjectionService", "Unable to relay capture, sending the whole screen on one layer: "
+                        + e.getMessage());
+                layerEncoders = NO_LAYERS;
+                retireLayerEncoders(layers);
+                updateLayerBitrates();
+            }
+        }
+        virtualDisplay.resize(displayWidth, displayHeight, captureDensity);
+        virtualDisplay.setSurface(target);
+        if (target == inputSurface && captureRelay != null) {
+            captureRelay.release();
+            captureRelay = null;
+        }
+        captureLayout = layout;
+        captureModeStats.switchTo(layout.mode, (long) layout.encodedWidth * layout.encodedHeight,
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Switches how encoder output is drained. If capture is running the encoder is restarted
+     * at its current size so the new mode takes effect straight away.
+     */
+    public void setEncoderMode(EncoderMode mode) {
+        if (mode == encoderMode) {
+            return;
+        }
+        encoderMode = mode;
+        mainThreadHandler.post(() -> {
+            if (videoEncoder != null) {
+                resizeCapture();
+            }
+        });
+    }
+
+    public EncoderMode getEncoderMode() {
+        return encoderMode;
+    }
+
+    /**
+     * Capture-to-send latency in microseconds for frames drained in the given mode.
+     */
+    public LatencyHistogram getSendLatency(EncoderMode mode) {
+        return mode == EncoderMode.CALLBACK ? callbackSendLatency : pollingSendLatency;
+    }
+
+    private void startAudioCapture() {
+        if (ContextCompat.checkSelfPermission(this, android.Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.w("MediaProjectionService", "RECORD_AUDIO not granted, streaming without audio");
+            return;
+        }
+
+        AudioRecord record = createAudioRecord();
+        if (record == null) {
+            return;
+        }
+
+        MediaCodec encoder = createAudioEncoder();
+        if (encoder == null) {
+            record.release();
+            return;
+        }
+
+        // The thread owns the record and encoder and releases them itself, so one that outlives
+        // stopAudioCapture never touches those of a capture started after it
+        AtomicBoolean capturing = new AtomicBoolean(true);
+        capturingAudio = capturing;
+        audioThread = new Thread(() -> handleAudioCapture(record, encoder, capturing), "AudioEncoder");
+        audioThread.start();
+    }
+
+    private void stopAudioCapture() {
+        if (capturingAudio != null) {
+            capturingAudio.set(false);
+            capturingAudio = null;
+        }
+        if (audioThread != null) {
+            try {
+                audioThread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            audioThread = null;
+        }
+    }
+
+    private AudioRecord createAudioRecord() {
+        AudioFormat audioFormat = new AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setSampleRate(AUDIO_SAMPLE_RATE)
+                .setChannelMask(AudioFormat.CHANNEL_IN_STEREO)
+                .build();
+        int minBufferSize = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        // Keep the capture buffer small; a couple of AAC frames is enough headroom.
+        int bufferSize = Math.max(minBufferSize, 2 * AUDIO_FRAME_SAMPLES * AUDIO_BYTES_PER_FRAME);
+
+        try {
+            AudioRecord record;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                record = createPlaybackCaptureRecord(audioFormat, bufferSize);
+            } else {
+                record = new AudioRecord.Builder()
+                        .setAudioSource(MediaRecorder.AudioSource.MIC)
+                        .setAudioFormat(audioFormat)
+                        .setBufferSizeInBytes(bufferSize)
+                        .build();
+            }
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                Log.e("MediaProjectionService", "AudioRecord failed to initialize");
+                record.release();
+                return null;
+            }
+            return record;
+        } catch (IllegalArgumentException | UnsupportedOperationException | SecurityException e) {
+            Log.e("MediaProjectionService", "Unable to create AudioRecord: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private AudioRecord createPlaybackCaptureRecord(AudioFormat audioFormat, int bufferSize) {
+        try {
+            AudioPlaybackCaptureConfiguration config =
+                    new AudioPlaybackCaptureConfiguration.Builder(mediaProjection)
+                            .addMatchingUsage(AudioAttributes.USAGE_MEDIA)
+                            .addMatchingUsage(AudioAttributes.USAGE_GAME)
+                            .addMatchingUsage(AudioAttributes.USAGE_UNKNOWN)
+                            .build();
+            return new AudioRecord.Builder()
+                    .setAudioPlaybackCaptureConfig(config)
+                    .setAudioFormat(audioFormat)
+                    .setBufferSizeInBytes(bufferSize)
+                    .build();
+        } catch (UnsupportedOperationException e) {
+            Log.w("MediaProjectionService", "Playback capture unavailable, falling back to microphone");
+            return new AudioRecord.Builder()
+                    .setAudioSource(MediaRecorder.AudioSource.MIC)
+                    .setAudioFormat(audioFormat)
+                    .setBufferSizeInBytes(bufferSize)
+                    .build();
+        }
+    }
+
+    /**
+     * @return a started AAC encoder, or null if none could be configured
+     */
+    private MediaCodec createAudioEncoder() {
+        MediaCodec audioEncoder = null;
+        try {
+            MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                    AUDIO_SAMPLE_RATE, AUDIO_CHANNEL_COUNT);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, AUDIO_FRAME_SAMPLES * AUDIO_BYTES_PER_FRAME);
+
+            audioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            audioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            audioEncoder.start();
+            return audioEncoder;
+        } catch (IOException e) {
+            Log.e("createAudioEncoder", "IOException initializing audio encoder: " + e.getMessage());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.e("createAudioEncoder", "Exception configuring encoder: " + e.getMessage());
+        }
+        if (audioEncoder != null) {
+            audioEncoder.release();
+        }
+        return null;
+    }
+
+    private void handleAudioCapture(AudioRecord audioRecord, MediaCodec audioEncoder, AtomicBoolean capturing) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        AudioPtsClock ptsClock = new AudioPtsClock(AUDIO_SAMPLE_RATE, AUDIO_MAX_DRIFT_US);
+        SharedMediaBuffer sharedBuffer = SharedMediaBuffer.getInstance();
+        int chunkBytes = AUDIO_FRAME_SAMPLES * AUDIO_BYTES_PER_FRAME;
+
+        audioRecord.startRecording();
+        while (capturing.get()) {
+            int inputBufferIndex = audioEncoder.dequeueInputBuffer(TIMEOUT_US);
+            if (inputBufferIndex >= 0) {
+                ByteBuffer inputBuffer = audioEncoder.getInputBuffer(inputBufferIndex);
+                inputBuffer.clear();
+                int read = audioRecord.read(inputBuffer, Math.min(chunkBytes, inputBuffer.capacity()));
+                if (read > 0) {
+                    // pts shares the System.nanoTime() base used by the video encoder's input surface
+                    long ptsUs = ptsClock.nextPts(read / AUDIO_BYTES_PER_FRAME, System.nanoTime() / 1000);
+                    audioEncoder.queueInputBuffer(inputBufferIndex, 0, read, ptsUs, 0);
+                } else {
+                    audioEncoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, 0);
+                }
+            }
+
+            // Drain everything that is ready without waiting, the next read paces the loop
+            int outputBufferIndex;
+            while ((outputBufferIndex = audioEncoder.dequeueOutputBuffer(bufferInfo, 0)) >= 0) {
+                ByteBuffer outputBuffer = audioEncoder.getOutputBuffer(outputBufferIndex);
+                if (bufferInfo.size > 0 && outputBuffer != null) {
+                    outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                    outputBuffer.position(bufferInfo.offset);
+                    sharedBuffer.publishAudioFrame(outputBuffer, bufferInfo.presentationTimeUs, bufferInfo.flags);
+                }
+                audioEncoder.releaseOutputBuffer(outputBufferIndex, false);
+            }
+        }
+
+        // Clean up and release the capture source and encoder
+        audioRecord.stop();
+        audioRecord.release();
+        audioEncoder.stop();
+        audioEncoder.release();
+    }
+
+    /**
+     * Returns the ranked encoder registry for the capture size, enumerating MediaCodecList
+     * only when neither this process nor a previous launch on the same build has done so.
+     */
+    private EncoderRegistry loadEncoderRegistry(int width, int height) {
+        String key = Build.FINGERPRINT + "/" + width + "x" + height;
+        synchronized (ENCODER_REGISTRY_CACHE) {
+            EncoderRegistry registry = ENCODER_REGISTRY_CACHE.get(key);
+            if (registry != null) {
+                return registry;
+            }
+
+            SharedPreferences preferences = getSharedPreferences(ENCODER_REGISTRY_PREFERENCES, MODE_PRIVATE);
+            String persisted = preferences.getString(key, null);
+            if (persisted != null) {
+                try {
+                    registry = EncoderRegistry.decode(persisted);
+                } catch (IllegalArgumentException e) {
+                    Log.w("MediaProjectionService", "Discarding corrupt encoder cache: " + e.getMessage());
+                }
+            }
+            if (registry == null) {
+                registry = buildEncoderRegistry(width, height);
+                // Entries for other sizes on this build stay; those from older builds are stale
+                SharedPreferences.Editor editor = preferences.edit();
+                String buildPrefix = Build.FINGERPRINT + "/";
+                for (String stored : preferences.getAll().keySet()) {
+                    if (!stored.startsWith(buildPrefix)) {
+                        editor.remove(stored);
+                    }
+                }
+                editor.putString(key, registry.encode()).apply();
+            }
+            ENCODER_REGISTRY_CACHE.put(key, registry);
+            return registry;
+        }
+    }
+
+    private EncoderRegistry buildEncoderRegistry(int width, int height) {
         // Use REGULAR_CODECS to list only the codecs that are available for regular app usage.
-        // Use ALL_CODECS to include codecs that are reserved for system use.
         MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-        MediaCodecInfo[] codecInfos = codecList.getCodecInfos();
+        List<EncoderDescriptor> descriptors = new ArrayList<>();
 
-        for (MediaCodecInfo codecInfo : codecInfos) {
+        for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
             if (!codecInfo.isEncoder()) {
                 continue; // Skip decoder-only codecs.
             }
-
-            String[] types = codecInfo.getSupportedTypes();
-            for (String type : types) {
-                if (type.equalsIgnoreCase(mimeType)) {
-                    // This codec supports the specified MIME type, return it.
-                    return codecInfo;
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (!type.startsWith("video/")) {
+                    continue;
                 }
+                try {
+                    descriptors.add(describeEncoder(codecInfo, type, width, height));
+                } catch (IllegalArgumentException e) {
+                    Log.w("MediaProjectionService", "Skipping " + codecInfo.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return new EncoderRegistry(descriptors);
+    }
+
+    private EncoderDescriptor describeEncoder(MediaCodecInfo codecInfo, String type, int width, int height) {
+        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(type);
+        MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        boolean sizeSupported = videoCapabilities != null && videoCapabilities.isSizeSupported(width, height);
+
+        double achievableFrameRate = -1;
+        double maxFrameRate = 0;
+        if (sizeSupported) {
+            maxFrameRate = videoCapabilities.getSupportedFrameRatesFor(width, height).getUpper();
+            Range<Double> achievable = videoCapabilities.getAchievableFrameRatesFor(width, height);
+            if (achievable != null) {
+                achievableFrameRate = achievable.getUpper();
             }
         }
 
-        // If we couldn't find a matching codec, return null.
-        return null;
+        boolean hardwareAccelerated;
+        boolean softwareOnly;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            hardwareAccelerated = codecInfo.isHardwareAccelerated();
+            softwareOnly = codecInfo.isSoftwareOnly();
+        } else {
+            // Before Q the only signal is the naming convention of the platform software codecs
+            String name = codecInfo.getName();
+            softwareOnly = name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+            hardwareAccelerated = !softwareOnly;
+        }
+
+        int profile = 0;
+        int level = 0;
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+            if (EncoderRegistry.profileRank(type, profileLevel.profile) >= EncoderRegistry.profileRank(type, profile)) {
+                profile = profileLevel.profile;
+            }
+            level = Math.max(level, profileLevel.level);
+        }
+
+        return new EncoderDescriptor(codecInfo.getName(), type, hardwareAccelerated, softwareOnly,
+                selectColorFormat(capabilities) != 0, sizeSupported, achievableFrameRate, maxFrameRate,
+                profile, level);
     }
 
+    /**
+     * Starts a primary encoder at the given size. The service's encoder fields only change once
+     * it is running, so on failure the previous encoder, its parameter sets and the archive carry
+     * on untouched.
+     */
     private void initializeVideoEncoder(int width, int height) {
+        // Pick the best-ranked encoder for a codec the viewer accepts, falling back to AVC.
+        EncoderDescriptor descriptor = loadEncoderRegistry(width, height)
+                .select(viewerMimeTypes, VIDEO_FRAME_RATE);
+        if (descriptor == null) {
+            Log.e("initializeVideoEncoder", "Compatible codec not found for " + viewerMimeTypes);
+            return;
+        }
+        int selectedColorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+        MediaCodec encoder = null;
+        Surface surface = null;
+        HandlerThread callbackThread = null;
         try {
-            // Use the selectCodec method to find a codec that supports AVC (H.264) video format.
-            MediaCodecInfo codecInfo = selectCodec(MediaFormat.MIMETYPE_VIDEO_AVC);
-            if (codecInfo == null) {
-                Log.e("initializeVideoEncoder", "Compatible codec not found for " + MediaFormat.MIMETYPE_VIDEO_AVC);
-                return;
+            encoder = MediaCodec.createByCodecName(descriptor.name);
+            // Parameter sets from the previous encoder must not leak into a new archive
+            VideoStreamIndex index = EncoderRegistry.MIME_AVC.equals(descriptor.mimeType)
+                    || EncoderRegistry.MIME_HEVC.equals(descriptor.mimeType)
+                    ? new VideoStreamIndex(descriptor.mimeType) : null;
+            EncoderMode mode = encoderMode;
+            VideoOutput output = new VideoOutput(encoder, 0, width, height, getSendLatency(mode), index,
+                    keyFrameLimiter);
+            if (mode == EncoderMode.CALLBACK) {
+                // The callback must be set before configure() to put the codec in async mode
+                callbackThread = new HandlerThread("VideoEncoderCallback");
+                callbackThread.start();
+                encoder.setCallback(output.createCallback(callbackThread), new Handler(callbackThread.getLooper()));
             }
+            MediaFormat format = createVideoFormat(encoder, descriptor, width, height, videoBitRate);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, selectedColorFormat); // Set selected color format
 
-            MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(MediaFormat.MIMETYPE_VIDEO_AVC);
-            int selectedColorFormat = selectColorFormat(capabilities);
-            if (selectedColorFormat == 0) {
-                Log.e("initializeVideoEncoder", "No suitable color format found.");
-                return;
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = encoder.createInputSurface();
+            encoder.start();
+
+            selectedEncoder = descriptor;
+            videoIndex = index;
+            SharedMediaBuffer.getInstance().setLayerStreamIndex(0, index);
+            inputSurface = surface;
+            videoEncoder = encoder;
+            encodedWidth = width;
+            encodedHeight = height;
+            if (archiveRecorder != null && !archiveRecorder.getMimeType().equals(descriptor.mimeType)) {
+                // Segments cannot switch codec midway; start a fresh archive if the new one fits
+                Log.i("MediaProjectionService", "Codec changed to " + descriptor.mimeType + ", restarting archive");
+                stopArchive();
+                startArchive();
+            }
+            if (hlsServer != null && !EncoderRegistry.MIME_AVC.equals(descriptor.mimeType)) {
+                Log.i("MediaProjectionService", "Codec changed to " + descriptor.mimeType + ", stopping HLS");
+                stopHls();
             }
 
-            videoEncoder = MediaCodec.createByCodecName(codecInfo.getName());
-            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+            if (callbackThread == null) {
+                handleEncodedOutputData(output);
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Log.e("initializeVideoEncoder", "Unable to start " + descriptor.name + ": " + e.getMessage());
+            if (surface != null) {
+                surface.release();
+            }
+            if (encoder != null) {
+                encoder.release();
+            }
+            if (callbackThread != null) {
+                callbackThread.quitSafely();
+            }
+        }
+    }
 
-            // Configure your format here (bit rate, frame rate, I-frame interval, etc.)
-            int bitRate = 5000000; // Example bit rate
-            int frameRate = 30; // Example frame rate
-            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-            format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
-            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 5); // Example I-frame interval
-            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, selectedColorFormat); // Set selected color format
+    /**
+     * The format every video encoder shares, primary or simulcast layer: rate, keyframe and
+     * refresh settings, and the streaming profile's load.
+     */
+    private MediaFormat createVideoFormat(MediaCodec encoder, EncoderDescriptor descriptor, int width, int height,
+                                          int bitRate) {
+        MediaFormat format = MediaFormat.createVideoFormat(descriptor.mimeType, width, height);
 
-            videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            inputSurface = videoEncoder.createInputSurface();
-            videoEncoder.start();
+        // Configure your format here (bit rate, frame rate, I-frame interval, etc.)
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        StreamingGovernor.Profile profile = streamingProfile;
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, profile.frameRate);
+        // Lets the codec clock down to what the profile needs rather than run flat out
+        format.setInteger(MediaFormat.KEY_OPERATING_RATE, profile.frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VIDEO_KEY_FRAME_INTERVAL_S);
+        MediaCodecInfo.CodecCapabilities capabilities = encoder.getCodecInfo()
+                .getCapabilitiesForType(descriptor.mimeType);
+        if (EncoderRegistry.MIME_AVC.equals(descriptor.mimeType)) {
+            // WebRTC viewers negotiate PassthroughVideoEncoderFactory's profile-level-id and get
+            // these frames unchanged, so the encoder must not choose a higher profile on its own
+            int avcProfile = baselineProfile(capabilities);
+            if (avcProfile != 0) {
+                format.setInteger(MediaFormat.KEY_PROFILE, avcProfile);
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) {
+            // Refreshes a band of macroblocks per frame, so a lost packet heals within a second
+            // without the bitrate spike of a keyframe
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, profile.frameRate);
+        }
+        if (idleCaptureEnabled) {
+            // The virtual display only produces frames when something is composited, so a
+            // static screen collapses to a repeated keep-alive frame. Content changes are
+            // encoded immediately, with bursts of animation capped at the target rate.
+            format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, IDLE_REPEAT_FRAME_AFTER_US);
+        }
+        if ((idleCaptureEnabled || profile.frameRate < VIDEO_FRAME_RATE)
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // Also how a lighter profile's frame rate is enforced; the display itself
+            // composites at whatever rate the screen changes
+            format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, profile.frameRate);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // A viewer joining or switching layers starts decoding at a keyframe, which then
+            // carries its own parameter sets; older encoders get them copied in by the viewer fan-out
+            format.setInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES, 1);
+        }
+        Range<Integer> complexityRange = capabilities.getEncoderCapabilities().getComplexityRange();
+        if (complexityRange.getUpper() > complexityRange.getLower()) {
+            int span = complexityRange.getUpper() - complexityRange.getLower();
+            format.setInteger(MediaFormat.KEY_COMPLEXITY,
+                    complexityRange.getLower() + Math.round(span * profile.complexity));
+        }
+        return format;
+    }
 
-            // Remember to handle the encoded frames in a separate thread.
+    /**
+     * @return Constrained Baseline where the encoder lists it, else Baseline, or 0 if neither
+     */
+    private static int baselineProfile(MediaCodecInfo.CodecCapabilities capabilities) {
+        int profile = 0;
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1
+                    && profileLevel.profile == MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline) {
+                return profileLevel.profile;
+            }
+            if (profileLevel.profile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
+                profile = profileLevel.profile;
+            }
+        }
+        return profile;
+    }
 
-        } catch (IOException e) {
-            Log.e("initializeVideoEncoder", "IOException initializing video encoder: " + e.getMessage());
-        } catch (IllegalArgumentException | IllegalStateException e) {
-            Log.e("initializeVideoEncoder", "Exception configuring encoder: " + e.getMessage());
+    /**
+     * Starts an encoder for each lower simulcast layer the primary layout leaves room for, on
+     * the primary's codec. Stops at the first layer that is too small or cannot get an encoder,
+     * so the running layers are always the top ones.
+     */
+    private LayerEncoder[] startLayerEncoders(CaptureGeometry.Layout layout) {
+        EncoderDescriptor descriptor = selectedEncoder;
+        if (!simulcastEnabled || videoEncoder == null || descriptor == null) {
+            return NO_LAYERS;
+        }
+        SimulcastLayerSelector.Layer[] layers = SimulcastLayerSelector.Layer.values();
+        List<LayerEncoder> started = new ArrayList<>();
+        for (int layer = 1; layer < layers.length; layer++) {
+            int width = CongestionController.scaleDimension(layout.encodedWidth, layers[layer].resolutionScale);
+            int height = CongestionController.scaleDimension(layout.encodedHeight, layers[layer].resolutionScale);
+            if (Math.max(width, height) < LAYER_MIN_LONG_EDGE) {
+                break;
+            }
+            MediaCodec encoder = null;
+            Surface surface = null;
+            try {
+                encoder = MediaCodec.createByCodecName(descriptor.name);
+                MediaFormat format = createVideoFormat(encoder, descriptor, width, height, layerBitRate(layer));
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                surface = encoder.createInputSurface();
+                encoder.start();
+                VideoStreamIndex streamIndex = videoIndex != null ? new VideoStreamIndex(descriptor.mimeType) : null;
+                LayerEncoder layerEncoder = new LayerEncoder(layer, encoder, surface, streamIndex);
+                // Each layer has its own resolution, so a viewer switching to it needs its own parameter sets
+                SharedMediaBuffer.getInstance().setLayerStreamIndex(layer, streamIndex);
+                // Lower layers always drain by polling; the drain mode is compared on the primary only
+                handleEncodedOutputData(new VideoOutput(encoder, layer, width, height, null, streamIndex,
+                        layerEncoder.keyFrameLimiter));
+                started.add(layerEncoder);
+                Log.i("MediaProjectionService", "Simulcast layer " + layers[layer] + " at " + width + "x" + height);
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                // Hardware encoders only run so many sessions at once
+                Log.w("MediaProjectionService", "Unable to start simulcast layer " + layers[layer] + ": "
+                        + e.getMessage());
+                if (surface != null) {
+                    surface.release();
+                }
+                if (encoder != null) {
+                    encoder.release();
+                }
+                break;
+            }
+        }
+        return started.toArray(NO_LAYERS);
+    }
+
+    /**
+     * Ends the given layers' streams; each drain thread releases its encoder once the end of
+     * stream comes out.
+     */
+    private void retireLayerEncoders(LayerEncoder[] layers) {
+        for (LayerEncoder layer : layers) {
+            mainThreadHandler.removeCallbacks(layer.pollKeyFrameLimiter);
+            try {
+                layer.encoder.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                Log.w("MediaProjectionService", "Layer encoder already stopped: " + e.getMessage());
+            }
+            layer.inputSurface.release();
+            // Unless a replacement on the same layer has registered its own already
+            SharedMediaBuffer.getInstance().clearLayerStreamIndex(layer.layer, layer.streamIndex);
+        }
+    }
+
+    private int layerBitRate(int layer) {
+        float fraction = SimulcastLayerSelector.Layer.values()[layer].bitrateFraction;
+        return Math.max(LAYER_MIN_BIT_RATE, Math.round(videoBitRate * fraction));
+    }
+
+    /**
+     * Keeps the lower layers at their share of the primary's bitrate, and tells the transport
+     * side what each running layer needs so it can pick viewers' layers.
+     */
+    private void updateLayerBitrates() {
+        LayerEncoder[] layers = layerEncoders;
+        int[] bitrates = new int[layers.length + 1];
+        bitrates[0] = videoBitRate;
+        for (LayerEncoder layer : layers) {
+            bitrates[layer.layer] = layerBitRate(layer.layer);
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrates[layer.layer]);
+            try {
+                layer.encoder.setParameters(params);
+            } catch (IllegalStateException e) {
+                Log.w("MediaProjectionService", "Unable to update layer bitrate: " + e.getMessage());
+            }
         }
+        SharedMediaBuffer.getInstance().setLayerBitrates(bitrates);
     }
 
     private int selectColorFormat(MediaCodecInfo.CodecCapabilities capabilities) {
@@ -203,11 +1425,13 @@ public class MediaProjectionService extends Service {
         return 0; // Return 0 if no suitable color format is found
     }
 
-    private void handleEncodedOutputData(final MediaCodec encoder) {
+    private void handleEncodedOutputData(final VideoOutput output) {
         new Thread(new Runnable() {
             @Override
             public void run() {
+                // Reused for every frame so the drain loop does not allocate
                 MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+                MediaCodec encoder = output.encoder;
                 boolean isEncoding = true; // Control encoding loop
 
                 while (isEncoding) {
@@ -217,50 +1441,225 @@ public class MediaProjectionService extends Service {
                     if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                         // No output available yet
                     } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        // Output format has changed, handle it here if necessary
+                        output.onOutputFormatChanged(encoder.getOutputFormat());
                     } else if (outputBufferIndex >= 0) {
-                        // Get the output buffer directly
-                        ByteBuffer outputBuffer = encoder.getOutputBuffer(outputBufferIndex);
+                        isEncoding = !output.onOutputBuffer(outputBufferIndex, bufferInfo);
+                    }
+                }
 
-                        if (bufferInfo.size > 0) {
-                            handleEncodedVideoFrames();
-                        }
+                // Clean up and release the encoder
+                output.release();
+            }
+        }, "VideoEncoderDrain").start();
+    }
+
+    /**
+     * A lower simulcast layer's encoder, fed by the capture relay. It has its own keyframe budget,
+     * so viewers switching onto it do not spend the primary encoder's.
+     */
+    private final class LayerEncoder {
+        final int layer;
+        final MediaCodec encoder;
+        final Surface inputSurface;
+        final KeyFrameRateLimiter keyFrameLimiter;
+        // Null for codecs without NAL units
+        final VideoStreamIndex streamIndex;
+        final Runnable pollKeyFrameLimiter = new Runnable() {
+            @Override
+            public void run() {
+                long delayMs = keyFrameLimiter.poll(SystemClock.elapsedRealtime());
+                if (delayMs >= 0) {
+                    mainThreadHandler.postDelayed(this, delayMs);
+                }
+            }
+        };
 
-                        // Release the buffer back to the encoder
-                        encoder.releaseOutputBuffer(outputBufferIndex, false);
+        LayerEncoder(int layer, MediaCodec encoder, Surface inputSurface, VideoStreamIndex streamIndex) {
+            this.layer = layer;
+            this.encoder = encoder;
+            this.inputSurface = inputSurface;
+            this.streamIndex = streamIndex;
+            this.keyFrameLimiter = new KeyFrameRateLimiter(() -> requestSyncFrame(encoder),
+                    KEY_FRAME_BURST, KEY_FRAME_REFILL_MS, KEY_FRAME_REQUEST_TIMEOUT_MS);
+        }
+
+        void requestKeyFrame() {
+            if (!keyFrameLimiter.request(SystemClock.elapsedRealtime())) {
+                mainThreadHandler.removeCallbacks(pollKeyFrameLimiter);
+                mainThreadHandler.post(pollKeyFrameLimiter);
+            }
+        }
+    }
+
+    /**
+     * Output side of one video encoder instance, shared by both drain modes. Only the primary
+     * encoder (layer 0) feeds idle detection and the capture metrics.
+     */
+    private final class VideoOutput {
+        final MediaCodec encoder;
+        final int layer;
+        final int width;
+        final int height;
+        // Null for lower layers
+        final LatencyHistogram sendLatency;
+        // Null for codecs without NAL units
+        final VideoStreamIndex streamIndex;
+        final KeyFrameRateLimiter keyFrameLimiter;
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        final EncodedFrame.Pool framePool;
+        final SharedMediaBuffer sharedBuffer = SharedMediaBuffer.getInstance();
+        final EncodedFrameDispatcher dispatcher;
+
+        VideoOutput(final MediaCodec encoder, int layer, int width, int height, LatencyHistogram sendLatency,
+                    VideoStreamIndex streamIndex, KeyFrameRateLimiter keyFrameLimiter) {
+            this.encoder = encoder;
+            this.layer = layer;
+            this.width = width;
+            this.height = height;
+            this.sendLatency = sendLatency;
+            this.streamIndex = streamIndex;
+            this.keyFrameLimiter = keyFrameLimiter;
+            this.dispatcher = sharedBuffer.getLayerDispatcher(layer);
+            // Frames are handed to sinks without copying; the codec buffer is returned only once
+            // the last sink has released its reference, possibly from another thread.
+            this.framePool = new EncodedFrame.Pool(frame -> {
+                if (isRunning.get()) {
+                    try {
+                        encoder.releaseOutputBuffer(frame.getBufferIndex(), false);
+                    } catch (IllegalStateException e) {
+                        Log.w("MediaProjectionService", "Encoder stopped before frame was released");
+                    }
+                }
+            });
+        }
 
-                        // Check if this is the end of the stream
-                        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            isEncoding = false; // Stop encoding loop
+        /**
+         * Publishes one output buffer and hands it to live sinks.
+         *
+         * @return true if this buffer carried the end-of-stream flag
+         */
+        boolean onOutputBuffer(int index, MediaCodec.BufferInfo bufferInfo) {
+            long dequeueTimeNs = System.nanoTime();
+            ByteBuffer outputBuffer = encoder.getOutputBuffer(index);
+
+            if (bufferInfo.size > 0 && outputBuffer != null) {
+                outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                outputBuffer.position(bufferInfo.offset);
+                int flags = bufferInfo.flags;
+                // Keeps parameter sets for sinks that attach later, catches IDRs some encoders
+                // leave unflagged when they carry in-band parameter sets, and marks frames that
+                // viewer pacing may drop when they run late
+                if (streamIndex != null) {
+                    int frameType = streamIndex.inspect(outputBuffer, bufferInfo.presentationTimeUs);
+                    if ((frameType & VideoStreamIndex.FRAME_KEY) != 0) {
+                        flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+                        if ((frameType & VideoStreamIndex.FRAME_PARAMETER_SETS) != 0) {
+                            flags |= FrameRing.FLAG_PARAMETER_SETS;
                         }
                     }
+                    if ((frameType & VideoStreamIndex.FRAME_DISPOSABLE) != 0) {
+                        flags |= FrameRing.FLAG_DISPOSABLE;
+                    }
                 }
 
-                // Clean up and release the encoder
-                encoder.stop();
-                encoder.release();
+                // Copy into the shared ring for asynchronous readers, then pass the
+                // codec buffer itself to live sinks.
+                sharedBuffer.publishLayerFrame(layer, outputBuffer, bufferInfo.presentationTimeUs, flags);
+                EncodedFrame frame = framePool.obtain(index, outputBuffer,
+                        bufferInfo.presentationTimeUs, flags, width, height);
+                frame.setDequeueTimeNs(dequeueTimeNs);
+                dispatcher.dispatch(frame);
+                if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    keyFrameLimiter.onKeyFrame();
+                }
+                if (layer == 0) {
+                    recordPrimaryFrame(bufferInfo, flags, dequeueTimeNs);
+                }
+            } else {
+                // Release the buffer back to the encoder
+                encoder.releaseOutputBuffer(index, false);
             }
-        }).start();
-    }
 
+            return (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        }
+
+        private void recordPrimaryFrame(MediaCodec.BufferInfo bufferInfo, int flags, long dequeueTimeNs) {
+            IdleDetector detector = idleDetector;
+            if (detector != null) {
+                detector.onFrame(SystemClock.elapsedRealtime(), bufferInfo.size,
+                        (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            }
+            // pts comes from the input surface, which shares the System.nanoTime() base
+            long nowNs = System.nanoTime();
+            sendLatency.record(nowNs / 1000 - bufferInfo.presentationTimeUs);
+            captureToDequeue.record(dequeueTimeNs / 1000 - bufferInfo.presentationTimeUs);
+            dequeueToDispatch.record((nowNs - dequeueTimeNs) / 1000);
+            encodedFrames.increment();
+            encodedBytes.add(bufferInfo.size);
+            CaptureModeStats modeStats = captureModeStats;
+            if (modeStats != null) {
+                modeStats.onFrame(bufferInfo.size);
+            }
+            if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                encodedKeyFrames.increment();
+            }
+        }
+
+        /**
+         * Encoders that never emit a codec-config buffer still report their parameter sets here.
+         */
+        void onOutputFormatChanged(MediaFormat format) {
+            if (streamIndex != null) {
+                streamIndex.addCodecConfig(format.getByteBuffer("csd-0"));
+                streamIndex.addCodecConfig(format.getByteBuffer("csd-1"));
+            }
+        }
 
-    private void handleEncodedVideoFrames() {
-        // This is a simplified outline. Actual implementation will vary.
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        int outputBufferIndex = videoEncoder.dequeueOutputBuffer(bufferInfo, 3000);
-        if (outputBufferIndex >= 0) {
-            ByteBuffer outputBuffer = videoEncoder.getOutputBuffer(outputBufferIndex);
+        MediaCodec.Callback createCallback(final HandlerThread callbackThread) {
+            return new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    // Input comes from the Surface
+                }
 
-            // Process the frame for WebRTC transmission
-            sendFrameToWebRTC(outputBuffer, bufferInfo);
+                @Override
+                public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                    if (onOutputBuffer(index, info)) {
+                        // Stopping the codec from inside its own callback can deadlock
+                        mainThreadHandler.post(() -> {
+                            release();
+                            callbackThread.quitSafely();
+                        });
+                    }
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    Log.e("MediaProjectionService", "Video encoder error: " + e.getDiagnosticInfo()
+                            + (e.isTransient() ? " (transient)" : ""));
+                    if (!e.isTransient()) {
+                        // Same as for end of stream: not from inside the codec's own callback
+                        mainThreadHandler.post(() -> onEncoderFailed(VideoOutput.this, callbackThread));
+                    }
+                }
 
-            videoEncoder.releaseOutputBuffer(outputBufferIndex, false);
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                    VideoOutput.this.onOutputFormatChanged(format);
+                }
+            };
         }
-    }
 
-    private void sendFrameToWebRTC(ByteBuffer frame, MediaCodec.BufferInfo bufferInfo) {
-        // Convert the frame to a format suitable for WebRTC and send it
-        // This will involve the WebRTC native APIs to handle video frames
+        void release() {
+            isRunning.set(false);
+            try {
+                encoder.stop();
+            } catch (IllegalStateException e) {
+                // The codec hit a fatal error; release() still frees it
+                Log.w("MediaProjectionService", "Encoder did not stop cleanly: " + e.getMessage());
+            }
+            encoder.release();
+        }
     }
 
-}
\ No newline at end of file
+}
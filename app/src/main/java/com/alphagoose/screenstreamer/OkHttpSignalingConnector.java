@@ -0,0 +1,82 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+/**
+ * {@link SignalingSupervisor.Connector} on top of OkHttp's WebSocket.
+ *
+ * OkHttp sends a WebSocket ping every heartbeat interval and fails the socket if the pong for
+ * the previous one has not arrived, so a dead connection surfaces within two intervals even
+ * when the TCP connection itself looks healthy.
+ */
+public class OkHttpSignalingConnector implements SignalingSupervisor.Connector {
+    private static final int NORMAL_CLOSURE = 1000;
+
+    private final OkHttpClient client;
+    private final String url;
+
+    public OkHttpSignalingConnector(String url, long heartbeatIntervalMs, long connectTimeoutMs) {
+        this.url = url;
+        this.client = new OkHttpClient.Builder()
+                .pingInterval(heartbeatIntervalMs, TimeUnit.MILLISECONDS)
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public SignalingSupervisor.Connection connect(SignalingSupervisor.Events events) {
+        Request request = new Request.Builder().url(url).build();
+        WebSocket webSocket = client.newWebSocket(request, new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                events.onOpen();
+            }
+
+            @Override
+            public void onMessage(WebSocket webSocket, String text) {
+                events.onText(text);
+            }
+
+            @Override
+            public void onMessage(WebSocket webSocket, ByteString bytes) {
+                events.onBinary(bytes.toByteArray());
+            }
+
+            @Override
+            public void onClosing(WebSocket webSocket, int code, String reason) {
+                webSocket.close(NORMAL_CLOSURE, null);
+                events.onClosed("Closed by server: " + code + " " + reason);
+            }
+
+            @Override
+            public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+                events.onClosed("Failure: " + t.getMessage());
+            }
+        });
+        return new SignalingSupervisor.Connection() {
+            @Override
+            public boolean send(String text) {
+                return webSocket.send(text);
+            }
+
+            @Override
+            public boolean send(ByteBuffer bytes) {
+                // ByteString copies, so the caller's buffer is free again on return
+                return webSocket.send(ByteString.of(bytes.duplicate()));
+            }
+
+            @Override
+            public void cancel() {
+                webSocket.cancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,148 @@
+package com.alphagoose.screenstreamer;
+
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoFrame;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encoder factory whose "encoders" emit frames MediaProjectionService has already encoded.
+ *
+ * One factory serves every viewer's PeerConnection, but WebRTC does not say which connection
+ * an encoder belongs to. Each viewer's {@link WebRtcVideoSender} therefore pushes its own
+ * placeholder buffer, which WebRTC hands back to the Java encoder unchanged, and the encoder
+ * uses it to find the sender whose pending frame it should emit.
+ */
+public class PassthroughVideoEncoderFactory implements VideoEncoderFactory {
+    private static final String TAG = "PassthroughEncoder";
+    private static final VideoCodecInfo H264_CODEC_INFO = createH264CodecInfo();
+    // The passthrough encoder only knows how to describe H.264 access units to WebRTC
+    public static final Set<String> SUPPORTED_MIME_TYPES = Collections.singleton(EncoderRegistry.MIME_AVC);
+
+    private final Map<VideoFrame.Buffer, WebRtcVideoSender> senders = new ConcurrentHashMap<>();
+
+    private static VideoCodecInfo createH264CodecInfo() {
+        HashMap<String, String> params = new HashMap<>();
+        params.put("level-asymmetry-allowed", "1");
+        params.put("packetization-mode", "1");
+        // Constrained Baseline, which MediaProjectionService asks its AVC encoders for. The level
+        // is only nominal: level-asymmetry-allowed lets screens larger than 720p exceed 3.1.
+        params.put("profile-level-id", "42e01f");
+        return new VideoCodecInfo("H264", params);
+    }
+
+    public void register(WebRtcVideoSender sender) {
+        senders.put(sender.getPlaceholderBuffer(), sender);
+    }
+
+    public void unregister(WebRtcVideoSender sender) {
+        senders.remove(sender.getPlaceholderBuffer());
+    }
+
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        if (!H264_CODEC_INFO.name.equalsIgnoreCase(info.name)) {
+            return null;
+        }
+        return new PassthroughEncoder();
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        return new VideoCodecInfo[]{H264_CODEC_INFO};
+    }
+
+    private class PassthroughEncoder implements VideoEncoder {
+        private volatile Callback encodeCallback;
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback callback) {
+            encodeCallback = callback;
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            encodeCallback = null;
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame placeholder, EncodeInfo info) {
+            WebRtcVideoSender sender = senders.get(placeholder.getBuffer());
+            if (sender == null) {
+                return VideoCodecStatus.NO_OUTPUT;
+            }
+            EncodedFrame frame = sender.takePendingFrame();
+            if (frame == null) {
+                return VideoCodecStatus.NO_OUTPUT;
+            }
+            Callback callback = encodeCallback;
+            if (callback == null) {
+                frame.release();
+                return VideoCodecStatus.UNINITIALIZED;
+            }
+            // WebRTC asks for a keyframe after a PLI/FIR from the viewer; forward it to the real encoder
+            if (!frame.isKeyFrame() && wantsKeyFrame(info)) {
+                sender.requestKeyFrame();
+            }
+
+            // The frame's buffer is shared with other viewers, so give WebRTC its own view of it.
+            EncodedImage image = EncodedImage.builder()
+                    .setBuffer(frame.getData().slice(), frame.getReleaseCallback())
+                    .setEncodedWidth(frame.getWidth())
+                    .setEncodedHeight(frame.getHeight())
+                    .setCaptureTimeNs(placeholder.getTimestampNs())
+                    .setFrameType(frame.isKeyFrame()
+                            ? EncodedImage.FrameType.VideoFrameKey
+                            : EncodedImage.FrameType.VideoFrameDelta)
+                    .setRotation(0)
+                    .createEncodedImage();
+            try {
+                callback.onEncodedFrame(image, new CodecSpecificInfoH264());
+            } finally {
+                image.release();
+            }
+            sender.onFrameSent();
+            return VideoCodecStatus.OK;
+        }
+
+        private boolean wantsKeyFrame(EncodeInfo info) {
+            for (EncodedImage.FrameType type : info.frameTypes) {
+                if (type == EncodedImage.FrameType.VideoFrameKey) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            // Rate control happens in MediaProjectionService's encoder
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return ScalingSettings.OFF;
+        }
+
+        @Override
+        public String getImplementationName() {
+            return TAG;
+        }
+
+        @Override
+        public boolean isHardwareEncoder() {
+            return true;
+        }
+    }
+}
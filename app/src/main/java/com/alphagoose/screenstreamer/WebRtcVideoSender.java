@@ -0,0 +1,118 @@
+package com.alphagoose.screenstreamer;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.VideoFrame;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds one viewer's already-encoded frames into that viewer's WebRTC video track.
+ *
+ * WebRTC only encodes frames pushed through a VideoSource, so each encoded frame is paired
+ * with a tiny placeholder VideoFrame. The {@link PassthroughVideoEncoderFactory} encoder
+ * ignores the placeholder's pixels and emits the pending frame as an EncodedImage, handing
+ * WebRTC our release callback so the frame's buffer is recycled once it has been sent.
+ */
+public class WebRtcVideoSender implements ViewerSession.Transport {
+
+    public interface Listener {
+        void onKeyFrameNeeded();
+
+        /** Called once, on WebRTC's encoder thread, when the first frame is handed to WebRTC. */
+        void onFirstFrameSent();
+    }
+
+    // How long to wait for WebRTC to pick up the previous frame before assuming it was dropped
+    private static final long HANDOFF_TIMEOUT_MS = 200;
+
+    // One slot: frames must reach WebRTC in order, so the session thread waits rather than overwrites
+    private final ArrayBlockingQueue<EncodedFrame> pendingFrame = new ArrayBlockingQueue<>(1);
+    private final JavaI420Buffer placeholderBuffer = JavaI420Buffer.allocate(2, 2);
+    private final Listener listener;
+    private volatile CapturerObserver capturerObserver;
+    private boolean firstFrameSent;
+
+    public WebRtcVideoSender(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Connects the sender to the VideoSource backing the outgoing track.
+     */
+    public void attach(CapturerObserver observer) {
+        capturerObserver = observer;
+        observer.onCapturerStarted(true);
+    }
+
+    public void detach() {
+        CapturerObserver observer = capturerObserver;
+        capturerObserver = null;
+        if (observer != null) {
+            observer.onCapturerStopped();
+        }
+        EncodedFrame frame = pendingFrame.poll();
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void send(EncodedFrame frame) {
+        CapturerObserver observer = capturerObserver;
+        if (observer == null) {
+            frame.release();
+            return;
+        }
+        try {
+            if (!pendingFrame.offer(frame, HANDOFF_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                // WebRTC dropped the placeholder for the previous frame, so the viewer has a gap anyway
+                EncodedFrame stale = pendingFrame.poll();
+                if (stale != null) {
+                    stale.release();
+                }
+                pendingFrame.offer(frame);
+                listener.onKeyFrameNeeded();
+            }
+        } catch (InterruptedException e) {
+            frame.release();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long timestampNs = TimeUnit.MICROSECONDS.toNanos(frame.getPresentationTimeUs());
+        observer.onFrameCaptured(new VideoFrame(placeholderBuffer, 0, timestampNs));
+    }
+
+    @Override
+    public void close() {
+        detach();
+    }
+
+    EncodedFrame takePendingFrame() {
+        return pendingFrame.poll();
+    }
+
+    void requestKeyFrame() {
+        listener.onKeyFrameNeeded();
+    }
+
+    /**
+     * Called by the passthrough encoder after WebRTC accepted a frame.
+     */
+    void onFrameSent() {
+        if (!firstFrameSent) {
+            firstFrameSent = true;
+            listener.onFirstFrameSent();
+        }
+    }
+
+    VideoFrame.Buffer getPlaceholderBuffer() {
+        return placeholderBuffer;
+    }
+
+    public void dispose() {
+        detach();
+        placeholderBuffer.release();
+    }
+}
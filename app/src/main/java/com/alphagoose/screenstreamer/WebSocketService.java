@@ -10,6 +10,8 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.Looper;
 import android.util.Log;
 import android.widget.TextView;
@@ -18,6 +20,7 @@ import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.DataChannel;
@@ -26,24 +29,93 @@ import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
 import org.webrtc.RtpReceiver;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
+import org.webrtc.VideoSource;
+import org.webrtc.VideoTrack;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.WebSocket;
-import okhttp3.WebSocketListener;
 
 public class WebSocketService extends Service {
     private static final String CHANNEL_ID = "WebSocketServiceChannel";
+    private static final long STATS_INTERVAL_MS = 1000;
+    // Signaling messages without a viewerId belong to the single viewer of older servers
+    private static final String DEFAULT_VIEWER_ID = "default";
+    // JSON-only handshake that picks the signaling wire format for the connection
+    private static final String HELLO_TYPE = "hello";
+    private static final int VIEWER_QUEUE_FRAMES = 8;
+    private static final int MAX_SHARED_FRAMES = 96;
+    // Viewers are paced above their link estimate, so pacing smooths keyframe bursts without
+    // adding steady-state delay
+    private static final double PACING_FACTOR = 1.5;
+    private static final long KEY_FRAME_REQUEST_TIMEOUT_MS = 1000;
+    // A viewer's link must allow the next simulcast layer up for this long before it moves up
+    private static final long LAYER_STEP_UP_HOLD_MS = 10000;
+    // Local candidates gathered within this window go out in one message
+    private static final long CANDIDATE_BATCH_WINDOW_MS = 40;
+    private static final int ICE_CANDIDATE_POOL_SIZE = 1;
+    // ICE restarts in a row that may fail before the viewer is taken to be gone
+    private static final int MAX_ICE_RESTARTS = 3;
+    private static final String SIGNALING_URL = "ws://10.0.2.2:8080";
+    // WebSocket ping interval; two missed pongs' worth of silence fails the connection
+    private static final long HEARTBEAT_INTERVAL_MS = 10000;
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30000;
+    // A connection must last this long before the reconnect backoff starts over
+    private static final long CONNECTION_STABLE_MS = 30000;
+    // Remote input is handed on at most once per frame of the 30 fps capture
+    private static final long INPUT_FLUSH_INTERVAL_MS = 33;
+    // Control messages are a few dozen bytes
+    private static final int CONTROL_MESSAGE_BYTES = 64;
     private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    // Every histogram and gauge this service put in MetricsRegistry, removed again when it goes away
+    private final List<String> registeredMetrics = new ArrayList<>();
     private final IBinder binder = new LocalBinder();
-    private WebSocket webSocket;
-    private PeerConnection peerConnection;
+    private SignalingSupervisor signalingSupervisor;
+    // Lets the server recognise a reconnecting client and keep its viewers attached
+    private final String sessionId = UUID.randomUUID().toString();
+    // Owns all signaling and viewer state. WebRTC is initialized here first, while the socket connects.
+    private final SignalingExecutor signalingExecutor = new SignalingExecutor("Signaling");
+    private volatile boolean destroyed;
+    // Used only on the signaling thread
+    private final SignalingCodec signalingCodec = new SignalingCodec(true);
+    private volatile boolean binarySignaling;
+    private volatile PeerConnectionFactory factory;
+    private volatile PassthroughVideoEncoderFactory encoderFactory;
+    private volatile PeerConnection.RTCConfiguration rtcConfig;
+    private volatile ViewerSessionManager viewerSessions;
+    private final ConnectionTimeline startupTimeline = new ConnectionTimeline();
+    private final LatencyHistogram viewerFirstFrameLatency = new LatencyHistogram("webrtc.viewer_first_frame_ms");
+    private final LatencyHistogram signalingRtt = new LatencyHistogram("signaling.rtt_us");
+    private final LatencyHistogram webRtcRtt = new LatencyHistogram("webrtc.rtt_us");
+    private final LatencyHistogram controlRtt = new LatencyHistogram("control.rtt_us");
+    private final LatencyHistogram inputLatency = new LatencyHistogram("input.latency_us");
+    // nanoTime of the ping awaiting its pong, or 0
+    private volatile long pingSentNs;
+    // Written on the signaling thread, also read by the metrics gauges
+    private final Map<String, ViewerConnection> viewers = new ConcurrentHashMap<>();
+    // Signaling thread only; bumped so a pending stats round finds itself stale and stops
+    private int statsGeneration;
+    private HandlerThread inputThread;
+    private volatile Handler inputHandler;
+    private volatile InputCoalescer.Sink inputSink;
+    private final AtomicBoolean inputFlushScheduled = new AtomicBoolean();
+    private volatile long lastInputFlushMs;
 
     public class LocalBinder extends Binder {
         WebSocketService getService() {
@@ -52,7 +124,45 @@ public class WebSocketService extends Service {
     }
 
     public void pingSignalServer() {
-        webSocket.send("AndroidStudio: PING");
+        pingSentNs = System.nanoTime();
+        send(SignalingMessage.ping());
+    }
+
+    /**
+     * Milestones from service start to the first frame sent to any viewer.
+     */
+    public ConnectionTimeline getStartupTimeline() {
+        return startupTimeline;
+    }
+
+    /**
+     * Time from a viewer joining until its first frame was handed to WebRTC.
+     */
+    public LatencyHistogram getViewerFirstFrameLatency() {
+        return viewerFirstFrameLatency;
+    }
+
+    /**
+     * Round trip of an application-level ping to the signaling server, in microseconds.
+     */
+    public LatencyHistogram getSignalingRtt() {
+        return signalingRtt;
+    }
+
+    /**
+     * Time from a viewer's input event to its delivery to the input sink, in microseconds,
+     * on the viewer's clock mapped onto ours.
+     */
+    public LatencyHistogram getInputLatency() {
+        return inputLatency;
+    }
+
+    /**
+     * Sets where viewers' pointer, key and scroll events go, such as an accessibility service
+     * that dispatches them as gestures. Called on the input thread; null discards events.
+     */
+    public void setInputSink(@Nullable InputCoalescer.Sink sink) {
+        inputSink = sink;
     }
 
     @Nullable
@@ -64,6 +174,9 @@ public class WebSocketService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        startupTimeline.mark(ConnectionTimeline.Stage.SERVICE_CREATED, SystemClock.elapsedRealtime());
+        signalingExecutor.setErrorHandler((thread, error) -> Log.e("WebSocket", "Signaling task failed", error));
+        signalingExecutor.execute(this::initializeWebRTC);
 
         int flags = 0;
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
@@ -83,65 +196,280 @@ public class WebSocketService extends Service {
                 .build();
 
         startForeground(1, notification);
-        initWebSocket();
+        registerMetrics();
+        initSignaling();
     }
 
+    @Override
+    public void onDestroy() {
+        destroyed = true;
+        unregisterMetrics();
+        signalingSupervisor.stop();
+        // Queued behind initialization and any signaling already received
+        signalingExecutor.execute(this::releaseWebRTC);
+        signalingExecutor.shutdown();
+        super.onDestroy();
+    }
 
-    private void initWebSocket() {
-        OkHttpClient client = new OkHttpClient();
-        Request request = new Request.Builder().url("ws://10.0.2.2:8080").build();
-        webSocket = client.newWebSocket(request, new WebSocketListener() {
-            @Override
-            public void onOpen(WebSocket webSocket, okhttp3.Response response) {
-                mainThreadHandler.post(() -> {
-                    Log.i("WebSocket", "Connected to the server");
-                    Intent intent = new Intent("WebSocketServiceUpdate");
-                    intent.putExtra("message", "Connected to the server");
-                    LocalBroadcastManager.getInstance(WebSocketService.this).sendBroadcast(intent);
-
-                    initializeWebRTC();
-                });
+    /**
+     * Runs {@code task} on the signaling thread, after WebRTC is initialized and after every
+     * task submitted before it.
+     */
+    private void runOnSignalingThread(Runnable task) {
+        // A socket callback racing onDestroy is dropped, as is anything still queued behind it
+        signalingExecutor.execute(() -> {
+            if (!destroyed) {
+                task.run();
             }
+        });
+    }
 
-            @Override
-            public void onMessage(WebSocket webSocket, String text) {
-                mainThreadHandler.post(() -> {
-                    Log.i("WebSocket", "Message received: " + text);
-                    try {
-                        JSONObject message = new JSONObject(text);
-                        String type = message.optString("type");
-                        switch (type) {
-                            case "offer":
-                                handleOffer(message);
-                                break;
-                            case "answer":
-                                handleAnswer(message);
-                                break;
-                            case "candidate":
-                                handleIceCandidate(message);
-                                break;
-                            default:
-                                Log.e("WebSocket", "Unknown message type: " + type);
-                                break;
+    public int getSignalingQueueDepth() {
+        return signalingExecutor.getQueueDepth();
+    }
+
+    /**
+     * Time each signaling message spent being handled, in microseconds.
+     */
+    public LatencyHistogram getSignalingHandlingTime() {
+        return signalingExecutor.getHandlingTime();
+    }
+
+    /**
+     * Time each signaling message waited behind earlier ones, in microseconds.
+     */
+    public LatencyHistogram getSignalingQueueDelay() {
+        return signalingExecutor.getQueueDelay();
+    }
+
+
+    private void registerMetrics() {
+        register(viewerFirstFrameLatency);
+        register(signalingRtt);
+        register(webRtcRtt);
+        register(controlRtt);
+        register(inputLatency);
+        register(signalingExecutor.getQueueDelay());
+        register(signalingExecutor.getHandlingTime());
+        // Outbound totals summed over viewers, link quality from the worst of them
+        registerGauge("webrtc.viewers", viewers::size);
+        registerGauge("webrtc.bytes_sent", () -> {
+            long total = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                total += viewer.bytesSent;
+            }
+            return total;
+        });
+        registerGauge("webrtc.packets_sent", () -> {
+            long total = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                total += viewer.packetsSent;
+            }
+            return total;
+        });
+        registerGauge("webrtc.frames_sent", () -> {
+            long total = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                total += viewer.framesSent;
+            }
+            return total;
+        });
+        registerGauge("webrtc.retransmitted_bytes_sent", () -> {
+            long total = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                total += viewer.retransmittedBytesSent;
+            }
+            return total;
+        });
+        registerGauge("webrtc.nack_count", () -> {
+            long total = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                total += viewer.nackCount;
+            }
+            return total;
+        });
+        registerGauge("webrtc.pli_count", () -> {
+            long total = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                total += viewer.pliCount;
+            }
+            return total;
+        });
+        registerGauge("webrtc.loss_fraction", () -> {
+            double worst = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                worst = Math.max(worst, viewer.lossFraction);
+            }
+            return worst;
+        });
+        registerGauge("webrtc.available_bitrate_bps", () -> {
+            long lowest = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                if (viewer.availableBitrate > 0 && (lowest == 0 || viewer.availableBitrate < lowest)) {
+                    lowest = viewer.availableBitrate;
+                }
+            }
+            return lowest;
+        });
+        registerGauge("signaling.queue_depth", signalingExecutor::getQueueDepth);
+        registerGauge("input.events_received", () -> {
+            long total = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                total += viewer.input.getReceivedCount();
+            }
+            return total;
+        });
+        registerGauge("input.events_delivered", () -> {
+            long total = 0;
+            for (ViewerConnection viewer : viewers.values()) {
+                total += viewer.input.getDeliveredCount();
+            }
+            return total;
+        });
+        registerGauge("simulcast.layer_switches", () -> {
+            ViewerSessionManager sessions = viewerSessions;
+            return sessions != null ? sessions.getLayerSwitches() : 0;
+        });
+    }
+
+    private void register(LatencyHistogram histogram) {
+        MetricsRegistry.getInstance().register(histogram);
+        registeredMetrics.add(histogram.getName());
+    }
+
+    private void registerGauge(String name, MetricsRegistry.Gauge gauge) {
+        MetricsRegistry.getInstance().registerGauge(name, gauge);
+        registeredMetrics.add(name);
+    }
+
+    private void unregisterMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        for (String name : registeredMetrics) {
+            metrics.remove(name);
+        }
+        registeredMetrics.clear();
+    }
+
+    private void initSignaling() {
+        signalingSupervisor = new SignalingSupervisor(
+                new OkHttpSignalingConnector(SIGNALING_URL, HEARTBEAT_INTERVAL_MS, CONNECT_TIMEOUT_MS),
+                signalingExecutor,
+                new ReconnectBackoff(RECONNECT_BASE_MS, RECONNECT_MAX_MS, new Random()),
+                CONNECTION_STABLE_MS,
+                new SignalingSupervisor.Callback() {
+                    @Override
+                    public void onConnected(boolean resumed) {
+                        if (destroyed) {
+                            return;
+                        }
+                        startupTimeline.mark(ConnectionTimeline.Stage.SOCKET_OPEN, SystemClock.elapsedRealtime());
+                        broadcastStatus(resumed ? "Reconnected to the server" : "Connected to the server");
+                        sendHello();
+                        if (resumed) {
+                            resumeViewers();
+                        } else {
+                            addViewer(DEFAULT_VIEWER_ID, true);
                         }
-                    } catch (JSONException e) {
-                        Log.e("WebSocket", "Failed to parse message: " + e.getMessage());
+                    }
+
+                    @Override
+                    public void onText(String text) {
+                        if (!destroyed) {
+                            handleText(text);
+                        }
+                    }
+
+                    @Override
+                    public void onBinary(byte[] bytes) {
+                        if (!destroyed) {
+                            handleBinary(bytes);
+                        }
+                    }
+
+                    @Override
+                    public void onDisconnected(String reason, long retryInMs) {
+                        binarySignaling = false;
+                        broadcastStatus("Disconnected (" + reason + "), retrying in " + retryInMs + " ms");
                     }
                 });
-            }
+        // Queued behind WebRTC initialization, so viewers can be created as soon as it opens
+        signalingSupervisor.start();
+    }
 
-            @Override
-            public void onClosing(WebSocket webSocket, int code, String reason) {
-                mainThreadHandler.post(() -> Log.i("WebSocket", "Closing: " + reason));
+    private void broadcastStatus(String status) {
+        mainThreadHandler.post(() -> {
+            Log.i("WebSocket", status);
+            Intent intent = new Intent("WebSocketServiceUpdate");
+            intent.putExtra("message", status);
+            LocalBroadcastManager.getInstance(WebSocketService.this).sendBroadcast(intent);
+        });
+    }
+
+    private void handleText(String text) {
+        Log.i("WebSocket", "Message received: " + text);
+        try {
+            JSONObject json = new JSONObject(text);
+            if (HELLO_TYPE.equals(json.optString("type"))) {
+                handleHello(json);
+                return;
             }
+            SignalingMessage message = fromJson(json);
+            if (message == null) {
+                Log.e("WebSocket", "Unknown message type: " + json.optString("type"));
+                return;
+            }
+            handleMessage(message);
+        } catch (JSONException e) {
+            Log.e("WebSocket", "Failed to parse message: " + e.getMessage());
+        }
+    }
 
-            @Override
-            public void onFailure(WebSocket webSocket, Throwable t, okhttp3.Response response) {
-                mainThreadHandler.post(() -> Log.e("WebSocket", "Error: " + t.getMessage()));
+    private void handleBinary(byte[] bytes) {
+        try {
+            SignalingMessage message = signalingCodec.decode(bytes);
+            Log.i("WebSocket", "Message received: " + message);
+            handleMessage(message);
+        } catch (IllegalArgumentException e) {
+            Log.e("WebSocket", "Failed to decode message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * After a reconnect the peer connections, tracks and encoder are all still in place; only
+     * viewers whose ICE did not survive the outage need an ICE restart.
+     */
+    private void resumeViewers() {
+        if (viewers.isEmpty()) {
+            addViewer(DEFAULT_VIEWER_ID, true);
+            return;
+        }
+        for (ViewerConnection viewer : new ArrayList<>(viewers.values())) {
+            PeerConnection.IceConnectionState state = viewer.iceState;
+            if (state != PeerConnection.IceConnectionState.CONNECTED
+                    && state != PeerConnection.IceConnectionState.COMPLETED) {
+                restartIce(viewer);
             }
-        });
+        }
     }
 
+    /**
+     * Restarts ICE, or removes the viewer once {@link #MAX_ICE_RESTARTS} restarts in a row have
+     * not connected; most likely its viewer-left was lost while signaling was down.
+     */
+    private void restartIce(ViewerConnection viewer) {
+        if (viewer.iceRestarts >= MAX_ICE_RESTARTS) {
+            Log.i("WebSocket", "Viewer " + viewer.viewerId + " still unreachable after " + viewer.iceRestarts
+                    + " ICE restarts, removing it");
+            removeViewer(viewer.viewerId);
+            return;
+        }
+        viewer.iceRestarts++;
+        Log.i("WebSocket", "ICE restart " + viewer.iceRestarts + " for viewer " + viewer.viewerId
+                + " (" + viewer.iceState + ")");
+        // Both sides gather afresh, so old candidates and the buffered remote ones are stale
+        viewer.candidates.reset();
+        createOffer(viewer, true);
+    }
 
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -157,44 +485,93 @@ public class WebSocketService extends Service {
 
     private void initializeWebRTC()
     {
+        long startMs = SystemClock.elapsedRealtime();
         // Inside your Activity or Service
         PeerConnectionFactory.InitializationOptions initializationOptions =
                 PeerConnectionFactory.InitializationOptions.builder(this)
                         .createInitializationOptions();
         PeerConnectionFactory.initialize(initializationOptions);
 
-        PeerConnectionFactory factory = PeerConnectionFactory.builder().createPeerConnectionFactory();
+        // Frames arrive already encoded from MediaProjectionService, so every viewer's encoder
+        // passes the shared frame copies straight through.
+        encoderFactory = new PassthroughVideoEncoderFactory();
+        factory = PeerConnectionFactory.builder()
+                .setVideoEncoderFactory(encoderFactory)
+                .createPeerConnectionFactory();
 
         List<PeerConnection.IceServer> iceServers = new ArrayList<>();
         iceServers.add(PeerConnection.IceServer.builder("stun:stun.l.google.com:19302").createIceServer());
+        rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
+        // Start gathering as soon as a connection is created, in parallel with creating the offer,
+        // and keep it to one transport so there are fewer candidates to trickle
+        rtcConfig.iceCandidatePoolSize = ICE_CANDIDATE_POOL_SIZE;
+        rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+        rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+
+        SharedMediaBuffer sharedBuffer = SharedMediaBuffer.getInstance();
+        viewerSessions = new ViewerSessionManager(layer -> {
+            EncoderControl control = SharedMediaBuffer.getInstance().getEncoderControl();
+            if (control != null) {
+                control.requestKeyFrame(layer);
+            }
+        }, SimulcastLayerSelector.LAYER_COUNT, VIEWER_QUEUE_FRAMES, MAX_SHARED_FRAMES, KEY_FRAME_REQUEST_TIMEOUT_MS,
+                sharedBuffer.getBufferPool(), sharedBuffer::getLayerCodecConfig);
+        for (int layer = 0; layer < SimulcastLayerSelector.LAYER_COUNT; layer++) {
+            sharedBuffer.getLayerDispatcher(layer).addSink(viewerSessions.getLayerSink(layer));
+        }
+        startStatsPolling();
+        startInputThread();
+
+        long readyMs = SystemClock.elapsedRealtime();
+        startupTimeline.mark(ConnectionTimeline.Stage.FACTORY_READY, readyMs);
+        Log.i("WebSocket", "WebRTC ready in " + (readyMs - startMs) + " ms");
+    }
 
-        PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
+    private ViewerConnection addViewer(String viewerId, boolean sendOffer) {
+        removeViewer(viewerId);
+        ViewerConnection viewer = new ViewerConnection(viewerId, inputLatency);
+        markStage(viewer, ConnectionTimeline.Stage.VIEWER_JOINED);
 
-        peerConnection = factory.createPeerConnection(rtcConfig, new PeerConnection.Observer() {
+        viewer.peerConnection = factory.createPeerConnection(rtcConfig, new PeerConnection.Observer() {
             @Override
             public void onSignalingChange(PeerConnection.SignalingState signalingState) {}
 
             @Override
-            public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {}
+            public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {
+                runOnSignalingThread(() -> {
+                    viewer.iceState = iceConnectionState;
+                    if (iceConnectionState == PeerConnection.IceConnectionState.CONNECTED) {
+                        viewer.iceRestarts = 0;
+                        markStage(viewer, ConnectionTimeline.Stage.ICE_CONNECTED);
+                    } else if (iceConnectionState == PeerConnection.IceConnectionState.FAILED
+                            && viewers.get(viewer.viewerId) == viewer
+                            && signalingSupervisor.getState() == SignalingSupervisor.State.OPEN) {
+                        // Without signaling this waits for resumeViewers() after the reconnect
+                        restartIce(viewer);
+                    }
+                });
+            }
 
             @Override
             public void onIceConnectionReceivingChange(boolean b) {}
 
             @Override
-            public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {}
+            public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
+                if (iceGatheringState == PeerConnection.IceGatheringState.COMPLETE) {
+                    // Nothing more is coming, so don't hold the last batch for the full window
+                    runOnSignalingThread(() -> flushCandidates(viewer));
+                }
+            }
 
             @Override
             public void onIceCandidate(IceCandidate iceCandidate) {
-                try {
-                    JSONObject candidateMessage = new JSONObject();
-                    candidateMessage.put("type", "candidate");
-                    candidateMessage.put("sdpMid", iceCandidate.sdpMid);
-                    candidateMessage.put("sdpMLineIndex", iceCandidate.sdpMLineIndex);
-                    candidateMessage.put("candidate", iceCandidate.sdp);
-                    webSocket.send(candidateMessage.toString());
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
+                SignalingCandidate candidate = new SignalingCandidate(
+                        iceCandidate.sdpMid, iceCandidate.sdpMLineIndex, iceCandidate.sdp);
+                runOnSignalingThread(() -> {
+                    if (viewer.candidates.addLocal(candidate)) {
+                        signalingExecutor.executeDelayed(() -> flushCandidates(viewer), CANDIDATE_BATCH_WINDOW_MS);
+                    }
+                });
             }
 
             @Override
@@ -207,7 +584,14 @@ public class WebSocketService extends Service {
             public void onRemoveStream(MediaStream mediaStream) {}
 
             @Override
-            public void onDataChannel(DataChannel dataChannel) {}
+            public void onDataChannel(DataChannel dataChannel) {
+                // A viewer that sent the offer opens the control channel itself
+                if (ControlCodec.CHANNEL_LABEL.equals(dataChannel.label())) {
+                    attachControlChannel(viewer, dataChannel);
+                } else {
+                    dataChannel.dispose();
+                }
+            }
 
             @Override
             public void onRenegotiationNeeded() {}
@@ -217,87 +601,760 @@ public class WebSocketService extends Service {
 
         });
 
-        peerConnection.createOffer(new SdpObserver() {
+        viewer.videoSource = factory.createVideoSource(true);
+        viewer.videoSender = new WebRtcVideoSender(new WebRtcVideoSender.Listener() {
             @Override
-            public void onCreateSuccess(SessionDescription offer) {
-                // Set local description
-                peerConnection.setLocalDescription(new SdpObserver() {
-                    @Override
-                    public void onCreateSuccess(SessionDescription sessionDescription) {}
+            public void onKeyFrameNeeded() {
+                // Called from the session and WebRTC threads, which can outlive releaseWebRTC
+                ViewerSessionManager sessions = viewerSessions;
+                if (sessions != null) {
+                    sessions.requestKeyFrame(viewerId);
+                }
+            }
 
-                    @Override
-                    public void onSetSuccess() {
-                        // Send the offer to the remote peer via WebSocket
-                        try {
-                            JSONObject offerMessage = new JSONObject();
-                            offerMessage.put("type", "offer");
-                            offerMessage.put("sdp", offer.description);
-                            webSocket.send(offerMessage.toString());
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
-                    }
+            @Override
+            public void onFirstFrameSent() {
+                markStage(viewer, ConnectionTimeline.Stage.FIRST_FRAME_SENT);
+                viewerFirstFrameLatency.record(viewer.timeline.elapsedMs(
+                        ConnectionTimeline.Stage.VIEWER_JOINED, ConnectionTimeline.Stage.FIRST_FRAME_SENT));
+                Log.i("WebSocket", "Viewer " + viewerId + " first frame: " + viewer.timeline);
+            }
+        });
+        viewer.videoSender.attach(viewer.videoSource.getCapturerObserver());
+        encoderFactory.register(viewer.videoSender);
+        VideoTrack videoTrack = factory.createVideoTrack("screen", viewer.videoSource);
+        viewer.peerConnection.addTrack(videoTrack, Collections.singletonList("screenStream"));
+        viewers.put(viewerId, viewer);
+        // Starts on the lowest running layer, whose keyframe is smallest and arrives soonest; the
+        // first bandwidth estimate then moves the viewer up
+        int layers = SharedMediaBuffer.getInstance().getLayerBitrates().length;
+        viewerSessions.addViewer(viewerId, viewer.videoSender, layers - 1);
+        Log.i("WebSocket", "Viewer " + viewerId + " joined, " + viewers.size() + " watching");
 
-                    @Override
-                    public void onCreateFailure(String error) {}
+        if (sendOffer) {
+            // Input and commands are only useful fresh, so a lost message is not retransmitted
+            // and does not hold back the ones after it
+            DataChannel.Init init = new DataChannel.Init();
+            init.ordered = false;
+            init.maxRetransmits = 0;
+            attachControlChannel(viewer, viewer.peerConnection.createDataChannel(ControlCodec.CHANNEL_LABEL, init));
+            createOffer(viewer, false);
+        }
+        return viewer;
+    }
 
+    private void removeViewer(String viewerId) {
+        ViewerConnection viewer = viewers.remove(viewerId);
+        if (viewer == null) {
+            return;
+        }
+        // Stop the session first so nothing is pushed into the track while it is torn down
+        viewerSessions.removeViewer(viewerId);
+        encoderFactory.unregister(viewer.videoSender);
+        DataChannel controlChannel = viewer.controlChannel;
+        if (controlChannel != null) {
+            controlChannel.unregisterObserver();
+            controlChannel.dispose();
+        }
+        viewer.peerConnection.dispose();
+        viewer.videoSender.dispose();
+        viewer.videoSource.dispose();
+        Log.i("WebSocket", "Viewer " + viewerId + " left, " + viewers.size() + " watching");
+        reportViewerCodecs();
+        if (viewer.bitrateCap > 0) {
+            reportBitrateCap();
+        }
+    }
+
+    private void releaseWebRTC() {
+        stopStatsPolling();
+        stopInputThread();
+        if (factory == null) {
+            return;
+        }
+        for (String viewerId : new ArrayList<>(viewers.keySet())) {
+            removeViewer(viewerId);
+        }
+        for (int layer = 0; layer < SimulcastLayerSelector.LAYER_COUNT; layer++) {
+            SharedMediaBuffer.getInstance().getLayerDispatcher(layer).removeSink(viewerSessions.getLayerSink(layer));
+        }
+        viewerSessions.close();
+        viewerSessions = null;
+        factory.dispose();
+        factory = null;
+        encoderFactory = null;
+    }
+
+    /**
+     * Sends {@code message} in the format negotiated with the server. Queued on the signaling
+     * thread, which owns the codec, so messages leave in the order they were sent from any thread.
+     */
+    private void send(SignalingMessage message) {
+        runOnSignalingThread(() -> {
+            boolean sent;
+            if (binarySignaling) {
+                DirectBufferPool pool = SharedMediaBuffer.getInstance().getBufferPool();
+                ByteBuffer frame = signalingCodec.encode(message, pool);
+                try {
+                    sent = signalingSupervisor.send(frame);
+                } finally {
+                    pool.release(frame);
+                }
+            } else {
+                try {
+                    sent = signalingSupervisor.send(toJson(message).toString());
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            if (!sent) {
+                // Whatever the viewer missed is renegotiated by the ICE restart on reconnect
+                Log.w("WebSocket", "Not connected, dropped " + message);
+            }
+        });
+    }
+
+    /**
+     * Offers the binary format and names our session, so a server can tell a reconnect from a new
+     * client. Servers that predate it ignore the hello and we stay on JSON.
+     */
+    private void sendHello() {
+        binarySignaling = false;
+        try {
+            JSONObject hello = new JSONObject();
+            hello.put("type", HELLO_TYPE);
+            hello.put("session", sessionId);
+            hello.put("formats", new JSONArray()
+                    .put(SignalingCodec.FORMAT_BINARY)
+                    .put(SignalingCodec.FORMAT_JSON));
+            signalingSupervisor.send(hello.toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleHello(JSONObject hello) {
+        binarySignaling = SignalingCodec.FORMAT_BINARY.equals(hello.optString("format"));
+        Log.i("WebSocket", "Signaling format: " + (binarySignaling ? SignalingCodec.FORMAT_BINARY : SignalingCodec.FORMAT_JSON));
+    }
+
+    private static JSONObject toJson(SignalingMessage message) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("type", message.type.jsonName);
+        if (message.viewerId != null) {
+            json.put("viewerId", message.viewerId);
+        }
+        if (message.sdp != null) {
+            json.put("sdp", message.sdp);
+        }
+        if (message.type == SignalingMessage.Type.CANDIDATES) {
+            JSONArray candidates = new JSONArray();
+            for (SignalingCandidate candidate : message.candidates) {
+                JSONObject entry = new JSONObject();
+                // put() drops a null value's key, so a missing mid is sent as an explicit null
+                entry.put("sdpMid", candidate.sdpMid != null ? candidate.sdpMid : JSONObject.NULL);
+                entry.put("sdpMLineIndex", candidate.sdpMLineIndex);
+                entry.put("candidate", candidate.candidate);
+                candidates.put(entry);
+            }
+            json.put("candidates", candidates);
+        }
+        return json;
+    }
+
+    /**
+     * @return the message, or null if its type is unknown
+     */
+    private static SignalingMessage fromJson(JSONObject json) throws JSONException {
+        String viewerId = json.optString("viewerId", DEFAULT_VIEWER_ID);
+        String type = json.optString("type");
+        // Older servers send one candidate per message with the fields at the top level
+        if ("candidate".equals(type)) {
+            return SignalingMessage.candidates(viewerId, Collections.singletonList(candidateFromJson(json)));
+        }
+        SignalingMessage.Type messageType = SignalingMessage.Type.fromJsonName(type);
+        if (messageType == null) {
+            return null;
+        }
+        switch (messageType) {
+            case OFFER:
+                return SignalingMessage.offer(viewerId, json.getString("sdp"));
+            case ANSWER:
+                return SignalingMessage.answer(viewerId, json.getString("sdp"));
+            case CANDIDATES:
+                JSONArray batch = json.getJSONArray("candidates");
+                List<SignalingCandidate> candidates = new ArrayList<>(batch.length());
+                for (int i = 0; i < batch.length(); i++) {
+                    candidates.add(candidateFromJson(batch.getJSONObject(i)));
+                }
+                return SignalingMessage.candidates(viewerId, candidates);
+            case VIEWER_JOINED:
+                return SignalingMessage.viewerJoined(json.getString("viewerId"));
+            case VIEWER_LEFT:
+                return SignalingMessage.viewerLeft(json.getString("viewerId"));
+            case PING:
+                return SignalingMessage.ping();
+            default:
+                return SignalingMessage.pong();
+        }
+    }
+
+    private static SignalingCandidate candidateFromJson(JSONObject entry) throws JSONException {
+        return new SignalingCandidate(
+                // optString() would turn an explicit null into "null"
+                entry.isNull("sdpMid") ? null : entry.getString("sdpMid"),
+                entry.getInt("sdpMLineIndex"),
+                entry.getString("candidate")
+        );
+    }
+
+    /**
+     * Sends the pending batch of local candidates as one message.
+     */
+    private void flushCandidates(ViewerConnection viewer) {
+        if (viewers.get(viewer.viewerId) != viewer) {
+            return;
+        }
+        List<SignalingCandidate> batch = viewer.candidates.drainLocal();
+        if (batch.isEmpty()) {
+            return;
+        }
+        send(SignalingMessage.candidates(viewer.viewerId, batch));
+    }
+
+    private void createOffer(ViewerConnection viewer, boolean iceRestart) {
+        PeerConnection peerConnection = viewer.peerConnection;
+        MediaConstraints constraints = new MediaConstraints();
+        if (iceRestart) {
+            constraints.mandatory.add(new MediaConstraints.KeyValuePair("IceRestart", "true"));
+        }
+        peerConnection.createOffer(new SdpObserverAdapter() {
+            @Override
+            public void onCreateSuccess(SessionDescription offer) {
+                // Send the offer while the local description is applied rather than after; any
+                // candidates it triggers are batched on the signaling thread and so follow it.
+                send(SignalingMessage.offer(viewer.viewerId, offer.description));
+                markStage(viewer, ConnectionTimeline.Stage.OFFER_SENT);
+                peerConnection.setLocalDescription(new SdpObserverAdapter() {
                     @Override
-                    public void onSetFailure(String error) {}
+                    public void onSetFailure(String error) {
+                        super.onSetFailure(error);
+                        onOfferFailed(viewer);
+                    }
                 }, offer);
             }
 
             @Override
-            public void onSetSuccess() {}
+            public void onCreateFailure(String error) {
+                super.onCreateFailure(error);
+                onOfferFailed(viewer);
+            }
+        }, constraints);
+    }
+
+    /**
+     * Offers again after creating or applying an offer failed. The viewer may already hold the
+     * offer that was sent, so it is replaced rather than left half negotiated; {@link #restartIce}
+     * removes the viewer if this keeps failing.
+     */
+    private void onOfferFailed(ViewerConnection viewer) {
+        runOnSignalingThread(() -> {
+            if (viewers.get(viewer.viewerId) != viewer) {
+                return;
+            }
+            Log.w("WebSocket", "Offer for viewer " + viewer.viewerId + " failed, offering again");
+            restartIce(viewer);
+        });
+    }
+
+    /**
+     * Records {@code stage} for the viewer, and for startup if no viewer reached it before.
+     */
+    private void markStage(ViewerConnection viewer, ConnectionTimeline.Stage stage) {
+        long nowMs = SystemClock.elapsedRealtime();
+        viewer.timeline.mark(stage, nowMs);
+        if (startupTimeline.mark(stage, nowMs) && stage == ConnectionTimeline.Stage.FIRST_FRAME_SENT) {
+            Log.i("WebSocket", "Startup: " + startupTimeline);
+        }
+    }
+
+    private void startStatsPolling() {
+        pollViewerStats(++statsGeneration);
+    }
+
+    private void stopStatsPolling() {
+        statsGeneration++;
+    }
+
+    /**
+     * One stats round, which schedules the next on the signaling thread; that is also where
+     * viewers and their PeerConnections are torn down, so no round races a teardown.
+     */
+    private void pollViewerStats(int generation) {
+        if (generation != statsGeneration) {
+            return;
+        }
+        signalingExecutor.executeDelayed(() -> pollViewerStats(generation), STATS_INTERVAL_MS);
+        if (viewerSessions == null) {
+            return;
+        }
+        // Reports arrive asynchronously, so each round reports the samples gathered so far
+        reportNetworkStats();
+        for (ViewerConnection viewer : viewers.values()) {
+            // Keeps the viewer's clock offset fresh for timing its input
+            sendControl(viewer, ControlCodec.putPing(newControlMessage(), (int) controlClockUs()));
+            viewer.peerConnection.getStats(report -> runOnSignalingThread(() -> {
+                ViewerSessionManager sessions = viewerSessions;
+                // The viewer may have left, or WebRTC been released, while the report was gathered
+                if (sessions == null || viewers.get(viewer.viewerId) != viewer) {
+                    return;
+                }
+                viewer.updateStats(report);
+                if (viewer.hasStats) {
+                    webRtcRtt.record((long) (viewer.rttMs * 1000));
+                }
+                ViewerSession session = sessions.getViewer(viewer.viewerId);
+                if (session != null && viewer.availableBitrate > 0) {
+                    session.setPacingRate((long) (viewer.availableBitrate * PACING_FACTOR));
+                }
+                int layer = viewer.layerSelector.select(viewer.availableBitrate,
+                        SharedMediaBuffer.getInstance().getLayerBitrates(), SystemClock.elapsedRealtime());
+                sessions.setLayer(viewer.viewerId, layer);
+            }));
+        }
+    }
+
+    private void startInputThread() {
+        if (inputThread != null) {
+            return;
+        }
+        inputThread = new HandlerThread("ControlInput");
+        inputThread.start();
+        inputHandler = new Handler(inputThread.getLooper());
+    }
+
+    private void stopInputThread() {
+        if (inputThread != null) {
+            inputHandler.removeCallbacksAndMessages(null);
+            inputThread.quitSafely();
+            inputThread = null;
+            inputHandler = null;
+        }
+    }
+
+    private void scheduleInputFlush() {
+        Handler handler = inputHandler;
+        if (handler != null && inputFlushScheduled.compareAndSet(false, true)) {
+            // Input after a quiet spell goes straight out; the rest of a burst waits out the frame
+            handler.postAtTime(flushInput, lastInputFlushMs + INPUT_FLUSH_INTERVAL_MS);
+        }
+    }
+
+    private final Runnable flushInput = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so an event arriving during the flush schedules the next one
+            inputFlushScheduled.set(false);
+            lastInputFlushMs = SystemClock.uptimeMillis();
+            long nowUs = controlClockUs();
+            InputCoalescer.Sink sink = inputSink;
+            for (ViewerConnection viewer : viewers.values()) {
+                viewer.input.flush(sink, nowUs);
+            }
+        }
+    };
+
+    /**
+     * Clock for control channel timestamps, whose low 32 bits go on the wire.
+     */
+    private static long controlClockUs() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    private static ByteBuffer newControlMessage() {
+        return ControlCodec.putHeader(ByteBuffer.allocate(CONTROL_MESSAGE_BYTES));
+    }
+
+    /**
+     * Sends a message built on {@link #newControlMessage}, if the viewer's channel is open.
+     * DataChannel.send may be called from any thread.
+     */
+    private static void sendControl(ViewerConnection viewer, ByteBuffer message) {
+        DataChannel channel = viewer.controlChannel;
+        if (channel == null || channel.state() != DataChannel.State.OPEN) {
+            return;
+        }
+        message.flip();
+        channel.send(new DataChannel.Buffer(message, true));
+    }
+
+    private void attachControlChannel(ViewerConnection viewer, DataChannel channel) {
+        DataChannel previous = viewer.controlChannel;
+        viewer.controlChannel = channel;
+        if (previous != null) {
+            previous.unregisterObserver();
+            previous.dispose();
+        }
+        ControlCodec.Listener listener = new ControlCodec.Listener() {
+            @Override
+            public void onPointer(int action, int pointerId, int x, int y, int timeUs) {
+                viewer.input.onPointer(action, pointerId, x, y, timeUs);
+                scheduleInputFlush();
+            }
 
             @Override
-            public void onCreateFailure(String error) {}
+            public void onKey(int action, int keyCode, int metaState, int timeUs) {
+                viewer.input.onKey(action, keyCode, metaState, timeUs);
+                scheduleInputFlush();
+            }
 
             @Override
-            public void onSetFailure(String error) {}
-        }, new MediaConstraints());
+            public void onScroll(int x, int y, int dx, int dy, int timeUs) {
+                viewer.input.onScroll(x, y, dx, dy, timeUs);
+                scheduleInputFlush();
+            }
+
+            @Override
+            public void onSetBitrate(int bitrateBps) {
+                viewer.bitrateCap = bitrateBps;
+                runOnSignalingThread(WebSocketService.this::reportBitrateCap);
+            }
+
+            @Override
+            public void onKeyFrameRequest() {
+                ViewerSessionManager sessions = viewerSessions;
+                if (sessions != null) {
+                    sessions.requestKeyFrame(viewer.viewerId);
+                }
+            }
 
+            @Override
+            public void onPing(int timeUs) {
+                sendControl(viewer, ControlCodec.putPong(newControlMessage(), timeUs, (int) controlClockUs()));
+            }
+
+            @Override
+            public void onPong(int echoedTimeUs, int remoteTimeUs) {
+                int rttUs = viewer.clock.onPong(echoedTimeUs, remoteTimeUs, controlClockUs());
+                if (rttUs >= 0) {
+                    controlRtt.record(rttUs);
+                }
+            }
+        };
+        channel.registerObserver(new DataChannel.Observer() {
+            @Override
+            public void onBufferedAmountChange(long previousAmount) {}
+
+            @Override
+            public void onStateChange() {}
+
+            @Override
+            public void onMessage(DataChannel.Buffer buffer) {
+                if (!buffer.binary) {
+                    Log.e("WebSocket", "Ignoring text control message from viewer " + viewer.viewerId);
+                    return;
+                }
+                try {
+                    ControlCodec.decode(buffer.data, listener);
+                } catch (IllegalArgumentException e) {
+                    Log.e("WebSocket", "Failed to decode control message: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * The encoder is shared, so the lowest bitrate any viewer asked for applies to all of them.
+     */
+    private void reportBitrateCap() {
+        EncoderControl control = SharedMediaBuffer.getInstance().getEncoderControl();
+        if (control == null) {
+            return;
+        }
+        int cap = 0;
+        for (ViewerConnection viewer : viewers.values()) {
+            if (viewer.bitrateCap > 0 && (cap == 0 || viewer.bitrateCap < cap)) {
+                cap = viewer.bitrateCap;
+            }
+        }
+        control.setMaxBitrate(cap);
+    }
+
+    /**
+     * With one encoder for every viewer it is steered by the worst link among them. With
+     * simulcast the top layer follows the best link instead, and viewers that cannot keep up
+     * with it are moved down a layer.
+     */
+    private void reportNetworkStats() {
+        EncoderControl control = SharedMediaBuffer.getInstance().getEncoderControl();
+        if (control == null) {
+            return;
+        }
+        if (SharedMediaBuffer.getInstance().getLayerBitrates().length > 1) {
+            ViewerConnection best = null;
+            for (ViewerConnection viewer : viewers.values()) {
+                if (viewer.hasStats && (best == null || viewer.availableBitrate > best.availableBitrate)) {
+                    best = viewer;
+                }
+            }
+            if (best != null) {
+                control.onNetworkStats(SystemClock.elapsedRealtime(), best.rttMs, best.lossFraction,
+                        best.availableBitrate);
+            }
+            return;
+        }
+
+        boolean hasSample = false;
+        double rttMs = -1;
+        double lossFraction = 0;
+        long availableBitrate = 0;
+        for (ViewerConnection viewer : viewers.values()) {
+            if (!viewer.hasStats) {
+                continue;
+            }
+            hasSample = true;
+            rttMs = Math.max(rttMs, viewer.rttMs);
+            lossFraction = Math.max(lossFraction, viewer.lossFraction);
+            if (viewer.availableBitrate > 0
+                    && (availableBitrate == 0 || viewer.availableBitrate < availableBitrate)) {
+                availableBitrate = viewer.availableBitrate;
+            }
+        }
+        if (hasSample) {
+            control.onNetworkStats(SystemClock.elapsedRealtime(), rttMs, lossFraction, availableBitrate);
+        }
+    }
+
+    private static String viewerIdOf(SignalingMessage message) {
+        return message.viewerId != null ? message.viewerId : DEFAULT_VIEWER_ID;
+    }
+
+    private void handleMessage(SignalingMessage message) {
+        switch (message.type) {
+            case OFFER:
+                handleOffer(message);
+                break;
+            case ANSWER:
+                handleAnswer(message);
+                break;
+            case CANDIDATES:
+                handleIceCandidates(message);
+                break;
+            case VIEWER_JOINED:
+                addViewer(viewerIdOf(message), true);
+                break;
+            case VIEWER_LEFT:
+                removeViewer(viewerIdOf(message));
+                break;
+            case PING:
+                send(SignalingMessage.pong());
+                break;
+            case PONG:
+                long sentNs = pingSentNs;
+                if (sentNs != 0) {
+                    pingSentNs = 0;
+                    signalingRtt.record((System.nanoTime() - sentNs) / 1000);
+                }
+                break;
+            default:
+                break;
+        }
     }
 
-    private void handleOffer(JSONObject message) throws JSONException {
-        SessionDescription offer = new SessionDescription(SessionDescription.Type.OFFER, message.getString("sdp"));
+    private void handleOffer(SignalingMessage message) {
+        ViewerConnection viewer = viewers.get(viewerIdOf(message));
+        if (viewer == null) {
+            // The viewer is making the offer, so there is nothing for us to offer first
+            viewer = addViewer(viewerIdOf(message), false);
+        }
+        PeerConnection peerConnection = viewer.peerConnection;
+        ViewerConnection answeringViewer = viewer;
+        SessionDescription offer = new SessionDescription(SessionDescription.Type.OFFER, message.sdp);
         peerConnection.setRemoteDescription(new SdpObserverAdapter() {
             @Override
             public void onSetSuccess() {
+                onRemoteDescriptionSet(answeringViewer, offer.description);
                 peerConnection.createAnswer(new SdpObserverAdapter() {
                     @Override
                     public void onCreateSuccess(SessionDescription sessionDescription) {
                         peerConnection.setLocalDescription(new SdpObserverAdapter(), sessionDescription);
-                        sendAnswer(sessionDescription);
+                        send(SignalingMessage.answer(answeringViewer.viewerId, sessionDescription.description));
                     }
                 }, new MediaConstraints());
             }
         }, offer);
     }
 
-    private void sendAnswer(SessionDescription answer) {
-        try {
-            JSONObject answerMessage = new JSONObject();
-            answerMessage.put("type", "answer");
-            answerMessage.put("sdp", answer.description);
-            webSocket.send(answerMessage.toString());
-        } catch (JSONException e) {
-            e.printStackTrace();
+    private void handleAnswer(SignalingMessage message) {
+        ViewerConnection viewer = viewers.get(viewerIdOf(message));
+        if (viewer == null) {
+            Log.e("WebSocket", "Answer for unknown viewer " + viewerIdOf(message));
+            return;
         }
+        SessionDescription answer = new SessionDescription(SessionDescription.Type.ANSWER, message.sdp);
+        viewer.peerConnection.setRemoteDescription(new SdpObserverAdapter() {
+            @Override
+            public void onSetSuccess() {
+                onRemoteDescriptionSet(viewer, answer.description);
+            }
+        }, answer);
     }
 
-    private void handleAnswer(JSONObject message) throws JSONException {
-        SessionDescription answer = new SessionDescription(SessionDescription.Type.ANSWER, message.getString("sdp"));
-        peerConnection.setRemoteDescription(new SdpObserverAdapter(), answer);
+    private void onRemoteDescriptionSet(ViewerConnection viewer, String sdp) {
+        // SDP callbacks arrive on WebRTC's own signaling thread
+        runOnSignalingThread(() -> {
+            for (SignalingCandidate candidate : viewer.candidates.onRemoteDescriptionSet()) {
+                addRemoteCandidate(viewer, candidate);
+            }
+            Set<String> accepted = EncoderRegistry.acceptedMimeTypes(sdp);
+            accepted.retainAll(PassthroughVideoEncoderFactory.SUPPORTED_MIME_TYPES);
+            viewer.acceptedMimeTypes = accepted;
+            reportViewerCodecs();
+        });
     }
 
-    private void handleIceCandidate(JSONObject message) throws JSONException {
-        if (message.has("candidate")) {
-            IceCandidate candidate = new IceCandidate(
-                    message.getString("sdpMid"),
-                    message.getInt("sdpMLineIndex"),
-                    message.getString("candidate")
-            );
-            peerConnection.addIceCandidate(candidate);
+    /**
+     * Reports the codecs every negotiated viewer can decode, since they all share one encoder.
+     */
+    private void reportViewerCodecs() {
+        EncoderControl control = SharedMediaBuffer.getInstance().getEncoderControl();
+        if (control == null) {
+            return;
+        }
+        Set<String> common = null;
+        for (ViewerConnection viewer : viewers.values()) {
+            if (viewer.acceptedMimeTypes == null) {
+                continue;
+            }
+            if (common == null) {
+                common = new LinkedHashSet<>(viewer.acceptedMimeTypes);
+            } else {
+                common.retainAll(viewer.acceptedMimeTypes);
+            }
+        }
+        if (common != null) {
+            control.onViewerCodecsNegotiated(common);
+        }
+    }
+
+    private void handleIceCandidates(SignalingMessage message) {
+        ViewerConnection viewer = viewers.get(viewerIdOf(message));
+        if (viewer == null) {
+            Log.e("WebSocket", "Candidate for unknown viewer " + viewerIdOf(message));
+            return;
+        }
+        for (SignalingCandidate candidate : message.candidates) {
+            // Held back until the remote description is set; addIceCandidate would drop it
+            if (viewer.candidates.addRemote(candidate)) {
+                addRemoteCandidate(viewer, candidate);
+            }
+        }
+    }
+
+    private void addRemoteCandidate(ViewerConnection viewer, SignalingCandidate candidate) {
+        viewer.peerConnection.addIceCandidate(
+                new IceCandidate(candidate.sdpMid, candidate.sdpMLineIndex, candidate.candidate));
+    }
+
+    /**
+     * WebRTC objects for one viewer. Stats fields and the layer selector are used on the
+     * signaling thread; the clock, input and bitrate cap are fed from the control channel's callbacks.
+     */
+    private static class ViewerConnection {
+        final String viewerId;
+        final ConnectionTimeline timeline = new ConnectionTimeline();
+        final IceCandidatePipeline candidates = new IceCandidatePipeline();
+        final RemoteClock clock = new RemoteClock();
+        final SimulcastLayerSelector layerSelector = new SimulcastLayerSelector(LAYER_STEP_UP_HOLD_MS);
+        final InputCoalescer input;
+        PeerConnection peerConnection;
+        VideoSource videoSource;
+        WebRtcVideoSender videoSender;
+        volatile DataChannel controlChannel;
+        // Bitrate ceiling requested over the control channel, or 0
+        volatile int bitrateCap;
+        volatile PeerConnection.IceConnectionState iceState = PeerConnection.IceConnectionState.NEW;
+        // ICE restarts since the viewer last connected; signaling thread only
+        int iceRestarts;
+        volatile Set<String> acceptedMimeTypes;
+        volatile boolean hasStats;
+        volatile double rttMs = -1;
+        volatile double lossFraction;
+        volatile long availableBitrate;
+        // Totals over the viewer's video outbound-rtp streams
+        volatile long bytesSent;
+        volatile long packetsSent;
+        volatile long framesSent;
+        volatile long retransmittedBytesSent;
+        volatile long nackCount;
+        volatile long pliCount;
+
+        ViewerConnection(String viewerId, LatencyHistogram inputLatency) {
+            this.viewerId = viewerId;
+            this.input = new InputCoalescer(clock, inputLatency);
+        }
+
+        void updateStats(RTCStatsReport report) {
+            long bytes = 0;
+            long packets = 0;
+            long frames = 0;
+            long retransmitted = 0;
+            long nacks = 0;
+            long plis = 0;
+            boolean hasOutbound = false;
+            for (RTCStats stats : report.getStatsMap().values()) {
+                switch (stats.getType()) {
+                    case "outbound-rtp":
+                        if (!"video".equals(stats.getMembers().get("kind"))) {
+                            break;
+                        }
+                        // One per simulcast layer
+                        hasOutbound = true;
+                        bytes += longMember(stats, "bytesSent");
+                        packets += longMember(stats, "packetsSent");
+                        frames += longMember(stats, "framesSent");
+                        retransmitted += longMember(stats, "retransmittedBytesSent");
+                        nacks += longMember(stats, "nackCount");
+                        plis += longMember(stats, "pliCount");
+                        break;
+                    case "candidate-pair":
+                        if (Boolean.TRUE.equals(stats.getMembers().get("nominated"))
+                                && "succeeded".equals(stats.getMembers().get("state"))) {
+                            Object rtt = stats.getMembers().get("currentRoundTripTime");
+                            Object available = stats.getMembers().get("availableOutgoingBitrate");
+                            if (rtt instanceof Number) {
+                                rttMs = ((Number) rtt).doubleValue() * 1000;
+                                hasStats = true;
+                            }
+                            if (available instanceof Number) {
+                                availableBitrate = ((Number) available).longValue();
+                            }
+                        }
+                        break;
+                    case "remote-inbound-rtp":
+                        Object fractionLost = stats.getMembers().get("fractionLost");
+                        if ("video".equals(stats.getMembers().get("kind")) && fractionLost instanceof Number) {
+                            lossFraction = ((Number) fractionLost).doubleValue();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (hasOutbound) {
+                bytesSent = bytes;
+                packetsSent = packets;
+                framesSent = frames;
+                retransmittedBytesSent = retransmitted;
+                nackCount = nacks;
+                pliCount = plis;
+            }
+        }
+
+        private static long longMember(RTCStats stats, String name) {
+            Object value = stats.getMembers().get(name);
+            return value instanceof Number ? ((Number) value).longValue() : 0;
         }
     }
 
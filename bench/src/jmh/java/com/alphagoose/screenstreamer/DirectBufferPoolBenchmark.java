@@ -0,0 +1,52 @@
+package com.alphagoose.screenstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting a direct buffer for one frame copy, pooled against allocating it fresh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class DirectBufferPoolBenchmark {
+
+    @Param({"2048", "65536", "262144"})
+    public int size;
+
+    private final DirectBufferPool pool = new DirectBufferPool();
+
+    @Benchmark
+    public int acquireRelease() {
+        ByteBuffer buffer = pool.acquire(size);
+        int capacity = buffer.capacity();
+        pool.release(buffer);
+        return capacity;
+    }
+
+    /**
+     * Buffers released on other threads come back through the shared lists.
+     */
+    @Benchmark
+    @Threads(4)
+    public int acquireReleaseContended() {
+        ByteBuffer buffer = pool.acquire(size);
+        int capacity = buffer.capacity();
+        pool.release(buffer);
+        return capacity;
+    }
+
+    @Benchmark
+    public ByteBuffer allocateDirect() {
+        return ByteBuffer.allocateDirect(size);
+    }
+}
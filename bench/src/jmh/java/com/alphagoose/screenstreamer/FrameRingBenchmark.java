@@ -0,0 +1,91 @@
+package com.alphagoose.screenstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand-off of encoded frames through the shared ring: the drain thread publishing and a
+ * reader copying frames back out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Group)
+public class FrameRingBenchmark {
+
+    @Param({"4096", "32768", "131072"})
+    public int frameSize;
+
+    private FrameRing ring;
+    private ByteBuffer frame;
+    private long ptsUs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ring = new FrameRing(32, 64 * 1024, new DirectBufferPool());
+        frame = ByteBuffer.allocateDirect(frameSize);
+        for (int i = 0; i < frameSize; i++) {
+            frame.put(i, (byte) i);
+        }
+    }
+
+    /**
+     * Reader state is per thread; the ring is shared by the group.
+     */
+    @State(Scope.Thread)
+    public static class ReaderState {
+        FrameRing.Reader reader;
+        final FrameRing.FrameInfo info = new FrameRing.FrameInfo();
+        ByteBuffer destination;
+
+        @Setup(Level.Trial)
+        public void setUp(FrameRingBenchmark benchmark) {
+            reader = benchmark.ring.newReader();
+            destination = ByteBuffer.allocateDirect(256 * 1024);
+        }
+    }
+
+    /**
+     * Publish then read back on one thread: the cost of the two copies with no contention.
+     */
+    @Benchmark
+    @Group("uncontended")
+    public int publishAndRead(ReaderState state) {
+        publishOne();
+        state.destination.clear();
+        return state.reader.read(state.destination, state.info);
+    }
+
+    @Benchmark
+    @Group("concurrent")
+    public long publish() {
+        return publishOne();
+    }
+
+    /**
+     * A reader polling alongside the publisher. Reads that find the ring empty return at once,
+     * so this measures how quickly a reader keeps up.
+     */
+    @Benchmark
+    @Group("concurrent")
+    public int read(ReaderState state) {
+        state.destination.clear();
+        return state.reader.read(state.destination, state.info);
+    }
+
+    private long publishOne() {
+        frame.clear();
+        ptsUs += 33333;
+        return ring.publish(frame, ptsUs, (ptsUs % 30) == 0 ? FrameRing.FLAG_KEY_FRAME : 0);
+    }
+}
@@ -0,0 +1,45 @@
+package com.alphagoose.screenstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the encoder drain path records for each frame: three histograms, three counters and two
+ * clock reads. This runs on the drain thread, so it should stay well under a microsecond.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MetricsRegistryBenchmark {
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LatencyHistogram captureToDequeue = metrics.histogram("video.capture_to_dequeue_us");
+    private final LatencyHistogram dequeueToDispatch = metrics.histogram("video.dequeue_to_dispatch_us");
+    private final LatencyHistogram sendLatency = metrics.histogram("video.send_latency_us");
+    private final MetricsRegistry.Counter frames = metrics.counter("video.frames_encoded");
+    private final MetricsRegistry.Counter bytes = metrics.counter("video.bytes_encoded");
+    private final MetricsRegistry.Counter keyFrames = metrics.counter("video.key_frames");
+    private int frame;
+
+    @Benchmark
+    public void recordFrame() {
+        int i = frame++;
+        long dequeueNs = System.nanoTime();
+        long ptsUs = dequeueNs / 1000 - 16000 - (i & 1023);
+        long nowNs = System.nanoTime();
+        sendLatency.record(nowNs / 1000 - ptsUs);
+        captureToDequeue.record(dequeueNs / 1000 - ptsUs);
+        dequeueToDispatch.record((nowNs - dequeueNs) / 1000);
+        frames.increment();
+        bytes.add(20000 + (i & 4095));
+        if ((i % 60) == 0) {
+            keyFrames.increment();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.alphagoose.screenstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting an Annex-B access unit into NAL units, as the fMP4 and TS muxers do for every frame,
+ * and indexing one straight out of a direct codec buffer, as the encoder output does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class NalScannerBenchmark {
+
+    /**
+     * Size of the slice data; keyframes at 1080p are tens of kilobytes, delta frames a few.
+     */
+    @Param({"4096", "65536"})
+    public int sliceSize;
+
+    private final NalScanner scanner = new NalScanner();
+    private final VideoStreamIndex index = new VideoStreamIndex(EncoderRegistry.MIME_AVC);
+    private byte[] accessUnit;
+    private ByteBuffer directAccessUnit;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] slice = new byte[sliceSize];
+        new Random(1).nextBytes(slice);
+        // Emulation prevention guarantees no start code inside a NAL unit
+        for (int i = 2; i < slice.length; i++) {
+            if (slice[i - 2] == 0 && slice[i - 1] == 0 && (slice[i] & 0xff) <= 3) {
+                slice[i] = 4;
+            }
+        }
+        slice[0] = 0x65;
+        byte[][] units = {
+                {0x09, (byte) 0xf0},
+                {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0x8c, 0x68, 0x0f, 0x00},
+                {0x68, (byte) 0xce, 0x3c, (byte) 0x80},
+                {0x06, 0x05, 0x10, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, (byte) 0x80},
+                slice
+        };
+        int length = 0;
+        for (byte[] unit : units) {
+            length += 4 + unit.length;
+        }
+        accessUnit = new byte[length];
+        int offset = 0;
+        for (byte[] unit : units) {
+            accessUnit[offset + 3] = 1;
+            System.arraycopy(unit, 0, accessUnit, offset + 4, unit.length);
+            offset += 4 + unit.length;
+        }
+        directAccessUnit = ByteBuffer.allocateDirect(length);
+        directAccessUnit.put(accessUnit).flip();
+    }
+
+    @Benchmark
+    public int scanAccessUnit() {
+        scanner.reset(accessUnit, 0, accessUnit.length);
+        int sliceBytes = 0;
+        while (scanner.next()) {
+            if (scanner.h264Type() == NalScanner.H264_IDR) {
+                sliceBytes += scanner.nalLength();
+            }
+        }
+        return sliceBytes;
+    }
+
+    /**
+     * Should not grow with {@link #sliceSize}: only the headers ahead of the slice are read.
+     */
+    @Benchmark
+    public int indexAccessUnit() {
+        return index.inspect(directAccessUnit, 0);
+    }
+}
@@ -0,0 +1,110 @@
+package com.alphagoose.screenstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary signaling encode and decode for the two message shapes that matter: an SDP offer
+ * (with and without deflate) and a batch of ICE candidates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SignalingCodecBenchmark {
+
+    @Param({"true", "false"})
+    public boolean compressSdp;
+
+    private SignalingCodec codec;
+    private final DirectBufferPool pool = new DirectBufferPool();
+    private SignalingMessage offer;
+    private SignalingMessage candidates;
+    private byte[] encodedOffer;
+    private byte[] encodedCandidates;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = new SignalingCodec(compressSdp);
+        offer = SignalingMessage.offer("viewer-1", sampleSdp());
+        List<SignalingCandidate> batch = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            batch.add(new SignalingCandidate("0", 0, "candidate:" + (842163049 + i) + " 1 udp 1677729535 192.168.1."
+                    + (10 + i) + " " + (50000 + i) + " typ srflx raddr 10.0.2.15 rport " + (40000 + i)
+                    + " generation 0 ufrag Yp1o network-cost 10"));
+        }
+        candidates = SignalingMessage.candidates("viewer-1", batch);
+        encodedOffer = codec.encode(offer);
+        encodedCandidates = codec.encode(candidates);
+    }
+
+    private static String sampleSdp() {
+        StringBuilder sdp = new StringBuilder();
+        sdp.append("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n")
+                .append("a=group:BUNDLE 0\r\na=msid-semantic: WMS screenStream\r\n")
+                .append("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 102\r\n")
+                .append("c=IN IP4 0.0.0.0\r\na=rtcp:9 IN IP4 0.0.0.0\r\n")
+                .append("a=ice-ufrag:Yp1o\r\na=ice-pwd:qS7vJ0kLzT4nB2mX9cR5wE8h\r\na=ice-options:trickle renomination\r\n")
+                .append("a=fingerprint:sha-256 ");
+        for (int i = 0; i < 32; i++) {
+            sdp.append(String.format("%02X", (i * 37) & 0xff)).append(i < 31 ? ":" : "\r\n");
+        }
+        sdp.append("a=setup:actpass\r\na=mid:0\r\na=sendonly\r\na=rtcp-mux\r\na=rtcp-rsize\r\n");
+        for (int pt = 96; pt <= 102; pt++) {
+            sdp.append("a=rtpmap:").append(pt).append(" H264/90000\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" goog-remb\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" transport-cc\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" nack\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" nack pli\r\n")
+                    .append("a=fmtp:").append(pt)
+                    .append(" level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n");
+        }
+        for (int i = 1; i <= 12; i++) {
+            sdp.append("a=extmap:").append(i).append(" urn:ietf:params:rtp-hdrext:extension-").append(i).append("\r\n");
+        }
+        sdp.append("a=ssrc:2857416309 cname:Yp1oFhB8aW3qS7vJ\r\na=ssrc:2857416309 msid:screenStream screen\r\n");
+        return sdp.toString();
+    }
+
+    @Benchmark
+    public byte[] encodeOffer() {
+        return codec.encode(offer);
+    }
+
+    /**
+     * The path WebSocketService takes: encode into a pooled direct buffer and hand it back.
+     */
+    @Benchmark
+    public int encodeOfferPooled() {
+        ByteBuffer encoded = codec.encode(offer, pool);
+        int size = encoded.remaining();
+        pool.release(encoded);
+        return size;
+    }
+
+    @Benchmark
+    public SignalingMessage decodeOffer() {
+        return codec.decode(encodedOffer);
+    }
+
+    @Benchmark
+    public byte[] encodeCandidates() {
+        return codec.encode(candidates);
+    }
+
+    @Benchmark
+    public SignalingMessage decodeCandidates() {
+        return codec.decode(encodedCandidates);
+    }
+}
@@ -0,0 +1,71 @@
+package com.alphagoose.screenstreamer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost on the encoder drain thread of handing one frame to every viewer: the shared copy
+ * plus one queue offer per viewer. Viewer threads send into transports that only release.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ViewerFanOutBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int viewers;
+
+    @Param({"32768"})
+    public int frameSize;
+
+    private ViewerSessionManager manager;
+    private final EncodedFrame.Pool framePool = new EncodedFrame.Pool(frame -> { });
+    private ByteBuffer data;
+    private long frameIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        manager = new ViewerSessionManager(() -> { }, 8, 96, 1000, new DirectBufferPool());
+        for (int i = 0; i < viewers; i++) {
+            manager.addViewer("viewer-" + i, new ViewerSession.Transport() {
+                @Override
+                public void send(EncodedFrame frame) {
+                    frame.release();
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+        data = ByteBuffer.allocateDirect(frameSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public void fanOut() {
+        // A keyframe every second at 30 fps, so lagging viewers recover as they would live
+        boolean keyFrame = frameIndex % 30 == 0;
+        data.clear();
+        EncodedFrame frame = framePool.obtain(0, data, frameIndex * 33333, keyFrame ? FrameRing.FLAG_KEY_FRAME : 0,
+                1920, 1080);
+        frameIndex++;
+        manager.onEncodedFrame(frame);
+        frame.release();
+    }
+}
@@ -0,0 +1,69 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Assigns presentation timestamps to captured PCM chunks on the same monotonic clock
+ * the video encoder uses (System.nanoTime() in microseconds).
+ *
+ * Timestamps advance by sample count so AAC frames stay evenly spaced, and re-anchor to
+ * the wall clock when the two drift apart by more than {@code maxDriftUs} (for example
+ * after the capture source stalls).
+ */
+public class AudioPtsClock {
+    private final int sampleRate;
+    private final long maxDriftUs;
+    private long anchorUs = -1;
+    private long framesSinceAnchor;
+    private long lastPtsUs = -1;
+    private long resyncCount;
+
+    public AudioPtsClock(int sampleRate, long maxDriftUs) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sampleRate must be positive");
+        }
+        this.sampleRate = sampleRate;
+        this.maxDriftUs = maxDriftUs;
+    }
+
+    /**
+     * @param frameCount number of PCM frames (samples per channel) in the chunk just read
+     * @param readCompleteUs monotonic time in microseconds at which the read returned
+     * @return pts of the first sample in the chunk
+     */
+    public long nextPts(int frameCount, long readCompleteUs) {
+        long readStartUs = readCompleteUs - framesToUs(frameCount);
+        if (anchorUs < 0) {
+            anchorUs = readStartUs;
+            framesSinceAnchor = 0;
+        }
+
+        long ptsUs = anchorUs + framesToUs(framesSinceAnchor);
+        if (Math.abs(ptsUs - readStartUs) > maxDriftUs) {
+            anchorUs = readStartUs;
+            framesSinceAnchor = 0;
+            ptsUs = readStartUs;
+            resyncCount++;
+        }
+        // Never hand the encoder a timestamp that goes backwards
+        if (ptsUs <= lastPtsUs) {
+            ptsUs = lastPtsUs + 1;
+        }
+
+        framesSinceAnchor += frameCount;
+        lastPtsUs = ptsUs;
+        return ptsUs;
+    }
+
+    public long getResyncCount() {
+        return resyncCount;
+    }
+
+    public void reset() {
+        anchorUs = -1;
+        framesSinceAnchor = 0;
+        lastPtsUs = -1;
+    }
+
+    private long framesToUs(long frames) {
+        return frames * 1000000L / sampleRate;
+    }
+}
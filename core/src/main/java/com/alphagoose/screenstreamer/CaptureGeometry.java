@@ -0,0 +1,179 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * What part of the screen is captured and how large it is encoded.
+ *
+ * FULL encodes the whole display at its native size, SCALED encodes the whole display with its
+ * long edge reduced to a target, and REGION encodes a rectangle of the display, optionally also
+ * reduced. The congestion controller's resolution scale applies on top of any of them.
+ */
+public final class CaptureGeometry {
+
+    public enum Mode {
+        FULL,
+        SCALED,
+        REGION
+    }
+
+    /**
+     * Sizes for one display, in pixels unless noted.
+     */
+    public static final class Layout {
+        public final Mode mode;
+        /** Size to give the virtual display; the screen is scaled to fit it. */
+        public final int displayWidth;
+        public final int displayHeight;
+        /** Size to configure the encoder with, 16-pixel aligned. */
+        public final int encodedWidth;
+        public final int encodedHeight;
+        /** Captured rectangle as fractions of the display, or 0, 0, 1, 1 when not cropping. */
+        public final float cropLeft;
+        public final float cropTop;
+        public final float cropRight;
+        public final float cropBottom;
+        /** Encoded pixels per frame relative to the full display at native size. */
+        public final double pixelFraction;
+
+        Layout(Mode mode, int displayWidth, int displayHeight, int encodedWidth, int encodedHeight,
+               float cropLeft, float cropTop, float cropRight, float cropBottom, double pixelFraction) {
+            this.mode = mode;
+            this.displayWidth = displayWidth;
+            this.displayHeight = displayHeight;
+            this.encodedWidth = encodedWidth;
+            this.encodedHeight = encodedHeight;
+            this.cropLeft = cropLeft;
+            this.cropTop = cropTop;
+            this.cropRight = cropRight;
+            this.cropBottom = cropBottom;
+            this.pixelFraction = pixelFraction;
+        }
+
+        /**
+         * A virtual display can only scale the whole screen; a crop needs a GPU pass between it
+         * and the encoder.
+         */
+        public boolean isCropped() {
+            return cropLeft > 0 || cropTop > 0 || cropRight < 1 || cropBottom < 1;
+        }
+
+        @Override
+        public String toString() {
+            String size = encodedWidth + "x" + encodedHeight;
+            if (isCropped()) {
+                size += String.format(" of [%.3f,%.3f-%.3f,%.3f] via %dx%d", cropLeft, cropTop,
+                        cropRight, cropBottom, displayWidth, displayHeight);
+            }
+            return mode.name().toLowerCase() + " " + size;
+        }
+    }
+
+    private static final CaptureGeometry FULL = new CaptureGeometry(Mode.FULL, 0, 0, 0, 0, 0);
+
+    private final Mode mode;
+    private final int maxLongEdge;
+    private final int left;
+    private final int top;
+    private final int right;
+    private final int bottom;
+
+    private CaptureGeometry(Mode mode, int maxLongEdge, int left, int top, int right, int bottom) {
+        this.mode = mode;
+        this.maxLongEdge = maxLongEdge;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public static CaptureGeometry full() {
+        return FULL;
+    }
+
+    /**
+     * @param maxLongEdge longest side of the encoded picture; a larger display is scaled down
+     */
+    public static CaptureGeometry scaled(int maxLongEdge) {
+        if (maxLongEdge < 16) {
+            throw new IllegalArgumentException("Long edge must be at least 16, was " + maxLongEdge);
+        }
+        return new CaptureGeometry(Mode.SCALED, maxLongEdge, 0, 0, 0, 0);
+    }
+
+    /**
+     * A rectangle of the display in its current orientation, clipped to the display when the
+     * layout is worked out.
+     *
+     * @param maxLongEdge longest side of the encoded picture, or 0 to encode the region 1:1
+     */
+    public static CaptureGeometry region(int left, int top, int right, int bottom, int maxLongEdge) {
+        if (left < 0 || top < 0 || right - left < 16 || bottom - top < 16) {
+            throw new IllegalArgumentException("Region must be at least 16x16 and on screen: "
+                    + left + "," + top + "-" + right + "," + bottom);
+        }
+        if (maxLongEdge != 0 && maxLongEdge < 16) {
+            throw new IllegalArgumentException("Long edge must be 0 or at least 16, was " + maxLongEdge);
+        }
+        return new CaptureGeometry(Mode.REGION, maxLongEdge, left, top, right, bottom);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Works out the sizes for a display. A region that misses the display entirely falls back to
+     * the whole screen rather than failing, since a rotation can do that to a valid region.
+     *
+     * @param scale resolution scale from {@link CongestionController}, 1 for none
+     */
+    public Layout layout(int screenWidth, int screenHeight, float scale) {
+        int regionLeft = 0;
+        int regionTop = 0;
+        int regionRight = screenWidth;
+        int regionBottom = screenHeight;
+        if (mode == Mode.REGION) {
+            regionLeft = Math.min(left, screenWidth);
+            regionTop = Math.min(top, screenHeight);
+            regionRight = Math.min(right, screenWidth);
+            regionBottom = Math.min(bottom, screenHeight);
+            if (regionRight - regionLeft < 16 || regionBottom - regionTop < 16) {
+                return FULL.layout(screenWidth, screenHeight, scale);
+            }
+        }
+        int regionWidth = regionRight - regionLeft;
+        int regionHeight = regionBottom - regionTop;
+        int longEdge = Math.max(regionWidth, regionHeight);
+        double reduction = maxLongEdge > 0 && maxLongEdge < longEdge ? (double) maxLongEdge / longEdge : 1;
+        reduction *= scale;
+        int encodedWidth = CongestionController.scaleDimension(regionWidth, (float) reduction);
+        int encodedHeight = CongestionController.scaleDimension(regionHeight, (float) reduction);
+        double pixelFraction = (double) encodedWidth * encodedHeight / ((double) screenWidth * screenHeight);
+
+        boolean cropped = regionWidth < screenWidth || regionHeight < screenHeight;
+        if (!cropped) {
+            return new Layout(mode, encodedWidth, encodedHeight, encodedWidth, encodedHeight,
+                    0, 0, 1, 1, pixelFraction);
+        }
+        // Render the display only as large as the region needs; the crop then samples it 1:1
+        double displayScale = Math.min(1, Math.max((double) encodedWidth / regionWidth,
+                (double) encodedHeight / regionHeight));
+        int displayWidth = Math.max(16, (int) Math.ceil(screenWidth * displayScale));
+        int displayHeight = Math.max(16, (int) Math.ceil(screenHeight * displayScale));
+        return new Layout(mode, displayWidth, displayHeight, encodedWidth, encodedHeight,
+                (float) regionLeft / screenWidth, (float) regionTop / screenHeight,
+                (float) regionRight / screenWidth, (float) regionBottom / screenHeight, pixelFraction);
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case SCALED:
+                return "scaled to " + maxLongEdge;
+            case REGION:
+                return "region " + left + "," + top + "-" + right + "," + bottom
+                        + (maxLongEdge > 0 ? " scaled to " + maxLongEdge : "");
+            default:
+                return "full";
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Time, encoded bytes and encoded pixels per capture mode, to show what scaling or cropping
+ * saves compared with encoding the full display.
+ *
+ * Encoder load is taken as pixels encoded per second, which is what hardware encoders are rated
+ * in. Bitrate savings are only meaningful against a stretch of FULL capture of similar content,
+ * so they are reported once the session has spent some time in FULL.
+ */
+public class CaptureModeStats {
+    // Less FULL time than this is too noisy a baseline to compare bitrates against
+    static final long MIN_BASELINE_MS = 10000;
+
+    private static final class Totals {
+        long durationMs;
+        long frames;
+        long bytes;
+        long pixels;
+    }
+
+    private final Map<CaptureGeometry.Mode, Totals> totals = new EnumMap<>(CaptureGeometry.Mode.class);
+    private final long fullPixels;
+    private CaptureGeometry.Mode mode;
+    private long framePixels;
+    private long enteredAtMs;
+
+    /**
+     * @param fullPixels pixels per frame of the full display at native size
+     */
+    public CaptureModeStats(long fullPixels) {
+        this.fullPixels = fullPixels;
+        for (CaptureGeometry.Mode each : CaptureGeometry.Mode.values()) {
+            totals.put(each, new Totals());
+        }
+    }
+
+    /**
+     * Starts accounting frames to a mode, including a resize within the same mode.
+     *
+     * @param framePixels encoded pixels per frame from now on
+     */
+    public synchronized void switchTo(CaptureGeometry.Mode mode, long framePixels, long nowMs) {
+        closeInterval(nowMs);
+        this.mode = mode;
+        this.framePixels = framePixels;
+    }
+
+    public synchronized void onFrame(int bytes) {
+        if (mode == null) {
+            return;
+        }
+        Totals current = totals.get(mode);
+        current.frames++;
+        current.bytes += bytes;
+        current.pixels += framePixels;
+    }
+
+    private void closeInterval(long nowMs) {
+        if (mode != null) {
+            totals.get(mode).durationMs += nowMs - enteredAtMs;
+        }
+        enteredAtMs = nowMs;
+    }
+
+    /**
+     * @return average encoded bitrate while in the mode, or -1 if it was never used
+     */
+    public synchronized long getBitrate(CaptureGeometry.Mode mode, long nowMs) {
+        long durationMs = durationMs(mode, nowMs);
+        return durationMs > 0 ? totals.get(mode).bytes * 8000 / durationMs : -1;
+    }
+
+    /**
+     * @return pixels encoded per second while in the mode, or -1 if it was never used
+     */
+    public synchronized long getPixelRate(CaptureGeometry.Mode mode, long nowMs) {
+        long durationMs = durationMs(mode, nowMs);
+        return durationMs > 0 ? totals.get(mode).pixels * 1000 / durationMs : -1;
+    }
+
+    private long durationMs(CaptureGeometry.Mode mode, long nowMs) {
+        long durationMs = totals.get(mode).durationMs;
+        if (mode == this.mode) {
+            durationMs += nowMs - enteredAtMs;
+        }
+        return durationMs;
+    }
+
+    /**
+     * One line per mode used, e.g.
+     * {@code scaled: 120 s, 1.9 Mbps (-58%), 12.4 Mpx/s, 0.43 of full per frame}.
+     */
+    public synchronized String formatSummary(long nowMs) {
+        long baselineBitrate = durationMs(CaptureGeometry.Mode.FULL, nowMs) >= MIN_BASELINE_MS
+                ? getBitrate(CaptureGeometry.Mode.FULL, nowMs) : -1;
+        StringBuilder summary = new StringBuilder();
+        for (CaptureGeometry.Mode each : CaptureGeometry.Mode.values()) {
+            long durationMs = durationMs(each, nowMs);
+            if (durationMs <= 0) {
+                continue;
+            }
+            Totals current = totals.get(each);
+            long bitrate = getBitrate(each, nowMs);
+            if (summary.length() > 0) {
+                summary.append('\n');
+            }
+            summary.append(each.name().toLowerCase()).append(": ").append(durationMs / 1000).append(" s, ")
+                    .append(String.format("%.1f Mbps", bitrate / 1e6));
+            if (each != CaptureGeometry.Mode.FULL && baselineBitrate > 0) {
+                summary.append(String.format(" (%+d%%)", Math.round(100.0 * (bitrate - baselineBitrate) / baselineBitrate)));
+            }
+            summary.append(String.format(", %.1f Mpx/s", getPixelRate(each, nowMs) / 1e6));
+            if (current.frames > 0) {
+                summary.append(String.format(", %.2f of full per frame",
+                        (double) current.pixels / current.frames / fullPixels));
+            }
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Starts a sink from the latest keyframe still held in the frame ring, so a consumer that
+ * attaches mid-stream can decode straight away instead of waiting for, or forcing, a new
+ * keyframe.
+ *
+ * On the first live frame, which runs on the drain thread like every other, the frames from
+ * that keyframe up to the live one are replayed out of the ring, and from then on live frames
+ * pass straight through. If the keyframe has already been overwritten, a keyframe is requested
+ * and the sink starts with live frames.
+ */
+public class CatchUpSink implements EncodedFrameDispatcher.Sink {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final FrameRing ring;
+    private final EncodedFrameDispatcher.Sink target;
+    private final DirectBufferPool bufferPool;
+    private final Runnable keyFrameRequester;
+    private boolean started;
+    private volatile int replayedFrames = -1;
+
+    /**
+     * @param ring              the ring the live frames are published to before they are dispatched
+     * @param keyFrameRequester called when there is nothing to replay from
+     */
+    public CatchUpSink(FrameRing ring, EncodedFrameDispatcher.Sink target, DirectBufferPool bufferPool,
+                       Runnable keyFrameRequester) {
+        this.ring = ring;
+        this.target = target;
+        this.bufferPool = bufferPool;
+        this.keyFrameRequester = keyFrameRequester;
+    }
+
+    public EncodedFrameDispatcher.Sink getTarget() {
+        return target;
+    }
+
+    /**
+     * Frames replayed from the ring, 0 if a keyframe had to be requested, or -1 before the
+     * first live frame.
+     */
+    public int getReplayedFrames() {
+        return replayedFrames;
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedFrame frame) {
+        if (!started) {
+            started = true;
+            replayedFrames = replay(frame);
+        }
+        target.onEncodedFrame(frame);
+    }
+
+    private int replay(EncodedFrame live) {
+        // A codec-config buffer starts a new encoder's output, which opens with a keyframe, and
+        // anything still in the ring came from the previous encoder
+        if (live.isKeyFrame() || (live.getFlags() & FrameRing.FLAG_CODEC_CONFIG) != 0) {
+            return 0;
+        }
+        FrameRing.Reader reader = ring.newReader();
+        // The live frame was the last one published; a reader at or past it found no keyframe
+        if (reader.getLag() <= 1) {
+            keyFrameRequester.run();
+            return 0;
+        }
+        FrameRing.FrameInfo info = new FrameRing.FrameInfo();
+        int replayed = 0;
+        ByteBuffer buffer = bufferPool.acquire(INITIAL_BUFFER_SIZE);
+        try {
+            while (reader.getLag() > 1) {
+                int size;
+                try {
+                    size = reader.read(buffer, info);
+                } catch (IllegalArgumentException e) {
+                    int capacity = buffer.capacity();
+                    bufferPool.release(buffer);
+                    buffer = null;
+                    buffer = bufferPool.acquire(2 * capacity);
+                    continue;
+                }
+                if (size == FrameRing.NO_FRAME) {
+                    break;
+                }
+                buffer.flip();
+                // The buffer goes back to the pool once the target drops its last reference
+                ByteBuffer copy = buffer;
+                buffer = null;
+                EncodedFrame frame = new EncodedFrame(released -> bufferPool.release(copy), replayed++);
+                frame.reset(copy, info.presentationTimeUs, info.flags, live.getWidth(), live.getHeight());
+                try {
+                    target.onEncodedFrame(frame);
+                } finally {
+                    frame.release();
+                }
+                buffer = bufferPool.acquire(INITIAL_BUFFER_SIZE);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return replayed;
+    }
+}
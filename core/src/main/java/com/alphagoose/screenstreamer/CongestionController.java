@@ -0,0 +1,203 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Picks a target encoder bitrate and capture resolution from periodic network samples.
+ *
+ * Bitrate follows a simple AIMD scheme: back off multiplicatively when loss or queueing
+ * delay show congestion, probe upwards slowly once the link has been clean for a while,
+ * and never exceed the sender's available outgoing bitrate estimate. Resolution moves
+ * along a fixed ladder based on how many bits each pixel gets at the current bitrate.
+ * Separate down/up thresholds, consecutive-sample counts and a hold time stop it from
+ * flapping between sizes.
+ *
+ * Queueing is judged against the lowest RTT of roughly the last 10-20 seconds rather than of
+ * the whole session, so a roam or route change that raises the base RTT is soon taken as the
+ * new normal instead of as permanent congestion.
+ */
+public class CongestionController {
+
+    public interface Listener {
+        void onTargetBitrateChanged(int bitrateBps);
+
+        void onResolutionScaleChanged(float scale);
+    }
+
+    static final float[] RESOLUTION_SCALES = {1.0f, 0.75f, 0.5f, 0.375f};
+
+    private static final double LOSS_CONGESTED = 0.10;
+    private static final double LOSS_CLEAN = 0.02;
+    private static final double RTT_QUEUEING_MS = 150;
+    // The base RTT is the minimum over the current window and the one before it
+    private static final long RTT_WINDOW_MS = 10000;
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_FACTOR = 1.08;
+    private static final double AVAILABLE_HEADROOM = 0.9;
+    private static final long INCREASE_HOLD_MS = 2000;
+    // Moderate loss that persists this many samples is treated as congestion too
+    private static final int PERSISTENT_LOSS_SAMPLES = 3;
+    private static final double REPORT_THRESHOLD = 0.05;
+
+    // Bits per pixel per frame; below LOW the picture falls apart, above HIGH a bigger size fits
+    private static final double BPP_LOW = 0.04;
+    private static final double BPP_HIGH = 0.09;
+    private static final int DOWN_SAMPLES = 3;
+    private static final int UP_SAMPLES = 5;
+    private static final long RESOLUTION_HOLD_MS = 10000;
+
+    private final Listener listener;
+    private final int minBitrate;
+    private final int maxBitrate;
+    private long fullResolutionPixels;
+    private final int frameRate;
+
+    private double targetBitrate;
+    private int reportedBitrate;
+    private int bitrateCap;
+    private int scaleIndex;
+    private double minRttMs = Double.MAX_VALUE;
+    private double previousMinRttMs = Double.MAX_VALUE;
+    private long rttWindowStartMs = Long.MIN_VALUE / 2;
+    private long lastDecreaseMs = Long.MIN_VALUE / 2;
+    private long lastResolutionChangeMs = Long.MIN_VALUE / 2;
+    private int lossySamples;
+    private int lowBppSamples;
+    private int highBppSamples;
+
+    public CongestionController(Listener listener, int startBitrate, int minBitrate, int maxBitrate,
+                                int width, int height, int frameRate) {
+        this.listener = listener;
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.fullResolutionPixels = (long) width * height;
+        this.frameRate = frameRate;
+        this.targetBitrate = startBitrate;
+        this.reportedBitrate = startBitrate;
+    }
+
+    /**
+     * Feeds one network sample.
+     *
+     * @param rttMs current round-trip time, or a negative value if unknown
+     * @param lossFraction fraction of packets lost since the previous sample, 0..1
+     * @param availableBitrateBps sender's outgoing bandwidth estimate, or 0 if unknown
+     */
+    public void onNetworkSample(long nowMs, double rttMs, double lossFraction, long availableBitrateBps) {
+        if (rttMs >= 0) {
+            if (nowMs - rttWindowStartMs >= RTT_WINDOW_MS) {
+                previousMinRttMs = minRttMs;
+                minRttMs = Double.MAX_VALUE;
+                rttWindowStartMs = nowMs;
+            }
+            minRttMs = Math.min(minRttMs, rttMs);
+        }
+        double baseRttMs = Math.min(minRttMs, previousMinRttMs);
+        boolean queueing = rttMs >= 0 && rttMs - baseRttMs > RTT_QUEUEING_MS;
+        lossySamples = lossFraction >= LOSS_CLEAN ? lossySamples + 1 : 0;
+
+        if (lossFraction > LOSS_CONGESTED || queueing || lossySamples >= PERSISTENT_LOSS_SAMPLES) {
+            targetBitrate *= DECREASE_FACTOR;
+            lastDecreaseMs = nowMs;
+        } else if (lossFraction < LOSS_CLEAN && nowMs - lastDecreaseMs >= INCREASE_HOLD_MS) {
+            targetBitrate *= INCREASE_FACTOR;
+        }
+        if (availableBitrateBps > 0) {
+            targetBitrate = Math.min(targetBitrate, availableBitrateBps * AVAILABLE_HEADROOM);
+        }
+        targetBitrate = Math.max(minBitrate, Math.min(ceiling(), targetBitrate));
+        report();
+
+        updateResolution(nowMs);
+    }
+
+    /**
+     * Holds the target at or below a ceiling the viewer asked for, on top of the configured
+     * maximum. It takes effect at once rather than waiting for the next network sample.
+     *
+     * @param capBps the ceiling, or 0 to lift it; clamped to the configured minimum
+     */
+    public void setBitrateCap(int capBps) {
+        bitrateCap = capBps > 0 ? Math.max(minBitrate, capBps) : 0;
+        if (targetBitrate > ceiling()) {
+            targetBitrate = ceiling();
+            report();
+        }
+    }
+
+    public int getBitrateCap() {
+        return bitrateCap;
+    }
+
+    private int ceiling() {
+        return bitrateCap > 0 ? Math.min(maxBitrate, bitrateCap) : maxBitrate;
+    }
+
+    private void report() {
+        int ceiling = ceiling();
+        if (Math.abs(targetBitrate - reportedBitrate) >= reportedBitrate * REPORT_THRESHOLD
+                || (targetBitrate == minBitrate && reportedBitrate != minBitrate)
+                || (targetBitrate == ceiling && reportedBitrate != ceiling)) {
+            reportedBitrate = (int) targetBitrate;
+            listener.onTargetBitrateChanged(reportedBitrate);
+        }
+    }
+
+    private void updateResolution(long nowMs) {
+        if (scaleIndex < RESOLUTION_SCALES.length - 1 && bitsPerPixel(scaleIndex) < BPP_LOW) {
+            lowBppSamples++;
+        } else {
+            lowBppSamples = 0;
+        }
+        if (scaleIndex > 0 && bitsPerPixel(scaleIndex - 1) > BPP_HIGH) {
+            highBppSamples++;
+        } else {
+            highBppSamples = 0;
+        }
+
+        if (lowBppSamples >= DOWN_SAMPLES) {
+            // Stepping down is never held back; a congested link needs relief now
+            setScaleIndex(scaleIndex + 1, nowMs);
+        } else if (highBppSamples >= UP_SAMPLES && nowMs - lastResolutionChangeMs >= RESOLUTION_HOLD_MS) {
+            setScaleIndex(scaleIndex - 1, nowMs);
+        }
+    }
+
+    private void setScaleIndex(int index, long nowMs) {
+        scaleIndex = index;
+        lastResolutionChangeMs = nowMs;
+        lowBppSamples = 0;
+        highBppSamples = 0;
+        listener.onResolutionScaleChanged(RESOLUTION_SCALES[index]);
+    }
+
+    private double bitsPerPixel(int index) {
+        double scale = RESOLUTION_SCALES[index];
+        return targetBitrate / (fullResolutionPixels * scale * scale * frameRate);
+    }
+
+    /**
+     * Changes the picture the resolution ladder scales, for a capture mode that encodes less
+     * than the whole display. The ladder position is kept.
+     */
+    public void setFullResolution(int width, int height) {
+        fullResolutionPixels = (long) width * height;
+        lowBppSamples = 0;
+        highBppSamples = 0;
+    }
+
+    public int getTargetBitrate() {
+        return reportedBitrate;
+    }
+
+    public float getResolutionScale() {
+        return RESOLUTION_SCALES[scaleIndex];
+    }
+
+    /**
+     * Scales one side of the capture size, rounded down to the 16-pixel macroblock
+     * alignment most hardware encoders require.
+     */
+    public static int scaleDimension(int fullSize, float scale) {
+        int scaled = ((int) (fullSize * scale)) & ~15;
+        return Math.max(16, scaled);
+    }
+}
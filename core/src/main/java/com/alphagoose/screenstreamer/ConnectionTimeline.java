@@ -0,0 +1,77 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Timestamps of the milestones between service start and the first frame reaching a viewer.
+ *
+ * Each stage keeps the first time it was reached, so repeated events (a second viewer's
+ * offer, an ICE reconnect) do not move the startup figures.
+ */
+public class ConnectionTimeline {
+
+    public enum Stage {
+        SERVICE_CREATED,
+        FACTORY_READY,
+        SOCKET_OPEN,
+        VIEWER_JOINED,
+        OFFER_SENT,
+        ICE_CONNECTED,
+        FIRST_FRAME_SENT
+    }
+
+    private static final long UNSET = -1;
+
+    private final long[] stageMs = new long[Stage.values().length];
+
+    public ConnectionTimeline() {
+        Arrays.fill(stageMs, UNSET);
+    }
+
+    /**
+     * @return true if this is the first time {@code stage} was reached
+     */
+    public synchronized boolean mark(Stage stage, long nowMs) {
+        if (stageMs[stage.ordinal()] != UNSET) {
+            return false;
+        }
+        stageMs[stage.ordinal()] = nowMs;
+        return true;
+    }
+
+    public synchronized boolean has(Stage stage) {
+        return stageMs[stage.ordinal()] != UNSET;
+    }
+
+    /**
+     * @return milliseconds from {@code from} to {@code to}, or -1 if either is not reached yet
+     */
+    public synchronized long elapsedMs(Stage from, Stage to) {
+        long start = stageMs[from.ordinal()];
+        long end = stageMs[to.ordinal()];
+        return start == UNSET || end == UNSET ? -1 : end - start;
+    }
+
+    /**
+     * Each reached stage with its offset from the first reached stage.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        long origin = UNSET;
+        for (Stage stage : Stage.values()) {
+            long ms = stageMs[stage.ordinal()];
+            if (ms == UNSET) {
+                continue;
+            }
+            if (origin == UNSET) {
+                origin = ms;
+            } else {
+                builder.append(", ");
+            }
+            builder.append(stage.name().toLowerCase(Locale.US)).append("=+").append(ms - origin).append("ms");
+        }
+        return builder.toString();
+    }
+}
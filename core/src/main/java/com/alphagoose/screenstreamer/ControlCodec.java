@@ -0,0 +1,184 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary events carried on the viewer's unordered, unreliable DataChannel: remote input, encoder
+ * commands and clock pings.
+ *
+ * A datagram is a two byte header (magic "C", version) followed by any number of events, each a
+ * type byte and fixed-size big-endian fields, so a viewer can batch everything from one frame
+ * interval into a single message. A lost datagram is never retransmitted; a stale pointer
+ * position is worth less than the next one. Positions are normalized to 0..65535 across the
+ * streamed picture, so they do not depend on the encoded resolution. Times are the low 32 bits
+ * of the sender's microsecond clock; only differences between them are meaningful.
+ */
+public final class ControlCodec {
+    public static final String CHANNEL_LABEL = "control";
+
+    static final int VERSION = 1;
+    private static final byte MAGIC = 'C';
+
+    static final int TYPE_POINTER = 1;
+    static final int TYPE_KEY = 2;
+    static final int TYPE_SCROLL = 3;
+    static final int TYPE_SET_BITRATE = 4;
+    static final int TYPE_REQUEST_KEY_FRAME = 5;
+    static final int TYPE_PING = 6;
+    static final int TYPE_PONG = 7;
+
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+    public static final int ACTION_CANCEL = 3;
+
+    /** Largest normalized coordinate; the right or bottom edge of the picture. */
+    public static final int MAX_POSITION = 0xffff;
+
+    // Field bytes after the type byte, indexed by type
+    private static final int[] EVENT_SIZES = {-1, 10, 11, 12, 4, 0, 4, 8};
+
+    public interface Listener {
+        void onPointer(int action, int pointerId, int x, int y, int timeUs);
+
+        /**
+         * @param keyCode   an Android KeyEvent key code
+         * @param metaState Android KeyEvent meta state bits
+         */
+        void onKey(int action, int keyCode, int metaState, int timeUs);
+
+        /**
+         * @param dx horizontal scroll in hundredths of a wheel notch, positive to the right
+         * @param dy vertical scroll in hundredths of a wheel notch, positive down
+         */
+        void onScroll(int x, int y, int dx, int dy, int timeUs);
+
+        /**
+         * @param bitrateBps ceiling the viewer asks for, or 0 to lift it
+         */
+        void onSetBitrate(int bitrateBps);
+
+        void onKeyFrameRequest();
+
+        void onPing(int timeUs);
+
+        /**
+         * @param echoedTimeUs the time from our ping, returned unchanged
+         * @param remoteTimeUs the peer's clock when it answered
+         */
+        void onPong(int echoedTimeUs, int remoteTimeUs);
+    }
+
+    private ControlCodec() {
+    }
+
+    /**
+     * Dispatches every event in the datagram between position and limit, in order. The whole
+     * datagram is checked first, so a malformed one dispatches nothing. Position and limit are
+     * left unchanged.
+     *
+     * @throws IllegalArgumentException if the datagram is malformed or of a version we don't read
+     */
+    public static void decode(ByteBuffer datagram, Listener listener) {
+        ByteBuffer in = datagram.duplicate();
+        int start = in.position();
+        validate(in);
+        in.position(start + 2);
+        while (in.hasRemaining()) {
+            int type = in.get() & 0xff;
+            switch (type) {
+                case TYPE_POINTER:
+                    listener.onPointer(in.get() & 0xff, in.get() & 0xff, in.getShort() & 0xffff,
+                            in.getShort() & 0xffff, in.getInt());
+                    break;
+                case TYPE_KEY:
+                    listener.onKey(in.get() & 0xff, in.getShort() & 0xffff, in.getInt(), in.getInt());
+                    break;
+                case TYPE_SCROLL:
+                    listener.onScroll(in.getShort() & 0xffff, in.getShort() & 0xffff, in.getShort(),
+                            in.getShort(), in.getInt());
+                    break;
+                case TYPE_SET_BITRATE:
+                    listener.onSetBitrate(Math.max(0, in.getInt()));
+                    break;
+                case TYPE_REQUEST_KEY_FRAME:
+                    listener.onKeyFrameRequest();
+                    break;
+                case TYPE_PING:
+                    listener.onPing(in.getInt());
+                    break;
+                default:
+                    listener.onPong(in.getInt(), in.getInt());
+                    break;
+            }
+        }
+    }
+
+    private static void validate(ByteBuffer in) {
+        try {
+            if (in.get() != MAGIC) {
+                throw new IllegalArgumentException("Not a control datagram");
+            }
+            int version = in.get() & 0xff;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported control datagram version " + version);
+            }
+            while (in.hasRemaining()) {
+                int type = in.get() & 0xff;
+                if (type == 0 || type >= EVENT_SIZES.length) {
+                    throw new IllegalArgumentException("Unknown control event type " + type);
+                }
+                int size = EVENT_SIZES[type];
+                if (in.remaining() < size) {
+                    throw new IllegalArgumentException("Truncated control event of type " + type);
+                }
+                in.position(in.position() + size);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated control datagram", e);
+        }
+    }
+
+    /**
+     * Starts a datagram. Events are appended with the other put methods; flip when done.
+     */
+    public static ByteBuffer putHeader(ByteBuffer out) {
+        return out.put(MAGIC).put((byte) VERSION);
+    }
+
+    public static ByteBuffer putPointer(ByteBuffer out, int action, int pointerId, int x, int y, int timeUs) {
+        return out.put((byte) TYPE_POINTER).put((byte) action).put((byte) pointerId)
+                .putShort((short) x).putShort((short) y).putInt(timeUs);
+    }
+
+    public static ByteBuffer putKey(ByteBuffer out, int action, int keyCode, int metaState, int timeUs) {
+        return out.put((byte) TYPE_KEY).put((byte) action).putShort((short) keyCode).putInt(metaState)
+                .putInt(timeUs);
+    }
+
+    public static ByteBuffer putScroll(ByteBuffer out, int x, int y, int dx, int dy, int timeUs) {
+        return out.put((byte) TYPE_SCROLL).putShort((short) x).putShort((short) y)
+                .putShort((short) clampShort(dx)).putShort((short) clampShort(dy)).putInt(timeUs);
+    }
+
+    public static ByteBuffer putSetBitrate(ByteBuffer out, int bitrateBps) {
+        return out.put((byte) TYPE_SET_BITRATE).putInt(bitrateBps);
+    }
+
+    public static ByteBuffer putKeyFrameRequest(ByteBuffer out) {
+        return out.put((byte) TYPE_REQUEST_KEY_FRAME);
+    }
+
+    public static ByteBuffer putPing(ByteBuffer out, int timeUs) {
+        return out.put((byte) TYPE_PING).putInt(timeUs);
+    }
+
+    public static ByteBuffer putPong(ByteBuffer out, int echoedTimeUs, int timeUs) {
+        return out.put((byte) TYPE_PONG).putInt(echoedTimeUs).putInt(timeUs);
+    }
+
+    private static int clampShort(int value) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+}
@@ -0,0 +1,329 @@
+package com.alphagoose.screenstreamer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of direct ByteBuffers, so per-frame copies reuse native memory instead of
+ * allocating at the frame rate.
+ *
+ * Requests are rounded up to a power of two. Each thread keeps a few buffers per size class
+ * for itself and falls back to shared free lists, which hold at most {@code maxRetainedBytes}
+ * in total; anything beyond that is left to the GC. Requests larger than the biggest class
+ * are allocated unpooled.
+ *
+ * A buffer must be released exactly once, as the same object that was acquired (not a slice
+ * or duplicate), and not used afterwards. With a {@link LeakListener} set, buffers acquired
+ * from then on are tracked, and any that are garbage collected without being released are
+ * reported with the stack trace of where they were acquired. That costs a stack trace per
+ * acquire, so it is meant for debug builds.
+ */
+public class DirectBufferPool {
+
+    public interface LeakListener {
+        /**
+         * Called on whichever thread next uses the pool after a leaked buffer was collected.
+         */
+        void onLeak(int capacity, Throwable acquiredAt);
+    }
+
+    private static final int MIN_CLASS_SHIFT = 10; // 1 KiB
+
+    private final int maxClassShift;
+    private final int threadCacheSize;
+    private final long maxRetainedBytes;
+    private final SizeClass[] classes;
+    private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache(classes.length, threadCacheSize);
+        }
+    };
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstandingBuffers = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private volatile LeakListener leakListener;
+    private final LeakTracker leakTracker = new LeakTracker();
+
+    /**
+     * Up to 4 MiB buffers, 4 per class per thread, and 16 MiB shared.
+     */
+    public DirectBufferPool() {
+        this(4 * 1024 * 1024, 4, 16L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxPooledCapacity largest buffer that is pooled, rounded up to a power of two
+     * @param threadCacheSize   buffers per size class each thread keeps for itself
+     * @param maxRetainedBytes  upper bound on free memory held in the shared lists
+     */
+    public DirectBufferPool(int maxPooledCapacity, int threadCacheSize, long maxRetainedBytes) {
+        if (maxPooledCapacity < 1 << MIN_CLASS_SHIFT || maxPooledCapacity > 1 << 30 || threadCacheSize < 0) {
+            throw new IllegalArgumentException("Bad pool limits: " + maxPooledCapacity + " bytes, "
+                    + threadCacheSize + " cached per thread");
+        }
+        this.maxClassShift = shiftFor(maxPooledCapacity);
+        this.threadCacheSize = threadCacheSize;
+        this.maxRetainedBytes = maxRetainedBytes;
+        classes = new SizeClass[maxClassShift - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass();
+        }
+    }
+
+    /**
+     * Turns leak tracking on for buffers acquired from now on, or off with null.
+     */
+    public void setLeakListener(LeakListener listener) {
+        leakListener = listener;
+    }
+
+    /**
+     * @return a cleared buffer with at least {@code minCapacity} bytes of capacity
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new IllegalArgumentException("Negative capacity " + minCapacity);
+        }
+        LeakListener listener = leakListener;
+        if (listener != null) {
+            leakTracker.poll(listener);
+        }
+        int shift = shiftFor(minCapacity);
+        ByteBuffer buffer = null;
+        if (shift <= maxClassShift) {
+            int index = shift - MIN_CLASS_SHIFT;
+            buffer = caches.get().poll(index);
+            if (buffer == null) {
+                buffer = classes[index].free.poll();
+                if (buffer != null) {
+                    retainedBytes.addAndGet(-buffer.capacity());
+                }
+            }
+        }
+        if (buffer != null) {
+            hits.incrementAndGet();
+            buffer.clear();
+        } else {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(shift <= maxClassShift ? 1 << shift : minCapacity);
+        }
+        outstandingBuffers.incrementAndGet();
+        outstandingBytes.addAndGet(buffer.capacity());
+        if (listener != null) {
+            leakTracker.track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns {@code buffer} to the pool. Null is ignored, so callers can release fields that
+     * were never filled.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (!buffer.isDirect() || buffer.isReadOnly()) {
+            throw new IllegalArgumentException("Not a pooled buffer: " + buffer);
+        }
+        LeakListener listener = leakListener;
+        if (listener != null) {
+            leakTracker.untrack(buffer);
+            leakTracker.poll(listener);
+        }
+        int capacity = buffer.capacity();
+        outstandingBuffers.decrementAndGet();
+        outstandingBytes.addAndGet(-capacity);
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift < MIN_CLASS_SHIFT || shift > maxClassShift) {
+            return;
+        }
+        int index = shift - MIN_CLASS_SHIFT;
+        if (caches.get().offer(index, buffer)) {
+            return;
+        }
+        if (retainedBytes.addAndGet(capacity) <= maxRetainedBytes) {
+            classes[index].free.offer(buffer);
+        } else {
+            retainedBytes.addAndGet(-capacity);
+        }
+    }
+
+    /**
+     * Acquires served from a free buffer.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Acquires that had to allocate.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getOutstandingBuffers() {
+        return outstandingBuffers.get();
+    }
+
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    /**
+     * Free bytes held in the shared lists, not counting per-thread caches.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * Checks for tracked buffers collected since the last acquire or release.
+     */
+    public void checkLeaks() {
+        LeakListener listener = leakListener;
+        if (listener != null) {
+            leakTracker.poll(listener);
+        }
+    }
+
+    private static int shiftFor(int capacity) {
+        if (capacity <= 1 << MIN_CLASS_SHIFT) {
+            return MIN_CLASS_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private static final class SizeClass {
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Small per-thread stacks, one per size class. Only the owning thread touches them.
+     */
+    private static final class ThreadCache {
+        final ByteBuffer[][] stacks;
+        final int[] counts;
+
+        ThreadCache(int classCount, int size) {
+            stacks = new ByteBuffer[classCount][size];
+            counts = new int[classCount];
+        }
+
+        ByteBuffer poll(int index) {
+            int count = counts[index];
+            if (count == 0) {
+                return null;
+            }
+            counts[index] = --count;
+            ByteBuffer buffer = stacks[index][count];
+            stacks[index][count] = null;
+            return buffer;
+        }
+
+        boolean offer(int index, ByteBuffer buffer) {
+            int count = counts[index];
+            if (count == stacks[index].length) {
+                return false;
+            }
+            stacks[index][count] = buffer;
+            counts[index] = count + 1;
+            return true;
+        }
+    }
+
+    /**
+     * Weak references to outstanding buffers, keyed by identity hash. A reference that is
+     * enqueued while still in the map belongs to a buffer that was never released.
+     */
+    private final class LeakTracker {
+        private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+        private final Map<Integer, Record> records = new HashMap<>();
+
+        synchronized void track(ByteBuffer buffer) {
+            int hash = System.identityHashCode(buffer);
+            Record record = new Record(buffer, collected, hash, new Throwable("Buffer acquired here"));
+            record.next = records.put(hash, record);
+        }
+
+        synchronized void untrack(ByteBuffer buffer) {
+            int hash = System.identityHashCode(buffer);
+            Record previous = null;
+            for (Record record = records.get(hash); record != null; record = record.next) {
+                if (record.get() == buffer) {
+                    unlink(hash, previous, record);
+                    record.clear();
+                    return;
+                }
+                previous = record;
+            }
+        }
+
+        void poll(LeakListener listener) {
+            Reference<? extends ByteBuffer> reference;
+            while ((reference = collected.poll()) != null) {
+                Record record = (Record) reference;
+                if (remove(record)) {
+                    leaks.incrementAndGet();
+                    outstandingBuffers.decrementAndGet();
+                    outstandingBytes.addAndGet(-record.capacity);
+                    listener.onLeak(record.capacity, record.acquiredAt);
+                }
+            }
+        }
+
+        private synchronized boolean remove(Record target) {
+            Record previous = null;
+            for (Record record = records.get(target.hash); record != null; record = record.next) {
+                if (record == target) {
+                    unlink(target.hash, previous, record);
+                    return true;
+                }
+                previous = record;
+            }
+            return false;
+        }
+
+        private void unlink(int hash, Record previous, Record record) {
+            if (previous != null) {
+                previous.next = record.next;
+            } else if (record.next != null) {
+                records.put(hash, record.next);
+            } else {
+                records.remove(hash);
+            }
+        }
+    }
+
+    private static final class Record extends WeakReference<ByteBuffer> {
+        final int hash;
+        final int capacity;
+        final Throwable acquiredAt;
+        Record next;
+
+        Record(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, int hash, Throwable acquiredAt) {
+            super(buffer, queue);
+            this.hash = hash;
+            this.capacity = buffer.capacity();
+            this.acquiredAt = acquiredAt;
+        }
+    }
+}
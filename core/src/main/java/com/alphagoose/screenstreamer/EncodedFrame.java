@@ -0,0 +1,162 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted view of one encoder output buffer.
+ *
+ * The frame wraps the codec's own ByteBuffer, so consumers read it without any copy. The
+ * buffer goes back to the codec through the {@link Recycler} once the last reference is
+ * released. Frames are pooled per output buffer index, so the drain thread allocates
+ * nothing once every index has been seen.
+ */
+public final class EncodedFrame {
+
+    public interface Recycler {
+        void recycle(EncodedFrame frame);
+    }
+
+    private final Recycler recycler;
+    private final int bufferIndex;
+    private final AtomicInteger refCount = new AtomicInteger();
+    private final Runnable releaseCallback = this::release;
+    private ByteBuffer data;
+    private long presentationTimeUs;
+    private int flags;
+    private int width;
+    private int height;
+    private long dequeueTimeNs;
+
+    EncodedFrame(Recycler recycler, int bufferIndex) {
+        this.recycler = recycler;
+        this.bufferIndex = bufferIndex;
+    }
+
+    void reset(ByteBuffer data, long presentationTimeUs, int flags, int width, int height) {
+        if (refCount.get() != 0) {
+            throw new IllegalStateException("Output buffer " + bufferIndex + " is still referenced");
+        }
+        this.data = data;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+        this.width = width;
+        this.height = height;
+        this.dequeueTimeNs = 0;
+        refCount.set(1);
+    }
+
+    public EncodedFrame retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame already released");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            data = null;
+            recycler.recycle(this);
+        } else if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("Frame released more times than retained");
+        }
+    }
+
+    /**
+     * Runnable that releases one reference, for APIs that take a release callback. The
+     * same instance is returned every time so handing it out does not allocate.
+     */
+    public Runnable getReleaseCallback() {
+        return releaseCallback;
+    }
+
+    /**
+     * Codec-owned buffer positioned at the access unit. Callers must not change its position
+     * or limit; use {@link ByteBuffer#slice()} or absolute reads instead.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public int getBufferIndex() {
+        return bufferIndex;
+    }
+
+    public long getPresentationTimeUs() {
+        return presentationTimeUs;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getSize() {
+        ByteBuffer buffer = data;
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the encoder handed this frame over, or 0 if unknown.
+     * Copies carry the original frame's time, so it can be measured against the send.
+     */
+    public long getDequeueTimeNs() {
+        return dequeueTimeNs;
+    }
+
+    void setDequeueTimeNs(long dequeueTimeNs) {
+        this.dequeueTimeNs = dequeueTimeNs;
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & FrameRing.FLAG_KEY_FRAME) != 0;
+    }
+
+    int getRefCount() {
+        return refCount.get();
+    }
+
+    /**
+     * One frame per codec output buffer index, created the first time each index is seen.
+     */
+    public static final class Pool {
+        private final Recycler recycler;
+        private EncodedFrame[] frames = new EncodedFrame[8];
+
+        public Pool(Recycler recycler) {
+            this.recycler = recycler;
+        }
+
+        /**
+         * Wraps {@code data} (already positioned at the access unit) with a reference count of one.
+         */
+        public EncodedFrame obtain(int bufferIndex, ByteBuffer data, long presentationTimeUs, int flags,
+                                   int width, int height) {
+            if (bufferIndex >= frames.length) {
+                EncodedFrame[] grown = new EncodedFrame[Math.max(bufferIndex + 1, frames.length * 2)];
+                System.arraycopy(frames, 0, grown, 0, frames.length);
+                frames = grown;
+            }
+            EncodedFrame frame = frames[bufferIndex];
+            if (frame == null) {
+                frame = new EncodedFrame(recycler, bufferIndex);
+                frames[bufferIndex] = frame;
+            }
+            frame.reset(data, presentationTimeUs, flags, width, height);
+            return frame;
+        }
+    }
+}
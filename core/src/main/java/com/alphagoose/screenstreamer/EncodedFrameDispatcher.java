@@ -0,0 +1,58 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Fans encoded frames out to live consumers without copying them.
+ *
+ * Sinks are called on the encoder drain thread and must return quickly. A sink that needs
+ * the frame after returning calls {@link EncodedFrame#retain()} and releases it later; the
+ * codec buffer is only returned once every sink has done so.
+ */
+public class EncodedFrameDispatcher {
+
+    public interface Sink {
+        void onEncodedFrame(EncodedFrame frame);
+    }
+
+    private static final Sink[] NO_SINKS = new Sink[0];
+
+    // Copy-on-write array so dispatch iterates without locking or allocating an iterator
+    private volatile Sink[] sinks = NO_SINKS;
+
+    public synchronized void addSink(Sink sink) {
+        Sink[] current = sinks;
+        Sink[] updated = new Sink[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = sink;
+        sinks = updated;
+    }
+
+    public synchronized void removeSink(Sink sink) {
+        Sink[] current = sinks;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == sink) {
+                Sink[] updated = new Sink[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                sinks = updated;
+                return;
+            }
+        }
+    }
+
+    public boolean hasSinks() {
+        return sinks.length > 0;
+    }
+
+    /**
+     * Hands {@code frame} to every sink and then drops the caller's reference.
+     */
+    public void dispatch(EncodedFrame frame) {
+        try {
+            for (Sink sink : sinks) {
+                sink.onEncodedFrame(frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+}
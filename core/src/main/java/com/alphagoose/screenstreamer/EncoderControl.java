@@ -0,0 +1,44 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.Set;
+
+/**
+ * Feedback path from the transport side (WebSocketService) to the encoder owned by
+ * MediaProjectionService. Implementations must be safe to call from any thread.
+ */
+public interface EncoderControl {
+
+    /**
+     * Reports one sample of WebRTC sender statistics.
+     *
+     * @param rttMs current round-trip time, or a negative value if unknown
+     * @param lossFraction fraction of packets lost since the previous sample, 0..1
+     * @param availableBitrateBps outgoing bandwidth estimate, or 0 if unknown
+     */
+    void onNetworkStats(long nowMs, double rttMs, double lossFraction, long availableBitrateBps);
+
+    /**
+     * Reports the video codecs the viewer accepted, as MediaCodec MIME types, restricted
+     * to those the transport can carry.
+     */
+    void onViewerCodecsNegotiated(Set<String> mimeTypes);
+
+    /**
+     * Caps the encoder bitrate at a viewer's request, below whatever the congestion controller
+     * would pick; 0 lifts the cap.
+     */
+    void setMaxBitrate(int bitrateBps);
+
+    /**
+     * Asks the encoder to emit a keyframe as soon as possible, for a viewer that joined or
+     * lost frames. Requests are rate limited; one that comes too soon after others is deferred,
+     * not dropped.
+     */
+    void requestKeyFrame();
+
+    /**
+     * As {@link #requestKeyFrame()}, for one simulcast layer; layer 0 is the primary encoder.
+     * Each layer has its own rate limit. A layer that is not running ignores the request.
+     */
+    void requestKeyFrame(int layer);
+}
@@ -0,0 +1,71 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Snapshot of one video encoder's capabilities for a particular capture size.
+ *
+ * Built from MediaCodecInfo on the device, or by hand in tests. It can be flattened to a
+ * single line so the ranked list can be persisted and MediaCodecList enumeration skipped on
+ * later launches.
+ */
+public final class EncoderDescriptor {
+    private static final String SEPARATOR = ";";
+
+    public final String name;
+    public final String mimeType;
+    public final boolean hardwareAccelerated;
+    public final boolean softwareOnly;
+    public final boolean surfaceInput;
+    public final boolean sizeSupported;
+    // Measured frame rate the device can sustain at the capture size, or -1 if not published
+    public final double achievableFrameRate;
+    public final double maxFrameRate;
+    public final int profile;
+    public final int level;
+
+    public EncoderDescriptor(String name, String mimeType, boolean hardwareAccelerated, boolean softwareOnly,
+                             boolean surfaceInput, boolean sizeSupported, double achievableFrameRate,
+                             double maxFrameRate, int profile, int level) {
+        if (name.contains(SEPARATOR) || mimeType.contains(SEPARATOR)) {
+            throw new IllegalArgumentException("Codec name or type contains '" + SEPARATOR + "'");
+        }
+        this.name = name;
+        this.mimeType = mimeType;
+        this.hardwareAccelerated = hardwareAccelerated;
+        this.softwareOnly = softwareOnly;
+        this.surfaceInput = surfaceInput;
+        this.sizeSupported = sizeSupported;
+        this.achievableFrameRate = achievableFrameRate;
+        this.maxFrameRate = maxFrameRate;
+        this.profile = profile;
+        this.level = level;
+    }
+
+    public String encode() {
+        return name + SEPARATOR + mimeType + SEPARATOR + hardwareAccelerated + SEPARATOR + softwareOnly
+                + SEPARATOR + surfaceInput + SEPARATOR + sizeSupported + SEPARATOR + achievableFrameRate
+                + SEPARATOR + maxFrameRate + SEPARATOR + profile + SEPARATOR + level;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code line} was not produced by {@link #encode()}
+     */
+    public static EncoderDescriptor decode(String line) {
+        String[] fields = line.split(SEPARATOR, -1);
+        if (fields.length != 10) {
+            throw new IllegalArgumentException("Malformed encoder descriptor: " + line);
+        }
+        try {
+            return new EncoderDescriptor(fields[0], fields[1], Boolean.parseBoolean(fields[2]),
+                    Boolean.parseBoolean(fields[3]), Boolean.parseBoolean(fields[4]),
+                    Boolean.parseBoolean(fields[5]), Double.parseDouble(fields[6]),
+                    Double.parseDouble(fields[7]), Integer.parseInt(fields[8]), Integer.parseInt(fields[9]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed encoder descriptor: " + line, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + mimeType + (hardwareAccelerated ? ", hw" : "") + ")";
+    }
+}
@@ -0,0 +1,175 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Ranks the device's video encoders for a capture size and the codecs a viewer accepts.
+ *
+ * Hardware encoders always beat software ones. After that an encoder is scored on whether
+ * it can sustain the target frame rate at the capture size, how efficient its codec is, and
+ * its best profile and level. AVC is the fallback when the viewer accepts nothing better.
+ */
+public class EncoderRegistry {
+    // Same strings as MediaFormat.MIMETYPE_VIDEO_*, kept here so ranking runs off-device
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+    public static final String MIME_VP9 = "video/x-vnd.on2.vp9";
+    public static final String MIME_AV1 = "video/av01";
+
+    // MediaCodecInfo.CodecProfileLevel values used to rank AVC profiles
+    private static final int AVC_PROFILE_MAIN = 0x02;
+    private static final int AVC_PROFILE_HIGH = 0x08;
+    private static final int AVC_PROFILE_CONSTRAINED_HIGH = 0x80000;
+
+    private final List<EncoderDescriptor> descriptors;
+
+    public EncoderRegistry(List<EncoderDescriptor> descriptors) {
+        this.descriptors = Collections.unmodifiableList(new ArrayList<>(descriptors));
+    }
+
+    public List<EncoderDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * @return the best encoder for one of {@code acceptedMimeTypes}, falling back to the best
+     *         AVC encoder, or null if no usable encoder exists at all
+     */
+    public EncoderDescriptor select(Set<String> acceptedMimeTypes, int targetFrameRate) {
+        List<EncoderDescriptor> ranked = rank(acceptedMimeTypes, targetFrameRate);
+        if (!ranked.isEmpty()) {
+            return ranked.get(0);
+        }
+        List<EncoderDescriptor> fallback = rank(Collections.singleton(MIME_AVC), targetFrameRate);
+        return fallback.isEmpty() ? null : fallback.get(0);
+    }
+
+    /**
+     * Usable encoders for the accepted codecs, best first.
+     */
+    public List<EncoderDescriptor> rank(Set<String> acceptedMimeTypes, final int targetFrameRate) {
+        List<EncoderDescriptor> usable = new ArrayList<>();
+        for (EncoderDescriptor descriptor : descriptors) {
+            if (descriptor.surfaceInput && descriptor.sizeSupported
+                    && acceptedMimeTypes.contains(descriptor.mimeType)) {
+                usable.add(descriptor);
+            }
+        }
+        Collections.sort(usable, (a, b) -> Double.compare(score(b, targetFrameRate), score(a, targetFrameRate)));
+        return usable;
+    }
+
+    static double score(EncoderDescriptor descriptor, int targetFrameRate) {
+        double score = 0;
+        if (descriptor.hardwareAccelerated) {
+            score += 1000;
+        }
+        if (descriptor.softwareOnly) {
+            score -= 500;
+        }
+
+        // Prefer the measured rate; the advertised maximum is often optimistic
+        double frameRate = descriptor.achievableFrameRate > 0 ? descriptor.achievableFrameRate : descriptor.maxFrameRate;
+        score += 300 * Math.min(1.0, frameRate / targetFrameRate);
+
+        score += codecEfficiency(descriptor.mimeType);
+        score += 10 * profileRank(descriptor.mimeType, descriptor.profile);
+        // Level constants are bit flags in ascending order, so the bit position orders them
+        score += Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(1, descriptor.level)));
+        return score;
+    }
+
+    private static double codecEfficiency(String mimeType) {
+        switch (mimeType) {
+            case MIME_AV1:
+                return 150;
+            case MIME_HEVC:
+                return 120;
+            case MIME_VP9:
+                return 100;
+            default:
+                return 0;
+        }
+    }
+
+    static int profileRank(String mimeType, int profile) {
+        if (!MIME_AVC.equals(mimeType)) {
+            return profile > 0 ? 1 : 0;
+        }
+        if ((profile & (AVC_PROFILE_HIGH | AVC_PROFILE_CONSTRAINED_HIGH)) != 0) {
+            return 2;
+        }
+        return (profile & AVC_PROFILE_MAIN) != 0 ? 1 : 0;
+    }
+
+    /**
+     * Video codecs offered in an SDP blob, mapped to MediaCodec MIME types in the order the
+     * remote side listed them.
+     */
+    public static Set<String> acceptedMimeTypes(String sdp) {
+        Set<String> mimeTypes = new LinkedHashSet<>();
+        boolean inVideoSection = false;
+        for (String line : sdp.split("\r?\n")) {
+            if (line.startsWith("m=")) {
+                inVideoSection = line.startsWith("m=video");
+            } else if (inVideoSection && line.startsWith("a=rtpmap:")) {
+                int space = line.indexOf(' ');
+                int slash = line.indexOf('/', space);
+                if (space < 0 || slash < 0) {
+                    continue;
+                }
+                String mimeType = mimeTypeForRtpName(line.substring(space + 1, slash));
+                if (mimeType != null) {
+                    mimeTypes.add(mimeType);
+                }
+            }
+        }
+        return mimeTypes;
+    }
+
+    private static String mimeTypeForRtpName(String encodingName) {
+        switch (encodingName.toUpperCase(Locale.US)) {
+            case "H264":
+                return MIME_AVC;
+            case "H265":
+            case "HEVC":
+                return MIME_HEVC;
+            case "VP9":
+                return MIME_VP9;
+            case "AV1":
+            case "AV1X":
+                return MIME_AV1;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Flattens the registry for persistence, one descriptor per line.
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        for (EncoderDescriptor descriptor : descriptors) {
+            builder.append(descriptor.encode()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code encoded} is corrupt
+     */
+    public static EncoderRegistry decode(String encoded) {
+        List<EncoderDescriptor> descriptors = new ArrayList<>();
+        for (String line : encoded.split("\n")) {
+            if (!line.isEmpty()) {
+                descriptors.add(EncoderDescriptor.decode(line));
+            }
+        }
+        return new EncoderRegistry(descriptors);
+    }
+}
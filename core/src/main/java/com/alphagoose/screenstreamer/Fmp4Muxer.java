@@ -0,0 +1,376 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes H.264 as CMAF fragmented MP4: an init segment carrying the avcC parameter sets, then
+ * one moof/mdat fragment per chunk of samples.
+ *
+ * Samples are added in Annex-B form as MediaCodec emits them and converted to length-prefixed
+ * NAL units; access unit delimiters and in-band SPS/PPS are dropped since avc1 keeps those in
+ * the init segment. Timestamps are on a 90 kHz timescale. Not thread-safe.
+ */
+public class Fmp4Muxer {
+    public static final int TIMESCALE = 90000;
+    private static final int TRACK_ID = 1;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final NalScanner scanner = new NalScanner();
+    private byte[] scratch = new byte[64 * 1024];
+    // Converted sample data for the fragment being built
+    private byte[] mdat = new byte[256 * 1024];
+    private int mdatSize;
+    private int[] sampleSizes = new int[64];
+    private long[] sampleTimes = new long[64];
+    private boolean[] sampleSync = new boolean[64];
+    private int sampleCount;
+    private int sequenceNumber;
+
+    /**
+     * Builds the init segment from the codec config buffer.
+     *
+     * @return null if {@code config} lacks an SPS or PPS
+     */
+    public ByteBuffer createInitSegment(ByteBuffer config, int width, int height) {
+        byte[] bytes = copy(config);
+        NalScanner nals = new NalScanner();
+        nals.reset(bytes, 0, bytes.length);
+        byte[] sps = null;
+        byte[] pps = null;
+        while (nals.next()) {
+            int type = nals.h264Type();
+            if (type == NalScanner.H264_SPS && sps == null) {
+                sps = Arrays.copyOfRange(bytes, nals.nalOffset, nals.nalOffset + nals.nalLength());
+            } else if (type == NalScanner.H264_PPS && pps == null) {
+                pps = Arrays.copyOfRange(bytes, nals.nalOffset, nals.nalOffset + nals.nalLength());
+            }
+        }
+        if (sps == null || pps == null || sps.length < 4) {
+            return null;
+        }
+
+        BoxWriter w = new BoxWriter(1024);
+        int ftyp = w.begin("ftyp");
+        w.fourcc("iso6");
+        w.u32(0);
+        w.fourcc("iso6");
+        w.fourcc("cmfc");
+        w.fourcc("mp41");
+        w.end(ftyp);
+
+        int moov = w.begin("moov");
+        int mvhd = w.fullBox("mvhd", 0, 0);
+        w.u32(0); // creation_time
+        w.u32(0); // modification_time
+        w.u32(1000);
+        w.u32(0); // duration: unknown, fragments follow
+        w.u32(0x00010000); // rate
+        w.u16(0x0100); // volume
+        w.zeros(10);
+        w.matrix();
+        w.zeros(24);
+        w.u32(TRACK_ID + 1);
+        w.end(mvhd);
+
+        int trak = w.begin("trak");
+        int tkhd = w.fullBox("tkhd", 0, 3);
+        w.u32(0);
+        w.u32(0);
+        w.u32(TRACK_ID);
+        w.u32(0);
+        w.u32(0); // duration
+        w.zeros(8);
+        w.u16(0); // layer
+        w.u16(0); // alternate_group
+        w.u16(0); // volume
+        w.u16(0);
+        w.matrix();
+        w.u32(width << 16);
+        w.u32(height << 16);
+        w.end(tkhd);
+
+        int mdia = w.begin("mdia");
+        int mdhd = w.fullBox("mdhd", 0, 0);
+        w.u32(0);
+        w.u32(0);
+        w.u32(TIMESCALE);
+        w.u32(0);
+        w.u16(0x55c4); // "und"
+        w.u16(0);
+        w.end(mdhd);
+        int hdlr = w.fullBox("hdlr", 0, 0);
+        w.u32(0);
+        w.fourcc("vide");
+        w.zeros(12);
+        w.bytes("VideoHandler\0".getBytes(StandardCharsets.US_ASCII));
+        w.end(hdlr);
+
+        int minf = w.begin("minf");
+        int vmhd = w.fullBox("vmhd", 0, 1);
+        w.zeros(8);
+        w.end(vmhd);
+        int dinf = w.begin("dinf");
+        int dref = w.fullBox("dref", 0, 0);
+        w.u32(1);
+        int url = w.fullBox("url ", 0, 1);
+        w.end(url);
+        w.end(dref);
+        w.end(dinf);
+
+        int stbl = w.begin("stbl");
+        int stsd = w.fullBox("stsd", 0, 0);
+        w.u32(1);
+        int avc1 = w.begin("avc1");
+        w.zeros(6);
+        w.u16(1); // data_reference_index
+        w.zeros(16);
+        w.u16(width);
+        w.u16(height);
+        w.u32(0x00480000); // 72 dpi
+        w.u32(0x00480000);
+        w.u32(0);
+        w.u16(1); // frame_count
+        w.zeros(32); // compressorname
+        w.u16(0x0018); // depth
+        w.u16(0xffff); // pre_defined = -1
+        int avcC = w.begin("avcC");
+        w.u8(1);
+        w.u8(sps[1] & 0xff); // profile_idc
+        w.u8(sps[2] & 0xff); // constraint flags
+        w.u8(sps[3] & 0xff); // level_idc
+        w.u8(0xff); // 4-byte NAL lengths
+        w.u8(0xe1); // one SPS
+        w.u16(sps.length);
+        w.bytes(sps);
+        w.u8(1); // one PPS
+        w.u16(pps.length);
+        w.bytes(pps);
+        w.end(avcC);
+        w.end(avc1);
+        w.end(stsd);
+        for (String empty : new String[]{"stts", "stsc", "stco"}) {
+            int box = w.fullBox(empty, 0, 0);
+            w.u32(0);
+            w.end(box);
+        }
+        int stsz = w.fullBox("stsz", 0, 0);
+        w.u32(0);
+        w.u32(0);
+        w.end(stsz);
+        w.end(stbl);
+        w.end(minf);
+        w.end(mdia);
+        w.end(trak);
+
+        int mvex = w.begin("mvex");
+        int trex = w.fullBox("trex", 0, 0);
+        w.u32(TRACK_ID);
+        w.u32(1); // default_sample_description_index
+        w.u32(0);
+        w.u32(0);
+        w.u32(0);
+        w.end(trex);
+        w.end(mvex);
+        w.end(moov);
+        return w.toByteBuffer();
+    }
+
+    /**
+     * Adds one access unit to the fragment being built.
+     *
+     * @param decodeTime on the 90 kHz timescale; screen encoders do not reorder, so this is also
+     *                   the presentation time
+     */
+    public void addSample(ByteBuffer data, long decodeTime, boolean keyFrame) {
+        int length = data.remaining();
+        if (scratch.length < length) {
+            scratch = new byte[length + length / 4];
+        }
+        data.duplicate().get(scratch, 0, length);
+        // A 4-byte length can replace a 3-byte start code, and every NAL unit with its start
+        // code takes at least 4 bytes, so the output grows by at most a quarter
+        ensureMdat(length + length / 4 + 4);
+        int start = mdatSize;
+        scanner.reset(scratch, 0, length);
+        while (scanner.next()) {
+            int type = scanner.h264Type();
+            if (type == NalScanner.H264_AUD || type == NalScanner.H264_SPS || type == NalScanner.H264_PPS) {
+                continue;
+            }
+            int n = scanner.nalLength();
+            mdat[mdatSize++] = (byte) (n >>> 24);
+            mdat[mdatSize++] = (byte) (n >>> 16);
+            mdat[mdatSize++] = (byte) (n >>> 8);
+            mdat[mdatSize++] = (byte) n;
+            System.arraycopy(scratch, scanner.nalOffset, mdat, mdatSize, n);
+            mdatSize += n;
+        }
+        if (sampleCount == sampleSizes.length) {
+            int grown = sampleCount * 2;
+            sampleSizes = Arrays.copyOf(sampleSizes, grown);
+            sampleTimes = Arrays.copyOf(sampleTimes, grown);
+            sampleSync = Arrays.copyOf(sampleSync, grown);
+        }
+        sampleSizes[sampleCount] = mdatSize - start;
+        sampleTimes[sampleCount] = decodeTime;
+        sampleSync[sampleCount] = keyFrame;
+        sampleCount++;
+    }
+
+    public int getPendingSamples() {
+        return sampleCount;
+    }
+
+    /**
+     * Writes the samples added since the last call as one moof/mdat fragment. Each sample lasts
+     * until the next one starts.
+     *
+     * @param endTime where the last sample ends, normally the decode time of the next fragment
+     */
+    public ByteBuffer finishFragment(long endTime) {
+        if (sampleCount == 0) {
+            throw new IllegalStateException("No samples in fragment");
+        }
+        int trunSize = 12 + 8 + sampleCount * 12;
+        int moofSize = 8 + 16 + 8 + 16 + 20 + trunSize;
+        BoxWriter w = new BoxWriter(moofSize + 8 + mdatSize);
+        int moof = w.begin("moof");
+        int mfhd = w.fullBox("mfhd", 0, 0);
+        w.u32(++sequenceNumber);
+        w.end(mfhd);
+        int traf = w.begin("traf");
+        int tfhd = w.fullBox("tfhd", 0, 0x020000); // default-base-is-moof
+        w.u32(TRACK_ID);
+        w.end(tfhd);
+        int tfdt = w.fullBox("tfdt", 1, 0);
+        w.u64(sampleTimes[0]);
+        w.end(tfdt);
+        // data-offset, sample-duration, sample-size and sample-flags present
+        int trun = w.fullBox("trun", 0, 0x000001 | 0x000100 | 0x000200 | 0x000400);
+        w.u32(sampleCount);
+        w.u32(moofSize + 8);
+        for (int i = 0; i < sampleCount; i++) {
+            long next = i + 1 < sampleCount ? sampleTimes[i + 1] : endTime;
+            w.u32((int) Math.max(1, next - sampleTimes[i]));
+            w.u32(sampleSizes[i]);
+            w.u32(sampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        w.end(trun);
+        w.end(traf);
+        w.end(moof);
+        int mdatBox = w.begin("mdat");
+        w.bytes(mdat, 0, mdatSize);
+        w.end(mdatBox);
+        mdatSize = 0;
+        sampleCount = 0;
+        return w.toByteBuffer();
+    }
+
+    private void ensureMdat(int extra) {
+        if (mdatSize + extra > mdat.length) {
+            mdat = Arrays.copyOf(mdat, Math.max(mdat.length * 2, mdatSize + extra));
+        }
+    }
+
+    private static byte[] copy(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Big-endian writer with nested box sizes patched in on {@link #end}.
+     */
+    private static final class BoxWriter {
+        private byte[] out;
+        private int size;
+
+        BoxWriter(int capacity) {
+            out = new byte[capacity];
+        }
+
+        int begin(String type) {
+            int start = size;
+            u32(0);
+            fourcc(type);
+            return start;
+        }
+
+        int fullBox(String type, int version, int flags) {
+            int start = begin(type);
+            u32((version << 24) | flags);
+            return start;
+        }
+
+        void end(int start) {
+            int length = size - start;
+            out[start] = (byte) (length >>> 24);
+            out[start + 1] = (byte) (length >>> 16);
+            out[start + 2] = (byte) (length >>> 8);
+            out[start + 3] = (byte) length;
+        }
+
+        void u8(int value) {
+            ensure(1);
+            out[size++] = (byte) value;
+        }
+
+        void u16(int value) {
+            u8(value >>> 8);
+            u8(value);
+        }
+
+        void u32(int value) {
+            u16(value >>> 16);
+            u16(value);
+        }
+
+        void u64(long value) {
+            u32((int) (value >>> 32));
+            u32((int) value);
+        }
+
+        void fourcc(String type) {
+            bytes(type.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        void zeros(int count) {
+            ensure(count);
+            size += count;
+        }
+
+        void matrix() {
+            int[] unity = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+            for (int value : unity) {
+                u32(value);
+            }
+        }
+
+        void bytes(byte[] bytes) {
+            bytes(bytes, 0, bytes.length);
+        }
+
+        void bytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, out, size, length);
+            size += length;
+        }
+
+        ByteBuffer toByteBuffer() {
+            // Direct, so sockets can send it without another copy into native memory
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+            buffer.put(out, 0, size);
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer / multi-consumer ring of encoded access units.
+ *
+ * Every slot owns a pooled direct buffer that the producer copies into, along with the
+ * pts, flags and size taken from the encoder's BufferInfo. The producer never waits for
+ * readers: when a reader falls more than a full ring behind, it skips ahead and the
+ * skipped frames are counted as dropped for that reader only.
+ */
+public class FrameRing {
+    // These mirror the MediaCodec.BUFFER_FLAG_* values so BufferInfo.flags can be passed straight through.
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final int FLAG_END_OF_STREAM = 4;
+    // Not a MediaCodec flag: set from the bitstream for pictures no other picture refers to.
+    public static final int FLAG_DISPOSABLE = 0x100;
+    // Not a MediaCodec flag: set from the bitstream for keyframes that carry their own parameter sets.
+    public static final int FLAG_PARAMETER_SETS = 0x200;
+
+    // Returned by Reader.read when no new frame has been published yet.
+    public static final int NO_FRAME = -1;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final DirectBufferPool pool;
+
+    // claimSequence is bumped before a slot is overwritten, publishSequence after it is complete.
+    // Readers validate their copy against claimSequence, which is what makes the ring lock-free.
+    private final AtomicLong claimSequence = new AtomicLong();
+    private final AtomicLong publishSequence = new AtomicLong();
+    private volatile long latestKeyFrameSequence = -1;
+
+    private long nextSequence; // Producer-owned
+    private long bytesPublished; // Producer-owned
+
+    private static final class Slot {
+        ByteBuffer data;
+        long presentationTimeUs;
+        int flags;
+        int size;
+
+        Slot(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Metadata for the frame most recently returned by {@link Reader#read}.
+     */
+    public static final class FrameInfo {
+        public long sequence;
+        public long presentationTimeUs;
+        public int flags;
+        public int size;
+
+        public boolean isKeyFrame() {
+            return (flags & FLAG_KEY_FRAME) != 0;
+        }
+    }
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     * @param initialSlotSize starting size of each pooled buffer; slots grow if a larger frame arrives
+     */
+    public FrameRing(int capacity, int initialSlotSize) {
+        this(capacity, initialSlotSize, new DirectBufferPool());
+    }
+
+    /**
+     * @param pool where slot buffers come from, and where outgrown ones go back to
+     */
+    public FrameRing(int capacity, int initialSlotSize, DirectBufferPool pool) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        this.pool = pool;
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(pool.acquire(initialSlotSize));
+        }
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Copies the remaining bytes of {@code frame} into the next slot. The position of
+     * {@code frame} is left unchanged. Must only be called from the producer thread.
+     *
+     * @return the sequence number assigned to the frame
+     */
+    public long publish(ByteBuffer frame, long presentationTimeUs, int flags) {
+        long sequence = nextSequence++;
+        Slot slot = slots[(int) (sequence & mask)];
+
+        // Atomic increment acts as a full fence, so the slot writes below cannot be observed
+        // by a reader before it can also observe that the slot has been reclaimed.
+        claimSequence.incrementAndGet();
+
+        int size = frame.remaining();
+        if (slot.data.capacity() < size) {
+            // A reader still copying from the old buffer fails its claim check either way
+            pool.release(slot.data);
+            slot.data = pool.acquire(size);
+        }
+        int position = frame.position();
+        slot.data.clear();
+        slot.data.put(frame);
+        frame.position(position);
+        slot.presentationTimeUs = presentationTimeUs;
+        slot.flags = flags;
+        slot.size = size;
+        bytesPublished += size;
+
+        publishSequence.set(sequence + 1);
+        if ((flags & FLAG_KEY_FRAME) != 0) {
+            latestKeyFrameSequence = sequence;
+        }
+        return sequence;
+    }
+
+    public long getPublishedFrames() {
+        return publishSequence.get();
+    }
+
+    public long getPublishedBytes() {
+        return bytesPublished;
+    }
+
+    public long getLatestKeyFrameSequence() {
+        return latestKeyFrameSequence;
+    }
+
+    /**
+     * Creates a reader positioned at the latest keyframe still held in the ring, or at the
+     * next frame to be published if there is none.
+     */
+    public Reader newReader() {
+        Reader reader = new Reader();
+        reader.seekToLatestKeyFrame();
+        return reader;
+    }
+
+    /**
+     * Per-consumer cursor. A reader must only be used from one thread at a time.
+     */
+    public final class Reader {
+        private final AtomicLong cursor = new AtomicLong();
+        private final ByteBuffer[] views = new ByteBuffer[slots.length];
+        private final ByteBuffer[] viewSources = new ByteBuffer[slots.length];
+        private long droppedFrames;
+        private long readFrames;
+
+        private Reader() {
+        }
+
+        /**
+         * Copies the next frame into {@code dst} and fills {@code info}.
+         *
+         * @return the frame size, or {@link #NO_FRAME} if the reader is caught up
+         * @throws IllegalArgumentException if {@code dst} has too little room for the frame
+         */
+        public int read(ByteBuffer dst, FrameInfo info) {
+            while (true) {
+                long sequence = cursor.get();
+                long published = publishSequence.get();
+                if (sequence >= published) {
+                    return NO_FRAME;
+                }
+                if (published - sequence > slots.length) {
+                    long oldest = published - slots.length;
+                    droppedFrames += oldest - sequence;
+                    cursor.set(oldest);
+                    continue;
+                }
+
+                int index = (int) (sequence & mask);
+                Slot slot = slots[index];
+                int size = slot.size;
+                long presentationTimeUs = slot.presentationTimeUs;
+                int flags = slot.flags;
+                ByteBuffer view = viewFor(index, slot.data);
+                if (size > view.capacity() || dst.remaining() < size) {
+                    if (claimSequence.get() - sequence > slots.length) {
+                        continue; // Metadata was torn by the producer, retry from the new position
+                    }
+                    throw new IllegalArgumentException("Destination too small for frame of " + size + " bytes");
+                }
+                view.limit(size).position(0);
+                int start = dst.position();
+                dst.put(view);
+
+                // Volatile store then load: the copy above is complete before we check whether the
+                // producer lapped us while it was in progress.
+                cursor.set(sequence + 1);
+                if (claimSequence.get() - sequence > slots.length) {
+                    dst.position(start);
+                    droppedFrames++;
+                    continue;
+                }
+
+                info.sequence = sequence;
+                info.presentationTimeUs = presentationTimeUs;
+                info.flags = flags;
+                info.size = size;
+                readFrames++;
+                return size;
+            }
+        }
+
+        /**
+         * Jumps to the newest keyframe if it is still held in the ring, otherwise to the
+         * live edge. Frames skipped over are not counted as dropped.
+         */
+        public void seekToLatestKeyFrame() {
+            long keyFrame = latestKeyFrameSequence;
+            long published = publishSequence.get();
+            if (keyFrame >= 0 && published - keyFrame <= slots.length) {
+                cursor.set(keyFrame);
+            } else {
+                cursor.set(published);
+            }
+        }
+
+        public long getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        public long getReadFrames() {
+            return readFrames;
+        }
+
+        /**
+         * Number of published frames this reader has not consumed yet.
+         */
+        public long getLag() {
+            return Math.max(0, publishSequence.get() - cursor.get());
+        }
+
+        private ByteBuffer viewFor(int index, ByteBuffer source) {
+            if (viewSources[index] != source) {
+                viewSources[index] = source;
+                views[index] = source.duplicate();
+            }
+            return views[index];
+        }
+    }
+}
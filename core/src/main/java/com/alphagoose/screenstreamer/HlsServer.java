@@ -0,0 +1,557 @@
+package com.alphagoose.screenstreamer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Minimal HTTP/1.1 server for an {@link HlsStream}, for audiences too large to give each viewer
+ * a WebRTC connection.
+ *
+ * One thread runs a NIO selector over every client. Media goes out with gathering writes of
+ * duplicates of the stream's direct buffers, so a part is never copied per client. Blocking
+ * playlist reloads ({@code _HLS_msn}/{@code _HLS_part}) and requests for the part named in the
+ * preload hint are held until the stream catches up, or answered with 503 after the hold
+ * timeout.
+ *
+ * Routes: {@code /stream.m3u8}, {@code /init-<v>.mp4}, {@code /seg-<msn>.m4s} and
+ * {@code /part-<msn>-<index>.m4s}.
+ */
+public class HlsServer implements HlsStream.Listener {
+
+    public interface ErrorListener {
+        /**
+         * Called on the server thread when the selector fails; every connection is closed and
+         * nothing more is served.
+         */
+        void onServerError(IOException e);
+    }
+
+    public static final String PLAYLIST_PATH = "/stream.m3u8";
+    private static final int MAX_REQUEST_BYTES = 8 * 1024;
+    private static final long SELECT_TIMEOUT_MS = 50;
+    private static final long IDLE_TIMEOUT_MS = 30000;
+
+    private final HlsStream stream;
+    private final InetSocketAddress bindAddress;
+    private final long holdTimeoutMs;
+    private final AtomicBoolean streamUpdated = new AtomicBoolean();
+    private final List<Connection> held = new ArrayList<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile ErrorListener errorListener;
+    /** Accepting is paused after {@code accept()} itself failed, until the next idle check. */
+    private boolean acceptPaused;
+
+    // Written on the server thread only
+    private volatile long bytesSent;
+    private volatile long requestsServed;
+    private volatile int openConnections;
+
+    /**
+     * @param holdTimeoutMs how long a blocking request may wait for the stream
+     */
+    public HlsServer(HlsStream stream, InetSocketAddress bindAddress, long holdTimeoutMs) {
+        this.stream = stream;
+        this.bindAddress = bindAddress;
+        this.holdTimeoutMs = holdTimeoutMs;
+    }
+
+    /**
+     * Binds the listening socket and starts the server thread.
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(bindAddress, 128);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        stream.setListener(this);
+        thread = new Thread(this::serve, "HlsServer");
+        thread.start();
+    }
+
+    /**
+     * The bound port, useful when started on port 0.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Closes every connection and the listening socket; {@link #join} waits for that.
+     */
+    public void stop() {
+        running = false;
+        stream.setListener(null);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return false if the server thread was still running after {@code timeoutMs}
+     */
+    public boolean join(long timeoutMs) throws InterruptedException {
+        if (thread == null) {
+            return true;
+        }
+        thread.join(timeoutMs);
+        return !thread.isAlive();
+    }
+
+    public void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getRequestsServed() {
+        return requestsServed;
+    }
+
+    public int getOpenConnections() {
+        return openConnections;
+    }
+
+    @Override
+    public void onStreamUpdated() {
+        streamUpdated.set(true);
+        selector.wakeup();
+    }
+
+    private void serve() {
+        long lastIdleCheckMs = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                long nowMs = System.currentTimeMillis();
+                if (streamUpdated.getAndSet(false)) {
+                    retryHeld();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            // Typically out of file descriptors; the listening socket stays ready,
+                            // so stop selecting on it for a while rather than spin
+                            key.interestOps(0);
+                            acceptPaused = true;
+                        }
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read(nowMs);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                expireHeld(nowMs);
+                if (nowMs - lastIdleCheckMs >= 1000) {
+                    lastIdleCheckMs = nowMs;
+                    closeIdle(nowMs);
+                    if (acceptPaused) {
+                        acceptPaused = false;
+                        serverChannel.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector itself failed; nothing more can be served
+            running = false;
+            ErrorListener listener = errorListener;
+            if (listener != null) {
+                listener.onServerError(e);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            held.clear();
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignored) {
+                // Shutting down anyway
+            }
+        }
+    }
+
+    /**
+     * Accepts every pending client.
+     *
+     * @throws IOException if the listening socket could not accept
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                openConnections++;
+            } catch (IOException e) {
+                // Only this client is lost, usually because it already reset the connection
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-routes held requests after the stream changed; those still waiting are held again.
+     */
+    private void retryHeld() {
+        if (held.isEmpty()) {
+            return;
+        }
+        List<Connection> waiting = new ArrayList<>(held);
+        held.clear();
+        for (Connection connection : waiting) {
+            connection.resume(false);
+        }
+    }
+
+    private void expireHeld(long nowMs) {
+        List<Connection> expired = null;
+        for (Iterator<Connection> it = held.iterator(); it.hasNext(); ) {
+            Connection connection = it.next();
+            if (nowMs >= connection.holdDeadlineMs) {
+                it.remove();
+                if (expired == null) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(connection);
+            }
+        }
+        if (expired != null) {
+            for (Connection connection : expired) {
+                connection.resume(true);
+            }
+        }
+    }
+
+    private void closeIdle(long nowMs) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection connection = (Connection) attachment;
+                if (connection.request == null && connection.out == null
+                        && nowMs - connection.lastActivityMs > IDLE_TIMEOUT_MS) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+
+    private static final class Request {
+        final String path;
+        final String query;
+        final boolean keepAlive;
+
+        Request(String path, String query, boolean keepAlive) {
+            this.path = path;
+            this.query = query;
+            this.keepAlive = keepAlive;
+        }
+
+        /**
+         * @return the query parameter as a number, or {@code fallback} if absent
+         * @throws NumberFormatException if present but not a number
+         */
+        long number(String name, long fallback) {
+            if (query == null) {
+                return fallback;
+            }
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                    return Long.parseLong(pair.substring(eq + 1));
+                }
+            }
+            return fallback;
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        SelectionKey key;
+        /** A request being held for the stream to catch up. */
+        Request request;
+        long holdDeadlineMs;
+        ByteBuffer[] out;
+        int outIndex;
+        boolean closeAfterWrite;
+        long lastActivityMs = System.currentTimeMillis();
+        boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read(long nowMs) throws IOException {
+            if (!in.hasRemaining()) {
+                // Pipelined requests filled the buffer while one is held; read more later
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            lastActivityMs = nowMs;
+            processInput();
+        }
+
+        /**
+         * Handles the next buffered request, unless a response or hold is still in progress.
+         */
+        void processInput() throws IOException {
+            while (!closed && out == null && request == null) {
+                int end = headerEnd();
+                if (end < 0) {
+                    if (!in.hasRemaining()) {
+                        respondError(431, "Request Header Fields Too Large", false);
+                    }
+                    return;
+                }
+                String head = new String(in.array(), 0, end, StandardCharsets.US_ASCII);
+                // Drop the request from the buffer; anything pipelined after it stays
+                int consumed = end + 4;
+                int pending = in.position() - consumed;
+                System.arraycopy(in.array(), consumed, in.array(), 0, pending);
+                in.position(pending);
+                holdDeadlineMs = System.currentTimeMillis() + holdTimeoutMs;
+                handle(parse(head), false);
+            }
+        }
+
+        private int headerEnd() {
+            byte[] bytes = in.array();
+            for (int i = 0; i + 3 < in.position(); i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private Request parse(String head) {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[0].equals("GET")) {
+                return null;
+            }
+            boolean keepAlive = requestLine[2].equals("HTTP/1.1");
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i].toLowerCase(Locale.US);
+                if (line.startsWith("connection:")) {
+                    String value = line.substring("connection:".length()).trim();
+                    keepAlive = value.equals("keep-alive") || (keepAlive && !value.equals("close"));
+                }
+            }
+            String target = requestLine[1];
+            int q = target.indexOf('?');
+            return q < 0 ? new Request(target, null, keepAlive)
+                    : new Request(target.substring(0, q), target.substring(q + 1), keepAlive);
+        }
+
+        /**
+         * Called by the server loop when a held request may now be answerable.
+         */
+        void resume(boolean expired) {
+            Request waiting = request;
+            request = null;
+            try {
+                handle(waiting, expired);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void handle(Request req, boolean expired) throws IOException {
+            if (req == null) {
+                respondError(400, "Bad Request", false);
+                return;
+            }
+            boolean keepAlive = req.keepAlive;
+            String path = req.path;
+            try {
+                if (path.equals(PLAYLIST_PATH)) {
+                    long msn = req.number("_HLS_msn", -1);
+                    int part = (int) req.number("_HLS_part", -1);
+                    if (msn > stream.getNextSequence() + 2) {
+                        // Too far ahead to be worth waiting for
+                        respondError(400, "Bad Request", keepAlive);
+                    } else if (msn >= 0 ? stream.hasReached(msn, part) : stream.hasMedia()) {
+                        respond("application/vnd.apple.mpegurl", "no-cache", keepAlive, stream.getPlaylist());
+                    } else {
+                        hold(req, expired);
+                    }
+                } else if (path.startsWith("/init-") && path.endsWith(".mp4")) {
+                    int version = Integer.parseInt(path.substring(6, path.length() - 4));
+                    ByteBuffer init = stream.getInitSegment(version);
+                    if (init != null) {
+                        respond("video/mp4", "max-age=3600", keepAlive, init);
+                    } else {
+                        respondError(404, "Not Found", keepAlive);
+                    }
+                } else if (path.startsWith("/seg-") && path.endsWith(".m4s")) {
+                    long sequence = Long.parseLong(path.substring(5, path.length() - 4));
+                    ByteBuffer[] parts = stream.getSegment(sequence);
+                    if (parts != null) {
+                        respond("video/mp4", "max-age=60", keepAlive, parts);
+                    } else if (stream.isUpcoming(sequence, -1)) {
+                        hold(req, expired);
+                    } else {
+                        respondError(404, "Not Found", keepAlive);
+                    }
+                } else if (path.startsWith("/part-") && path.endsWith(".m4s")) {
+                    String[] ids = path.substring(6, path.length() - 4).split("-");
+                    if (ids.length != 2) {
+                        respondError(404, "Not Found", keepAlive);
+                        return;
+                    }
+                    long sequence = Long.parseLong(ids[0]);
+                    int index = Integer.parseInt(ids[1]);
+                    ByteBuffer part = stream.getPart(sequence, index);
+                    if (part != null) {
+                        respond("video/mp4", "max-age=60", keepAlive, part);
+                    } else if (stream.isUpcoming(sequence, index)) {
+                        hold(req, expired);
+                    } else {
+                        respondError(404, "Not Found", keepAlive);
+                    }
+                } else {
+                    respondError(404, "Not Found", keepAlive);
+                }
+            } catch (NumberFormatException e) {
+                respondError(400, "Bad Request", keepAlive);
+            }
+        }
+
+        private void hold(Request req, boolean expired) throws IOException {
+            if (expired) {
+                respondError(503, "Service Unavailable", req.keepAlive);
+                return;
+            }
+            request = req;
+            held.add(this);
+        }
+
+        private void respondError(int status, String reason, boolean keepAlive) throws IOException {
+            ByteBuffer body = ByteBuffer.wrap((status + " " + reason + "\n").getBytes(StandardCharsets.US_ASCII));
+            writeResponse(status, reason, "text/plain", "no-cache", keepAlive, new ByteBuffer[]{body});
+        }
+
+        private void respond(String contentType, String cacheControl, boolean keepAlive, ByteBuffer... body)
+                throws IOException {
+            writeResponse(200, "OK", contentType, cacheControl, keepAlive, body);
+        }
+
+        private void writeResponse(int status, String reason, String contentType, String cacheControl,
+                                   boolean keepAlive, ByteBuffer[] body) throws IOException {
+            long length = 0;
+            for (ByteBuffer buffer : body) {
+                length += buffer.remaining();
+            }
+            String header = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Length: " + length + "\r\n"
+                    + "Cache-Control: " + cacheControl + "\r\n"
+                    + "Access-Control-Allow-Origin: *\r\n"
+                    + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+            out = new ByteBuffer[body.length + 1];
+            out[0] = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+            System.arraycopy(body, 0, out, 1, body.length);
+            outIndex = 0;
+            closeAfterWrite = !keepAlive;
+            requestsServed++;
+            flush();
+        }
+
+        /**
+         * Writes as much of the pending response as the socket takes, then waits for
+         * OP_WRITE if some is left.
+         */
+        void flush() throws IOException {
+            if (out == null) {
+                return;
+            }
+            while (outIndex < out.length) {
+                long written = channel.write(out, outIndex, out.length - outIndex);
+                bytesSent += written;
+                while (outIndex < out.length && !out[outIndex].hasRemaining()) {
+                    outIndex++;
+                }
+                if (written == 0 && outIndex < out.length) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            out = null;
+            lastActivityMs = System.currentTimeMillis();
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            processInput();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            request = null;
+            held.remove(this);
+            openConnections--;
+            closeQuietly(key);
+        }
+    }
+}
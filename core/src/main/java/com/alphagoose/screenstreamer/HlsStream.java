@@ -0,0 +1,329 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * In-memory window of low-latency HLS media: the init segment plus the last few segments and
+ * their partial segments, with the playlist that describes them.
+ *
+ * Written by {@link LlHlsPackager} on the encoder drain thread and read by {@link HlsServer}.
+ * Parts are kept as read-only direct buffers and handed out as duplicates, so any number of
+ * clients can send the same bytes without copying them; a full segment is served as the
+ * sequence of its parts.
+ */
+public class HlsStream {
+
+    public interface Listener {
+        /**
+         * Called on the writer's thread whenever a part, segment or init segment is added.
+         * Must not block.
+         */
+        void onStreamUpdated();
+    }
+
+    /** How many completed segments still list their parts in the playlist. */
+    private static final int SEGMENTS_WITH_PARTS = 3;
+
+    private final int windowSegments;
+    private final long partTargetUs;
+    private final long segmentTargetUs;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private volatile Listener listener;
+
+    private ByteBuffer initSegment;
+    private int initVersion;
+    private Segment current;
+    private long nextSequence;
+    private int discontinuitySequence;
+    private boolean discontinuityPending;
+    private long maxSegmentDurationUs;
+    private ByteBuffer playlist;
+
+    /**
+     * @param windowSegments how many completed segments to keep for clients that are behind
+     */
+    public HlsStream(int windowSegments, long partTargetUs, long segmentTargetUs) {
+        if (windowSegments < 1 || partTargetUs <= 0 || segmentTargetUs < partTargetUs) {
+            throw new IllegalArgumentException("Bad HLS window: " + windowSegments + " segments, "
+                    + partTargetUs + " us parts, " + segmentTargetUs + " us segments");
+        }
+        this.windowSegments = windowSegments;
+        this.partTargetUs = partTargetUs;
+        this.segmentTargetUs = segmentTargetUs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public long getPartTargetUs() {
+        return partTargetUs;
+    }
+
+    public long getSegmentTargetUs() {
+        return segmentTargetUs;
+    }
+
+    /**
+     * Sets the init segment for the segments that follow. Replacing it (for a new resolution or
+     * encoder) ends the current segment and marks a discontinuity.
+     */
+    public void setInitSegment(ByteBuffer init) {
+        synchronized (this) {
+            endSegment();
+            discontinuityPending = initSegment != null;
+            initSegment = init.asReadOnlyBuffer();
+            initVersion++;
+            playlist = null;
+        }
+        notifyListener();
+    }
+
+    /**
+     * Appends a partial segment, starting a new segment if none is open.
+     *
+     * @param independent whether the part starts with a keyframe; a segment's first part must
+     */
+    public void addPart(ByteBuffer data, long durationUs, boolean independent) {
+        synchronized (this) {
+            if (initSegment == null) {
+                throw new IllegalStateException("Part before init segment");
+            }
+            if (current == null) {
+                if (!independent) {
+                    throw new IllegalStateException("Segment must start with an independent part");
+                }
+                current = new Segment(nextSequence++, initVersion, initSegment, discontinuityPending);
+                discontinuityPending = false;
+            }
+            current.parts.add(new Part(data.asReadOnlyBuffer(), durationUs, independent));
+            current.durationUs += durationUs;
+            playlist = null;
+        }
+        notifyListener();
+    }
+
+    /**
+     * Completes the open segment, if any, and drops the oldest ones beyond the window.
+     */
+    public void endSegment() {
+        synchronized (this) {
+            if (current == null) {
+                return;
+            }
+            current.complete = true;
+            maxSegmentDurationUs = Math.max(maxSegmentDurationUs, current.durationUs);
+            segments.addLast(current);
+            current = null;
+            while (segments.size() > windowSegments) {
+                segments.removeFirst();
+                if (segments.peekFirst().discontinuity) {
+                    discontinuitySequence++;
+                }
+            }
+            playlist = null;
+        }
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        Listener l = listener;
+        if (l != null) {
+            l.onStreamUpdated();
+        }
+    }
+
+    /**
+     * @return init segment {@code version}, or null once no segment in the window uses it
+     */
+    public synchronized ByteBuffer getInitSegment(int version) {
+        if (initSegment != null && version == initVersion) {
+            return initSegment.duplicate();
+        }
+        for (Segment segment : segments) {
+            if (segment.initVersion == version) {
+                return segment.init.duplicate();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the parts that make up segment {@code sequence}, or null if it is not complete or
+     * has left the window
+     */
+    public synchronized ByteBuffer[] getSegment(long sequence) {
+        Segment segment = find(sequence);
+        if (segment == null || !segment.complete) {
+            return null;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[segment.parts.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = segment.parts.get(i).data.duplicate();
+        }
+        return buffers;
+    }
+
+    /**
+     * @return part {@code index} of segment {@code sequence}, or null if it is not available
+     */
+    public synchronized ByteBuffer getPart(long sequence, int index) {
+        Segment segment = find(sequence);
+        if (segment == null || index < 0 || index >= segment.parts.size()) {
+            return null;
+        }
+        return segment.parts.get(index).data.duplicate();
+    }
+
+    /**
+     * Whether a playlist reload blocked on {@code _HLS_msn} and {@code _HLS_part} can be
+     * answered. Part -1 means the whole segment is wanted.
+     */
+    public synchronized boolean hasReached(long sequence, int part) {
+        if (current != null && current.sequence == sequence) {
+            return part >= 0 && current.parts.size() > part;
+        }
+        // Complete, or long gone; either way the playlist already answers it
+        return sequence < nextSequence;
+    }
+
+    /**
+     * Whether a request for this part or segment may be held until it exists: true for the part
+     * named in the preload hint and for the segment still being written.
+     */
+    public synchronized boolean isUpcoming(long sequence, int part) {
+        long open = current != null ? current.sequence : nextSequence;
+        if (sequence != open) {
+            return false;
+        }
+        int written = current != null ? current.parts.size() : 0;
+        return part < 0 || part == written;
+    }
+
+    /**
+     * The sequence number the next part will belong to, used to answer blocking reloads that
+     * ask for media far in the future.
+     */
+    public synchronized long getNextSequence() {
+        return current != null ? current.sequence : nextSequence;
+    }
+
+    public synchronized boolean hasMedia() {
+        return !segments.isEmpty() || current != null;
+    }
+
+    /**
+     * The media playlist as UTF-8, rebuilt only after the stream changes.
+     */
+    public synchronized ByteBuffer getPlaylist() {
+        if (playlist == null) {
+            byte[] bytes = buildPlaylist().getBytes(StandardCharsets.UTF_8);
+            playlist = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        return playlist.duplicate();
+    }
+
+    private String buildPlaylist() {
+        long targetUs = Math.max(segmentTargetUs, maxSegmentDurationUs);
+        StringBuilder b = new StringBuilder(2048);
+        b.append("#EXTM3U\n");
+        b.append("#EXT-X-VERSION:9\n");
+        b.append("#EXT-X-TARGETDURATION:").append((targetUs + 999999) / 1000000).append('\n');
+        b.append("#EXT-X-PART-INF:PART-TARGET=").append(seconds(partTargetUs)).append('\n');
+        b.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=")
+                .append(seconds(3 * partTargetUs)).append('\n');
+        Segment first = segments.peekFirst() != null ? segments.peekFirst() : current;
+        b.append("#EXT-X-MEDIA-SEQUENCE:").append(first != null ? first.sequence : nextSequence).append('\n');
+        if (discontinuitySequence > 0) {
+            b.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+        }
+
+        List<Segment> all = new ArrayList<>(segments);
+        if (current != null) {
+            all.add(current);
+        }
+        int mapVersion = -1;
+        for (int i = 0; i < all.size(); i++) {
+            Segment segment = all.get(i);
+            if (segment.discontinuity && i > 0) {
+                b.append("#EXT-X-DISCONTINUITY\n");
+            }
+            if (segment.initVersion != mapVersion) {
+                mapVersion = segment.initVersion;
+                b.append("#EXT-X-MAP:URI=\"init-").append(mapVersion).append(".mp4\"\n");
+            }
+            if (all.size() - i <= SEGMENTS_WITH_PARTS + 1) {
+                for (int p = 0; p < segment.parts.size(); p++) {
+                    Part part = segment.parts.get(p);
+                    b.append("#EXT-X-PART:DURATION=").append(seconds(part.durationUs))
+                            .append(",URI=\"part-").append(segment.sequence).append('-').append(p).append(".m4s\"");
+                    if (part.independent) {
+                        b.append(",INDEPENDENT=YES");
+                    }
+                    b.append('\n');
+                }
+            }
+            if (segment.complete) {
+                b.append("#EXTINF:").append(seconds(segment.durationUs)).append(",\n");
+                b.append("seg-").append(segment.sequence).append(".m4s\n");
+            }
+        }
+        if (initSegment != null && (current != null || !segments.isEmpty())) {
+            long sequence = current != null ? current.sequence : nextSequence;
+            int part = current != null ? current.parts.size() : 0;
+            b.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part-").append(sequence).append('-').append(part)
+                    .append(".m4s\"\n");
+        }
+        return b.toString();
+    }
+
+    private static String seconds(long us) {
+        return String.format(Locale.US, "%.3f", us / 1e6);
+    }
+
+    private Segment find(long sequence) {
+        if (current != null && current.sequence == sequence) {
+            return current;
+        }
+        for (Segment segment : segments) {
+            if (segment.sequence == sequence) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final int initVersion;
+        final ByteBuffer init;
+        final boolean discontinuity;
+        final List<Part> parts = new ArrayList<>();
+        long durationUs;
+        boolean complete;
+
+        Segment(long sequence, int initVersion, ByteBuffer init, boolean discontinuity) {
+            this.sequence = sequence;
+            this.initVersion = initVersion;
+            this.init = init;
+            this.discontinuity = discontinuity;
+        }
+    }
+
+    private static final class Part {
+        final ByteBuffer data;
+        final long durationUs;
+        final boolean independent;
+
+        Part(ByteBuffer data, long durationUs, boolean independent) {
+            this.data = data;
+            this.durationUs = durationUs;
+            this.independent = independent;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Trickle-ICE bookkeeping for one peer connection.
+ *
+ * Local candidates are collected into batches so a burst of gathering results costs one
+ * signaling message instead of one each. Remote candidates that arrive before the remote
+ * description is applied are held back, since addIceCandidate rejects them until then, and
+ * released in order once it is. Repeats in either direction are dropped.
+ */
+public class IceCandidatePipeline {
+
+    private final Set<SignalingCandidate> sent = new HashSet<>();
+    private final List<SignalingCandidate> outgoing = new ArrayList<>();
+    private final Set<SignalingCandidate> received = new HashSet<>();
+    private final List<SignalingCandidate> pendingRemote = new ArrayList<>();
+    private boolean remoteDescriptionSet;
+
+    private long batchesSent;
+    private long candidatesSent;
+    private long candidatesBuffered;
+    private long duplicatesDropped;
+
+    /**
+     * @return true if {@code candidate} opened a new batch, so the caller should schedule a
+     *         flush; false if it joined a pending batch or was a repeat
+     */
+    public synchronized boolean addLocal(SignalingCandidate candidate) {
+        if (!sent.add(candidate)) {
+            duplicatesDropped++;
+            return false;
+        }
+        outgoing.add(candidate);
+        return outgoing.size() == 1;
+    }
+
+    /**
+     * @return the pending batch, empty if there is nothing to send
+     */
+    public synchronized List<SignalingCandidate> drainLocal() {
+        if (outgoing.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SignalingCandidate> batch = new ArrayList<>(outgoing);
+        outgoing.clear();
+        batchesSent++;
+        candidatesSent += batch.size();
+        return batch;
+    }
+
+    /**
+     * @return true if {@code candidate} should be applied now; false if it was buffered
+     *         until the remote description is set, or was a repeat
+     */
+    public synchronized boolean addRemote(SignalingCandidate candidate) {
+        if (!received.add(candidate)) {
+            duplicatesDropped++;
+            return false;
+        }
+        if (!remoteDescriptionSet) {
+            pendingRemote.add(candidate);
+            candidatesBuffered++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the remote description applied and returns the candidates held back until now.
+     */
+    public synchronized List<SignalingCandidate> onRemoteDescriptionSet() {
+        remoteDescriptionSet = true;
+        if (pendingRemote.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SignalingCandidate> released = new ArrayList<>(pendingRemote);
+        pendingRemote.clear();
+        return released;
+    }
+
+    /**
+     * Forgets everything, for an ICE restart where both sides gather afresh.
+     */
+    public synchronized void reset() {
+        sent.clear();
+        outgoing.clear();
+        received.clear();
+        pendingRemote.clear();
+        remoteDescriptionSet = false;
+    }
+
+    public synchronized long getBatchesSent() {
+        return batchesSent;
+    }
+
+    public synchronized long getCandidatesSent() {
+        return candidatesSent;
+    }
+
+    public synchronized long getCandidatesBuffered() {
+        return candidatesBuffered;
+    }
+
+    public synchronized long getDuplicatesDropped() {
+        return duplicatesDropped;
+    }
+}
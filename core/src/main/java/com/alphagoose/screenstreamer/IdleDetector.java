@@ -0,0 +1,134 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Watches encoder output to tell static screens from moving content.
+ *
+ * A static screen shows up as long gaps between frames, once the virtual display stops
+ * compositing and the encoder only repeats the previous frame, or as near-empty skip
+ * frames. Either way no "content" frame arrives for {@code idleAfterMs}. The detector also
+ * keeps the figures we report: encoded frames over the last minute, and bytes saved
+ * compared with a stream that encoded every frame at full rate.
+ */
+public class IdleDetector {
+
+    public interface Listener {
+        void onIdleStateChanged(boolean idle);
+    }
+
+    // A frame this small, or this small relative to recent content frames, carries no change
+    private static final int STATIC_FRAME_BYTES = 512;
+    private static final double STATIC_FRAME_RATIO = 0.05;
+    private static final double CONTENT_SIZE_SMOOTHING = 0.1;
+    private static final int WINDOW_SECONDS = 60;
+
+    private final Listener listener;
+    private final int frameRate;
+    private final long idleAfterMs;
+
+    private final long[] framesPerSecond = new long[WINDOW_SECONDS];
+    private long currentSecond = -1;
+    private long startMs = -1;
+    private long lastContentFrameMs;
+    private boolean idle;
+    private double averageContentFrameBytes;
+    private long totalFrames;
+    private long totalBytes;
+
+    public IdleDetector(Listener listener, int frameRate, long idleAfterMs) {
+        this.listener = listener;
+        this.frameRate = frameRate;
+        this.idleAfterMs = idleAfterMs;
+    }
+
+    public synchronized void onFrame(long nowMs, int sizeBytes, boolean keyFrame) {
+        if (startMs < 0) {
+            startMs = nowMs;
+            lastContentFrameMs = nowMs;
+        }
+        advanceWindow(nowMs);
+        framesPerSecond[(int) (currentSecond % WINDOW_SECONDS)]++;
+        totalFrames++;
+        totalBytes += sizeBytes;
+
+        // Keyframes are large whether or not anything moved, so they neither prove nor disprove change
+        if (keyFrame) {
+            return;
+        }
+        boolean isStatic = sizeBytes <= STATIC_FRAME_BYTES
+                || sizeBytes <= averageContentFrameBytes * STATIC_FRAME_RATIO;
+        if (!isStatic) {
+            averageContentFrameBytes = averageContentFrameBytes == 0
+                    ? sizeBytes
+                    : averageContentFrameBytes + (sizeBytes - averageContentFrameBytes) * CONTENT_SIZE_SMOOTHING;
+            lastContentFrameMs = nowMs;
+            if (idle) {
+                idle = false;
+                listener.onIdleStateChanged(false);
+            }
+        } else {
+            checkIdle(nowMs);
+        }
+    }
+
+    /**
+     * Re-evaluates the idle state without a new frame, since a fully static screen may stop
+     * producing output altogether. Call periodically.
+     */
+    public synchronized void checkIdle(long nowMs) {
+        if (!idle && startMs >= 0 && nowMs - lastContentFrameMs >= idleAfterMs) {
+            idle = true;
+            listener.onIdleStateChanged(true);
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return idle;
+    }
+
+    public synchronized long getEncodedFramesLastMinute(long nowMs) {
+        advanceWindow(nowMs);
+        long total = 0;
+        for (long count : framesPerSecond) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Bytes not sent compared with encoding every frame at full rate, estimated from the
+     * average size of frames that did carry content.
+     */
+    public synchronized long getEstimatedBytesSaved(long nowMs) {
+        if (startMs < 0) {
+            return 0;
+        }
+        double fullRateFrames = (nowMs - startMs) / 1000.0 * frameRate;
+        return Math.max(0, (long) (fullRateFrames * averageContentFrameBytes) - totalBytes);
+    }
+
+    public synchronized long getTotalFrames() {
+        return totalFrames;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void advanceWindow(long nowMs) {
+        if (startMs < 0) {
+            return;
+        }
+        long second = (nowMs - startMs) / 1000;
+        if (currentSecond < 0) {
+            currentSecond = second;
+            return;
+        }
+        long steps = Math.min(WINDOW_SECONDS, second - currentSecond);
+        for (long i = 1; i <= steps; i++) {
+            framesPerSecond[(int) ((currentSecond + i) % WINDOW_SECONDS)] = 0;
+        }
+        if (second > currentSecond) {
+            currentSecond = second;
+        }
+    }
+}
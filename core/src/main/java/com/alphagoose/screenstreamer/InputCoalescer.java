@@ -0,0 +1,198 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Collects one viewer's input events from the control channel and hands them on once per frame
+ * interval, so a mouse reporting at 1 kHz does not inject a thousand moves a second into a
+ * screen that only redraws sixty times.
+ *
+ * Consecutive moves of the same pointer collapse into the latest position, and consecutive
+ * scrolls add up. Downs, ups, cancels and keys are never merged or reordered, so a tap or a
+ * drag arrives intact. A merged event keeps the timestamp of the oldest input it stands for,
+ * and {@link #flush} records how long that input took from the viewer to the sink.
+ *
+ * Events are added from the channel's thread and flushed from another.
+ */
+public class InputCoalescer {
+
+    public interface Sink {
+        /** x and y are normalized to 0..{@link ControlCodec#MAX_POSITION} across the picture. */
+        void onPointer(int action, int pointerId, int x, int y);
+
+        void onKey(int action, int keyCode, int metaState);
+
+        void onScroll(int x, int y, int dx, int dy);
+    }
+
+    // Only keys and unbalanced downs and ups can pile up; a viewer sending more is broken
+    static final int MAX_PENDING = 256;
+
+    private static final int POINTER = 0;
+    private static final int KEY = 1;
+    private static final int SCROLL = 2;
+
+    private static final class Event {
+        int type;
+        int action;
+        int id;
+        int x;
+        int y;
+        int dx;
+        int dy;
+        int timeUs;
+    }
+
+    private final RemoteClock clock;
+    private final LatencyHistogram latency;
+    private final ArrayDeque<Event> free = new ArrayDeque<>();
+    private ArrayList<Event> pending = new ArrayList<>();
+    private ArrayList<Event> flushing = new ArrayList<>();
+    private long receivedCount;
+    private long droppedCount;
+    private volatile long deliveredCount;
+
+    /**
+     * @param clock   maps the viewer's event timestamps onto ours; events are not timed until it
+     *                has a sample
+     * @param latency receives viewer-to-sink latency in microseconds
+     */
+    public InputCoalescer(RemoteClock clock, LatencyHistogram latency) {
+        this.clock = clock;
+        this.latency = latency;
+    }
+
+    public synchronized void onPointer(int action, int pointerId, int x, int y, int timeUs) {
+        receivedCount++;
+        if (action == ControlCodec.ACTION_MOVE) {
+            // Moves of other pointers are independent of this one and may be stepped over
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                Event event = pending.get(i);
+                if (event.type != POINTER || event.action != ControlCodec.ACTION_MOVE) {
+                    break;
+                }
+                if (event.id == pointerId) {
+                    event.x = x;
+                    event.y = y;
+                    return;
+                }
+            }
+        }
+        Event event = add(POINTER, timeUs);
+        if (event != null) {
+            event.action = action;
+            event.id = pointerId;
+            event.x = x;
+            event.y = y;
+        }
+    }
+
+    public synchronized void onKey(int action, int keyCode, int metaState, int timeUs) {
+        receivedCount++;
+        Event event = add(KEY, timeUs);
+        if (event != null) {
+            event.action = action;
+            event.id = keyCode;
+            event.x = metaState;
+        }
+    }
+
+    public synchronized void onScroll(int x, int y, int dx, int dy, int timeUs) {
+        receivedCount++;
+        if (!pending.isEmpty()) {
+            Event last = pending.get(pending.size() - 1);
+            if (last.type == SCROLL) {
+                last.x = x;
+                last.y = y;
+                last.dx += dx;
+                last.dy += dy;
+                return;
+            }
+        }
+        Event event = add(SCROLL, timeUs);
+        if (event != null) {
+            event.x = x;
+            event.y = y;
+            event.dx = dx;
+            event.dy = dy;
+        }
+    }
+
+    private Event add(int type, int timeUs) {
+        if (pending.size() >= MAX_PENDING) {
+            droppedCount++;
+            return null;
+        }
+        Event event = free.poll();
+        if (event == null) {
+            event = new Event();
+        }
+        event.type = type;
+        event.timeUs = timeUs;
+        pending.add(event);
+        return event;
+    }
+
+    /**
+     * Hands everything collected since the last flush to the sink, in order.
+     *
+     * @param sink  where events go, or null to only account for them
+     * @param nowUs our clock, in the microseconds {@link RemoteClock} was fed
+     * @return how many events were delivered
+     */
+    public int flush(Sink sink, long nowUs) {
+        ArrayList<Event> events;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            events = pending;
+            pending = flushing;
+            flushing = events;
+        }
+        boolean timed = clock.isSynchronized();
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            if (sink != null) {
+                switch (event.type) {
+                    case POINTER:
+                        sink.onPointer(event.action, event.id, event.x, event.y);
+                        break;
+                    case KEY:
+                        sink.onKey(event.action, event.id, event.x);
+                        break;
+                    default:
+                        sink.onScroll(event.x, event.y, event.dx, event.dy);
+                        break;
+                }
+            }
+            if (timed) {
+                latency.record(Math.max(0, nowUs - clock.toLocalUs(event.timeUs, nowUs)));
+            }
+        }
+        int delivered = events.size();
+        deliveredCount += delivered;
+        synchronized (this) {
+            free.addAll(events);
+        }
+        events.clear();
+        return delivered;
+    }
+
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * Events handed to the sink; the difference to {@link #getReceivedCount} was coalesced away
+     * or dropped.
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,56 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Merges keyframe requests that arrive while one is already outstanding.
+ *
+ * A request counts as outstanding from the moment it is forwarded until the encoder emits a
+ * keyframe, or until {@code timeoutMs} passes without one. Any viewer that asks in between
+ * is served by that same keyframe, so a burst of viewers joining together costs one IDR.
+ */
+public class KeyFrameCoalescer {
+
+    public interface Callback {
+        void onKeyFrameRequested();
+    }
+
+    private final Callback callback;
+    private final long timeoutMs;
+    private boolean outstanding;
+    private long forwardedAtMs;
+    private long requestCount;
+    private long forwardedCount;
+
+    public KeyFrameCoalescer(Callback callback, long timeoutMs) {
+        this.callback = callback;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return true if the request was forwarded to the encoder, false if it was merged
+     */
+    public boolean request(long nowMs) {
+        synchronized (this) {
+            requestCount++;
+            if (outstanding && nowMs - forwardedAtMs < timeoutMs) {
+                return false;
+            }
+            outstanding = true;
+            forwardedAtMs = nowMs;
+            forwardedCount++;
+        }
+        callback.onKeyFrameRequested();
+        return true;
+    }
+
+    public synchronized void onKeyFrame() {
+        outstanding = false;
+    }
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized long getForwardedCount() {
+        return forwardedCount;
+    }
+}
@@ -0,0 +1,134 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Token bucket in front of the encoder's keyframe request, so the stream can run with a long GOP
+ * and produce keyframes only when someone needs one.
+ *
+ * Each forwarded request spends a token; tokens come back one per {@code refillIntervalMs} up to
+ * {@code burst}. Requests arriving while a forwarded one has not produced its keyframe yet are
+ * merged into it, and requests arriving with no token left are deferred rather than dropped:
+ * {@link #poll} forwards one as soon as a token is available, unless a keyframe shows up first.
+ * Every request is eventually served, but a storm of PLIs costs at most the bucket's rate.
+ */
+public class KeyFrameRateLimiter {
+
+    public interface Callback {
+        void onKeyFrameRequested();
+    }
+
+    private final Callback callback;
+    private final int burst;
+    private final long refillIntervalMs;
+    private final long timeoutMs;
+    private int tokens;
+    private long refilledAtMs;
+    private boolean outstanding;
+    private long forwardedAtMs;
+    private boolean deferred;
+    private long requestCount;
+    private long forwardedCount;
+    private long deferredCount;
+
+    /**
+     * @param timeoutMs how long a forwarded request absorbs further ones if no keyframe arrives
+     */
+    public KeyFrameRateLimiter(Callback callback, int burst, long refillIntervalMs, long timeoutMs) {
+        if (burst < 1 || refillIntervalMs <= 0) {
+            throw new IllegalArgumentException("Need a burst of at least 1 and a positive refill interval");
+        }
+        this.callback = callback;
+        this.burst = burst;
+        this.refillIntervalMs = refillIntervalMs;
+        this.timeoutMs = timeoutMs;
+        this.tokens = burst;
+        this.refilledAtMs = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return true if the request was forwarded to the encoder, false if it was merged or deferred
+     */
+    public boolean request(long nowMs) {
+        synchronized (this) {
+            requestCount++;
+            if (outstanding && nowMs - forwardedAtMs < timeoutMs) {
+                return false;
+            }
+            if (!takeToken(nowMs)) {
+                if (!deferred) {
+                    deferred = true;
+                    deferredCount++;
+                }
+                return false;
+            }
+        }
+        callback.onKeyFrameRequested();
+        return true;
+    }
+
+    /**
+     * Forwards a deferred request if a token has come back.
+     *
+     * @return milliseconds until the next call is useful, or -1 if nothing is deferred
+     */
+    public long poll(long nowMs) {
+        synchronized (this) {
+            if (!deferred) {
+                return -1;
+            }
+            if (!takeToken(nowMs)) {
+                return refilledAtMs + refillIntervalMs - nowMs;
+            }
+        }
+        callback.onKeyFrameRequested();
+        return -1;
+    }
+
+    /**
+     * Called for every keyframe the encoder emits, requested or not; it serves anything pending.
+     */
+    public synchronized void onKeyFrame() {
+        outstanding = false;
+        deferred = false;
+    }
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Requests actually passed to the encoder.
+     */
+    public synchronized long getForwardedCount() {
+        return forwardedCount;
+    }
+
+    /**
+     * Times a request had to wait for a token.
+     */
+    public synchronized long getDeferredCount() {
+        return deferredCount;
+    }
+
+    private boolean takeToken(long nowMs) {
+        if (refilledAtMs == Long.MIN_VALUE) {
+            refilledAtMs = nowMs;
+        } else if (tokens < burst) {
+            long refills = (nowMs - refilledAtMs) / refillIntervalMs;
+            if (refills > 0) {
+                tokens = (int) Math.min(burst, tokens + refills);
+                refilledAtMs = tokens == burst ? nowMs : refilledAtMs + refills * refillIntervalMs;
+            }
+        } else {
+            refilledAtMs = nowMs;
+        }
+        if (tokens == 0) {
+            return false;
+        }
+        tokens--;
+        deferred = false;
+        outstanding = true;
+        forwardedAtMs = nowMs;
+        forwardedCount++;
+        return true;
+    }
+}
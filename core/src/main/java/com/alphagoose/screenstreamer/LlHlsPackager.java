@@ -0,0 +1,140 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts the encoder's H.264 output into CMAF partial segments for an {@link HlsStream}.
+ *
+ * Runs on the encoder drain thread: each frame is converted into the part being built, and a
+ * part is published as soon as the next frame would take it past the part target. Segments
+ * end at the first keyframe once they are within a part of the segment target, and a keyframe
+ * is requested at that point so a long GOP does not stretch them.
+ */
+public class LlHlsPackager implements EncodedFrameDispatcher.Sink {
+    private final HlsStream stream;
+    private final Runnable keyFrameRequester;
+    private final long partTargetUs;
+    private final long cutAfterUs;
+    private final Fmp4Muxer muxer = new Fmp4Muxer();
+
+    private boolean hasInit;
+    private boolean awaitingKeyFrame = true;
+    private boolean keyFrameRequested;
+    private boolean partIndependent;
+    private long basePtsUs = -1;
+    private long lastPtsUs;
+    private long lastFrameDurationUs;
+    private long partStartUs;
+    private long segmentStartUs;
+    private volatile long droppedFrames;
+
+    /**
+     * @param keyFrameRequester asks the encoder for a keyframe; called on the drain thread
+     */
+    public LlHlsPackager(HlsStream stream, Runnable keyFrameRequester) {
+        this.stream = stream;
+        this.keyFrameRequester = keyFrameRequester;
+        this.partTargetUs = stream.getPartTargetUs();
+        this.cutAfterUs = stream.getSegmentTargetUs() - partTargetUs;
+    }
+
+    /**
+     * Seeds the init segment when packaging starts after the encoder sent its codec config.
+     */
+    public void setParameterSets(ByteBuffer config, int width, int height) {
+        publishInit(config, width, height);
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedFrame frame) {
+        ByteBuffer data = frame.getData();
+        if ((frame.getFlags() & FrameRing.FLAG_CODEC_CONFIG) != 0) {
+            flushPart(lastPtsUs + lastFrameDurationUs);
+            publishInit(data, frame.getWidth(), frame.getHeight());
+            return;
+        }
+        if (data.remaining() == 0) {
+            return;
+        }
+        long ptsUs = frame.getPresentationTimeUs();
+        boolean keyFrame = frame.isKeyFrame();
+        boolean resumed = awaitingKeyFrame;
+        if (awaitingKeyFrame) {
+            if (!keyFrame || !hasInit) {
+                droppedFrames++;
+                return;
+            }
+            awaitingKeyFrame = false;
+            if (basePtsUs < 0) {
+                basePtsUs = ptsUs;
+            }
+            startSegment(ptsUs);
+        } else if (ptsUs > lastPtsUs) {
+            lastFrameDurationUs = ptsUs - lastPtsUs;
+        }
+        if (!resumed) {
+            if (keyFrame && ptsUs - segmentStartUs >= cutAfterUs) {
+                flushPart(ptsUs);
+                stream.endSegment();
+                startSegment(ptsUs);
+            } else if (ptsUs + lastFrameDurationUs - partStartUs > partTargetUs) {
+                // Taking this frame would overrun the part target, so it starts the next part
+                flushPart(ptsUs);
+                partStartUs = ptsUs;
+                partIndependent = keyFrame;
+            }
+        }
+        if (!keyFrameRequested && ptsUs - segmentStartUs >= cutAfterUs) {
+            keyFrameRequested = true;
+            keyFrameRequester.run();
+        }
+        muxer.addSample(data, toTimescale(ptsUs), keyFrame);
+        lastPtsUs = ptsUs;
+    }
+
+    /**
+     * Frames skipped while waiting for the init segment or a keyframe.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Publishes the part in progress and closes the segment, for when packaging stops.
+     */
+    public void finish() {
+        flushPart(lastPtsUs + lastFrameDurationUs);
+        stream.endSegment();
+        awaitingKeyFrame = true;
+    }
+
+    private void publishInit(ByteBuffer config, int width, int height) {
+        ByteBuffer init = muxer.createInitSegment(config, width, height);
+        if (init == null) {
+            return;
+        }
+        stream.setInitSegment(init);
+        hasInit = true;
+        // Segments for the new init segment must start on a keyframe
+        awaitingKeyFrame = true;
+    }
+
+    private void startSegment(long ptsUs) {
+        segmentStartUs = ptsUs;
+        partStartUs = ptsUs;
+        partIndependent = true;
+        keyFrameRequested = false;
+    }
+
+    private void flushPart(long endUs) {
+        if (muxer.getPendingSamples() == 0) {
+            return;
+        }
+        ByteBuffer part = muxer.finishFragment(toTimescale(endUs));
+        stream.addPart(part, endUs - partStartUs, partIndependent);
+    }
+
+    private long toTimescale(long ptsUs) {
+        return Math.max(0, ptsUs - basePtsUs) * Fmp4Muxer.TIMESCALE / 1000000;
+    }
+}
@@ -0,0 +1,199 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters, gauges and latency histograms shared by the whole app.
+ *
+ * Lookups go through concurrent maps, so hot paths should look a metric up once and keep the
+ * reference; recording is then a handful of uncontended atomic operations. Snapshots read
+ * every metric without stopping writers, so values recorded during a snapshot may or may not
+ * be included.
+ */
+public class MetricsRegistry {
+
+    /**
+     * A value read when a snapshot is taken, such as a queue depth or the last reported RTT.
+     * Called on the snapshot thread, so it must be safe to read from there.
+     */
+    public interface Gauge {
+        double getValue();
+    }
+
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return the histogram registered under {@code name}, creating it if there is none
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(name);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Publishes a histogram owned elsewhere under its own name, replacing any previous one.
+     */
+    public void register(LatencyHistogram histogram) {
+        histograms.put(histogram.getName(), histogram);
+    }
+
+    public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes whatever metric is registered under {@code name}, for owners that are going away.
+     */
+    public void remove(String name) {
+        counters.remove(name);
+        gauges.remove(name);
+        histograms.remove(name);
+    }
+
+    /**
+     * Snapshot of every metric as a JSON object, with metrics sorted by name. Histograms give
+     * count, mean, p50, p90, p99 and max in their recorded unit.
+     */
+    public String toJson(long timestampMs) {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"timestampMs\":").append(timestampMs).append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            first = appendKey(json, entry.getKey(), first);
+            json.append(entry.getValue().get());
+        }
+        json.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            first = appendKey(json, entry.getKey(), first);
+            appendNumber(json, entry.getValue().getValue());
+        }
+        json.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            first = appendKey(json, entry.getKey(), first);
+            LatencyHistogram histogram = entry.getValue();
+            json.append("{\"count\":").append(histogram.getCount()).append(",\"mean\":");
+            appendNumber(json, histogram.getMean());
+            for (double percentile : PERCENTILES) {
+                json.append(",\"p").append((int) percentile).append("\":")
+                        .append(histogram.getValueAtPercentile(percentile));
+            }
+            json.append(",\"max\":").append(histogram.getMax()).append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Short human-readable summary, one metric per line, for an on-screen overlay. Empty
+     * histograms are left out.
+     */
+    public String formatSummary() {
+        StringBuilder text = new StringBuilder(512);
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            text.append(String.format(Locale.US, "%s p50 %d p99 %d max %d%n", entry.getKey(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99), histogram.getMax()));
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            text.append(String.format(Locale.US, "%s %.4g%n", entry.getKey(), entry.getValue().getValue()));
+        }
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Zeroes counters and histograms; gauges read live values and are left alone.
+     */
+    public void reset() {
+        for (Counter counter : counters.values()) {
+            counter.value.set(0);
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    private static boolean appendKey(StringBuilder json, String key, boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append('"');
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append("\":");
+        return false;
+    }
+
+    private static void appendNumber(StringBuilder json, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // JSON has no NaN; a gauge with nothing to report yet
+            json.append("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            json.append((long) value);
+        } else {
+            json.append(value);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the NAL units of an Annex-B buffer, as MediaCodec emits it. Reusable; allocates nothing.
+ *
+ * Start codes cannot occur inside a NAL unit thanks to emulation prevention, so a plain scan for
+ * 00 00 01 finds every boundary. Zero bytes before a start code are treated as part of it.
+ *
+ * A unit's end is only looked for when its length is asked for or the scan moves past it, so a
+ * caller that stops at the first slice never reads the slice data.
+ */
+final class NalScanner {
+    static final int H264_NON_IDR = 1;
+    static final int H264_IDR = 5;
+    static final int H264_SEI = 6;
+    static final int H264_SPS = 7;
+    static final int H264_PPS = 8;
+    static final int H264_AUD = 9;
+
+    /** H.265 types up to 31 are slices; 16 to 23 are random access points (BLA, IDR, CRA). */
+    static final int H265_LAST_SLICE = 31;
+    static final int H265_FIRST_IRAP = 16;
+    static final int H265_LAST_IRAP = 23;
+    static final int H265_VPS = 32;
+    static final int H265_SPS = 33;
+    static final int H265_PPS = 34;
+    static final int H265_AUD = 35;
+
+    // Exactly one of these is set; heap buffers are scanned through their array
+    private byte[] array;
+    private ByteBuffer buffer;
+    // Added to offsets given to callers to index the array or buffer
+    private int bias;
+    private int end;
+    private int next;
+    private boolean measured;
+    private int nalLength;
+
+    /** Offset of the current NAL unit's header byte, in the caller's array or buffer. */
+    int nalOffset;
+
+    void reset(byte[] data, int offset, int length) {
+        array = data;
+        buffer = null;
+        bias = 0;
+        start(offset, offset + length);
+    }
+
+    /**
+     * Scans {@code data} between its position and limit without moving either. Offsets are
+     * buffer indexes.
+     */
+    void reset(ByteBuffer data) {
+        if (data.hasArray()) {
+            array = data.array();
+            buffer = null;
+            bias = data.arrayOffset();
+        } else {
+            array = null;
+            buffer = data;
+            bias = 0;
+        }
+        start(data.position() + bias, data.limit() + bias);
+    }
+
+    private void start(int from, int to) {
+        end = to;
+        next = findStartCode(from);
+        measured = true;
+    }
+
+    /**
+     * @return false once there are no more NAL units
+     */
+    boolean next() {
+        if (!measured) {
+            measure();
+        }
+        while (next < end) {
+            int start = next;
+            nalOffset = start - bias;
+            // No NAL header starts with two zero bytes, so this is padding or an empty unit
+            if (start + 1 < end && byteAt(start) == 0 && byteAt(start + 1) == 0) {
+                measure();
+                if (nalLength > 0) {
+                    return true;
+                }
+                continue;
+            }
+            measured = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Length of the current NAL unit, header included.
+     */
+    int nalLength() {
+        if (!measured) {
+            measure();
+        }
+        return nalLength;
+    }
+
+    /**
+     * H.264 nal_unit_type of the current unit.
+     */
+    int h264Type() {
+        return byteAt(nalOffset + bias) & 0x1f;
+    }
+
+    /**
+     * H.264 nal_ref_idc of the current unit; zero means no other picture refers to it.
+     */
+    int h264RefIdc() {
+        return (byteAt(nalOffset + bias) >> 5) & 0x3;
+    }
+
+    /**
+     * H.265 nal_unit_type of the current unit.
+     */
+    int h265Type() {
+        return (byteAt(nalOffset + bias) >> 1) & 0x3f;
+    }
+
+    /**
+     * Rewrites an Annex-B access unit between position and limit as 4-byte big-endian length
+     * prefixes, in place. That only fits when every unit has a 4-byte start code and there is
+     * no padding, which is how MediaCodec writes its output.
+     *
+     * @return false, with {@code data} untouched, if the units do not fit in place
+     */
+    boolean annexBToLengthPrefixed(ByteBuffer data) {
+        int expected = data.position();
+        reset(data);
+        while (next()) {
+            if (nalOffset - 4 != expected) {
+                return false;
+            }
+            expected = nalOffset + nalLength();
+        }
+        if (expected != data.limit() || expected == data.position()) {
+            return false;
+        }
+        reset(data);
+        while (next()) {
+            int length = nalLength();
+            int prefix = nalOffset - 4;
+            data.put(prefix, (byte) (length >>> 24));
+            data.put(prefix + 1, (byte) (length >>> 16));
+            data.put(prefix + 2, (byte) (length >>> 8));
+            data.put(prefix + 3, (byte) length);
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites 4-byte length-prefixed NAL units between position and limit as Annex-B with
+     * 4-byte start codes, in place.
+     *
+     * @return false, with {@code data} untouched, if the lengths do not add up to the buffer
+     */
+    static boolean lengthPrefixedToAnnexB(ByteBuffer data) {
+        int offset = data.position();
+        int limit = data.limit();
+        while (offset < limit) {
+            if (limit - offset < 4) {
+                return false;
+            }
+            int length = readLength(data, offset);
+            if (length <= 0 || length > limit - offset - 4) {
+                return false;
+            }
+            offset += 4 + length;
+        }
+        offset = data.position();
+        while (offset < limit) {
+            int length = readLength(data, offset);
+            data.put(offset, (byte) 0);
+            data.put(offset + 1, (byte) 0);
+            data.put(offset + 2, (byte) 0);
+            data.put(offset + 3, (byte) 1);
+            offset += 4 + length;
+        }
+        return true;
+    }
+
+    // Big-endian whatever the buffer's byte order
+    private static int readLength(ByteBuffer data, int offset) {
+        return (data.get(offset) & 0xff) << 24 | (data.get(offset + 1) & 0xff) << 16
+                | (data.get(offset + 2) & 0xff) << 8 | (data.get(offset + 3) & 0xff);
+    }
+
+    private void measure() {
+        int start = nalOffset + bias;
+        int following = findStartCode(start);
+        int stop = following == end ? end : following - 3;
+        while (stop > start && byteAt(stop - 1) == 0) {
+            stop--;
+        }
+        next = following;
+        nalLength = stop - start;
+        measured = true;
+    }
+
+    private int byteAt(int index) {
+        return array != null ? array[index] & 0xff : buffer.get(index) & 0xff;
+    }
+
+    /**
+     * @return the offset just past the next 00 00 01 at or after {@code from}, or the end
+     */
+    private int findStartCode(int from) {
+        byte[] data = array;
+        if (data == null) {
+            return findStartCode(buffer, from);
+        }
+        for (int i = from; i + 2 < end; i++) {
+            // Skip ahead quickly: a start code needs data[i + 2] == 1 and two zeros before it
+            if ((data[i + 2] & 0xff) > 1) {
+                i += 2;
+            } else if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i + 3;
+            }
+        }
+        return end;
+    }
+
+    private int findStartCode(ByteBuffer data, int from) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data.get(i + 2) & 0xff) > 1) {
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,54 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.Random;
+
+/**
+ * Exponential reconnect delays with jitter, so a server restart is not met by every client
+ * reconnecting in lockstep.
+ *
+ * The n-th delay is drawn uniformly from the upper half of min(base * 2^n, max); keeping the
+ * lower half out means a run of unlucky draws still backs off.
+ */
+public class ReconnectBackoff {
+    private final long baseMs;
+    private final long maxMs;
+    private final Random random;
+    private int attempts;
+
+    public ReconnectBackoff(long baseMs, long maxMs, Random random) {
+        if (baseMs <= 0 || maxMs < baseMs) {
+            throw new IllegalArgumentException("Need 0 < base <= max, got " + baseMs + ", " + maxMs);
+        }
+        this.baseMs = baseMs;
+        this.maxMs = maxMs;
+        this.random = random;
+    }
+
+    /**
+     * @return how long to wait before the next attempt
+     */
+    public synchronized long nextDelayMs() {
+        long ceiling = maxMs;
+        // Past 2^30 the shift would overflow, and the cap has long since been reached anyway
+        if (attempts < 30) {
+            ceiling = Math.min(maxMs, baseMs << attempts);
+        }
+        attempts++;
+        long half = ceiling / 2;
+        return ceiling - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Starts again from the base delay, after a connection proved stable.
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+
+    /**
+     * Delays handed out since the last reset.
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+}
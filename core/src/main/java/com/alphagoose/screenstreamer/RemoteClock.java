@@ -0,0 +1,69 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Maps a viewer's 32-bit microsecond timestamps onto our clock, from ping/pong exchanges on the
+ * control channel.
+ *
+ * Each pong gives an offset estimate assuming the path is symmetric, so the peer answered
+ * halfway through the round trip. The estimate from the fastest recent round trip is the one
+ * least skewed by queueing, so that one is kept; the window lets it follow clock drift and a
+ * route change. All arithmetic wraps at 32 bits, about 71 minutes of microseconds.
+ */
+public class RemoteClock {
+    private static final int WINDOW = 16;
+
+    private final int[] rtts = new int[WINDOW];
+    private final int[] offsets = new int[WINDOW];
+    private int samples;
+    private int bestOffset;
+    private int bestRtt = -1;
+
+    /**
+     * @param echoedTimeUs our clock when the ping was sent, as echoed back by the peer
+     * @param remoteTimeUs the peer's clock when it answered
+     * @param nowUs        our clock now, in the same microseconds the ping was stamped with
+     * @return the round-trip time in microseconds
+     */
+    public synchronized int onPong(int echoedTimeUs, int remoteTimeUs, long nowUs) {
+        int rtt = (int) nowUs - echoedTimeUs;
+        if (rtt < 0) {
+            // Not one of ours, or older than the wrap
+            return -1;
+        }
+        int slot = samples++ % WINDOW;
+        rtts[slot] = rtt;
+        offsets[slot] = remoteTimeUs - (echoedTimeUs + rtt / 2);
+        int count = Math.min(samples, WINDOW);
+        int best = 0;
+        for (int i = 1; i < count; i++) {
+            if (rtts[i] < rtts[best]) {
+                best = i;
+            }
+        }
+        bestRtt = rtts[best];
+        bestOffset = offsets[best];
+        return rtt;
+    }
+
+    public synchronized boolean isSynchronized() {
+        return bestRtt >= 0;
+    }
+
+    /**
+     * @return the smallest round trip in the window, or -1 before the first pong
+     */
+    public synchronized int getMinRttUs() {
+        return bestRtt;
+    }
+
+    /**
+     * Converts a peer timestamp to our clock. Timestamps must be within half the wrap period of
+     * {@code nowUs}, which any event worth measuring is.
+     *
+     * @param nowUs our clock now, used to restore the bits the peer timestamp dropped
+     */
+    public synchronized long toLocalUs(int remoteTimeUs, long nowUs) {
+        int local = remoteTimeUs - bestOffset;
+        return nowUs - ((int) nowUs - local);
+    }
+}
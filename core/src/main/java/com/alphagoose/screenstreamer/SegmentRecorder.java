@@ -0,0 +1,369 @@
+package com.alphagoose.screenstreamer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records encoded video to MPEG-TS segment files alongside the live stream.
+ *
+ * Frames are copied into a bounded set of pooled direct buffers on the encoder drain thread and
+ * written out through a FileChannel on the recorder's own thread. When the disk falls behind and the
+ * budget is spent, frames are dropped up to the next keyframe rather than holding up the
+ * drain thread. Segments start on a keyframe, with the tables and parameter sets repeated, so
+ * each file plays on its own; a new one is started once the current one reaches the size or
+ * duration limit. The encoder runs with a long GOP, so a keyframe is requested when one is due
+ * for a cut or after frames were dropped.
+ */
+public class SegmentRecorder implements EncodedFrameDispatcher.Sink {
+
+    public interface Listener {
+        /**
+         * Called on the recorder thread once a segment is complete on disk.
+         */
+        void onSegmentClosed(File file, long durationUs, long bytes);
+
+        /**
+         * Called on the recorder thread when writing fails; nothing more is recorded.
+         */
+        void onError(IOException e);
+    }
+
+    private static final long POLL_MS = 100;
+
+    private final File directory;
+    private final String mimeType;
+    private final long maxSegmentBytes;
+    private final long maxSegmentDurationUs;
+    private final long maxQueuedBytes;
+    private final Listener listener;
+    private final Runnable keyFrameRequester;
+    private final DirectBufferPool bufferPool;
+    private final BlockingQueue<Sample> queue;
+    private final BlockingQueue<Sample> free;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean stopping;
+    private volatile byte[] parameterSets;
+
+    // Encoder drain thread only
+    private boolean awaitingKeyFrame = true;
+    private boolean keyFrameRequested;
+    private long keyFramePtsUs;
+    private volatile long droppedFrames;
+
+    // Recorder thread only
+    private final TsMuxer muxer;
+    private byte[] muxedParameterSets;
+    private FileChannel channel;
+    private File segmentFile;
+    private long segmentBytes;
+    private long segmentStartUs;
+    private long lastPtsUs;
+    private long basePtsUs = -1;
+    private int segmentIndex;
+    private boolean failed;
+    private volatile long writtenFrames;
+    private volatile int segmentCount;
+
+    /**
+     * @param maxQueuedFrames how many frames may wait for the disk at once
+     * @param maxQueuedBytes  how many bytes may wait for the disk at once
+     * @param keyFrameRequester asks the encoder for a keyframe; called on the drain thread
+     * @throws IllegalArgumentException if {@code mimeType} cannot be recorded to a transport stream
+     */
+    public SegmentRecorder(File directory, String mimeType, long maxSegmentBytes, long maxSegmentDurationUs,
+                           int maxQueuedFrames, long maxQueuedBytes, Listener listener, Runnable keyFrameRequester) {
+        this(directory, mimeType, maxSegmentBytes, maxSegmentDurationUs, maxQueuedFrames, maxQueuedBytes, listener,
+                keyFrameRequester, SharedMediaBuffer.getInstance().getBufferPool());
+    }
+
+    /**
+     * @param bufferPool where queued frames are copied to; buffers go back when recording stops
+     */
+    public SegmentRecorder(File directory, String mimeType, long maxSegmentBytes, long maxSegmentDurationUs,
+                           int maxQueuedFrames, long maxQueuedBytes, Listener listener, Runnable keyFrameRequester,
+                           DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.keyFrameRequester = keyFrameRequester;
+        this.directory = directory;
+        this.mimeType = mimeType;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentDurationUs = maxSegmentDurationUs;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.listener = listener;
+        this.muxer = new TsMuxer(mimeType);
+        queue = new ArrayBlockingQueue<>(maxQueuedFrames);
+        free = new ArrayBlockingQueue<>(maxQueuedFrames);
+        for (int i = 0; i < maxQueuedFrames; i++) {
+            free.add(new Sample());
+        }
+        writer = new Thread(this::writeLoop, "SegmentRecorder");
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Stops taking frames. What is already queued is still written, then the last segment is
+     * closed and the recorder thread exits; {@link #join} waits for that.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    /**
+     * @return false if the recorder thread was still writing after {@code timeoutMs}
+     */
+    public boolean join(long timeoutMs) throws InterruptedException {
+        writer.join(timeoutMs);
+        return !writer.isAlive();
+    }
+
+    /**
+     * Seeds the parameter sets when recording starts after the encoder sent its codec config.
+     */
+    public void setParameterSets(ByteBuffer config) {
+        byte[] copy = new byte[config.remaining()];
+        config.duplicate().get(copy);
+        parameterSets = copy;
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedFrame frame) {
+        if (stopping) {
+            return;
+        }
+        ByteBuffer data = frame.getData();
+        int size = data.remaining();
+        if ((frame.getFlags() & FrameRing.FLAG_CODEC_CONFIG) != 0) {
+            // Rare enough to allocate for; the recorder thread picks it up at the next keyframe
+            byte[] config = new byte[size];
+            data.duplicate().get(config);
+            parameterSets = config;
+            return;
+        }
+        if (size == 0) {
+            return;
+        }
+        boolean keyFrame = frame.isKeyFrame();
+        if (keyFrame) {
+            // The request has been answered even if this keyframe cannot be queued, so a stall
+            // that swallows it must be able to ask again
+            keyFrameRequested = false;
+        }
+        if (awaitingKeyFrame && !keyFrame) {
+            droppedFrames++;
+            requestKeyFrame();
+            return;
+        }
+        Sample sample = null;
+        if (queuedBytes.get() + size <= maxQueuedBytes) {
+            sample = free.poll();
+        }
+        if (sample == null) {
+            // The disk is behind; a partial GOP would not decode, so skip to the next keyframe
+            awaitingKeyFrame = true;
+            droppedFrames++;
+            requestKeyFrame();
+            return;
+        }
+        awaitingKeyFrame = false;
+        if (keyFrame) {
+            keyFramePtsUs = frame.getPresentationTimeUs();
+        } else if (frame.getPresentationTimeUs() - keyFramePtsUs >= maxSegmentDurationUs) {
+            // The segment may close at the next keyframe, so don't wait out the GOP for one
+            requestKeyFrame();
+        }
+        sample.set(bufferPool, data, frame.getPresentationTimeUs(), keyFrame);
+        queuedBytes.addAndGet(size);
+        queue.add(sample);
+    }
+
+    private void requestKeyFrame() {
+        if (!keyFrameRequested) {
+            keyFrameRequested = true;
+            keyFrameRequester.run();
+        }
+    }
+
+    /**
+     * Frames skipped because the recorder was behind, or while waiting for a keyframe.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    /**
+     * Segments completed so far, not counting the one being written.
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Sample sample = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (sample == null) {
+                    if (stopping) {
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    if (!failed) {
+                        write(sample);
+                    }
+                } catch (IOException e) {
+                    failed = true;
+                    closeQuietly();
+                    listener.onError(e);
+                } finally {
+                    queuedBytes.addAndGet(-sample.size);
+                    free.add(sample);
+                }
+            }
+            if (!failed) {
+                closeSegment(lastPtsUs);
+            }
+        } catch (InterruptedException e) {
+            closeQuietly();
+        } catch (IOException e) {
+            closeQuietly();
+            listener.onError(e);
+        } finally {
+            releaseBuffers();
+        }
+    }
+
+    /**
+     * Hands the sample buffers back to the pool once nothing more will be written. A frame
+     * that races with stop() gets a fresh buffer, which is simply left to the GC.
+     */
+    private void releaseBuffers() {
+        Sample sample;
+        while ((sample = queue.poll()) != null) {
+            queuedBytes.addAndGet(-sample.size);
+            free.add(sample);
+        }
+        for (Sample idle : free) {
+            ByteBuffer buffer = idle.data;
+            idle.data = null;
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void write(Sample sample) throws IOException {
+        if (channel != null && sample.keyFrame
+                && (segmentBytes >= maxSegmentBytes || sample.ptsUs - segmentStartUs >= maxSegmentDurationUs)) {
+            closeSegment(sample.ptsUs);
+        }
+        if (channel == null) {
+            if (!sample.keyFrame) {
+                return;
+            }
+            openSegment(sample.ptsUs);
+        }
+        if (sample.keyFrame) {
+            byte[] config = parameterSets;
+            if (config != null && config != muxedParameterSets) {
+                muxer.setParameterSets(ByteBuffer.wrap(config));
+                muxedParameterSets = config;
+            }
+        }
+        if (basePtsUs < 0) {
+            basePtsUs = sample.ptsUs;
+        }
+        long pts90k = Math.max(0, sample.ptsUs - basePtsUs) * 9 / 100;
+        writeFully(muxer.writeSample(sample.data, pts90k, sample.keyFrame));
+        lastPtsUs = sample.ptsUs;
+        writtenFrames++;
+    }
+
+    private void openSegment(long ptsUs) throws IOException {
+        segmentFile = new File(directory, String.format(Locale.US, "segment-%05d.ts", segmentIndex++));
+        channel = new FileOutputStream(segmentFile).getChannel();
+        segmentBytes = 0;
+        segmentStartUs = ptsUs;
+        writeFully(muxer.writeTables());
+    }
+
+    /**
+     * @param endUs where the segment ends, normally the pts of the keyframe that starts the next
+     */
+    private void closeSegment(long endUs) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        channel.close();
+        channel = null;
+        segmentCount++;
+        listener.onSegmentClosed(segmentFile, endUs - segmentStartUs, segmentBytes);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        segmentBytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void closeQuietly() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * A frame copied out of the codec buffer. Reused, so steady-state recording does not allocate.
+     */
+    private static final class Sample {
+        ByteBuffer data;
+        int size;
+        long ptsUs;
+        boolean keyFrame;
+
+        void set(DirectBufferPool pool, ByteBuffer source, long ptsUs, boolean keyFrame) {
+            size = source.remaining();
+            if (data == null || data.capacity() < size) {
+                pool.release(data);
+                data = pool.acquire(size);
+            }
+            data.clear();
+            data.put(source.duplicate());
+            data.flip();
+            this.ptsUs = ptsUs;
+            this.keyFrame = keyFrame;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Byte token bucket that spaces a viewer's frames out to a target rate.
+ *
+ * Frames are never split, so a keyframe goes out as soon as the bucket is not in debt and may
+ * overdraw it; the frames after it then wait until the debt is paid back. That spreads the
+ * keyframe's burst over the following frame intervals instead of stacking them on top of it in
+ * the Wi-Fi queue. The bucket holds at most {@code burstWindowMs} worth of the rate, so an idle
+ * viewer cannot save up for a bigger burst later.
+ *
+ * Used from one thread, except {@link #setRate}.
+ */
+public class SendPacer {
+    private final long burstWindowMs;
+    private volatile long rateBps;
+    private double tokens;
+    private long refilledAtNs;
+    private boolean started;
+
+    public SendPacer(long burstWindowMs) {
+        this.burstWindowMs = burstWindowMs;
+    }
+
+    /**
+     * @param bitsPerSecond the rate to pace to, or 0 to send without pacing
+     */
+    public void setRate(long bitsPerSecond) {
+        rateBps = bitsPerSecond;
+    }
+
+    public long getRate() {
+        return rateBps;
+    }
+
+    /**
+     * @return nanoseconds to wait before the next frame may be sent, 0 if it can go now
+     */
+    public long delayNs(long nowNs) {
+        long rate = rateBps;
+        if (rate <= 0) {
+            return 0;
+        }
+        refill(rate, nowNs);
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens * 8e9 / rate);
+    }
+
+    /**
+     * Charges a sent frame to the bucket.
+     *
+     * @return how many bytes the bucket is now in debt, 0 if the frame fit within the rate
+     */
+    public long onSent(int bytes, long nowNs) {
+        long rate = rateBps;
+        if (rate <= 0) {
+            tokens = 0;
+            started = false;
+            return 0;
+        }
+        refill(rate, nowNs);
+        tokens -= bytes;
+        return tokens < 0 ? (long) Math.ceil(-tokens) : 0;
+    }
+
+    private void refill(long rate, long nowNs) {
+        double capacity = rate / 8.0 * burstWindowMs / 1000;
+        if (!started) {
+            started = true;
+            tokens = capacity;
+        } else {
+            tokens = Math.min(capacity, tokens + (nowNs - refilledAtNs) * (rate / 8e9));
+        }
+        refilledAtNs = nowNs;
+    }
+}
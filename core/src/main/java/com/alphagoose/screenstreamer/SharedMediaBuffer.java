@@ -0,0 +1,168 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class SharedMediaBuffer {
+    private static final int VIDEO_RING_CAPACITY = 32;
+    private static final int VIDEO_SLOT_SIZE = 64 * 1024;
+    // AAC frames are a few hundred bytes; 64 slots is over a second of audio at 48 kHz
+    private static final int AUDIO_RING_CAPACITY = 64;
+    private static final int AUDIO_SLOT_SIZE = 2 * 1024;
+    // Lower simulcast layers start with slots sized for their smaller frames; they grow if needed
+    private static final int LAYER_SLOT_SIZE = 16 * 1024;
+
+    private static final SharedMediaBuffer instance = new SharedMediaBuffer();
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+    private final FrameRing videoRing = new FrameRing(VIDEO_RING_CAPACITY, VIDEO_SLOT_SIZE, bufferPool);
+    private final FrameRing audioRing = new FrameRing(AUDIO_RING_CAPACITY, AUDIO_SLOT_SIZE, bufferPool);
+    private final EncodedFrameDispatcher videoDispatcher = new EncodedFrameDispatcher();
+    // Index 0 is the primary video ring and dispatcher above
+    private final FrameRing[] layerRings = new FrameRing[SimulcastLayerSelector.LAYER_COUNT];
+    private final EncodedFrameDispatcher[] layerDispatchers =
+            new EncodedFrameDispatcher[SimulcastLayerSelector.LAYER_COUNT];
+    private final AtomicReferenceArray<VideoStreamIndex> layerIndexes =
+            new AtomicReferenceArray<>(SimulcastLayerSelector.LAYER_COUNT);
+    private volatile int[] layerBitrates = new int[1];
+    private volatile EncoderControl encoderControl;
+
+    public static SharedMediaBuffer getInstance() {
+        return instance;
+    }
+
+    private SharedMediaBuffer() {
+        layerRings[0] = videoRing;
+        layerDispatchers[0] = videoDispatcher;
+        for (int layer = 1; layer < layerRings.length; layer++) {
+            layerRings[layer] = new FrameRing(VIDEO_RING_CAPACITY, LAYER_SLOT_SIZE, bufferPool);
+            layerDispatchers[layer] = new EncodedFrameDispatcher();
+        }
+    }
+
+    /**
+     * Publishes one encoded video access unit. Called only from the encoder drain thread;
+     * never blocks on readers.
+     */
+    public long publishVideoFrame(ByteBuffer data, long presentationTimeUs, int flags) {
+        return videoRing.publish(data, presentationTimeUs, flags);
+    }
+
+    /**
+     * Returns a new cursor over the video ring, starting at the latest keyframe so a late
+     * joiner can begin decoding straight away.
+     */
+    public FrameRing.Reader newVideoReader() {
+        return videoRing.newReader();
+    }
+
+    public FrameRing getVideoRing() {
+        return videoRing;
+    }
+
+    /**
+     * Live consumers that take encoder output buffers directly, without the ring copy.
+     */
+    public EncodedFrameDispatcher getVideoDispatcher() {
+        return videoDispatcher;
+    }
+
+    /**
+     * Publishes one access unit of a simulcast layer, as {@link #publishVideoFrame} does for the
+     * primary encoder. Each layer has its own ring and is called only from that layer's drain thread.
+     */
+    public long publishLayerFrame(int layer, ByteBuffer data, long presentationTimeUs, int flags) {
+        return layerRings[layer].publish(data, presentationTimeUs, flags);
+    }
+
+    /**
+     * @param layer a {@link SimulcastLayerSelector.Layer} ordinal; 0 is the primary video ring
+     */
+    public FrameRing getLayerRing(int layer) {
+        return layerRings[layer];
+    }
+
+    /**
+     * Live consumers of one simulcast layer; 0 is the primary dispatcher.
+     */
+    public EncodedFrameDispatcher getLayerDispatcher(int layer) {
+        return layerDispatchers[layer];
+    }
+
+    /**
+     * Set by the capture side for each encoder it starts, so live consumers can find the
+     * layer's parameter sets; null when the layer stops or its codec has no NAL units.
+     */
+    public void setLayerStreamIndex(int layer, VideoStreamIndex index) {
+        layerIndexes.set(layer, index);
+    }
+
+    /**
+     * Unregisters {@code index} from {@code layer} if it is still the one registered there.
+     */
+    public void clearLayerStreamIndex(int layer, VideoStreamIndex index) {
+        layerIndexes.compareAndSet(layer, index, null);
+    }
+
+    /**
+     * @return the latest parameter sets of simulcast layer {@code layer} in Annex-B form, or
+     * null if they are not known
+     */
+    public ByteBuffer getLayerCodecConfig(int layer) {
+        VideoStreamIndex index = layerIndexes.get(layer);
+        return index == null ? null : index.getCodecConfig();
+    }
+
+    /**
+     * Set by the capture side whenever the layers or their rates change.
+     *
+     * @param bitrates target bitrate of each running layer, highest first; one entry without simulcast
+     */
+    public void setLayerBitrates(int[] bitrates) {
+        layerBitrates = bitrates;
+    }
+
+    /**
+     * @return target bitrate of each running layer, highest first. Not to be modified.
+     */
+    public int[] getLayerBitrates() {
+        return layerBitrates;
+    }
+
+    /**
+     * Publishes one encoded audio frame. Called only from the audio encoder thread. The pts
+     * must come from the same clock as video (see {@link AudioPtsClock}).
+     */
+    public long publishAudioFrame(ByteBuffer data, long presentationTimeUs, int flags) {
+        return audioRing.publish(data, presentationTimeUs, flags);
+    }
+
+    /**
+     * Returns a new cursor over the audio ring. AAC frames decode independently, so a new
+     * reader can start at or near the live edge.
+     */
+    public FrameRing.Reader newAudioReader() {
+        return audioRing.newReader();
+    }
+
+    public FrameRing getAudioRing() {
+        return audioRing;
+    }
+
+    /**
+     * Direct buffers shared by everything that copies media or signaling frames.
+     */
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setEncoderControl(EncoderControl control) {
+        this.encoderControl = control;
+    }
+
+    /**
+     * @return the running encoder's control hooks, or null when nothing is capturing
+     */
+    public EncoderControl getEncoderControl() {
+        return encoderControl;
+    }
+}
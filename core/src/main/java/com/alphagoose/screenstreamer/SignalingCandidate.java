@@ -0,0 +1,43 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * ICE candidate as it travels over signaling, independent of org.webrtc.IceCandidate so the
+ * candidate pipeline and wire codecs can be tested off-device.
+ */
+public final class SignalingCandidate {
+    public final String sdpMid;
+    public final int sdpMLineIndex;
+    public final String candidate;
+
+    public SignalingCandidate(String sdpMid, int sdpMLineIndex, String candidate) {
+        this.sdpMid = sdpMid;
+        this.sdpMLineIndex = sdpMLineIndex;
+        this.candidate = candidate;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SignalingCandidate)) {
+            return false;
+        }
+        SignalingCandidate that = (SignalingCandidate) other;
+        return sdpMLineIndex == that.sdpMLineIndex
+                && (sdpMid == null ? that.sdpMid == null : sdpMid.equals(that.sdpMid))
+                && candidate.equals(that.candidate);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = sdpMid == null ? 0 : sdpMid.hashCode();
+        result = 31 * result + sdpMLineIndex;
+        return 31 * result + candidate.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return sdpMid + "/" + sdpMLineIndex + " " + candidate;
+    }
+}
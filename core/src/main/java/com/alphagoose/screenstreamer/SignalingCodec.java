@@ -0,0 +1,272 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary framing for {@link SignalingMessage}s, sent as WebSocket binary frames.
+ *
+ * A frame is a five byte header (magic "SG", version, type, flags) followed by the fields
+ * the flags announce, each length-prefixed with a varint. SDP bodies above a few hundred
+ * bytes are deflated, which typically shrinks them to a third; SDP is highly repetitive.
+ * Not thread-safe: the deflater and inflater are reused between calls.
+ */
+public class SignalingCodec {
+    public static final String FORMAT_BINARY = "binary-v1";
+    public static final String FORMAT_JSON = "json";
+
+    static final int VERSION = 1;
+    private static final byte MAGIC_0 = 'S';
+    private static final byte MAGIC_1 = 'G';
+
+    private static final int FLAG_VIEWER_ID = 1;
+    private static final int FLAG_SDP = 1 << 1;
+    private static final int FLAG_SDP_DEFLATED = 1 << 2;
+    private static final int CANDIDATE_FLAG_MID = 1;
+
+    private static final int COMPRESS_MIN_BYTES = 256;
+    // Refuse to inflate anything larger; no real SDP comes close
+    private static final int MAX_SDP_BYTES = 1 << 20;
+
+    private final boolean compressSdp;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private byte[] out = new byte[1024];
+    private int size;
+    private byte[] scratch = new byte[1024];
+
+    public SignalingCodec(boolean compressSdp) {
+        this.compressSdp = compressSdp;
+    }
+
+    /**
+     * @return true if {@code frame} starts like one of our binary frames
+     */
+    public static boolean isBinaryFrame(byte[] frame) {
+        return frame.length >= 2 && frame[0] == MAGIC_0 && frame[1] == MAGIC_1;
+    }
+
+    public byte[] encode(SignalingMessage message) {
+        encodeToScratch(message);
+        return Arrays.copyOf(out, size);
+    }
+
+    /**
+     * Encodes into a buffer from {@code pool}, which the caller releases once it has been sent.
+     */
+    public ByteBuffer encode(SignalingMessage message, DirectBufferPool pool) {
+        encodeToScratch(message);
+        ByteBuffer buffer = pool.acquire(size);
+        buffer.put(out, 0, size);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void encodeToScratch(SignalingMessage message) {
+        size = 0;
+        byte[] sdp = message.sdp == null ? null : message.sdp.getBytes(StandardCharsets.UTF_8);
+        int compressedLength = -1;
+        if (sdp != null && compressSdp && sdp.length >= COMPRESS_MIN_BYTES) {
+            compressedLength = deflate(sdp);
+        }
+
+        int flags = 0;
+        if (message.viewerId != null) {
+            flags |= FLAG_VIEWER_ID;
+        }
+        if (sdp != null) {
+            flags |= FLAG_SDP;
+            if (compressedLength >= 0) {
+                flags |= FLAG_SDP_DEFLATED;
+            }
+        }
+        writeByte(MAGIC_0);
+        writeByte(MAGIC_1);
+        writeByte(VERSION);
+        writeByte(message.type.code);
+        writeByte(flags);
+
+        if (message.viewerId != null) {
+            writeString(message.viewerId);
+        }
+        if (sdp != null) {
+            writeVarint(sdp.length);
+            if (compressedLength >= 0) {
+                writeVarint(compressedLength);
+                writeBytes(scratch, 0, compressedLength);
+            } else {
+                writeBytes(sdp, 0, sdp.length);
+            }
+        }
+        writeVarint(message.candidates.size());
+        for (SignalingCandidate candidate : message.candidates) {
+            writeByte(candidate.sdpMid != null ? CANDIDATE_FLAG_MID : 0);
+            if (candidate.sdpMid != null) {
+                writeString(candidate.sdpMid);
+            }
+            writeVarint(candidate.sdpMLineIndex);
+            writeString(candidate.candidate);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code frame} is not a valid frame of a version we read
+     */
+    public SignalingMessage decode(byte[] frame) {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        try {
+            if (!isBinaryFrame(frame)) {
+                throw new IllegalArgumentException("Not a signaling frame");
+            }
+            in.position(2);
+            int version = in.get() & 0xff;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported signaling frame version " + version);
+            }
+            SignalingMessage.Type type = SignalingMessage.Type.fromCode(in.get() & 0xff);
+            if (type == null) {
+                throw new IllegalArgumentException("Unknown signaling message type " + frame[3]);
+            }
+            int flags = in.get() & 0xff;
+
+            String viewerId = (flags & FLAG_VIEWER_ID) != 0 ? readString(in) : null;
+            String sdp = null;
+            if ((flags & FLAG_SDP) != 0) {
+                int length = readLength(in, MAX_SDP_BYTES);
+                if ((flags & FLAG_SDP_DEFLATED) != 0) {
+                    int compressedLength = readLength(in, in.remaining());
+                    sdp = inflate(frame, in.position(), compressedLength, length);
+                    in.position(in.position() + compressedLength);
+                } else {
+                    sdp = readString(in, length);
+                }
+            }
+            int count = readLength(in, in.remaining());
+            List<SignalingCandidate> candidates = count == 0
+                    ? Collections.<SignalingCandidate>emptyList()
+                    : new ArrayList<SignalingCandidate>(count);
+            for (int i = 0; i < count; i++) {
+                int candidateFlags = in.get() & 0xff;
+                String mid = (candidateFlags & CANDIDATE_FLAG_MID) != 0 ? readString(in) : null;
+                int mLineIndex = readVarint(in);
+                candidates.add(new SignalingCandidate(mid, mLineIndex, readString(in)));
+            }
+            if (in.hasRemaining()) {
+                throw new IllegalArgumentException(in.remaining() + " trailing bytes in signaling frame");
+            }
+            return SignalingMessage.of(type, viewerId, sdp, candidates);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated signaling frame", e);
+        }
+    }
+
+    private int deflate(byte[] input) {
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == scratch.length) {
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            length += deflater.deflate(scratch, length, scratch.length - length);
+        }
+        // Tiny or random SDP can come out larger; send it as-is then
+        return length < input.length ? length : -1;
+    }
+
+    private String inflate(byte[] frame, int offset, int compressedLength, int length) {
+        byte[] inflated = new byte[length];
+        inflater.reset();
+        inflater.setInput(frame, offset, compressedLength);
+        try {
+            int produced = 0;
+            while (produced < length && !inflater.finished()) {
+                int n = inflater.inflate(inflated, produced, length - produced);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += n;
+            }
+            if (produced != length || !inflater.finished()) {
+                throw new IllegalArgumentException("Compressed SDP does not match its declared length");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed SDP", e);
+        }
+        return new String(inflated, StandardCharsets.UTF_8);
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, size + extra));
+        }
+    }
+
+    private void writeByte(int value) {
+        ensure(1);
+        out[size++] = (byte) value;
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, out, size, length);
+        size += length;
+    }
+
+    private void writeVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7f) != 0) {
+            out[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[size++] = (byte) value;
+    }
+
+    private void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get() & 0xff;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private static int readLength(ByteBuffer in, int max) {
+        int length = readVarint(in);
+        if (length < 0 || length > max) {
+            throw new IllegalArgumentException("Field length " + length + " out of range");
+        }
+        return length;
+    }
+
+    private static String readString(ByteBuffer in) {
+        return readString(in, readLength(in, in.remaining()));
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,124 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single thread that handles signaling in arrival order, with queue depth and timing metrics.
+ *
+ * SDP, ICE candidates and connection state changes all depend on what came before them, so
+ * they share one thread rather than a pool. Keeping them off the main looper means a burst of
+ * candidates no longer waits behind layout work.
+ */
+public class SignalingExecutor {
+
+    // One core thread; tasks due at the same time run in submission order
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final LatencyHistogram queueDelay;
+    private final LatencyHistogram handlingTime;
+    private volatile Thread.UncaughtExceptionHandler errorHandler;
+
+    public SignalingExecutor(String name) {
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> new Thread(runnable, name));
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        queueDelay = new LatencyHistogram(name + ".queue_delay_us");
+        handlingTime = new LatencyHistogram(name + ".handling_time_us");
+    }
+
+    /**
+     * Called with any exception a task throws; the thread carries on with the next task.
+     */
+    public void setErrorHandler(Thread.UncaughtExceptionHandler handler) {
+        errorHandler = handler;
+    }
+
+    /**
+     * Queues {@code task} behind everything submitted before it.
+     *
+     * @return false if the executor has been shut down and the task was dropped
+     */
+    public boolean execute(Runnable task) {
+        long submittedNs = System.nanoTime();
+        int depth = queueDepth.incrementAndGet();
+        int max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+            // Another submitter raised the maximum; re-check against it
+        }
+        try {
+            executor.execute(() -> run(task, submittedNs));
+            return true;
+        } catch (RejectedExecutionException e) {
+            queueDepth.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Queues {@code task} to run after {@code delayMs}. It counts towards the queue depth only
+     * once it is due, and tasks still waiting on their delay are dropped at shutdown.
+     *
+     * @return false if the executor has been shut down and the task was dropped
+     */
+    public boolean executeDelayed(Runnable task, long delayMs) {
+        try {
+            executor.schedule(() -> {
+                long dueNs = System.nanoTime();
+                queueDepth.incrementAndGet();
+                run(task, dueNs);
+            }, delayMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void run(Runnable task, long submittedNs) {
+        long startNs = System.nanoTime();
+        queueDepth.decrementAndGet();
+        queueDelay.record((startNs - submittedNs) / 1000);
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Thread.UncaughtExceptionHandler handler = errorHandler;
+            if (handler != null) {
+                handler.uncaughtException(Thread.currentThread(), e);
+            }
+        } finally {
+            handlingTime.record((System.nanoTime() - startNs) / 1000);
+        }
+    }
+
+    /**
+     * Runs tasks already queued, then stops accepting new ones.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tasks submitted but not yet started.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public LatencyHistogram getQueueDelay() {
+        return queueDelay;
+    }
+
+    public LatencyHistogram getHandlingTime() {
+        return handlingTime;
+    }
+}
@@ -0,0 +1,124 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One signaling message, independent of how it is framed on the wire (JSON or
+ * {@link SignalingCodec}'s binary format).
+ */
+public final class SignalingMessage {
+
+    public enum Type {
+        OFFER(1, "offer"),
+        ANSWER(2, "answer"),
+        CANDIDATES(3, "candidates"),
+        VIEWER_JOINED(4, "viewer-joined"),
+        VIEWER_LEFT(5, "viewer-left"),
+        PING(6, "ping"),
+        PONG(7, "pong");
+
+        // Stable wire values; never renumber
+        final int code;
+        public final String jsonName;
+
+        Type(int code, String jsonName) {
+            this.code = code;
+            this.jsonName = jsonName;
+        }
+
+        static Type fromCode(int code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
+
+        public static Type fromJsonName(String name) {
+            for (Type type : values()) {
+                if (type.jsonName.equals(name)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    public final Type type;
+    // Null for messages that concern the whole connection, such as PING
+    public final String viewerId;
+    // Set for OFFER and ANSWER only
+    public final String sdp;
+    public final List<SignalingCandidate> candidates;
+
+    private SignalingMessage(Type type, String viewerId, String sdp, List<SignalingCandidate> candidates) {
+        this.type = type;
+        this.viewerId = viewerId;
+        this.sdp = sdp;
+        this.candidates = candidates;
+    }
+
+    public static SignalingMessage offer(String viewerId, String sdp) {
+        return new SignalingMessage(Type.OFFER, viewerId, sdp, Collections.<SignalingCandidate>emptyList());
+    }
+
+    public static SignalingMessage answer(String viewerId, String sdp) {
+        return new SignalingMessage(Type.ANSWER, viewerId, sdp, Collections.<SignalingCandidate>emptyList());
+    }
+
+    public static SignalingMessage candidates(String viewerId, List<SignalingCandidate> candidates) {
+        return new SignalingMessage(Type.CANDIDATES, viewerId, null, Collections.unmodifiableList(candidates));
+    }
+
+    public static SignalingMessage viewerJoined(String viewerId) {
+        return new SignalingMessage(Type.VIEWER_JOINED, viewerId, null, Collections.<SignalingCandidate>emptyList());
+    }
+
+    public static SignalingMessage viewerLeft(String viewerId) {
+        return new SignalingMessage(Type.VIEWER_LEFT, viewerId, null, Collections.<SignalingCandidate>emptyList());
+    }
+
+    public static SignalingMessage ping() {
+        return new SignalingMessage(Type.PING, null, null, Collections.<SignalingCandidate>emptyList());
+    }
+
+    public static SignalingMessage pong() {
+        return new SignalingMessage(Type.PONG, null, null, Collections.<SignalingCandidate>emptyList());
+    }
+
+    static SignalingMessage of(Type type, String viewerId, String sdp, List<SignalingCandidate> candidates) {
+        return new SignalingMessage(type, viewerId, sdp, candidates);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SignalingMessage)) {
+            return false;
+        }
+        SignalingMessage that = (SignalingMessage) other;
+        return type == that.type
+                && (viewerId == null ? that.viewerId == null : viewerId.equals(that.viewerId))
+                && (sdp == null ? that.sdp == null : sdp.equals(that.sdp))
+                && candidates.equals(that.candidates);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = type.hashCode();
+        result = 31 * result + (viewerId == null ? 0 : viewerId.hashCode());
+        result = 31 * result + (sdp == null ? 0 : sdp.hashCode());
+        return 31 * result + candidates.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return type.jsonName + (viewerId == null ? "" : " " + viewerId)
+                + (sdp == null ? "" : " sdp[" + sdp.length() + "]")
+                + (candidates.isEmpty() ? "" : " candidates[" + candidates.size() + "]");
+    }
+}
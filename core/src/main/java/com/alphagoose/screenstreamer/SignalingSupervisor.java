@@ -0,0 +1,257 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the signaling socket up: connects, notices when the connection dies, and reconnects
+ * with {@link ReconnectBackoff} until stopped.
+ *
+ * Liveness comes from the transport's own WebSocket ping/pong; a connection whose pongs stop
+ * arriving is reported as a failure like any other. Everything, including the callback, runs on
+ * the given {@link SignalingExecutor}, and events from a connection that has since been replaced
+ * are ignored.
+ */
+public class SignalingSupervisor {
+
+    public enum State {
+        IDLE,
+        CONNECTING,
+        OPEN,
+        WAITING,
+        STOPPED
+    }
+
+    /**
+     * One open or opening socket.
+     */
+    public interface Connection {
+        /**
+         * @return false if the message could not be queued, for example because the socket closed
+         */
+        boolean send(String text);
+
+        /**
+         * Sends the remaining bytes of {@code bytes}. The buffer may be reused once this returns.
+         */
+        boolean send(ByteBuffer bytes);
+
+        /**
+         * Drops the connection without waiting for the peer; no further events are needed.
+         */
+        void cancel();
+    }
+
+    /**
+     * Opens sockets. Implementations report what happens to each one through its {@link Events},
+     * from any thread.
+     */
+    public interface Connector {
+        Connection connect(Events events);
+    }
+
+    /**
+     * Receives the supervisor's view of the connection, on the signaling thread.
+     */
+    public interface Callback {
+        /**
+         * @param resumed true if an earlier connection was lost and this one replaces it
+         */
+        void onConnected(boolean resumed);
+
+        void onText(String text);
+
+        void onBinary(byte[] bytes);
+
+        /**
+         * @param retryInMs when the next attempt is due
+         */
+        void onDisconnected(String reason, long retryInMs);
+    }
+
+    private final Connector connector;
+    private final SignalingExecutor executor;
+    private final ReconnectBackoff backoff;
+    private final long stableMs;
+    private final Callback callback;
+
+    // Only touched on the signaling thread
+    private State state = State.IDLE;
+    private Connection connection;
+    private Events events;
+    private long openedAtMs;
+    private boolean everOpened;
+    // Bumped per attempt so a reconnect timer from an earlier wait cannot fire into a later one
+    private int attempt;
+
+    private volatile int connectAttempts;
+    private volatile int reconnects;
+
+    /**
+     * @param stableMs how long a connection must stay open before the backoff starts over;
+     *                 a server that accepts and then drops straight away keeps backing off
+     */
+    public SignalingSupervisor(Connector connector, SignalingExecutor executor, ReconnectBackoff backoff,
+                               long stableMs, Callback callback) {
+        this.connector = connector;
+        this.executor = executor;
+        this.backoff = backoff;
+        this.stableMs = stableMs;
+        this.callback = callback;
+    }
+
+    public void start() {
+        executor.execute(() -> {
+            if (state == State.IDLE) {
+                connect();
+            }
+        });
+    }
+
+    /**
+     * Closes the connection for good. Pending reconnects are abandoned.
+     */
+    public void stop() {
+        executor.execute(() -> {
+            state = State.STOPPED;
+            events = null;
+            if (connection != null) {
+                connection.cancel();
+                connection = null;
+            }
+        });
+    }
+
+    /**
+     * Must be called on the signaling thread.
+     *
+     * @return false if there is no open connection; the message is not queued for later
+     */
+    public boolean send(String text) {
+        return state == State.OPEN && connection.send(text);
+    }
+
+    /**
+     * Must be called on the signaling thread.
+     */
+    public boolean send(ByteBuffer bytes) {
+        return state == State.OPEN && connection.send(bytes);
+    }
+
+    /**
+     * Drops the current connection and reconnects straight away, for when the caller has noticed
+     * something the transport has not, such as a network change.
+     */
+    public void reconnectNow() {
+        executor.execute(() -> {
+            if (state == State.STOPPED) {
+                return;
+            }
+            if (connection != null) {
+                connection.cancel();
+                connection = null;
+            }
+            backoff.reset();
+            connect();
+        });
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getConnectAttempts() {
+        return connectAttempts;
+    }
+
+    /**
+     * Connections opened after the first one was lost.
+     */
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    private void connect() {
+        state = State.CONNECTING;
+        connectAttempts++;
+        attempt++;
+        events = new Events();
+        connection = connector.connect(events);
+    }
+
+    private void onOpen(Events source) {
+        if (source != events || state != State.CONNECTING) {
+            return;
+        }
+        state = State.OPEN;
+        openedAtMs = nowMs();
+        boolean resumed = everOpened;
+        everOpened = true;
+        if (resumed) {
+            reconnects++;
+        }
+        callback.onConnected(resumed);
+    }
+
+    private void onLost(Events source, String reason) {
+        if (source != events) {
+            return;
+        }
+        events = null;
+        if (connection != null) {
+            connection.cancel();
+            connection = null;
+        }
+        if (state == State.OPEN && nowMs() - openedAtMs >= stableMs) {
+            backoff.reset();
+        }
+        long delayMs = backoff.nextDelayMs();
+        state = State.WAITING;
+        callback.onDisconnected(reason, delayMs);
+        int waitingAfter = attempt;
+        executor.executeDelayed(() -> {
+            if (state == State.WAITING && attempt == waitingAfter) {
+                connect();
+            }
+        }, delayMs);
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Event sink for one connection attempt. Safe to call from any thread.
+     */
+    public final class Events {
+
+        private Events() {
+        }
+
+        public void onOpen() {
+            executor.execute(() -> SignalingSupervisor.this.onOpen(this));
+        }
+
+        public void onText(String text) {
+            executor.execute(() -> {
+                if (this == events && state == State.OPEN) {
+                    callback.onText(text);
+                }
+            });
+        }
+
+        public void onBinary(byte[] bytes) {
+            executor.execute(() -> {
+                if (this == events && state == State.OPEN) {
+                    callback.onBinary(bytes);
+                }
+            });
+        }
+
+        /**
+         * The connection closed or failed, including missed pongs. Later calls are ignored.
+         */
+        public void onClosed(String reason) {
+            executor.execute(() -> onLost(this, reason));
+        }
+    }
+}
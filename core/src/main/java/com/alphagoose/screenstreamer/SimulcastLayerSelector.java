@@ -0,0 +1,117 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Picks which simulcast layer one viewer should receive from its link's bandwidth estimate.
+ *
+ * A viewer keeps its layer while the estimate covers that layer's bitrate and drops straight to
+ * the highest layer that fits as soon as it does not. Moving up goes one layer at a time, only
+ * once the estimate has covered the next layer with some headroom for a hold time, since every
+ * switch costs a keyframe and a link that only just fits would switch straight back.
+ */
+public class SimulcastLayerSelector {
+
+    /**
+     * The layers, highest first. Index 0 is the primary encoder that archive and HLS also use.
+     */
+    public enum Layer {
+        HIGH(1.0f, 1.0f),
+        MEDIUM(0.5f, 0.35f),
+        LOW(0.25f, 0.12f);
+
+        /** Resolution relative to the high layer. */
+        public final float resolutionScale;
+        /** Target bitrate relative to the high layer's. */
+        public final float bitrateFraction;
+
+        Layer(float resolutionScale, float bitrateFraction) {
+            this.resolutionScale = resolutionScale;
+            this.bitrateFraction = bitrateFraction;
+        }
+    }
+
+    public static final int LAYER_COUNT = Layer.values().length;
+
+    // How far the estimate must exceed the next layer's bitrate before stepping up to it
+    static final float STEP_UP_HEADROOM = 1.3f;
+
+    private final long stepUpHoldMs;
+    // -1 until the first estimate
+    private volatile int layer = -1;
+    private long clearSinceMs = -1;
+    private volatile long switchCount;
+
+    /**
+     * @param stepUpHoldMs how long the estimate must allow the next layer before moving up to it
+     */
+    public SimulcastLayerSelector(long stepUpHoldMs) {
+        this.stepUpHoldMs = stepUpHoldMs;
+    }
+
+    /**
+     * Updates the choice with one bandwidth sample. The first known estimate picks the layer
+     * directly; after that the rules above apply.
+     *
+     * @param availableBitrateBps the viewer's outgoing bandwidth estimate, or 0 if unknown
+     * @param layerBitrates       target bitrate of each running layer, highest first
+     * @return index of the layer the viewer should receive
+     */
+    public int select(long availableBitrateBps, int[] layerBitrates, long nowMs) {
+        int running = layerBitrates.length;
+        if (running <= 1) {
+            clearSinceMs = -1;
+            return setLayer(0);
+        }
+        if (layer >= running) {
+            // Layers were taken away under us
+            clearSinceMs = -1;
+            setLayer(running - 1);
+        }
+        if (availableBitrateBps <= 0) {
+            // Nothing to go on yet; the lowest layer reaches a new viewer soonest
+            return layer < 0 ? running - 1 : layer;
+        }
+
+        int fits = running - 1;
+        for (int i = 0; i < running - 1; i++) {
+            if (availableBitrateBps >= layerBitrates[i]) {
+                fits = i;
+                break;
+            }
+        }
+        if (layer < 0 || fits > layer) {
+            clearSinceMs = -1;
+            return setLayer(fits);
+        }
+        if (layer == 0 || availableBitrateBps < layerBitrates[layer - 1] * (double) STEP_UP_HEADROOM) {
+            clearSinceMs = -1;
+            return layer;
+        }
+        if (clearSinceMs < 0) {
+            clearSinceMs = nowMs;
+        } else if (nowMs - clearSinceMs >= stepUpHoldMs) {
+            // Restart the hold, so each further step up waits again
+            clearSinceMs = nowMs;
+            return setLayer(layer - 1);
+        }
+        return layer;
+    }
+
+    private int setLayer(int next) {
+        if (layer >= 0 && next != layer) {
+            switchCount++;
+        }
+        layer = next;
+        return next;
+    }
+
+    /**
+     * @return the layer chosen by the last call to {@link #select}, or -1 before the first estimate
+     */
+    public int getLayer() {
+        return layer;
+    }
+
+    public long getSwitchCount() {
+        return switchCount;
+    }
+}
@@ -0,0 +1,196 @@
+package com.alphagoose.screenstreamer;
+
+/**
+ * Steps the stream through lighter encoding profiles as the device heats up or its battery runs
+ * low, so frame rate and resolution come down in planned steps instead of the OS throttling the
+ * encoder into dropped frames.
+ *
+ * The thermal forecast (headroom) is used where available, which lets the governor act before
+ * the reported status crosses into throttling. Stepping down happens on the first sample that
+ * calls for it, as far as needed. Stepping back up goes one profile at a time, only after the
+ * device has been clearly below the thresholds for a hold time, so a device hovering at a
+ * threshold does not flap.
+ */
+public class StreamingGovernor {
+
+    /**
+     * One snapshot of the device state.
+     */
+    public static final class Signals {
+        /** PowerManager thermal status levels; also what {@link #thermalStatus} reads. */
+        public static final int THERMAL_UNKNOWN = -1;
+        public static final int THERMAL_NONE = 0;
+        public static final int THERMAL_LIGHT = 1;
+        public static final int THERMAL_MODERATE = 2;
+        public static final int THERMAL_SEVERE = 3;
+
+        /** PowerManager THERMAL_STATUS_*, or THERMAL_UNKNOWN. */
+        public final int thermalStatus;
+        /** Forecast thermal headroom where 1 means throttling, or NaN if unknown. */
+        public final float thermalHeadroom;
+        /** Battery charge 0..100, or -1 if unknown. */
+        public final int batteryPercent;
+        public final boolean charging;
+
+        public Signals(int thermalStatus, float thermalHeadroom, int batteryPercent, boolean charging) {
+            this.thermalStatus = thermalStatus;
+            this.thermalHeadroom = thermalHeadroom;
+            this.batteryPercent = batteryPercent;
+            this.charging = charging;
+        }
+
+        @Override
+        public String toString() {
+            return "thermal " + thermalStatus + " (headroom " + thermalHeadroom + "), battery "
+                    + batteryPercent + "%" + (charging ? " charging" : "");
+        }
+    }
+
+    public interface SignalSource {
+        Signals read();
+    }
+
+    public interface Listener {
+        void onProfileChanged(Profile profile, Signals signals);
+    }
+
+    /**
+     * Encoding settings for one step of the ladder.
+     */
+    public enum Profile {
+        FULL(30, 1.0f, 1.0f),
+        BALANCED(30, 0.75f, 0.5f),
+        SAVER(20, 0.75f, 0.0f),
+        CRITICAL(15, 0.5f, 0.0f);
+
+        public final int frameRate;
+        /** Upper bound on the capture resolution scale; congestion may go lower. */
+        public final float maxResolutionScale;
+        /** Position in the encoder's complexity range, 0 for the cheapest. */
+        public final float complexity;
+
+        Profile(int frameRate, float maxResolutionScale, float complexity) {
+            this.frameRate = frameRate;
+            this.maxResolutionScale = maxResolutionScale;
+            this.complexity = complexity;
+        }
+    }
+
+    private static final Profile[] PROFILES = Profile.values();
+
+    // Headroom at which each profile below FULL is needed; 1.0 is where the OS starts throttling
+    private static final float[] HEADROOM_THRESHOLDS = {0.70f, 0.85f, 0.95f};
+    // How far below a threshold headroom must fall before stepping back up
+    static final float HEADROOM_HYSTERESIS = 0.10f;
+    // On battery, at or below these levels at least BALANCED and SAVER
+    private static final int BATTERY_BALANCED_PERCENT = 30;
+    private static final int BATTERY_SAVER_PERCENT = 15;
+    private static final int BATTERY_HYSTERESIS_PERCENT = 5;
+
+    private final SignalSource source;
+    private final Listener listener;
+    private final long stepUpHoldMs;
+    private volatile Profile profile = Profile.FULL;
+    private long clearSinceMs = -1;
+    private volatile Signals lastSignals;
+    private volatile long transitionCount;
+
+    /**
+     * @param stepUpHoldMs how long conditions must stay clear before each step back up
+     */
+    public StreamingGovernor(SignalSource source, Listener listener, long stepUpHoldMs) {
+        this.source = source;
+        this.listener = listener;
+        this.stepUpHoldMs = stepUpHoldMs;
+    }
+
+    /**
+     * Reads the signal source and changes profile if needed. Called periodically, and early
+     * when the platform reports a thermal status change.
+     *
+     * @return the profile in effect afterwards
+     */
+    public Profile poll(long nowMs) {
+        Signals signals = source.read();
+        lastSignals = signals;
+        int current = profile.ordinal();
+        int needed = neededLevel(signals, 0, 0);
+        if (needed > current) {
+            clearSinceMs = -1;
+            return setProfile(PROFILES[needed], signals);
+        }
+        int clearLevel = neededLevel(signals, HEADROOM_HYSTERESIS, BATTERY_HYSTERESIS_PERCENT);
+        if (clearLevel >= current) {
+            clearSinceMs = -1;
+            return profile;
+        }
+        if (clearSinceMs < 0) {
+            clearSinceMs = nowMs;
+        } else if (nowMs - clearSinceMs >= stepUpHoldMs) {
+            // Restart the hold, so each further step up waits again
+            clearSinceMs = nowMs;
+            return setProfile(PROFILES[current - 1], signals);
+        }
+        return profile;
+    }
+
+    private Profile setProfile(Profile next, Signals signals) {
+        profile = next;
+        transitionCount++;
+        listener.onProfileChanged(next, signals);
+        return next;
+    }
+
+    /**
+     * @param headroomMargin   subtracted from each headroom threshold
+     * @param batteryMargin    added to each battery threshold
+     */
+    static int neededLevel(Signals signals, float headroomMargin, int batteryMargin) {
+        int level = 0;
+        switch (signals.thermalStatus) {
+            case Signals.THERMAL_UNKNOWN:
+            case Signals.THERMAL_NONE:
+                break;
+            case Signals.THERMAL_LIGHT:
+                level = 1;
+                break;
+            case Signals.THERMAL_MODERATE:
+                level = 2;
+                break;
+            default:
+                level = 3;
+                break;
+        }
+        if (!Float.isNaN(signals.thermalHeadroom)) {
+            for (int i = HEADROOM_THRESHOLDS.length - 1; i >= 0; i--) {
+                if (signals.thermalHeadroom >= HEADROOM_THRESHOLDS[i] - headroomMargin) {
+                    level = Math.max(level, i + 1);
+                    break;
+                }
+            }
+        }
+        if (!signals.charging && signals.batteryPercent >= 0) {
+            if (signals.batteryPercent <= BATTERY_SAVER_PERCENT + batteryMargin) {
+                level = Math.max(level, Profile.SAVER.ordinal());
+            } else if (signals.batteryPercent <= BATTERY_BALANCED_PERCENT + batteryMargin) {
+                level = Math.max(level, Profile.BALANCED.ordinal());
+            }
+        }
+        return level;
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return the signals read by the last poll, or null before the first
+     */
+    public Signals getLastSignals() {
+        return lastSignals;
+    }
+
+    public long getTransitionCount() {
+        return transitionCount;
+    }
+}
@@ -0,0 +1,259 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Packs Annex-B H.264 or H.265 access units into an MPEG transport stream with a single video
+ * program. MediaCodec already emits Annex-B start codes, so samples pass through unchanged apart
+ * from an access unit delimiter and, on keyframes, the cached parameter sets.
+ *
+ * Not thread-safe; the returned buffer is reused by the next call.
+ */
+public class TsMuxer {
+    public static final int PACKET_SIZE = 188;
+    static final int PID_PAT = 0;
+    static final int PID_PMT = 0x1000;
+    static final int PID_VIDEO = 0x100;
+    static final int STREAM_TYPE_H264 = 0x1b;
+    static final int STREAM_TYPE_H265 = 0x24;
+    private static final int STREAM_ID_VIDEO = 0xe0;
+    private static final int PAYLOAD_SIZE = PACKET_SIZE - 4;
+    // PCR and random access flag: 2 bytes of adaptation header plus 6 of PCR
+    private static final int PCR_ADAPTATION_SIZE = 8;
+    private static final byte[] AUD_H264 = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final byte[] AUD_H265 = {0, 0, 0, 1, 0x46, 0x01, 0x50};
+
+    private final int streamType;
+    private final byte[] accessUnitDelimiter;
+    private byte[] parameterSets = new byte[0];
+    private int patContinuity;
+    private int pmtContinuity;
+    private int videoContinuity;
+    private byte[] out = new byte[64 * PACKET_SIZE];
+    private int size;
+    private byte[] pes = new byte[64 * 1024];
+
+    /**
+     * @throws IllegalArgumentException if {@code mimeType} cannot be carried in a transport stream
+     */
+    public TsMuxer(String mimeType) {
+        streamType = streamTypeFor(mimeType);
+        if (streamType < 0) {
+            throw new IllegalArgumentException("No transport stream mapping for " + mimeType);
+        }
+        accessUnitDelimiter = streamType == STREAM_TYPE_H264 ? AUD_H264 : AUD_H265;
+    }
+
+    /**
+     * @return the PMT stream type for {@code mimeType}, or -1 if it has none
+     */
+    public static int streamTypeFor(String mimeType) {
+        if (EncoderRegistry.MIME_AVC.equals(mimeType)) {
+            return STREAM_TYPE_H264;
+        }
+        if (EncoderRegistry.MIME_HEVC.equals(mimeType)) {
+            return STREAM_TYPE_H265;
+        }
+        return -1;
+    }
+
+    /**
+     * Remembers the codec config buffer (SPS/PPS, plus VPS for H.265) to repeat before every
+     * keyframe, since MediaCodec sends it only once.
+     */
+    public void setParameterSets(ByteBuffer config) {
+        parameterSets = new byte[config.remaining()];
+        config.duplicate().get(parameterSets);
+    }
+
+    public boolean hasParameterSets() {
+        return parameterSets.length > 0;
+    }
+
+    /**
+     * PAT and PMT, which start every segment so each one can be played on its own.
+     */
+    public ByteBuffer writeTables() {
+        size = 0;
+        writePat();
+        writePmt();
+        return ByteBuffer.wrap(out, 0, size);
+    }
+
+    /**
+     * Muxes one access unit.
+     *
+     * @param pts90k presentation time on the 90 kHz clock
+     */
+    public ByteBuffer writeSample(ByteBuffer data, long pts90k, boolean keyFrame) {
+        size = 0;
+        int pesLength = buildPes(data, pts90k, keyFrame);
+        int offset = 0;
+        boolean first = true;
+        while (offset < pesLength) {
+            int adaptation = first ? PCR_ADAPTATION_SIZE : 0;
+            int room = PAYLOAD_SIZE - adaptation;
+            int chunk = Math.min(room, pesLength - offset);
+            if (chunk < room) {
+                // The last packet is padded with adaptation field stuffing
+                adaptation = PAYLOAD_SIZE - chunk;
+            }
+            ensure(PACKET_SIZE);
+            int start = size;
+            out[size++] = 0x47;
+            out[size++] = (byte) ((first ? 0x40 : 0) | (PID_VIDEO >> 8));
+            out[size++] = (byte) PID_VIDEO;
+            out[size++] = (byte) ((adaptation > 0 ? 0x30 : 0x10) | videoContinuity);
+            videoContinuity = (videoContinuity + 1) & 0x0f;
+            if (adaptation > 0) {
+                writeAdaptation(adaptation, first, keyFrame, pts90k);
+            }
+            System.arraycopy(pes, offset, out, size, chunk);
+            size += chunk;
+            offset += chunk;
+            first = false;
+            if (size - start != PACKET_SIZE) {
+                throw new IllegalStateException("Packet of " + (size - start) + " bytes");
+            }
+        }
+        return ByteBuffer.wrap(out, 0, size);
+    }
+
+    private int buildPes(ByteBuffer data, long pts90k, boolean keyFrame) {
+        int payload = accessUnitDelimiter.length + (keyFrame ? parameterSets.length : 0) + data.remaining();
+        int length = 14 + payload;
+        if (pes.length < length) {
+            pes = Arrays.copyOf(pes, Math.max(pes.length * 2, length));
+        }
+        pes[0] = 0;
+        pes[1] = 0;
+        pes[2] = 1;
+        pes[3] = (byte) STREAM_ID_VIDEO;
+        // Video PES may leave the length unset, which also lifts the 64 KiB limit
+        pes[4] = 0;
+        pes[5] = 0;
+        pes[6] = (byte) 0x80;
+        pes[7] = (byte) 0x80; // PTS only; screen encoders do not reorder frames
+        pes[8] = 5;
+        writeTimestamp(pes, 9, 0x2, pts90k);
+        int offset = 14;
+        System.arraycopy(accessUnitDelimiter, 0, pes, offset, accessUnitDelimiter.length);
+        offset += accessUnitDelimiter.length;
+        if (keyFrame) {
+            System.arraycopy(parameterSets, 0, pes, offset, parameterSets.length);
+            offset += parameterSets.length;
+        }
+        data.duplicate().get(pes, offset, data.remaining());
+        return length;
+    }
+
+    private static void writeTimestamp(byte[] dst, int offset, int prefix, long pts90k) {
+        dst[offset] = (byte) ((prefix << 4) | (((pts90k >> 30) & 0x07) << 1) | 1);
+        dst[offset + 1] = (byte) (pts90k >> 22);
+        dst[offset + 2] = (byte) ((((pts90k >> 15) & 0x7f) << 1) | 1);
+        dst[offset + 3] = (byte) (pts90k >> 7);
+        dst[offset + 4] = (byte) (((pts90k & 0x7f) << 1) | 1);
+    }
+
+    private void writeAdaptation(int adaptation, boolean withPcr, boolean keyFrame, long pts90k) {
+        int fieldLength = adaptation - 1;
+        out[size++] = (byte) fieldLength;
+        int written = 0;
+        if (fieldLength > 0) {
+            int flags = 0;
+            if (withPcr) {
+                flags |= 0x10;
+                if (keyFrame) {
+                    flags |= 0x40;
+                }
+            }
+            out[size++] = (byte) flags;
+            written = 1;
+            if (withPcr && fieldLength >= 7) {
+                // PCR base only; the 27 MHz extension stays zero
+                out[size++] = (byte) (pts90k >> 25);
+                out[size++] = (byte) (pts90k >> 17);
+                out[size++] = (byte) (pts90k >> 9);
+                out[size++] = (byte) (pts90k >> 1);
+                out[size++] = (byte) (((pts90k & 1) << 7) | 0x7e);
+                out[size++] = 0;
+                written += 6;
+            }
+        }
+        while (written < fieldLength) {
+            out[size++] = (byte) 0xff;
+            written++;
+        }
+    }
+
+    private void writePat() {
+        byte[] section = {
+                0x00, // table_id
+                (byte) 0xb0, 13, // section length
+                0x00, 0x01, // transport_stream_id
+                (byte) 0xc1, 0x00, 0x00,
+                0x00, 0x01, // program_number
+                (byte) (0xe0 | (PID_PMT >> 8)), (byte) PID_PMT
+        };
+        patContinuity = writeSection(PID_PAT, section, patContinuity);
+    }
+
+    private void writePmt() {
+        byte[] section = {
+                0x02, // table_id
+                (byte) 0xb0, 18, // section length
+                0x00, 0x01, // program_number
+                (byte) 0xc1, 0x00, 0x00,
+                (byte) (0xe0 | (PID_VIDEO >> 8)), (byte) PID_VIDEO, // PCR PID
+                (byte) 0xf0, 0x00, // program_info_length
+                (byte) streamType,
+                (byte) (0xe0 | (PID_VIDEO >> 8)), (byte) PID_VIDEO,
+                (byte) 0xf0, 0x00 // ES_info_length
+        };
+        pmtContinuity = writeSection(PID_PMT, section, pmtContinuity);
+    }
+
+    /**
+     * @return the next continuity counter for {@code pid}
+     */
+    private int writeSection(int pid, byte[] section, int continuity) {
+        ensure(PACKET_SIZE);
+        int start = size;
+        out[size++] = 0x47;
+        out[size++] = (byte) (0x40 | (pid >> 8));
+        out[size++] = (byte) pid;
+        out[size++] = (byte) (0x10 | continuity);
+        out[size++] = 0; // pointer_field
+        System.arraycopy(section, 0, out, size, section.length);
+        size += section.length;
+        int crc = crc32(section, section.length);
+        out[size++] = (byte) (crc >>> 24);
+        out[size++] = (byte) (crc >>> 16);
+        out[size++] = (byte) (crc >>> 8);
+        out[size++] = (byte) crc;
+        Arrays.fill(out, size, start + PACKET_SIZE, (byte) 0xff);
+        size = start + PACKET_SIZE;
+        return (continuity + 1) & 0x0f;
+    }
+
+    /**
+     * CRC-32/MPEG-2: polynomial 0x04C11DB7, no reflection, no final xor.
+     */
+    static int crc32(byte[] data, int length) {
+        int crc = 0xffffffff;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xff) << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What a consumer joining mid-stream needs to start decoding: the latest H.264 or H.265
+ * parameter sets, and where the latest keyframe was.
+ *
+ * Every access unit the encoder produces goes through {@link #inspect} on the drain thread.
+ * Only NAL headers up to the first slice are read, so the cost does not grow with frame size,
+ * and nothing is allocated unless the parameter sets change. Parameter sets are picked up from
+ * codec-config buffers, from in-band copies ahead of keyframes, or from the output format's
+ * csd buffers, whichever the encoder provides. Only the latest set of each kind is kept, which
+ * is all a screen encoder ever uses.
+ */
+public class VideoStreamIndex {
+    /** The access unit starts an IDR (H.264) or random access (H.265) picture. */
+    public static final int FRAME_KEY = 1;
+    /** The access unit carries parameter sets. */
+    public static final int FRAME_PARAMETER_SETS = 2;
+    /** The access unit has picture data. */
+    public static final int FRAME_SLICE = 4;
+    /** No other picture refers to this one, so it can be dropped without breaking decoding. */
+    public static final int FRAME_DISPOSABLE = 8;
+
+    private static final int VPS = 0;
+    private static final int SPS = 1;
+    private static final int PPS = 2;
+
+    private final boolean hevc;
+    private final NalScanner scanner = new NalScanner();
+    private final byte[][] parameterSets = {new byte[64], new byte[256], new byte[64]};
+    private final int[] parameterSetLengths = new int[3];
+    private volatile ByteBuffer codecConfig;
+    private volatile long latestKeyFramePtsUs = -1;
+    private volatile int latestKeyFrameSliceOffset = -1;
+    private volatile long keyFrames;
+
+    /**
+     * @param mimeType {@link EncoderRegistry#MIME_AVC} or {@link EncoderRegistry#MIME_HEVC}
+     */
+    public VideoStreamIndex(String mimeType) {
+        if (!EncoderRegistry.MIME_AVC.equals(mimeType) && !EncoderRegistry.MIME_HEVC.equals(mimeType)) {
+            throw new IllegalArgumentException("No NAL units in " + mimeType);
+        }
+        hevc = EncoderRegistry.MIME_HEVC.equals(mimeType);
+    }
+
+    /**
+     * Classifies one Annex-B access unit and updates the index. Position and limit are left
+     * unchanged. Must only be called from one thread.
+     *
+     * @return FRAME_* bits
+     */
+    public int inspect(ByteBuffer accessUnit, long presentationTimeUs) {
+        scanner.reset(accessUnit);
+        int result = 0;
+        boolean changed = false;
+        while (scanner.next()) {
+            int kind = parameterSetKind();
+            if (kind >= 0) {
+                result |= FRAME_PARAMETER_SETS;
+                changed |= store(kind, accessUnit);
+            } else if (isSlice()) {
+                result |= FRAME_SLICE;
+                if (isKeyPicture()) {
+                    result |= FRAME_KEY;
+                    latestKeyFrameSliceOffset = scanner.nalOffset - accessUnit.position();
+                    latestKeyFramePtsUs = presentationTimeUs;
+                    keyFrames++;
+                } else if (isNonReference()) {
+                    result |= FRAME_DISPOSABLE;
+                }
+                // Every slice of a picture agrees on these, so the slice data need not be read
+                break;
+            }
+        }
+        if (changed) {
+            rebuildCodecConfig();
+        }
+        return result;
+    }
+
+    /**
+     * Takes parameter sets from a codec-specific data buffer (the output format's csd-0 or
+     * csd-1), which MediaCodec gives in Annex-B form.
+     */
+    public void addCodecConfig(ByteBuffer config) {
+        if (config != null) {
+            inspect(config, -1);
+        }
+    }
+
+    /**
+     * @return the parameter sets in Annex-B form, ready for a decoder or muxer, or null until
+     * a complete set has been seen
+     */
+    public ByteBuffer getCodecConfig() {
+        ByteBuffer config = codecConfig;
+        return config == null ? null : config.duplicate();
+    }
+
+    /**
+     * Presentation time of the latest keyframe, or -1 if there has been none.
+     */
+    public long getLatestKeyFramePtsUs() {
+        return latestKeyFramePtsUs;
+    }
+
+    /**
+     * Where the latest keyframe's first slice starts within its access unit, past any AUD, SEI
+     * and parameter sets in front of it, or -1 if there has been none.
+     */
+    public int getLatestKeyFrameSliceOffset() {
+        return latestKeyFrameSliceOffset;
+    }
+
+    public long getKeyFrameCount() {
+        return keyFrames;
+    }
+
+    private int parameterSetKind() {
+        if (hevc) {
+            switch (scanner.h265Type()) {
+                case NalScanner.H265_VPS:
+                    return VPS;
+                case NalScanner.H265_SPS:
+                    return SPS;
+                case NalScanner.H265_PPS:
+                    return PPS;
+                default:
+                    return -1;
+            }
+        }
+        switch (scanner.h264Type()) {
+            case NalScanner.H264_SPS:
+                return SPS;
+            case NalScanner.H264_PPS:
+                return PPS;
+            default:
+                return -1;
+        }
+    }
+
+    private boolean isSlice() {
+        if (hevc) {
+            return scanner.h265Type() <= NalScanner.H265_LAST_SLICE;
+        }
+        int type = scanner.h264Type();
+        return type >= NalScanner.H264_NON_IDR && type <= NalScanner.H264_IDR;
+    }
+
+    private boolean isKeyPicture() {
+        if (hevc) {
+            int type = scanner.h265Type();
+            return type >= NalScanner.H265_FIRST_IRAP && type <= NalScanner.H265_LAST_IRAP;
+        }
+        return scanner.h264Type() == NalScanner.H264_IDR;
+    }
+
+    private boolean isNonReference() {
+        if (hevc) {
+            // TRAIL_N, TSA_N, STSA_N, RADL_N and RASL_N: the even types below 16
+            int type = scanner.h265Type();
+            return type < NalScanner.H265_FIRST_IRAP && type % 2 == 0;
+        }
+        return scanner.h264RefIdc() == 0;
+    }
+
+    /**
+     * @return true if the parameter set differs from the one already held
+     */
+    private boolean store(int kind, ByteBuffer source) {
+        int offset = scanner.nalOffset;
+        int length = scanner.nalLength();
+        byte[] held = parameterSets[kind];
+        if (parameterSetLengths[kind] == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = held[i] == source.get(offset + i);
+            }
+            if (same) {
+                return false;
+            }
+        }
+        if (held.length < length) {
+            held = new byte[length];
+            parameterSets[kind] = held;
+        }
+        for (int i = 0; i < length; i++) {
+            held[i] = source.get(offset + i);
+        }
+        parameterSetLengths[kind] = length;
+        return true;
+    }
+
+    private void rebuildCodecConfig() {
+        int first = hevc ? VPS : SPS;
+        int size = 0;
+        for (int kind = first; kind <= PPS; kind++) {
+            if (parameterSetLengths[kind] == 0) {
+                return;
+            }
+            size += 4 + parameterSetLengths[kind];
+        }
+        ByteBuffer config = ByteBuffer.allocate(size);
+        for (int kind = first; kind <= PPS; kind++) {
+            config.putInt(1).put(parameterSets[kind], 0, parameterSetLengths[kind]);
+        }
+        config.flip();
+        codecConfig = config.asReadOnlyBuffer();
+    }
+}
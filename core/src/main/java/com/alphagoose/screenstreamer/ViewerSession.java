@@ -0,0 +1,322 @@
+package com.alphagoose.screenstreamer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One viewer's bounded send queue and the thread that drains it into the viewer's transport.
+ *
+ * Frames are offered from the encoder drain thread and never block it. If the queue is full
+ * the viewer has fallen behind: everything queued is dropped and the session waits for the
+ * next keyframe, asking for one early, so the viewer resumes with a clean picture rather than
+ * a smeared one. Other viewers are unaffected.
+ *
+ * Once a pacing rate is set, the session thread spaces frames out with a {@link SendPacer} so a
+ * keyframe's burst is not followed straight away by more frames. Codec config is never held back.
+ * A disposable frame that has waited past {@link #STALE_FRAME_DEADLINE_US} is dropped rather than
+ * sent late; nothing refers to it, so the picture stays intact.
+ *
+ * With simulcast the session forwards one layer at a time. A new layer is only taken up at one
+ * of its keyframes, and from then on the old layer's frames are ignored, so the viewer's decoder
+ * never sees a delta frame from a stream it has not started. That keyframe carries the new
+ * layer's parameter sets, in-band or copied in by {@link ViewerSessionManager}, since the layer's
+ * own codec-config buffer went out when its encoder started.
+ */
+public class ViewerSession {
+
+    public interface Transport {
+        /**
+         * Sends one frame. Called only from the session thread, and may block. The transport
+         * owns one reference to {@code frame} and must release it when done, even on failure.
+         */
+        void send(EncodedFrame frame);
+
+        void close();
+    }
+
+    private static final long POLL_TIMEOUT_MS = 100;
+    // Up to about a frame interval of sending above the rate before the pacer holds frames back
+    private static final long PACER_BURST_WINDOW_MS = 40;
+    static final long STALE_FRAME_DEADLINE_US = 150000;
+
+    private final String viewerId;
+    private final Transport transport;
+    private final ArrayBlockingQueue<EncodedFrame> queue;
+    private final ViewerSessionManager.LayerKeyFrameSource keyFrameRequest;
+    private final LatencyHistogram dequeueToSend;
+    private final LatencyHistogram captureToSend;
+    private final LatencyHistogram queueDelay;
+    private final LatencyHistogram pacingDelay;
+    private final LatencyHistogram burstBytes;
+    private final SendPacer pacer = new SendPacer(PACER_BURST_WINDOW_MS);
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile boolean awaitingKeyFrame = true;
+    // The layer being forwarded, and the one to move to at its next keyframe
+    private volatile int layer;
+    private volatile int targetLayer;
+
+    // Each counter has a single writer: dropped under the session lock by whichever layer's
+    // dispatch thread is offering, sent on the session thread
+    private volatile long droppedFrames;
+    private volatile long sentFrames;
+    private volatile long sendErrors;
+    private volatile long staleFrames;
+    private volatile long layerSwitches;
+
+    /**
+     * @param dequeueToSend time from the encoder handing a frame over until it was sent, in microseconds
+     * @param captureToSend time from capture (the frame's pts) until it was sent, in microseconds
+     * @param queueDelay    time from the encoder handing a frame over until this session took it
+     *                      off its queue, in microseconds
+     * @param pacingDelay   time frames were held back by the pacer, in microseconds
+     * @param burstBytes    how far ahead of the pacing rate each sent frame left the viewer, in bytes
+     * @param layer         the simulcast layer to start on
+     */
+    ViewerSession(String viewerId, Transport transport, int queueCapacity,
+                  ViewerSessionManager.LayerKeyFrameSource keyFrameRequest,
+                  LatencyHistogram dequeueToSend, LatencyHistogram captureToSend, LatencyHistogram queueDelay,
+                  LatencyHistogram pacingDelay, LatencyHistogram burstBytes, int layer) {
+        this.viewerId = viewerId;
+        this.layer = layer;
+        this.targetLayer = layer;
+        this.transport = transport;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.keyFrameRequest = keyFrameRequest;
+        this.dequeueToSend = dequeueToSend;
+        this.captureToSend = captureToSend;
+        this.queueDelay = queueDelay;
+        this.pacingDelay = pacingDelay;
+        this.burstBytes = burstBytes;
+        this.thread = new Thread(this::run, "ViewerSession-" + viewerId);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    public String getViewerId() {
+        return viewerId;
+    }
+
+    /**
+     * Paces this viewer's frames to {@code bitsPerSecond}, typically a multiple of its link's
+     * estimated bandwidth. 0 sends frames as soon as they are queued.
+     */
+    public void setPacingRate(long bitsPerSecond) {
+        pacer.setRate(bitsPerSecond);
+    }
+
+    /**
+     * Moves the viewer to {@code layer} at that layer's next keyframe; until then it keeps
+     * receiving the current one. Asking for the current layer cancels a pending switch.
+     *
+     * @return true if the viewer now waits for a keyframe on {@code layer}
+     */
+    boolean switchTo(int layer) {
+        int previous = targetLayer;
+        targetLayer = layer;
+        return layer != this.layer && layer != previous;
+    }
+
+    /**
+     * Whether a frame from {@code fromLayer} would be taken, so the caller can skip copying
+     * frames of a layer nobody is on. Only a hint; {@link #offer(int, EncodedFrame)} decides.
+     */
+    boolean wants(int fromLayer, EncodedFrame frame) {
+        return fromLayer == layer || (fromLayer == targetLayer && frame.isKeyFrame());
+    }
+
+    /**
+     * Queues a frame from {@code fromLayer} if that is the layer this viewer is on, or the one it
+     * is moving to and the frame is a keyframe. Layers drain on different threads, so this is
+     * synchronized to keep a switch from interleaving the two streams.
+     */
+    synchronized void offer(int fromLayer, EncodedFrame frame) {
+        if (fromLayer != layer) {
+            if (fromLayer != targetLayer || !frame.isKeyFrame()) {
+                return;
+            }
+            layer = fromLayer;
+            layerSwitches++;
+        }
+        offer(frame);
+    }
+
+    /**
+     * Queues {@code frame} for this viewer, retaining it if accepted. Never blocks.
+     */
+    private void offer(EncodedFrame frame) {
+        if (closed) {
+            return;
+        }
+        boolean codecConfig = (frame.getFlags() & FrameRing.FLAG_CODEC_CONFIG) != 0;
+        if (awaitingKeyFrame) {
+            if (!frame.isKeyFrame() && !codecConfig) {
+                droppedFrames++;
+                return;
+            }
+            if (frame.isKeyFrame()) {
+                awaitingKeyFrame = false;
+            }
+        }
+
+        if (!queue.offer(frame.retain())) {
+            frame.release();
+            droppedFrames += flush() + 1;
+            awaitingKeyFrame = true;
+            // A pending switch can happen on the same keyframe
+            keyFrameRequest.requestKeyFrame(targetLayer);
+        }
+    }
+
+    /**
+     * Called when a frame of {@code fromLayer} could not be delivered to anyone; a viewer on
+     * that layer would be missing a reference, so it waits for a keyframe.
+     */
+    synchronized void onFrameMissed(int fromLayer) {
+        if (fromLayer != layer) {
+            return;
+        }
+        if (!awaitingKeyFrame) {
+            awaitingKeyFrame = true;
+            keyFrameRequest.requestKeyFrame(targetLayer);
+        }
+        droppedFrames++;
+    }
+
+    void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Waits for the session thread to exit.
+     */
+    void join(long timeoutMs) throws InterruptedException {
+        thread.join(timeoutMs);
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                EncodedFrame frame = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    continue;
+                }
+                // The transport may release the frame, so read it first
+                long dequeueTimeNs = frame.getDequeueTimeNs();
+                long ptsUs = frame.getPresentationTimeUs();
+                int flags = frame.getFlags();
+                int size = frame.getSize();
+                // Only live encoder frames are stamped, and their pts shares the nanoTime base
+                long nowNs = System.nanoTime();
+                if (dequeueTimeNs != 0) {
+                    queueDelay.record((nowNs - dequeueTimeNs) / 1000);
+                }
+                if ((flags & FrameRing.FLAG_CODEC_CONFIG) == 0) {
+                    long waitNs = pacer.delayNs(nowNs);
+                    if (waitNs > 0) {
+                        pace(waitNs);
+                        nowNs = System.nanoTime();
+                        pacingDelay.record(waitNs / 1000);
+                    }
+                    if ((flags & FrameRing.FLAG_DISPOSABLE) != 0 && dequeueTimeNs != 0
+                            && (nowNs - dequeueTimeNs) / 1000 > STALE_FRAME_DEADLINE_US) {
+                        frame.release();
+                        staleFrames++;
+                        continue;
+                    }
+                }
+                try {
+                    transport.send(frame);
+                    sentFrames++;
+                    nowNs = System.nanoTime();
+                    burstBytes.record(pacer.onSent(size, nowNs));
+                    if (dequeueTimeNs != 0) {
+                        dequeueToSend.record((nowNs - dequeueTimeNs) / 1000);
+                        captureToSend.record(nowNs / 1000 - ptsUs);
+                    }
+                } catch (RuntimeException e) {
+                    sendErrors++;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed while waiting for a frame
+        } finally {
+            flush();
+            transport.close();
+        }
+    }
+
+    /**
+     * Waits out the pacer. Throws if the session is closed meanwhile, like the queue poll does.
+     */
+    private void pace(long waitNs) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + waitNs;
+        long remainingNs = waitNs;
+        while (remainingNs > 0) {
+            LockSupport.parkNanos(this, remainingNs);
+            if (Thread.interrupted() || closed) {
+                throw new InterruptedException();
+            }
+            remainingNs = deadlineNs - System.nanoTime();
+        }
+    }
+
+    private int flush() {
+        int flushed = 0;
+        EncodedFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frame.release();
+            flushed++;
+        }
+        return flushed;
+    }
+
+    /**
+     * @return the simulcast layer this viewer is receiving
+     */
+    public int getLayer() {
+        return layer;
+    }
+
+    /**
+     * @return the layer this viewer is receiving or waiting to switch to
+     */
+    public int getTargetLayer() {
+        return targetLayer;
+    }
+
+    public long getLayerSwitches() {
+        return layerSwitches;
+    }
+
+    public boolean isAwaitingKeyFrame() {
+        return awaitingKeyFrame;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getSentFrames() {
+        return sentFrames;
+    }
+
+    public long getSendErrors() {
+        return sendErrors;
+    }
+
+    /**
+     * Disposable frames dropped because pacing held them past the deadline.
+     */
+    public long getStaleFrames() {
+        return staleFrames;
+    }
+}
@@ -0,0 +1,377 @@
+package com.alphagoose.screenstreamer;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fans one encoder's output out to any number of viewers, each with its own send queue.
+ *
+ * Every frame is copied once into a pooled buffer that all viewers share, and the codec's
+ * output buffer is handed straight back. Holding codec buffers in per-viewer queues would let
+ * a single slow viewer starve the encoder of output buffers and stall everyone else.
+ * Keyframe requests from joining or lagging viewers are coalesced into one encoder request.
+ * The encoder's codec-config buffer goes out only once, when it starts, so keyframes that lack
+ * in-band parameter sets get the latest ones copied in front; any viewer can start on any of them.
+ *
+ * With simulcast each layer's dispatcher feeds its own {@link #getLayerSink layer sink}, with
+ * its own copies and keyframe coalescing, and each viewer takes frames from one layer at a time.
+ * The manager itself is the sink for layer 0.
+ */
+public class ViewerSessionManager implements EncodedFrameDispatcher.Sink {
+
+    public interface KeyFrameSource {
+        void requestKeyFrame();
+    }
+
+    public interface LayerKeyFrameSource {
+        void requestKeyFrame(int layer);
+    }
+
+    public interface CodecConfigSource {
+        /**
+         * @return the layer's latest parameter sets in Annex-B form, or null if not known
+         */
+        ByteBuffer getCodecConfig(int layer);
+    }
+
+    private static final ViewerSession[] NO_SESSIONS = new ViewerSession[0];
+    private static final int INITIAL_COPY_CAPACITY = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    private final Map<String, ViewerSession> sessions = new ConcurrentHashMap<>();
+    // Copy-on-write snapshot so the drain thread iterates without locking or allocating
+    private volatile ViewerSession[] snapshot = NO_SESSIONS;
+    private final LayerFeed[] layers;
+    private final int queueCapacity;
+    private final CodecConfigSource codecConfig;
+    private final LayerKeyFrameSource keyFrameRequest = this::requestKeyFrame;
+    private final LatencyHistogram dequeueToSend = MetricsRegistry.getInstance().histogram("video.dequeue_to_send_us");
+    private final LatencyHistogram captureToSend = MetricsRegistry.getInstance().histogram("video.capture_to_send_us");
+    private final LatencyHistogram queueDelay = MetricsRegistry.getInstance().histogram("video.send_queue_delay_us");
+    private final LatencyHistogram pacingDelay = MetricsRegistry.getInstance().histogram("video.pacing_delay_us");
+    private final LatencyHistogram burstBytes = MetricsRegistry.getInstance().histogram("video.send_burst_bytes");
+
+    /**
+     * @param queueCapacity  frames each viewer may have queued before it is considered lagging
+     * @param maxCopies      upper bound on shared frame copies alive at once
+     * @param keyFrameTimeoutMs how long a forwarded keyframe request absorbs further ones
+     */
+    public ViewerSessionManager(KeyFrameSource source, int queueCapacity, int maxCopies, long keyFrameTimeoutMs) {
+        this(source, queueCapacity, maxCopies, keyFrameTimeoutMs, SharedMediaBuffer.getInstance().getBufferPool());
+    }
+
+    /**
+     * @param bufferPool where the shared frame copies get their memory
+     */
+    public ViewerSessionManager(KeyFrameSource source, int queueCapacity, int maxCopies, long keyFrameTimeoutMs,
+                                DirectBufferPool bufferPool) {
+        this(layer -> source.requestKeyFrame(), 1, queueCapacity, maxCopies, keyFrameTimeoutMs, bufferPool,
+                SharedMediaBuffer.getInstance()::getLayerCodecConfig);
+    }
+
+    /**
+     * @param layerCount  simulcast layers that may carry frames; {@code maxCopies} applies to each
+     * @param codecConfig where each layer's parameter sets are looked up for keyframes without them
+     */
+    public ViewerSessionManager(LayerKeyFrameSource source, int layerCount, int queueCapacity, int maxCopies,
+                                long keyFrameTimeoutMs, DirectBufferPool bufferPool, CodecConfigSource codecConfig) {
+        this.layers = new LayerFeed[layerCount];
+        for (int layer = 0; layer < layerCount; layer++) {
+            final int index = layer;
+            layers[layer] = new LayerFeed(layer, new KeyFrameCoalescer(() -> source.requestKeyFrame(index),
+                    keyFrameTimeoutMs), new FrameCopyPool(maxCopies, bufferPool));
+        }
+        this.codecConfig = codecConfig;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Starts a session for {@code viewerId}, replacing any existing one. The viewer receives
+     * nothing until the next keyframe, which is requested on its behalf.
+     */
+    public ViewerSession addViewer(String viewerId, ViewerSession.Transport transport) {
+        return addViewer(viewerId, transport, 0);
+    }
+
+    /**
+     * Starts a session that receives simulcast layer {@code layer}.
+     */
+    public ViewerSession addViewer(String viewerId, ViewerSession.Transport transport, int layer) {
+        ViewerSession session = new ViewerSession(viewerId, transport, queueCapacity, keyFrameRequest,
+                dequeueToSend, captureToSend, queueDelay, pacingDelay, burstBytes, layer);
+        session.start();
+        ViewerSession previous;
+        synchronized (this) {
+            previous = sessions.put(viewerId, session);
+            rebuildSnapshot();
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        requestKeyFrame(layer);
+        return session;
+    }
+
+    /**
+     * Moves a viewer to another simulcast layer at that layer's next keyframe, which is requested
+     * if the viewer was not already waiting for one there.
+     */
+    public void setLayer(String viewerId, int layer) {
+        ViewerSession session = sessions.get(viewerId);
+        if (session != null && session.switchTo(layer)) {
+            requestKeyFrame(layer);
+        }
+    }
+
+    /**
+     * Stops the viewer's session and waits briefly for its transport to be closed, so the
+     * caller can tear down whatever the transport was writing to.
+     */
+    public void removeViewer(String viewerId) {
+        ViewerSession session;
+        synchronized (this) {
+            session = sessions.remove(viewerId);
+            rebuildSnapshot();
+        }
+        if (session != null) {
+            session.close();
+            try {
+                session.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public ViewerSession getViewer(String viewerId) {
+        return sessions.get(viewerId);
+    }
+
+    public int getViewerCount() {
+        return snapshot.length;
+    }
+
+    /**
+     * Closes every session and waits briefly for their threads to finish.
+     */
+    public void close() {
+        ViewerSession[] closing;
+        synchronized (this) {
+            closing = snapshot;
+            sessions.clear();
+            snapshot = NO_SESSIONS;
+        }
+        for (ViewerSession session : closing) {
+            session.close();
+        }
+        for (ViewerSession session : closing) {
+            try {
+                session.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedFrame frame) {
+        layers[0].onEncodedFrame(frame);
+    }
+
+    /**
+     * The sink to add to simulcast layer {@code layer}'s dispatcher. Layer 0 is this manager.
+     */
+    public EncodedFrameDispatcher.Sink getLayerSink(int layer) {
+        return layer == 0 ? this : layers[layer];
+    }
+
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    public void requestKeyFrame() {
+        requestKeyFrame(0);
+    }
+
+    public void requestKeyFrame(int layer) {
+        layers[layer].keyFrames.request(System.nanoTime() / 1000000);
+    }
+
+    /**
+     * Requests a keyframe on whichever layer {@code viewerId} is receiving or moving to.
+     */
+    public void requestKeyFrame(String viewerId) {
+        ViewerSession session = sessions.get(viewerId);
+        requestKeyFrame(session != null ? session.getTargetLayer() : 0);
+    }
+
+    public KeyFrameCoalescer getKeyFrameCoalescer() {
+        return layers[0].keyFrames;
+    }
+
+    public KeyFrameCoalescer getKeyFrameCoalescer(int layer) {
+        return layers[layer].keyFrames;
+    }
+
+    /**
+     * Frames no viewer received because every shared copy was still queued somewhere.
+     */
+    public long getPoolExhaustedFrames() {
+        long total = 0;
+        for (LayerFeed layer : layers) {
+            total += layer.poolExhaustedFrames;
+        }
+        return total;
+    }
+
+    /**
+     * Viewer switches between simulcast layers, over every current session.
+     */
+    public long getLayerSwitches() {
+        long total = 0;
+        for (ViewerSession session : snapshot) {
+            total += session.getLayerSwitches();
+        }
+        return total;
+    }
+
+    int getLiveCopies() {
+        int total = 0;
+        for (LayerFeed layer : layers) {
+            total += layer.copies.getLiveCount();
+        }
+        return total;
+    }
+
+    private void rebuildSnapshot() {
+        snapshot = sessions.isEmpty() ? NO_SESSIONS : sessions.values().toArray(NO_SESSIONS);
+    }
+
+    /**
+     * Copies one layer's frames once for the viewers on it. Runs on that layer's drain thread.
+     */
+    private final class LayerFeed implements EncodedFrameDispatcher.Sink {
+        final int index;
+        final KeyFrameCoalescer keyFrames;
+        final FrameCopyPool copies;
+        volatile long poolExhaustedFrames;
+
+        LayerFeed(int index, KeyFrameCoalescer keyFrames, FrameCopyPool copies) {
+            this.index = index;
+            this.keyFrames = keyFrames;
+            this.copies = copies;
+        }
+
+        @Override
+        public void onEncodedFrame(EncodedFrame frame) {
+            ViewerSession[] current = snapshot;
+            if (current.length == 0) {
+                return;
+            }
+            if (frame.isKeyFrame()) {
+                keyFrames.onKeyFrame();
+            }
+            boolean wanted = false;
+            for (ViewerSession session : current) {
+                if (session.wants(index, frame)) {
+                    wanted = true;
+                    break;
+                }
+            }
+            if (!wanted) {
+                // Nobody is on this layer or waiting to join it
+                return;
+            }
+
+            ByteBuffer parameterSets = null;
+            if (frame.isKeyFrame() && (frame.getFlags() & FrameRing.FLAG_PARAMETER_SETS) == 0) {
+                // A viewer starting on this keyframe may never have seen the codec-config buffer
+                parameterSets = codecConfig.getCodecConfig(index);
+            }
+            EncodedFrame copy = copies.copyOf(frame, parameterSets);
+            if (copy == null) {
+                poolExhaustedFrames++;
+                for (ViewerSession session : current) {
+                    session.onFrameMissed(index);
+                }
+                return;
+            }
+            try {
+                for (ViewerSession session : current) {
+                    session.offer(index, copy);
+                }
+            } finally {
+                copy.release();
+            }
+        }
+    }
+
+    /**
+     * Direct buffers reused across frames. {@link #copyOf} runs only on its layer's drain thread;
+     * frames come back from whichever session thread drops the last reference.
+     */
+    private static final class FrameCopyPool implements EncodedFrame.Recycler {
+        private final ArrayBlockingQueue<EncodedFrame> free;
+        private final ByteBuffer[] buffers;
+        private final DirectBufferPool bufferPool;
+        private volatile int created;
+
+        FrameCopyPool(int maxCopies, DirectBufferPool bufferPool) {
+            free = new ArrayBlockingQueue<>(maxCopies);
+            buffers = new ByteBuffer[maxCopies];
+            this.bufferPool = bufferPool;
+        }
+
+        /**
+         * @param prefix copied in front of the frame's data if not null
+         */
+        EncodedFrame copyOf(EncodedFrame source, ByteBuffer prefix) {
+            EncodedFrame frame = free.poll();
+            if (frame == null) {
+                if (created == buffers.length) {
+                    return null;
+                }
+                buffers[created] = bufferPool.acquire(INITIAL_COPY_CAPACITY);
+                frame = new EncodedFrame(this, created++);
+            }
+
+            ByteBuffer data = source.getData();
+            int size = data.remaining() + (prefix != null ? prefix.remaining() : 0);
+            ByteBuffer buffer = buffers[frame.getBufferIndex()];
+            if (buffer.capacity() < size) {
+                // The frame is free, so nothing else can still be reading its old buffer
+                bufferPool.release(buffer);
+                buffer = bufferPool.acquire(size);
+                buffers[frame.getBufferIndex()] = buffer;
+            }
+            buffer.clear();
+            int flags = source.getFlags();
+            if (prefix != null) {
+                buffer.put(prefix.duplicate());
+                flags |= FrameRing.FLAG_PARAMETER_SETS;
+            }
+            // Sinks run one after another on this thread, so borrowing the position is safe
+            int position = data.position();
+            buffer.put(data);
+            data.position(position);
+            buffer.flip();
+
+            frame.reset(buffer, source.getPresentationTimeUs(), flags,
+                    source.getWidth(), source.getHeight());
+            frame.setDequeueTimeNs(source.getDequeueTimeNs());
+            return frame;
+        }
+
+        @Override
+        public void recycle(EncodedFrame frame) {
+            free.offer(frame);
+        }
+
+        int getLiveCount() {
+            return created - free.size();
+        }
+    }
+}
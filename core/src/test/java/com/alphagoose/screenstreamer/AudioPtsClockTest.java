@@ -0,0 +1,62 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AudioPtsClockTest {
+
+    @Test
+    public void ptsAdvancesBySampleCountNotWallClock() {
+        AudioPtsClock clock = new AudioPtsClock(48000, 40000);
+        // 1024 frames at 48 kHz is 21333 us; the reads complete with a little jitter
+        long first = clock.nextPts(1024, 1021333);
+        long second = clock.nextPts(1024, 1044000);
+        long third = clock.nextPts(1024, 1063000);
+        assertEquals(1000000, first);
+        assertEquals(1021333, second);
+        assertEquals(1042666, third);
+        assertEquals(0, clock.getResyncCount());
+    }
+
+    @Test
+    public void reanchorsAfterCaptureStall() {
+        AudioPtsClock clock = new AudioPtsClock(48000, 40000);
+        clock.nextPts(1024, 1021333);
+        // Source stalled for half a second
+        long resumed = clock.nextPts(1024, 1542666);
+        assertEquals(1521333, resumed);
+        assertEquals(1, clock.getResyncCount());
+    }
+
+    @Test
+    public void ptsNeverGoesBackwards() {
+        AudioPtsClock clock = new AudioPtsClock(48000, 10000);
+        long first = clock.nextPts(1024, 2000000);
+        // The clock jumps back far enough to force a resync
+        long second = clock.nextPts(1024, 1900000);
+        assertTrue(second > first);
+    }
+
+    @Test
+    public void audioAndVideoRingsAreIndependent() {
+        SharedMediaBuffer shared = SharedMediaBuffer.getInstance();
+        FrameRing.Reader videoReader = shared.newVideoReader();
+        FrameRing.Reader audioReader = shared.newAudioReader();
+
+        shared.publishAudioFrame(ByteBuffer.wrap(new byte[]{1, 2, 3}), 5000, 0);
+        shared.publishVideoFrame(ByteBuffer.wrap(new byte[]{9, 9, 9, 9}), 5000, FrameRing.FLAG_KEY_FRAME);
+
+        FrameRing.FrameInfo info = new FrameRing.FrameInfo();
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        assertEquals(3, audioReader.read(dst, info));
+        assertEquals(1, dst.get(0));
+        assertEquals(FrameRing.NO_FRAME, audioReader.read(dst, info));
+
+        dst.clear();
+        assertEquals(4, videoReader.read(dst, info));
+        assertEquals(9, dst.get(0));
+    }
+}
@@ -0,0 +1,101 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaptureGeometryTest {
+
+    // A 1440p phone in portrait
+    private static final int WIDTH = 1440;
+    private static final int HEIGHT = 3200;
+
+    @Test
+    public void fullEncodesTheDisplayAsIs() {
+        CaptureGeometry.Layout layout = CaptureGeometry.full().layout(WIDTH, HEIGHT, 1);
+        assertEquals(1440, layout.encodedWidth);
+        assertEquals(3200, layout.encodedHeight);
+        assertEquals(1440, layout.displayWidth);
+        assertFalse(layout.isCropped());
+        assertEquals(1, layout.pixelFraction, 0);
+    }
+
+    @Test
+    public void scaledReducesTheLongEdgeAndKeepsTheAspect() {
+        CaptureGeometry.Layout layout = CaptureGeometry.scaled(1280).layout(WIDTH, HEIGHT, 1);
+        assertEquals(576, layout.encodedWidth);
+        assertEquals(1280, layout.encodedHeight);
+        assertEquals(layout.encodedWidth, layout.displayWidth);
+        assertEquals(layout.encodedHeight, layout.displayHeight);
+        assertFalse(layout.isCropped());
+        assertEquals(0.16, layout.pixelFraction, 0.001);
+    }
+
+    @Test
+    public void scaledNeverEnlargesASmallDisplay() {
+        CaptureGeometry.Layout layout = CaptureGeometry.scaled(4096).layout(720, 1280, 1);
+        assertEquals(720, layout.encodedWidth);
+        assertEquals(1280, layout.encodedHeight);
+    }
+
+    @Test
+    public void congestionScaleAppliesOnTop() {
+        CaptureGeometry.Layout layout = CaptureGeometry.scaled(1280).layout(WIDTH, HEIGHT, 0.5f);
+        assertEquals(288, layout.encodedWidth);
+        assertEquals(640, layout.encodedHeight);
+    }
+
+    @Test
+    public void regionIsEncodedAtNativeSizeFromAFullSizeDisplay() {
+        // The top half of the screen
+        CaptureGeometry.Layout layout = CaptureGeometry.region(0, 0, 1440, 1600, 0).layout(WIDTH, HEIGHT, 1);
+        assertTrue(layout.isCropped());
+        assertEquals(1440, layout.encodedWidth);
+        assertEquals(1600, layout.encodedHeight);
+        assertEquals(1440, layout.displayWidth);
+        assertEquals(3200, layout.displayHeight);
+        assertEquals(0, layout.cropTop, 0);
+        assertEquals(0.5f, layout.cropBottom, 0);
+        assertEquals(0.5, layout.pixelFraction, 0.001);
+    }
+
+    @Test
+    public void scaledRegionRendersTheDisplayOnlyAsLargeAsNeeded() {
+        CaptureGeometry.Layout layout = CaptureGeometry.region(360, 800, 1080, 2400, 800).layout(WIDTH, HEIGHT, 1);
+        assertEquals(352, layout.encodedWidth);
+        assertEquals(800, layout.encodedHeight);
+        // The region is 720x1600, encoded at half size, so the display is rendered at half size
+        assertEquals(720, layout.displayWidth);
+        assertEquals(1600, layout.displayHeight);
+        assertEquals(0.25f, layout.cropLeft, 0);
+        assertEquals(0.75f, layout.cropRight, 0);
+    }
+
+    @Test
+    public void regionIsClippedToTheDisplay() {
+        CaptureGeometry.Layout layout = CaptureGeometry.region(1000, 3000, 2000, 4000, 0).layout(WIDTH, HEIGHT, 1);
+        assertEquals(432, layout.encodedWidth);
+        assertEquals(192, layout.encodedHeight);
+        assertEquals(1f, layout.cropRight, 0);
+        assertEquals(1f, layout.cropBottom, 0);
+    }
+
+    @Test
+    public void regionOffTheDisplayFallsBackToFull() {
+        // A landscape region after the phone turned to portrait... and back
+        CaptureGeometry.Layout layout = CaptureGeometry.region(2000, 0, 3000, 500, 0).layout(WIDTH, HEIGHT, 1);
+        assertEquals(CaptureGeometry.Mode.FULL, layout.mode);
+        assertFalse(layout.isCropped());
+        assertEquals(1440, layout.encodedWidth);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyRegion() {
+        CaptureGeometry.region(100, 100, 100, 500, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsATinyLongEdge() {
+        CaptureGeometry.scaled(8);
+    }
+}
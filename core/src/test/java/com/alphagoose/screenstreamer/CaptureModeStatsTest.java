@@ -0,0 +1,61 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaptureModeStatsTest {
+
+    private static final long FULL_PIXELS = 1440 * 3200;
+
+    private final CaptureModeStats stats = new CaptureModeStats(FULL_PIXELS);
+
+    private void encode(int frames, int bytesPerFrame) {
+        for (int i = 0; i < frames; i++) {
+            stats.onFrame(bytesPerFrame);
+        }
+    }
+
+    @Test
+    public void reportsSavingsAgainstFullCapture() {
+        stats.switchTo(CaptureGeometry.Mode.FULL, FULL_PIXELS, 0);
+        // 30 s at 30 fps and 4.8 Mbps
+        encode(900, 20000);
+        stats.switchTo(CaptureGeometry.Mode.SCALED, 576 * 1280, 30000);
+        encode(900, 8000);
+
+        assertEquals(4800000, stats.getBitrate(CaptureGeometry.Mode.FULL, 60000));
+        assertEquals(1920000, stats.getBitrate(CaptureGeometry.Mode.SCALED, 60000));
+        assertEquals(30 * 576 * 1280, stats.getPixelRate(CaptureGeometry.Mode.SCALED, 60000));
+        assertEquals(-1, stats.getBitrate(CaptureGeometry.Mode.REGION, 60000));
+
+        String summary = stats.formatSummary(60000);
+        assertEquals("full: 30 s, 4.8 Mbps, 138.2 Mpx/s, 1.00 of full per frame\n"
+                + "scaled: 30 s, 1.9 Mbps (-60%), 22.1 Mpx/s, 0.16 of full per frame", summary);
+    }
+
+    @Test
+    public void noBitrateComparisonWithoutEnoughFullCapture() {
+        stats.switchTo(CaptureGeometry.Mode.FULL, FULL_PIXELS, 0);
+        encode(30, 20000);
+        stats.switchTo(CaptureGeometry.Mode.REGION, FULL_PIXELS / 2, 1000);
+        encode(300, 10000);
+        assertFalse(stats.formatSummary(11000).contains("%"));
+    }
+
+    @Test
+    public void resizeWithinAModeKeepsAccumulating() {
+        stats.switchTo(CaptureGeometry.Mode.SCALED, 1000, 0);
+        stats.onFrame(100);
+        stats.switchTo(CaptureGeometry.Mode.SCALED, 500, 1000);
+        stats.onFrame(100);
+        assertEquals(800, stats.getBitrate(CaptureGeometry.Mode.SCALED, 2000));
+        assertEquals(750, stats.getPixelRate(CaptureGeometry.Mode.SCALED, 2000));
+    }
+
+    @Test
+    public void framesBeforeTheFirstModeAreIgnored() {
+        stats.onFrame(1000);
+        assertEquals("", stats.formatSummary(1000));
+    }
+}
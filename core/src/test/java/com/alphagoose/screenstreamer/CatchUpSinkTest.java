@@ -0,0 +1,89 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CatchUpSinkTest {
+
+    private final FrameRing ring = new FrameRing(8, 64);
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+    private final EncodedFrame.Pool framePool = new EncodedFrame.Pool(frame -> { });
+    private final AtomicInteger keyFrameRequests = new AtomicInteger();
+    private final List<Long> received = new ArrayList<>();
+    private final List<Integer> receivedSizes = new ArrayList<>();
+    private final EncodedFrameDispatcher.Sink target = frame -> {
+        received.add(frame.getPresentationTimeUs());
+        receivedSizes.add(frame.getSize());
+        assertEquals(1280, frame.getWidth());
+    };
+    private final CatchUpSink sink = new CatchUpSink(ring, target, bufferPool, keyFrameRequests::incrementAndGet);
+
+    /**
+     * Publishes a frame to the ring, then dispatches it to the sink, as the encoder output does.
+     */
+    private void encode(long ptsUs, int size, int flags, boolean dispatch) {
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+        ring.publish(data, ptsUs, flags);
+        if (dispatch) {
+            EncodedFrame frame = framePool.obtain(0, data, ptsUs, flags, 1280, 720);
+            sink.onEncodedFrame(frame);
+            frame.release();
+        }
+    }
+
+    @Test
+    public void replaysFromTheKeyFrameInTheRing() {
+        encode(0, 100, 0, false);
+        encode(1, 100_000, FrameRing.FLAG_KEY_FRAME, false);
+        encode(2, 200, 0, false);
+        encode(3, 300, 0, true);
+        encode(4, 400, 0, true);
+
+        assertEquals(2, sink.getReplayedFrames());
+        assertEquals(0, keyFrameRequests.get());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), received);
+        assertEquals(100_000, (int) receivedSizes.get(0));
+        // Replay buffers went back to the pool once the target was done with them
+        assertEquals(0, bufferPool.getOutstandingBuffers());
+    }
+
+    @Test
+    public void requestsAKeyFrameWhenTheRingHasNone() {
+        for (int i = 0; i < 4; i++) {
+            encode(i, 100, 0, false);
+        }
+        encode(4, 100, 0, true);
+        assertEquals(1, keyFrameRequests.get());
+        assertEquals(0, sink.getReplayedFrames());
+        assertEquals(Arrays.asList(4L), received);
+    }
+
+    @Test
+    public void requestsAKeyFrameWhenTheRingKeyFrameWasOverwritten() {
+        encode(0, 100, FrameRing.FLAG_KEY_FRAME, false);
+        for (int i = 1; i < 12; i++) {
+            encode(i, 100, 0, false);
+        }
+        encode(12, 100, 0, true);
+        assertEquals(1, keyFrameRequests.get());
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void startsLiveOnAKeyFrameOrANewEncoder() {
+        encode(0, 100, FrameRing.FLAG_KEY_FRAME, false);
+        encode(1, 100, 0, false);
+        encode(2, 30, FrameRing.FLAG_CODEC_CONFIG, true);
+        encode(3, 100, FrameRing.FLAG_KEY_FRAME, true);
+        assertEquals(0, sink.getReplayedFrames());
+        assertEquals(0, keyFrameRequests.get());
+        assertEquals(Arrays.asList(2L, 3L), received);
+    }
+}
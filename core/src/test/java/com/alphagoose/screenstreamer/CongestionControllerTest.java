@@ -0,0 +1,184 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CongestionControllerTest {
+
+    private int bitrateChanges;
+    private int resolutionChanges;
+    private float lastScale = 1.0f;
+    private CongestionController controller;
+    private SimulatedLink link;
+    private long nowMs;
+
+    /**
+     * Bottleneck link with a drop-tail queue. Sending above capacity first builds delay,
+     * then loses the excess once the queue is full.
+     */
+    private static class SimulatedLink {
+        double baseRttMs = 20;
+        final double queueLimitBits;
+        double capacityBps;
+        double queuedBits;
+
+        SimulatedLink(double capacityBps) {
+            this.capacityBps = capacityBps;
+            this.queueLimitBits = capacityBps * 0.3;
+        }
+
+        double rttMs() {
+            return baseRttMs + queuedBits / capacityBps * 1000;
+        }
+
+        double send(double bitsThisSecond) {
+            double backlog = queuedBits + bitsThisSecond - capacityBps;
+            queuedBits = Math.max(0, Math.min(queueLimitBits, backlog));
+            double lost = Math.max(0, backlog - queueLimitBits);
+            return bitsThisSecond > 0 ? lost / bitsThisSecond : 0;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        controller = new CongestionController(new CongestionController.Listener() {
+            @Override
+            public void onTargetBitrateChanged(int bitrateBps) {
+                bitrateChanges++;
+            }
+
+            @Override
+            public void onResolutionScaleChanged(float scale) {
+                resolutionChanges++;
+                lastScale = scale;
+            }
+        }, 5000000, 300000, 8000000, 1920, 1080, 30);
+    }
+
+    private void run(int seconds, boolean reportAvailableBitrate) {
+        for (int i = 0; i < seconds; i++) {
+            nowMs += 1000;
+            double loss = link.send(controller.getTargetBitrate());
+            long available = reportAvailableBitrate ? (long) link.capacityBps : 0;
+            controller.onNetworkSample(nowMs, link.rttMs(), loss, available);
+        }
+    }
+
+    @Test
+    public void backsOffBelowCapacityOnCongestedLink() {
+        link = new SimulatedLink(1500000);
+        run(30, false);
+
+        // AIMD saws around capacity, so judge the steady-state average
+        long total = 0;
+        double worstRttMs = 0;
+        for (int i = 0; i < 60; i++) {
+            run(1, false);
+            total += controller.getTargetBitrate();
+            worstRttMs = Math.max(worstRttMs, link.rttMs());
+        }
+        long average = total / 60;
+        assertTrue("average " + average, average <= 1500000);
+        assertTrue("average " + average, average >= 1000000);
+        assertTrue("rtt " + worstRttMs, worstRttMs < 400);
+    }
+
+    @Test
+    public void higherBaseRttAfterARoamIsNotTakenAsCongestion() {
+        link = new SimulatedLink(4000000);
+        run(60, false);
+        int before = controller.getTargetBitrate();
+        // A new route, 200 ms longer, with the same capacity
+        link.baseRttMs = 220;
+        run(90, false);
+        int after = controller.getTargetBitrate();
+        assertTrue("before " + before + ", after " + after, after >= before * 0.7);
+        assertTrue("after " + after, after > 2000000);
+    }
+
+    @Test
+    public void neverExceedsAvailableBitrateEstimate() {
+        link = new SimulatedLink(2000000);
+        run(5, true);
+        assertEquals(1, bitrateChanges);
+        assertTrue(controller.getTargetBitrate() <= 2000000 * 0.9 + 1);
+    }
+
+    @Test
+    public void stepsResolutionDownWhenBitsPerPixelCollapse() {
+        link = new SimulatedLink(800000);
+        run(30, true);
+        assertTrue("scale " + lastScale, lastScale < 1.0f);
+        assertEquals(lastScale, controller.getResolutionScale(), 0.0f);
+    }
+
+    @Test
+    public void recoversResolutionWithoutFlapping() {
+        link = new SimulatedLink(800000);
+        run(30, true);
+        float congestedScale = controller.getResolutionScale();
+        int changesWhileCongested = resolutionChanges;
+
+        link = new SimulatedLink(20000000);
+        run(60, true);
+        assertTrue(controller.getResolutionScale() > congestedScale);
+        assertEquals(8000000, controller.getTargetBitrate());
+
+        // Steady good link: no further changes
+        int settledChanges = resolutionChanges;
+        run(60, true);
+        assertEquals(settledChanges, resolutionChanges);
+        assertTrue(changesWhileCongested <= CongestionController.RESOLUTION_SCALES.length);
+    }
+
+    @Test
+    public void oscillatingLinkDoesNotThrashResolution() {
+        link = new SimulatedLink(3000000);
+        for (int i = 0; i < 20; i++) {
+            link.capacityBps = (i % 2 == 0) ? 3000000 : 2000000;
+            run(3, true);
+        }
+        assertTrue("changes " + resolutionChanges, resolutionChanges <= 2);
+    }
+
+    @Test
+    public void viewerCapHoldsTheTargetDownUntilLifted() {
+        link = new SimulatedLink(20000000);
+        run(60, true);
+        assertEquals(8000000, controller.getTargetBitrate());
+
+        int changes = bitrateChanges;
+        controller.setBitrateCap(2000000);
+        assertEquals(2000000, controller.getTargetBitrate());
+        assertEquals(changes + 1, bitrateChanges);
+        run(30, true);
+        assertEquals(2000000, controller.getTargetBitrate());
+
+        // Below the configured minimum the cap is clamped up to it
+        controller.setBitrateCap(1000);
+        assertEquals(300000, controller.getTargetBitrate());
+
+        controller.setBitrateCap(0);
+        run(60, true);
+        assertEquals(8000000, controller.getTargetBitrate());
+    }
+
+    @Test
+    public void smallerCaptureModeHoldsFullResolutionOnALowerBitrate() {
+        // 1.5 Mbps is too little for 1080p but enough for a 576x1280 capture
+        controller.setFullResolution(576, 1280);
+        link = new SimulatedLink(1500000);
+        run(30, true);
+        assertEquals(1.0f, controller.getResolutionScale(), 0.0f);
+        assertEquals(0, resolutionChanges);
+    }
+
+    @Test
+    public void scaledDimensionsAreMacroblockAligned() {
+        assertEquals(1440, CongestionController.scaleDimension(1920, 0.75f));
+        assertEquals(800, CongestionController.scaleDimension(1080, 0.75f));
+        assertEquals(16, CongestionController.scaleDimension(20, 0.5f));
+    }
+}
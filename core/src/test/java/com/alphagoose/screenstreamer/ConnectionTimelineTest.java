@@ -0,0 +1,34 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static com.alphagoose.screenstreamer.ConnectionTimeline.Stage.*;
+import static org.junit.Assert.*;
+
+public class ConnectionTimelineTest {
+
+    private final ConnectionTimeline timeline = new ConnectionTimeline();
+
+    @Test
+    public void firstMarkWins() {
+        assertTrue(timeline.mark(OFFER_SENT, 100));
+        assertFalse(timeline.mark(OFFER_SENT, 250));
+        timeline.mark(SOCKET_OPEN, 40);
+        assertEquals(60, timeline.elapsedMs(SOCKET_OPEN, OFFER_SENT));
+    }
+
+    @Test
+    public void missingStageHasNoElapsedTime() {
+        timeline.mark(SERVICE_CREATED, 0);
+        assertFalse(timeline.has(FIRST_FRAME_SENT));
+        assertEquals(-1, timeline.elapsedMs(SERVICE_CREATED, FIRST_FRAME_SENT));
+    }
+
+    @Test
+    public void summaryIsRelativeToFirstStage() {
+        timeline.mark(SERVICE_CREATED, 1000);
+        timeline.mark(FACTORY_READY, 1180);
+        timeline.mark(FIRST_FRAME_SENT, 1900);
+        assertEquals("service_created=+0ms, factory_ready=+180ms, first_frame_sent=+900ms", timeline.toString());
+    }
+}
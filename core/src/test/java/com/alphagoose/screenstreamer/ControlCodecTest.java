@@ -0,0 +1,120 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ControlCodecTest {
+
+    private final List<String> events = new ArrayList<>();
+
+    private final ControlCodec.Listener recorder = new ControlCodec.Listener() {
+        @Override
+        public void onPointer(int action, int pointerId, int x, int y, int timeUs) {
+            events.add("pointer " + action + " " + pointerId + " " + x + "," + y + " @" + timeUs);
+        }
+
+        @Override
+        public void onKey(int action, int keyCode, int metaState, int timeUs) {
+            events.add("key " + action + " " + keyCode + " " + metaState + " @" + timeUs);
+        }
+
+        @Override
+        public void onScroll(int x, int y, int dx, int dy, int timeUs) {
+            events.add("scroll " + x + "," + y + " " + dx + "," + dy + " @" + timeUs);
+        }
+
+        @Override
+        public void onSetBitrate(int bitrateBps) {
+            events.add("bitrate " + bitrateBps);
+        }
+
+        @Override
+        public void onKeyFrameRequest() {
+            events.add("keyframe");
+        }
+
+        @Override
+        public void onPing(int timeUs) {
+            events.add("ping @" + timeUs);
+        }
+
+        @Override
+        public void onPong(int echoedTimeUs, int remoteTimeUs) {
+            events.add("pong " + echoedTimeUs + " @" + remoteTimeUs);
+        }
+    };
+
+    @Test
+    public void everyEventTypeRoundTripsInOrder() {
+        ByteBuffer out = ByteBuffer.allocate(128);
+        ControlCodec.putHeader(out);
+        ControlCodec.putPointer(out, ControlCodec.ACTION_DOWN, 1, 0, ControlCodec.MAX_POSITION, -5);
+        ControlCodec.putKey(out, ControlCodec.ACTION_UP, 66, 0x1001, 7);
+        ControlCodec.putScroll(out, 100, 200, -120, 100000, 8);
+        ControlCodec.putSetBitrate(out, 2500000);
+        ControlCodec.putKeyFrameRequest(out);
+        ControlCodec.putPing(out, Integer.MAX_VALUE);
+        ControlCodec.putPong(out, 42, Integer.MIN_VALUE);
+        out.flip();
+
+        ControlCodec.decode(out, recorder);
+
+        assertEquals(Arrays.asList(
+                "pointer 0 1 0,65535 @-5",
+                "key 1 66 4097 @7",
+                "scroll 100,200 -120,32767 @8",
+                "bitrate 2500000",
+                "keyframe",
+                "ping @2147483647",
+                "pong 42 @-2147483648"), events);
+        assertEquals(0, out.position());
+    }
+
+    @Test
+    public void pointerEventFitsInAFewBytes() {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        ControlCodec.putHeader(out);
+        ControlCodec.putPointer(out, ControlCodec.ACTION_MOVE, 0, 1, 2, 3);
+        assertEquals(13, out.position());
+    }
+
+    @Test
+    public void malformedDatagramDispatchesNothing() {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        ControlCodec.putHeader(out);
+        ControlCodec.putKeyFrameRequest(out);
+        ControlCodec.putPointer(out, ControlCodec.ACTION_MOVE, 0, 1, 2, 3);
+        out.flip();
+        out.limit(out.limit() - 1);
+        assertRejected(out);
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void rejectsForeignOrNewerDatagrams() {
+        assertRejected(ByteBuffer.wrap(new byte[0]));
+        assertRejected(ByteBuffer.wrap(new byte[]{'{', '"'}));
+        assertRejected(ByteBuffer.wrap(new byte[]{'C', ControlCodec.VERSION + 1, ControlCodec.TYPE_REQUEST_KEY_FRAME}));
+        assertRejected(ByteBuffer.wrap(new byte[]{'C', ControlCodec.VERSION, 99}));
+    }
+
+    @Test
+    public void emptyDatagramIsValid() {
+        ControlCodec.decode(ByteBuffer.wrap(new byte[]{'C', ControlCodec.VERSION}), recorder);
+        assertTrue(events.isEmpty());
+    }
+
+    private void assertRejected(ByteBuffer datagram) {
+        try {
+            ControlCodec.decode(datagram, recorder);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DirectBufferPoolTest {
+
+    @Test
+    public void roundsUpToSizeClassesAndReuses() {
+        DirectBufferPool pool = new DirectBufferPool(1 << 20, 4, 1 << 22);
+        ByteBuffer small = pool.acquire(10);
+        assertEquals(1024, small.capacity());
+        assertTrue(small.isDirect());
+        ByteBuffer frame = pool.acquire(70000);
+        assertEquals(128 * 1024, frame.capacity());
+        assertEquals(2, pool.getOutstandingBuffers());
+        assertEquals(1024 + 128 * 1024, pool.getOutstandingBytes());
+
+        frame.put((byte) 1).flip();
+        pool.release(frame);
+        ByteBuffer again = pool.acquire(100000);
+        assertSame(frame, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+
+        pool.release(again);
+        pool.release(small);
+        pool.release(null);
+        assertEquals(0, pool.getOutstandingBuffers());
+        assertEquals(0, pool.getOutstandingBytes());
+    }
+
+    @Test
+    public void oversizedBuffersAreNotPooled() {
+        DirectBufferPool pool = new DirectBufferPool(4096, 4, 1 << 20);
+        ByteBuffer big = pool.acquire(5000);
+        assertEquals(5000, big.capacity());
+        pool.release(big);
+        assertNotSame(big, pool.acquire(5000));
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void heapBuffersAreRejected() {
+        new DirectBufferPool().release(ByteBuffer.allocate(1024));
+    }
+
+    @Test
+    public void buffersReleasedOnOneThreadServeAnother() throws InterruptedException {
+        DirectBufferPool pool = new DirectBufferPool(1 << 20, 2, 1 << 20);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            buffers.add(pool.acquire(4096));
+        }
+        // Two stay in this thread's cache, the rest go to the shared list
+        Thread releaser = new Thread(() -> {
+            for (ByteBuffer buffer : buffers) {
+                pool.release(buffer);
+            }
+        });
+        releaser.start();
+        releaser.join();
+        assertEquals(4 * 4096, pool.getRetainedBytes());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffers.contains(pool.acquire(4096)));
+        }
+        assertEquals(0, pool.getRetainedBytes());
+        assertEquals(4, pool.getHits());
+        pool.acquire(4096);
+        assertEquals(7, pool.getMisses());
+    }
+
+    @Test
+    public void sharedListsStayWithinRetainedLimit() {
+        DirectBufferPool pool = new DirectBufferPool(1 << 20, 0, 3 * 8192);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            buffers.add(pool.acquire(8192));
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(3 * 8192, pool.getRetainedBytes());
+        assertEquals(0, pool.getOutstandingBytes());
+    }
+
+    @Test
+    public void leakedBufferIsReported() throws InterruptedException {
+        DirectBufferPool pool = new DirectBufferPool();
+        AtomicInteger leakedBytes = new AtomicInteger();
+        List<Throwable> sites = new ArrayList<>();
+        pool.setLeakListener((capacity, acquiredAt) -> {
+            leakedBytes.addAndGet(capacity);
+            sites.add(acquiredAt);
+        });
+        pool.release(pool.acquire(2048));
+        leak(pool);
+
+        for (int i = 0; i < 50 && pool.getLeaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+            pool.checkLeaks();
+        }
+        assertEquals(1, pool.getLeaks());
+        assertEquals(4096, leakedBytes.get());
+        assertEquals(0, pool.getOutstandingBuffers());
+        boolean found = false;
+        for (StackTraceElement element : sites.get(0).getStackTrace()) {
+            found |= element.getMethodName().equals("leak");
+        }
+        assertTrue("Allocation site should name the leaking method", found);
+    }
+
+    private static void leak(DirectBufferPool pool) {
+        pool.acquire(3000).putInt(42);
+    }
+
+    /**
+     * Copies frames the way the ring and recorder do, with and without the pool, and reports
+     * time and heap allocation per frame.
+     */
+    @Test
+    public void allocationBenchmark() {
+        int frames = 20000;
+        int[] sizes = {12000, 30000, 60000, 9000, 45000, 150000};
+        ByteBuffer source = ByteBuffer.allocateDirect(256 * 1024);
+        DirectBufferPool pool = new DirectBufferPool();
+        // Warm up both paths, and the pool's free lists
+        copyFrames(null, source, sizes, 2000);
+        copyFrames(pool, source, sizes, 2000);
+        long missesBefore = pool.getMisses();
+
+        long heapBefore = allocatedBytes();
+        long start = System.nanoTime();
+        copyFrames(null, source, sizes, frames);
+        long unpooledNs = System.nanoTime() - start;
+        long unpooledHeap = allocatedBytes() - heapBefore;
+
+        heapBefore = allocatedBytes();
+        start = System.nanoTime();
+        copyFrames(pool, source, sizes, frames);
+        long pooledNs = System.nanoTime() - start;
+        long pooledHeap = allocatedBytes() - heapBefore;
+
+        System.out.println(String.format(Locale.US,
+                "DirectBufferPool: pooled %.0f ns/frame, %.1f heap bytes/frame; allocateDirect %.0f ns/frame, "
+                        + "%.1f heap bytes/frame; hits %d, misses %d",
+                (double) pooledNs / frames, (double) pooledHeap / frames,
+                (double) unpooledNs / frames, (double) unpooledHeap / frames, pool.getHits(), pool.getMisses()));
+        assertEquals("Steady state should never allocate", missesBefore, pool.getMisses());
+        if (pooledHeap >= 0 && unpooledHeap > 0) {
+            assertTrue("Pooled path allocated " + pooledHeap + " bytes", pooledHeap < unpooledHeap / 10);
+        }
+    }
+
+    private static void copyFrames(DirectBufferPool pool, ByteBuffer source, int[] sizes, int frames) {
+        for (int i = 0; i < frames; i++) {
+            int size = sizes[i % sizes.length];
+            ByteBuffer buffer = pool != null ? pool.acquire(size) : ByteBuffer.allocateDirect(size);
+            source.clear().limit(size);
+            buffer.put(source);
+            if (pool != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Heap bytes allocated by this thread so far, or -1 where the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
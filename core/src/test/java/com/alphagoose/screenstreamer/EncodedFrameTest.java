@@ -0,0 +1,102 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EncodedFrameTest {
+
+    private final List<Integer> recycled = new ArrayList<>();
+    private final EncodedFrame.Pool pool = new EncodedFrame.Pool(frame -> recycled.add(frame.getBufferIndex()));
+
+    @Test
+    public void bufferIsRecycledOnlyAfterLastRelease() {
+        EncodedFrame frame = pool.obtain(3, ByteBuffer.allocateDirect(16), 100, 0, 1280, 720);
+        frame.retain();
+        frame.retain();
+
+        frame.release();
+        frame.release();
+        assertTrue(recycled.isEmpty());
+
+        frame.release();
+        assertEquals(1, recycled.size());
+        assertEquals(3, (int) recycled.get(0));
+    }
+
+    @Test
+    public void releaseCallbackDropsOneReference() {
+        EncodedFrame frame = pool.obtain(0, ByteBuffer.allocateDirect(16), 0, 0, 0, 0);
+        assertSame(frame.getReleaseCallback(), frame.getReleaseCallback());
+        frame.getReleaseCallback().run();
+        assertEquals(1, recycled.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retainAfterRecycleFails() {
+        EncodedFrame frame = pool.obtain(0, ByteBuffer.allocateDirect(16), 0, 0, 0, 0);
+        frame.release();
+        frame.retain();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseFails() {
+        EncodedFrame frame = pool.obtain(0, ByteBuffer.allocateDirect(16), 0, 0, 0, 0);
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void dequeueTimeIsClearedOnReuse() {
+        EncodedFrame frame = pool.obtain(2, ByteBuffer.allocateDirect(16), 0, 0, 0, 0);
+        frame.setDequeueTimeNs(123456789);
+        assertEquals(123456789, frame.getDequeueTimeNs());
+        frame.release();
+        assertEquals(0, pool.obtain(2, ByteBuffer.allocateDirect(16), 0, 0, 0, 0).getDequeueTimeNs());
+    }
+
+    @Test
+    public void poolReusesFramePerBufferIndex() {
+        EncodedFrame first = pool.obtain(12, ByteBuffer.allocateDirect(16), 0, 0, 0, 0);
+        first.release();
+        EncodedFrame second = pool.obtain(12, ByteBuffer.allocateDirect(16), 33, FrameRing.FLAG_KEY_FRAME, 0, 0);
+        assertSame(first, second);
+        assertEquals(33, second.getPresentationTimeUs());
+        assertTrue(second.isKeyFrame());
+    }
+
+    @Test
+    public void dispatcherSharesBufferWithoutCopying() {
+        ByteBuffer codecBuffer = ByteBuffer.allocateDirect(32);
+        codecBuffer.limit(20).position(4);
+        final List<EncodedFrame> held = new ArrayList<>();
+        EncodedFrameDispatcher dispatcher = new EncodedFrameDispatcher();
+        dispatcher.addSink(frame -> assertSame(codecBuffer, frame.getData()));
+        dispatcher.addSink(frame -> held.add(frame.retain()));
+
+        dispatcher.dispatch(pool.obtain(1, codecBuffer, 0, 0, 0, 0));
+        assertTrue("Held by second sink", recycled.isEmpty());
+        assertEquals(16, held.get(0).getSize());
+
+        held.get(0).release();
+        assertEquals(1, recycled.size());
+    }
+
+    @Test
+    public void removedSinkIsNotCalled() {
+        final int[] calls = new int[1];
+        EncodedFrameDispatcher.Sink sink = frame -> calls[0]++;
+        EncodedFrameDispatcher dispatcher = new EncodedFrameDispatcher();
+        dispatcher.addSink(sink);
+        dispatcher.removeSink(sink);
+        assertFalse(dispatcher.hasSinks());
+
+        dispatcher.dispatch(pool.obtain(0, ByteBuffer.allocateDirect(4), 0, 0, 0, 0));
+        assertEquals(0, calls[0]);
+        assertEquals(1, recycled.size());
+    }
+}
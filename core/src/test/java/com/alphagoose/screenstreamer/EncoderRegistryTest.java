@@ -0,0 +1,117 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class EncoderRegistryTest {
+
+    private static final int AVC_BASELINE = 0x01;
+    private static final int AVC_HIGH = 0x08;
+    private static final int AVC_LEVEL_41 = 0x1000;
+    private static final int AVC_LEVEL_52 = 0x10000;
+
+    private static EncoderDescriptor encoder(String name, String mime, boolean hardware, double achievableFps) {
+        return new EncoderDescriptor(name, mime, hardware, !hardware, true, true, achievableFps, 60,
+                AVC_HIGH, AVC_LEVEL_41);
+    }
+
+    private static Set<String> mimes(String... types) {
+        return new HashSet<>(Arrays.asList(types));
+    }
+
+    @Test
+    public void hardwareBeatsSoftwareRegardlessOfListOrder() {
+        EncoderRegistry registry = new EncoderRegistry(Arrays.asList(
+                encoder("c2.android.avc.encoder", EncoderRegistry.MIME_AVC, false, 60),
+                encoder("c2.qti.avc.encoder", EncoderRegistry.MIME_AVC, true, 60)));
+        assertEquals("c2.qti.avc.encoder", registry.select(mimes(EncoderRegistry.MIME_AVC), 30).name);
+    }
+
+    @Test
+    public void encoderThatCannotSustainFrameRateRanksLower() {
+        EncoderRegistry registry = new EncoderRegistry(Arrays.asList(
+                encoder("slow.hw", EncoderRegistry.MIME_AVC, true, 12),
+                encoder("fast.hw", EncoderRegistry.MIME_AVC, true, 45)));
+        assertEquals("fast.hw", registry.select(mimes(EncoderRegistry.MIME_AVC), 30).name);
+    }
+
+    @Test
+    public void unsupportedSizeAndByteBufferOnlyEncodersAreExcluded() {
+        EncoderRegistry registry = new EncoderRegistry(Arrays.asList(
+                new EncoderDescriptor("too.small", EncoderRegistry.MIME_AVC, true, false, true, false, 60, 60, AVC_HIGH, AVC_LEVEL_52),
+                new EncoderDescriptor("no.surface", EncoderRegistry.MIME_AVC, true, false, false, true, 60, 60, AVC_HIGH, AVC_LEVEL_52),
+                encoder("ok", EncoderRegistry.MIME_AVC, false, 30)));
+        List<EncoderDescriptor> ranked = registry.rank(mimes(EncoderRegistry.MIME_AVC), 30);
+        assertEquals(1, ranked.size());
+        assertEquals("ok", ranked.get(0).name);
+    }
+
+    @Test
+    public void profileAndLevelBreakTies() {
+        EncoderRegistry registry = new EncoderRegistry(Arrays.asList(
+                new EncoderDescriptor("baseline", EncoderRegistry.MIME_AVC, true, false, true, true, 60, 60, AVC_BASELINE, AVC_LEVEL_52),
+                new EncoderDescriptor("high41", EncoderRegistry.MIME_AVC, true, false, true, true, 60, 60, AVC_HIGH, AVC_LEVEL_41),
+                new EncoderDescriptor("high52", EncoderRegistry.MIME_AVC, true, false, true, true, 60, 60, AVC_HIGH, AVC_LEVEL_52)));
+        List<EncoderDescriptor> ranked = registry.rank(mimes(EncoderRegistry.MIME_AVC), 30);
+        assertEquals("high52", ranked.get(0).name);
+        assertEquals("high41", ranked.get(1).name);
+        assertEquals("baseline", ranked.get(2).name);
+    }
+
+    @Test
+    public void efficientCodecChosenOnlyWhenViewerAcceptsIt() {
+        EncoderRegistry registry = new EncoderRegistry(Arrays.asList(
+                encoder("hw.avc", EncoderRegistry.MIME_AVC, true, 60),
+                encoder("hw.hevc", EncoderRegistry.MIME_HEVC, true, 60),
+                encoder("sw.av1", EncoderRegistry.MIME_AV1, false, 60)));
+        assertEquals("hw.hevc", registry.select(mimes(EncoderRegistry.MIME_AVC, EncoderRegistry.MIME_HEVC,
+                EncoderRegistry.MIME_AV1), 30).name);
+        assertEquals("hw.avc", registry.select(mimes(EncoderRegistry.MIME_AVC), 30).name);
+    }
+
+    @Test
+    public void fallsBackToAvcWhenNothingAcceptedIsAvailable() {
+        EncoderRegistry registry = new EncoderRegistry(Collections.singletonList(
+                encoder("hw.avc", EncoderRegistry.MIME_AVC, true, 60)));
+        assertEquals("hw.avc", registry.select(mimes(EncoderRegistry.MIME_VP9), 30).name);
+        assertNull(new EncoderRegistry(Collections.<EncoderDescriptor>emptyList())
+                .select(mimes(EncoderRegistry.MIME_AVC), 30));
+    }
+
+    @Test
+    public void parsesVideoCodecsFromSdp() {
+        String sdp = "v=0\r\n"
+                + "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\n"
+                + "a=rtpmap:111 opus/48000/2\r\n"
+                + "m=video 9 UDP/TLS/RTP/SAVPF 96 98 45 102\r\n"
+                + "a=rtpmap:96 VP8/90000\r\n"
+                + "a=rtpmap:98 VP9/90000\r\n"
+                + "a=rtpmap:45 AV1/90000\r\n"
+                + "a=rtpmap:102 H264/90000\r\n";
+        assertEquals(Arrays.asList(EncoderRegistry.MIME_VP9, EncoderRegistry.MIME_AV1, EncoderRegistry.MIME_AVC),
+                new ArrayList<>(EncoderRegistry.acceptedMimeTypes(sdp)));
+    }
+
+    @Test
+    public void persistedFormRoundTrips() {
+        EncoderRegistry registry = new EncoderRegistry(Arrays.asList(
+                encoder("c2.qti.avc.encoder", EncoderRegistry.MIME_AVC, true, 59.5),
+                new EncoderDescriptor("c2.android.vp9.encoder", EncoderRegistry.MIME_VP9, false, true, true, false, -1, 0, 0, 0)));
+        EncoderRegistry restored = EncoderRegistry.decode(registry.encode());
+        assertEquals(registry.encode(), restored.encode());
+        assertEquals(59.5, restored.getDescriptors().get(0).achievableFrameRate, 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void corruptCacheIsRejected() {
+        EncoderRegistry.decode("c2.qti.avc.encoder;video/avc;true");
+    }
+}
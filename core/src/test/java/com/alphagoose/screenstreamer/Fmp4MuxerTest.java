@@ -0,0 +1,192 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Fmp4MuxerTest {
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0x8c};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUD = {0x09, (byte) 0xf0};
+
+    static byte[] nal(int size, int header, int seed) {
+        byte[] unit = new byte[size];
+        unit[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            // Steps of 7 never give two zeros in a row, so no start code can appear
+            unit[i] = (byte) (seed * 31 + i * 7);
+        }
+        unit[size - 1] |= 1;
+        return unit;
+    }
+
+    /**
+     * Joins NAL units with start codes, alternating 4- and 3-byte ones.
+     */
+    static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < nals.length; i++) {
+            if (i % 2 == 0) {
+                out.write(0);
+            }
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nals[i], 0, nals[i].length);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the offset of the first {@code type} box directly inside [start, end), or -1
+     */
+    static int findBox(byte[] data, int start, int end, String type) {
+        int offset = start;
+        while (offset + 8 <= end) {
+            int size = readInt(data, offset);
+            if (size < 8 || offset + size > end) {
+                throw new AssertionError("Bad box size " + size + " at " + offset);
+            }
+            if (new String(data, offset + 4, 4, StandardCharsets.US_ASCII).equals(type)) {
+                return offset;
+            }
+            offset += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Follows a path of nested boxes, e.g. "moov/trak/tkhd".
+     */
+    static int findPath(byte[] data, String path) {
+        int start = 0;
+        int end = data.length;
+        int box = -1;
+        for (String type : path.split("/")) {
+            box = findBox(data, start, end, type);
+            assertTrue("Missing " + type + " in " + path, box >= 0);
+            end = box + readInt(data, box);
+            // stsd has an entry count and avc1 a sample entry header before their children
+            start = box + (type.equals("stsd") ? 16 : type.equals("avc1") ? 86 : 8);
+        }
+        return box;
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    static long readLong(byte[] data, int offset) {
+        return ((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xffffffffL);
+    }
+
+    @Test
+    public void initSegmentCarriesParameterSetsAndDimensions() {
+        Fmp4Muxer muxer = new Fmp4Muxer();
+        byte[] init = bytes(muxer.createInitSegment(ByteBuffer.wrap(annexB(SPS, PPS)), 1280, 720));
+
+        assertEquals(0, findBox(init, 0, init.length, "ftyp"));
+        int tkhd = findPath(init, "moov/trak/tkhd");
+        assertEquals(1280 << 16, readInt(init, tkhd + 84));
+        assertEquals(720 << 16, readInt(init, tkhd + 88));
+        int mdhd = findPath(init, "moov/trak/mdia/mdhd");
+        assertEquals(Fmp4Muxer.TIMESCALE, readInt(init, mdhd + 20));
+        findPath(init, "moov/mvex/trex");
+
+        int avcC = findPath(init, "moov/trak/mdia/minf/stbl/stsd/avc1/avcC");
+        assertEquals(0x42, init[avcC + 9]);
+        assertEquals(0x1f, init[avcC + 11]);
+        assertEquals(0xff, init[avcC + 12] & 0xff);
+        assertEquals(0xe1, init[avcC + 13] & 0xff);
+        assertEquals(SPS.length, ((init[avcC + 14] & 0xff) << 8) | (init[avcC + 15] & 0xff));
+        assertArrayEquals(SPS, Arrays.copyOfRange(init, avcC + 16, avcC + 16 + SPS.length));
+        int pps = avcC + 16 + SPS.length;
+        assertEquals(1, init[pps]);
+        assertArrayEquals(PPS, Arrays.copyOfRange(init, pps + 3, pps + 3 + PPS.length));
+    }
+
+    @Test
+    public void initSegmentNeedsSpsAndPps() {
+        Fmp4Muxer muxer = new Fmp4Muxer();
+        assertNull(muxer.createInitSegment(ByteBuffer.wrap(annexB(SPS)), 640, 480));
+        assertNull(muxer.createInitSegment(ByteBuffer.wrap(annexB(PPS)), 640, 480));
+    }
+
+    @Test
+    public void fragmentHoldsLengthPrefixedSamplesWithTiming() {
+        Fmp4Muxer muxer = new Fmp4Muxer();
+        byte[] idr = nal(5000, 0x65, 1);
+        byte[] sei = nal(20, 0x06, 2);
+        byte[] p = nal(700, 0x41, 3);
+        muxer.addSample(ByteBuffer.wrap(annexB(AUD, SPS, PPS, sei, idr)), 9000, true);
+        muxer.addSample(ByteBuffer.wrap(annexB(AUD, p)), 12000, false);
+        assertEquals(2, muxer.getPendingSamples());
+        byte[] fragment = bytes(muxer.finishFragment(15003));
+        assertEquals(0, muxer.getPendingSamples());
+
+        int moof = findBox(fragment, 0, fragment.length, "moof");
+        assertEquals(0, moof);
+        int mfhd = findPath(fragment, "moof/mfhd");
+        assertEquals(1, readInt(fragment, mfhd + 12));
+        int tfdt = findPath(fragment, "moof/traf/tfdt");
+        assertEquals(1, fragment[tfdt + 8]);
+        assertEquals(9000, readLong(fragment, tfdt + 12));
+
+        int trun = findPath(fragment, "moof/traf/trun");
+        assertEquals(2, readInt(fragment, trun + 12));
+        int dataOffset = readInt(fragment, trun + 16);
+        int firstSize = 4 + sei.length + 4 + idr.length;
+        assertEquals(3000, readInt(fragment, trun + 20));
+        assertEquals(firstSize, readInt(fragment, trun + 24));
+        assertEquals(0x02000000, readInt(fragment, trun + 28));
+        assertEquals(3003, readInt(fragment, trun + 32));
+        assertEquals(4 + p.length, readInt(fragment, trun + 36));
+        assertEquals(0x01010000, readInt(fragment, trun + 40));
+
+        int mdat = findBox(fragment, 0, fragment.length, "mdat");
+        assertEquals(mdat + 8, dataOffset);
+        assertEquals(fragment.length, mdat + readInt(fragment, mdat));
+        assertEquals(sei.length, readInt(fragment, dataOffset));
+        assertArrayEquals(sei, Arrays.copyOfRange(fragment, dataOffset + 4, dataOffset + 4 + sei.length));
+        int second = dataOffset + 4 + sei.length;
+        assertEquals(idr.length, readInt(fragment, second));
+        assertArrayEquals(idr, Arrays.copyOfRange(fragment, second + 4, second + 4 + idr.length));
+        int third = dataOffset + firstSize;
+        assertEquals(p.length, readInt(fragment, third));
+        assertArrayEquals(p, Arrays.copyOfRange(fragment, third + 4, fragment.length));
+    }
+
+    @Test
+    public void fragmentsAreNumberedAndBuffersStayValid() {
+        Fmp4Muxer muxer = new Fmp4Muxer();
+        muxer.addSample(ByteBuffer.wrap(annexB(nal(300000, 0x65, 4))), 0, true);
+        ByteBuffer first = muxer.finishFragment(3000);
+        byte[] firstBytes = bytes(first);
+        muxer.addSample(ByteBuffer.wrap(annexB(nal(100, 0x41, 5))), 3000, false);
+        byte[] second = bytes(muxer.finishFragment(6000));
+
+        assertTrue(first.isReadOnly());
+        assertTrue(first.isDirect());
+        assertArrayEquals(firstBytes, bytes(first));
+        assertEquals(2, readInt(second, findPath(second, "moof/mfhd") + 12));
+        assertEquals(3000, readLong(second, findPath(second, "moof/traf/tfdt") + 12));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void emptyFragmentIsRejected() {
+        new Fmp4Muxer().finishFragment(0);
+    }
+}
@@ -0,0 +1,281 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class HlsServerTest {
+
+    private final HlsStream stream = new HlsStream(6, 500000, 2000000);
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private HlsServer server;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        clients.shutdownNow();
+        if (server != null) {
+            server.stop();
+            assertTrue(server.join(2000));
+        }
+    }
+
+    private void startServer(long holdTimeoutMs) throws IOException {
+        server = new HlsServer(stream, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), holdTimeoutMs);
+        server.start();
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private static final class Response {
+        int status;
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body;
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Keep-alive HTTP/1.1 client, just enough for the server's responses.
+     */
+    private final class Client implements AutoCloseable {
+        final Socket socket = new Socket();
+        final InputStream in;
+        final OutputStream out;
+
+        Client() throws IOException {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), 1000);
+            socket.setSoTimeout(5000);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+        }
+
+        void send(String path) throws IOException {
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        Response get(String path) throws IOException {
+            send(path);
+            return read();
+        }
+
+        Response read() throws IOException {
+            Response response = new Response();
+            String status = StandInSignalingServer.readLine(in);
+            response.status = Integer.parseInt(status.split(" ")[1]);
+            String line;
+            while (!(line = StandInSignalingServer.readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                response.headers.put(line.substring(0, colon).toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+            response.body = new byte[Integer.parseInt(response.headers.get("content-length"))];
+            int read = 0;
+            while (read < response.body.length) {
+                int n = in.read(response.body, read, response.body.length - read);
+                if (n < 0) {
+                    throw new IOException("Closed after " + read + " of " + response.body.length);
+                }
+                read += n;
+            }
+            return response;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void loadGeneratorPullsSegmentsFromManyClients() throws Exception {
+        int partsPerSegment = 4;
+        int segmentCount = 4;
+        byte[][][] parts = new byte[segmentCount][partsPerSegment][];
+        stream.setInitSegment(direct(random(700, 1)));
+        for (int s = 0; s < segmentCount; s++) {
+            for (int p = 0; p < partsPerSegment; p++) {
+                parts[s][p] = random(64 * 1024 + s * 100 + p, s * 10 + p);
+                stream.addPart(direct(parts[s][p]), 500000, p == 0);
+            }
+            stream.endSegment();
+        }
+        startServer(1000);
+
+        int clientCount = 32;
+        long durationMs = 1000;
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong requests = new AtomicLong();
+        List<Future<?>> results = new ArrayList<>();
+        long startNs = System.nanoTime();
+        for (int c = 0; c < clientCount; c++) {
+            int seed = c;
+            results.add(clients.submit(() -> {
+                try (Client client = new Client()) {
+                    long deadline = System.currentTimeMillis() + durationMs;
+                    for (int i = seed; System.currentTimeMillis() < deadline; i++) {
+                        int s = i % segmentCount;
+                        Response playlist = client.get(HlsServer.PLAYLIST_PATH);
+                        assertEquals(200, playlist.status);
+                        assertTrue(playlist.text().contains("seg-" + s + ".m4s"));
+                        Response segment = client.get("/seg-" + s + ".m4s");
+                        assertEquals(200, segment.status);
+                        assertEquals("*", segment.headers.get("access-control-allow-origin"));
+                        int offset = 0;
+                        for (byte[] part : parts[s]) {
+                            for (int b = 0; b < part.length; b += 4099) {
+                                assertEquals(part[b], segment.body[offset + b]);
+                            }
+                            offset += part.length;
+                        }
+                        assertEquals(offset, segment.body.length);
+                        Response part = client.get("/part-" + s + "-" + (i % partsPerSegment) + ".m4s");
+                        assertArrayEquals(parts[s][i % partsPerSegment], part.body);
+                        bytes.addAndGet(playlist.body.length + segment.body.length + part.body.length);
+                        requests.addAndGet(3);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        double seconds = (System.nanoTime() - startNs) / 1e9;
+        double mbPerSecond = bytes.get() / seconds / (1024 * 1024);
+        System.out.println(String.format(Locale.US, "HLS load: %d clients, %.1f MiB/s, %.0f requests/s",
+                clientCount, mbPerSecond, requests.get() / seconds));
+
+        assertTrue(server.getBytesSent() >= bytes.get());
+        assertEquals(requests.get(), server.getRequestsServed());
+    }
+
+    @Test
+    public void blockingReloadWaitsForRequestedPart() throws Exception {
+        stream.setInitSegment(direct(random(100, 1)));
+        stream.addPart(direct(random(1000, 2)), 500000, true);
+        startServer(5000);
+
+        Future<Response> reload = clients.submit(() -> {
+            try (Client client = new Client()) {
+                return client.get(HlsServer.PLAYLIST_PATH + "?_HLS_msn=0&_HLS_part=1");
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(reload.isDone());
+
+        stream.addPart(direct(random(1000, 3)), 500000, false);
+        Response response = reload.get(2, TimeUnit.SECONDS);
+        assertEquals(200, response.status);
+        assertEquals("application/vnd.apple.mpegurl", response.headers.get("content-type"));
+        assertTrue(response.text(), response.text().contains("URI=\"part-0-1.m4s\""));
+        assertTrue(response.text(), response.text().contains("PRELOAD-HINT:TYPE=PART,URI=\"part-0-2.m4s\""));
+    }
+
+    @Test
+    public void preloadHintPartIsHeldUntilWritten() throws Exception {
+        stream.setInitSegment(direct(random(100, 1)));
+        stream.addPart(direct(random(1000, 2)), 500000, true);
+        startServer(5000);
+
+        Future<Response> hinted = clients.submit(() -> {
+            try (Client client = new Client()) {
+                return client.get("/part-0-1.m4s");
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(hinted.isDone());
+
+        byte[] part = random(3000, 4);
+        stream.addPart(direct(part), 500000, false);
+        Response response = hinted.get(2, TimeUnit.SECONDS);
+        assertEquals(200, response.status);
+        assertArrayEquals(part, response.body);
+    }
+
+    @Test
+    public void heldRequestTimesOut() throws Exception {
+        stream.setInitSegment(direct(random(100, 1)));
+        stream.addPart(direct(random(1000, 2)), 500000, true);
+        startServer(200);
+
+        try (Client client = new Client()) {
+            long start = System.currentTimeMillis();
+            assertEquals(503, client.get(HlsServer.PLAYLIST_PATH + "?_HLS_msn=1").status);
+            assertTrue(System.currentTimeMillis() - start >= 150);
+            // The connection stays usable
+            assertEquals(200, client.get(HlsServer.PLAYLIST_PATH).status);
+        }
+    }
+
+    @Test
+    public void unknownOrStaleRequestsAreRejected() throws Exception {
+        stream.setInitSegment(direct(random(100, 1)));
+        stream.addPart(direct(random(1000, 2)), 500000, true);
+        startServer(200);
+
+        try (Client client = new Client()) {
+            assertEquals(404, client.get("/index.html").status);
+            assertEquals(404, client.get("/seg-7.m4s").status);
+            assertEquals(404, client.get("/part-0-5.m4s").status);
+            assertEquals(404, client.get("/init-2.mp4").status);
+            assertEquals(400, client.get("/seg-x.m4s").status);
+            assertEquals(400, client.get(HlsServer.PLAYLIST_PATH + "?_HLS_msn=9").status);
+            assertEquals(200, client.get("/init-1.mp4").status);
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        byte[] init = random(100, 1);
+        byte[] part = random(200000, 2);
+        stream.setInitSegment(direct(init));
+        stream.addPart(direct(part), 500000, true);
+        startServer(1000);
+
+        try (Client client = new Client()) {
+            client.out.write(("GET /part-0-0.m4s HTTP/1.1\r\n\r\nGET /init-1.mp4 HTTP/1.1\r\n\r\n"
+                    + "GET /part-0-0.m4s HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            client.out.flush();
+            assertArrayEquals(part, client.read().body);
+            assertArrayEquals(init, client.read().body);
+            Response last = client.read();
+            assertEquals("close", last.headers.get("connection"));
+            assertArrayEquals(part, last.body);
+            assertEquals(-1, client.in.read());
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HlsStreamTest {
+
+    private static ByteBuffer data(int size, int seed) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static String playlist(HlsStream stream) {
+        ByteBuffer buffer = stream.getPlaylist();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a segment of {@code parts} half-second parts.
+     */
+    private static void addSegment(HlsStream stream, int parts, int seed) {
+        for (int i = 0; i < parts; i++) {
+            stream.addPart(data(100, seed + i), 500000, i == 0);
+        }
+        stream.endSegment();
+    }
+
+    @Test
+    public void playlistDescribesPartsSegmentsAndPreloadHint() {
+        HlsStream stream = new HlsStream(6, 500000, 2000000);
+        stream.setInitSegment(data(50, 0));
+        addSegment(stream, 4, 0);
+        stream.addPart(data(100, 9), 500000, true);
+        stream.addPart(data(100, 10), 400000, false);
+
+        String text = playlist(stream);
+        assertTrue(text, text.startsWith("#EXTM3U\n#EXT-X-VERSION:9\n#EXT-X-TARGETDURATION:2\n"));
+        assertTrue(text, text.contains("#EXT-X-PART-INF:PART-TARGET=0.500\n"));
+        assertTrue(text, text.contains("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=1.500\n"));
+        assertTrue(text, text.contains("#EXT-X-MEDIA-SEQUENCE:0\n"));
+        assertTrue(text, text.contains("#EXT-X-MAP:URI=\"init-1.mp4\"\n"));
+        assertTrue(text, text.contains("#EXT-X-PART:DURATION=0.500,URI=\"part-0-0.m4s\",INDEPENDENT=YES\n"
+                + "#EXT-X-PART:DURATION=0.500,URI=\"part-0-1.m4s\"\n"));
+        assertTrue(text, text.contains("#EXTINF:2.000,\nseg-0.m4s\n"));
+        assertTrue(text, text.contains("#EXT-X-PART:DURATION=0.400,URI=\"part-1-1.m4s\"\n"));
+        assertFalse(text, text.contains("seg-1.m4s"));
+        assertTrue(text, text.endsWith("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part-1-2.m4s\"\n"));
+    }
+
+    @Test
+    public void segmentIsServedAsItsParts() {
+        HlsStream stream = new HlsStream(6, 500000, 2000000);
+        stream.setInitSegment(data(50, 0));
+        addSegment(stream, 3, 20);
+
+        ByteBuffer[] parts = stream.getSegment(0);
+        assertEquals(3, parts.length);
+        for (int i = 0; i < parts.length; i++) {
+            assertEquals(data(100, 20 + i), parts[i]);
+            assertTrue(parts[i].isReadOnly());
+            assertEquals(parts[i], stream.getPart(0, i));
+        }
+        // Each caller gets its own position
+        parts[0].position(50);
+        assertEquals(100, stream.getSegment(0)[0].remaining());
+        assertNull(stream.getPart(0, 3));
+        assertNull(stream.getSegment(1));
+    }
+
+    @Test
+    public void windowEvictsOldSegments() {
+        HlsStream stream = new HlsStream(2, 500000, 1000000);
+        stream.setInitSegment(data(50, 0));
+        for (int i = 0; i < 5; i++) {
+            addSegment(stream, 2, i);
+        }
+        assertNull(stream.getSegment(2));
+        assertNotNull(stream.getSegment(3));
+        assertNotNull(stream.getSegment(4));
+        String text = playlist(stream);
+        assertTrue(text, text.contains("#EXT-X-MEDIA-SEQUENCE:3\n"));
+        assertFalse(text, text.contains("seg-2.m4s"));
+        assertTrue(text, text.endsWith("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part-5-0.m4s\"\n"));
+    }
+
+    @Test
+    public void newInitSegmentStartsDiscontinuity() {
+        HlsStream stream = new HlsStream(2, 500000, 1000000);
+        stream.setInitSegment(data(50, 0));
+        stream.addPart(data(100, 1), 500000, true);
+        stream.setInitSegment(data(60, 1));
+        addSegment(stream, 2, 2);
+
+        String text = playlist(stream);
+        assertTrue(text, text.contains("seg-0.m4s\n#EXT-X-DISCONTINUITY\n#EXT-X-MAP:URI=\"init-2.mp4\"\n"));
+        assertEquals(50, stream.getInitSegment(1).remaining());
+        assertEquals(60, stream.getInitSegment(2).remaining());
+
+        // Once the first segment leaves the window, so does its init segment
+        addSegment(stream, 2, 3);
+        text = playlist(stream);
+        assertTrue(text, text.contains("#EXT-X-DISCONTINUITY-SEQUENCE:1\n"));
+        assertFalse(text, text.contains("#EXT-X-DISCONTINUITY\n"));
+        assertNull(stream.getInitSegment(1));
+    }
+
+    @Test
+    public void blockingReloadReadiness() {
+        HlsStream stream = new HlsStream(6, 500000, 2000000);
+        stream.setInitSegment(data(50, 0));
+        assertFalse(stream.hasReached(0, 0));
+        assertTrue(stream.isUpcoming(0, 0));
+        assertTrue(stream.isUpcoming(0, -1));
+
+        stream.addPart(data(100, 0), 500000, true);
+        assertTrue(stream.hasReached(0, 0));
+        assertFalse(stream.hasReached(0, 1));
+        assertFalse(stream.hasReached(0, -1));
+        assertTrue(stream.isUpcoming(0, 1));
+        assertFalse(stream.isUpcoming(0, 2));
+
+        stream.endSegment();
+        assertTrue(stream.hasReached(0, -1));
+        assertTrue(stream.hasReached(0, 5));
+        assertFalse(stream.hasReached(1, 0));
+        assertTrue(stream.isUpcoming(1, 0));
+        assertFalse(stream.isUpcoming(0, 1));
+    }
+
+    @Test
+    public void listenerHearsEveryChangeAndPlaylistIsCached() {
+        HlsStream stream = new HlsStream(6, 500000, 2000000);
+        AtomicInteger updates = new AtomicInteger();
+        stream.setListener(updates::incrementAndGet);
+        stream.setInitSegment(data(50, 0));
+        stream.addPart(data(100, 0), 500000, true);
+        ByteBuffer first = stream.getPlaylist();
+        ByteBuffer again = stream.getPlaylist();
+        assertEquals(first, again);
+        stream.endSegment();
+        assertEquals(3, updates.get());
+        assertNotEquals(first, stream.getPlaylist());
+    }
+
+    @Test
+    public void longSegmentRaisesTargetDuration() {
+        HlsStream stream = new HlsStream(6, 500000, 2000000);
+        stream.setInitSegment(data(50, 0));
+        addSegment(stream, 5, 0);
+        assertTrue(playlist(stream).contains("#EXT-X-TARGETDURATION:3\n"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void segmentMustStartIndependent() {
+        HlsStream stream = new HlsStream(6, 500000, 2000000);
+        stream.setInitSegment(data(50, 0));
+        stream.addPart(data(100, 0), 500000, false);
+    }
+}
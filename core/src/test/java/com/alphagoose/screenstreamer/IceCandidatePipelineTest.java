@@ -0,0 +1,70 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IceCandidatePipelineTest {
+
+    private final IceCandidatePipeline pipeline = new IceCandidatePipeline();
+
+    private static SignalingCandidate candidate(int port) {
+        return new SignalingCandidate("0", 0, "candidate:1 1 udp 2122260223 192.168.1.20 " + port + " typ host");
+    }
+
+    @Test
+    public void burstOfLocalCandidatesBecomesOneBatch() {
+        assertTrue(pipeline.addLocal(candidate(1000)));
+        assertFalse(pipeline.addLocal(candidate(1001)));
+        assertFalse(pipeline.addLocal(candidate(1002)));
+
+        assertEquals(Arrays.asList(candidate(1000), candidate(1001), candidate(1002)), pipeline.drainLocal());
+        assertTrue(pipeline.drainLocal().isEmpty());
+        assertEquals(1, pipeline.getBatchesSent());
+
+        // The next candidate after a flush starts a new window
+        assertTrue(pipeline.addLocal(candidate(1003)));
+    }
+
+    @Test
+    public void repeatedLocalCandidateIsNotResent() {
+        pipeline.addLocal(candidate(1000));
+        pipeline.drainLocal();
+        assertFalse(pipeline.addLocal(candidate(1000)));
+        assertTrue(pipeline.drainLocal().isEmpty());
+        assertEquals(1, pipeline.getDuplicatesDropped());
+    }
+
+    @Test
+    public void earlyRemoteCandidatesWaitForRemoteDescription() {
+        assertFalse(pipeline.addRemote(candidate(2000)));
+        assertFalse(pipeline.addRemote(candidate(2001)));
+        assertFalse(pipeline.addRemote(candidate(2000)));
+
+        List<SignalingCandidate> released = pipeline.onRemoteDescriptionSet();
+        assertEquals(Arrays.asList(candidate(2000), candidate(2001)), released);
+        assertEquals(2, pipeline.getCandidatesBuffered());
+        assertEquals(1, pipeline.getDuplicatesDropped());
+
+        assertTrue(pipeline.addRemote(candidate(2002)));
+        assertFalse(pipeline.addRemote(candidate(2002)));
+    }
+
+    @Test
+    public void resetStartsOverForIceRestart() {
+        pipeline.addLocal(candidate(1000));
+        pipeline.onRemoteDescriptionSet();
+        pipeline.reset();
+        assertTrue(pipeline.addLocal(candidate(1000)));
+        assertFalse(pipeline.addRemote(candidate(2000)));
+    }
+
+    @Test
+    public void candidatesDifferingOnlyInMidAreDistinct() {
+        assertNotEquals(new SignalingCandidate("0", 0, "c"), new SignalingCandidate("1", 0, "c"));
+        assertEquals(new SignalingCandidate(null, 0, "c"), new SignalingCandidate(null, 0, "c"));
+    }
+}
@@ -0,0 +1,80 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IdleDetectorTest {
+
+    private final List<Boolean> transitions = new ArrayList<>();
+    private final IdleDetector detector = new IdleDetector(transitions::add, 30, 2000);
+
+    @Test
+    public void staticScreenGoesIdleAndMotionRampsStraightBack() {
+        long nowMs = 0;
+        detector.onFrame(nowMs, 80000, true);
+        for (int i = 0; i < 30; i++) {
+            nowMs += 33;
+            detector.onFrame(nowMs, 20000, false);
+        }
+        assertFalse(detector.isIdle());
+
+        // Screen stops changing: only one keep-alive repeat per second, nearly empty
+        for (int i = 0; i < 3; i++) {
+            nowMs += 1000;
+            detector.onFrame(nowMs, 120, false);
+        }
+        assertTrue(detector.isIdle());
+
+        // A single frame with real content ends idle immediately
+        nowMs += 10;
+        detector.onFrame(nowMs, 18000, false);
+        assertFalse(detector.isIdle());
+        assertEquals(2, transitions.size());
+        assertTrue(transitions.get(0));
+        assertFalse(transitions.get(1));
+    }
+
+    @Test
+    public void encoderSilenceIsDetectedWithoutFrames() {
+        detector.onFrame(0, 20000, false);
+        detector.checkIdle(1000);
+        assertFalse(detector.isIdle());
+        detector.checkIdle(2500);
+        assertTrue(detector.isIdle());
+    }
+
+    @Test
+    public void keyFramesDoNotCountAsMotion() {
+        detector.onFrame(0, 20000, false);
+        detector.onFrame(2500, 90000, true);
+        detector.checkIdle(2500);
+        assertTrue(detector.isIdle());
+    }
+
+    @Test
+    public void reportsFramesPerMinuteAndBytesSaved() {
+        long nowMs = 0;
+        // Ten seconds of full-rate motion, then idle keep-alive frames until the minute is up
+        for (int i = 0; i < 300; i++) {
+            detector.onFrame(nowMs, 10000, false);
+            nowMs += 1000 / 30;
+        }
+        nowMs = 10000;
+        for (int i = 0; i < 49; i++) {
+            nowMs += 1000;
+            detector.onFrame(nowMs, 100, false);
+        }
+
+        assertEquals(349, detector.getEncodedFramesLastMinute(nowMs));
+        // Full rate for 60 s would have been 1800 frames of ~10 kB
+        long saved = detector.getEstimatedBytesSaved(nowMs);
+        assertTrue("saved " + saved, saved > 14000000 && saved < 16000000);
+
+        // A minute later the window has rolled past all of it
+        assertEquals(0, detector.getEncodedFramesLastMinute(nowMs + 61000));
+    }
+}
@@ -0,0 +1,113 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InputCoalescerTest {
+
+    private final List<String> delivered = new ArrayList<>();
+    private final RemoteClock clock = new RemoteClock();
+    private final LatencyHistogram latency = new LatencyHistogram("input.latency_us");
+    private final InputCoalescer coalescer = new InputCoalescer(clock, latency);
+
+    private final InputCoalescer.Sink sink = new InputCoalescer.Sink() {
+        @Override
+        public void onPointer(int action, int pointerId, int x, int y) {
+            delivered.add("pointer " + action + " " + pointerId + " " + x + "," + y);
+        }
+
+        @Override
+        public void onKey(int action, int keyCode, int metaState) {
+            delivered.add("key " + action + " " + keyCode + " " + metaState);
+        }
+
+        @Override
+        public void onScroll(int x, int y, int dx, int dy) {
+            delivered.add("scroll " + x + "," + y + " " + dx + "," + dy);
+        }
+    };
+
+    @Test
+    public void movesWithinAFrameCollapseToTheLatestPosition() {
+        coalescer.onPointer(ControlCodec.ACTION_DOWN, 0, 10, 10, 0);
+        for (int i = 1; i <= 16; i++) {
+            coalescer.onPointer(ControlCodec.ACTION_MOVE, 0, 10 + i, 10, i * 1000);
+        }
+        coalescer.onPointer(ControlCodec.ACTION_UP, 0, 26, 10, 17000);
+
+        assertEquals(3, coalescer.flush(sink, 0));
+        assertEquals(Arrays.asList("pointer 0 0 10,10", "pointer 2 0 26,10", "pointer 1 0 26,10"), delivered);
+        assertEquals(18, coalescer.getReceivedCount());
+        assertEquals(3, coalescer.getDeliveredCount());
+    }
+
+    @Test
+    public void multiTouchMovesCollapsePerPointer() {
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 0, 1, 1, 0);
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 1, 100, 100, 0);
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 0, 2, 2, 0);
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 1, 99, 99, 0);
+        coalescer.flush(sink, 0);
+        assertEquals(Arrays.asList("pointer 2 0 2,2", "pointer 2 1 99,99"), delivered);
+    }
+
+    @Test
+    public void keysAndButtonsAreNeverMerged() {
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 0, 1, 1, 0);
+        coalescer.onKey(ControlCodec.ACTION_DOWN, 29, 0, 0);
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 0, 2, 2, 0);
+        coalescer.onKey(ControlCodec.ACTION_UP, 29, 0, 0);
+        coalescer.onKey(ControlCodec.ACTION_DOWN, 29, 0, 0);
+        coalescer.onKey(ControlCodec.ACTION_UP, 29, 0, 0);
+        assertEquals(6, coalescer.flush(sink, 0));
+    }
+
+    @Test
+    public void adjacentScrollsAddUp() {
+        coalescer.onScroll(5, 5, 0, 100, 0);
+        coalescer.onScroll(6, 6, 10, 100, 0);
+        coalescer.onScroll(7, 7, -10, 100, 0);
+        coalescer.onKey(ControlCodec.ACTION_DOWN, 59, 0, 0);
+        coalescer.onScroll(8, 8, 0, -50, 0);
+        coalescer.flush(sink, 0);
+        assertEquals(Arrays.asList("scroll 7,7 0,300", "key 0 59 0", "scroll 8,8 0,-50"), delivered);
+    }
+
+    @Test
+    public void latencyIsTimedFromTheOldestInputInAMergedEvent() {
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 0, 1, 1, 1000);
+        coalescer.flush(sink, 50000);
+        // No clock sample yet, so nothing could be timed
+        assertEquals(0, latency.getCount());
+
+        // The viewer's clock is 1 s behind ours
+        clock.onPong(100000, -890000, 120000);
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 0, 1, 1, -880000);
+        coalescer.onPointer(ControlCodec.ACTION_MOVE, 0, 2, 2, -870000);
+        coalescer.flush(sink, 150000);
+        assertEquals(1, latency.getCount());
+        assertEquals(30000, latency.getMax());
+    }
+
+    @Test
+    public void flushWithoutSinkStillAccounts() {
+        coalescer.onKey(ControlCodec.ACTION_DOWN, 1, 0, 0);
+        assertEquals(1, coalescer.flush(null, 0));
+        assertEquals(0, coalescer.flush(null, 0));
+        assertEquals(1, coalescer.getDeliveredCount());
+    }
+
+    @Test
+    public void runawayViewerIsBounded() {
+        for (int i = 0; i < InputCoalescer.MAX_PENDING + 10; i++) {
+            coalescer.onKey(ControlCodec.ACTION_DOWN, 1, 0, 0);
+        }
+        assertEquals(10, coalescer.getDroppedCount());
+        assertEquals(InputCoalescer.MAX_PENDING, coalescer.flush(sink, 0));
+    }
+}
@@ -0,0 +1,36 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyFrameCoalescerTest {
+
+    private int forwarded;
+    private final KeyFrameCoalescer coalescer = new KeyFrameCoalescer(() -> forwarded++, 500);
+
+    @Test
+    public void requestsWhileOutstandingAreMerged() {
+        assertTrue(coalescer.request(0));
+        assertFalse(coalescer.request(10));
+        assertFalse(coalescer.request(400));
+        assertEquals(1, forwarded);
+        assertEquals(3, coalescer.getRequestCount());
+    }
+
+    @Test
+    public void keyFrameClearsOutstandingRequest() {
+        coalescer.request(0);
+        coalescer.onKeyFrame();
+        assertTrue(coalescer.request(20));
+        assertEquals(2, forwarded);
+    }
+
+    @Test
+    public void lostRequestIsRetriedAfterTimeout() {
+        coalescer.request(0);
+        assertFalse(coalescer.request(499));
+        assertTrue(coalescer.request(500));
+        assertEquals(2, coalescer.getForwardedCount());
+    }
+}
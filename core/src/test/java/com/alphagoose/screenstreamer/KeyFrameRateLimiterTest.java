@@ -0,0 +1,79 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyFrameRateLimiterTest {
+
+    private int forwarded;
+    private final KeyFrameRateLimiter limiter = new KeyFrameRateLimiter(() -> forwarded++, 2, 1000, 300);
+
+    @Test
+    public void requestsWhileOutstandingAreMerged() {
+        assertTrue(limiter.request(0));
+        assertFalse(limiter.request(10));
+        assertFalse(limiter.request(299));
+        assertEquals(1, forwarded);
+        assertEquals(-1, limiter.poll(100));
+        assertEquals(3, limiter.getRequestCount());
+    }
+
+    @Test
+    public void burstIsSpentThenRequestsWaitForATokenWithoutBeingLost() {
+        assertTrue(limiter.request(0));
+        limiter.onKeyFrame();
+        assertTrue(limiter.request(50));
+        limiter.onKeyFrame();
+        assertFalse(limiter.request(100));
+        assertFalse(limiter.request(200));
+        assertEquals(2, forwarded);
+        assertEquals(1, limiter.getDeferredCount());
+
+        // The first token comes back a refill interval after the bucket started draining
+        assertEquals(500, limiter.poll(500));
+        assertEquals(-1, limiter.poll(1000));
+        assertEquals(3, forwarded);
+        assertEquals(-1, limiter.poll(1100));
+        assertEquals(3, limiter.getForwardedCount());
+    }
+
+    @Test
+    public void keyFrameServesADeferredRequest() {
+        limiter.request(0);
+        limiter.onKeyFrame();
+        limiter.request(10);
+        limiter.onKeyFrame();
+        assertFalse(limiter.request(20));
+        // A natural or otherwise requested keyframe arrived first
+        limiter.onKeyFrame();
+        assertEquals(-1, limiter.poll(5000));
+        assertEquals(2, forwarded);
+    }
+
+    @Test
+    public void requestAfterAnUnansweredOneTimesOutNeedsAToken() {
+        limiter.request(0);
+        limiter.onKeyFrame();
+        limiter.request(10);
+        assertFalse(limiter.request(200));
+        // No keyframe came for the second request, so once it times out the next one is deferred
+        assertFalse(limiter.request(400));
+        assertEquals(2, forwarded);
+        assertEquals(600, limiter.poll(400));
+        assertEquals(-1, limiter.poll(1000));
+        assertEquals(3, forwarded);
+    }
+
+    @Test
+    public void tokensRefillUpToTheBurst() {
+        limiter.request(0);
+        limiter.onKeyFrame();
+        assertTrue(limiter.request(100_000));
+        limiter.onKeyFrame();
+        assertTrue(limiter.request(100_001));
+        limiter.onKeyFrame();
+        assertFalse(limiter.request(100_002));
+        assertEquals(3, forwarded);
+    }
+}
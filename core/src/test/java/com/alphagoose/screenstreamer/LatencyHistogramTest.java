@@ -0,0 +1,73 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 0; i < 64; i++) {
+            assertEquals(i, LatencyHistogram.bucketIndex(i));
+            assertEquals(i, LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(i)));
+        }
+        histogram.record(7);
+        assertEquals(7, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void bucketBoundsStayWithinRelativeError() {
+        for (long value = 1; value < Long.MAX_VALUE / 4; value = value * 3 + 1) {
+            long upper = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+            assertTrue(upper >= value);
+            assertTrue("value " + value + " upper " + upper, (upper - value) <= value / 32 + 1);
+        }
+    }
+
+    @Test
+    public void percentilesTrackUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+        assertEquals(5000, histogram.getValueAtPercentile(50), 5000 / 32);
+        assertEquals(9900, histogram.getValueAtPercentile(99), 9900 / 32);
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void negativeValuesClampToZero() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(1, histogram.getCount());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i % 5000);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(4999, histogram.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,130 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class LlHlsPackagerTest {
+
+    private static final long FRAME_US = 33333;
+    private static final byte[] CONFIG = Fmp4MuxerTest.annexB(
+            new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0x8c},
+            new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80});
+
+    private final EncodedFrame.Pool pool = new EncodedFrame.Pool(frame -> { });
+    private final HlsStream stream = new HlsStream(6, 500000, 2000000);
+    private int keyFrameRequests;
+    private final LlHlsPackager packager = new LlHlsPackager(stream, () -> keyFrameRequests++);
+
+    private void feed(byte[] data, long ptsUs, int flags) {
+        EncodedFrame frame = pool.obtain(0, ByteBuffer.wrap(data), ptsUs, flags, 1280, 720);
+        packager.onEncodedFrame(frame);
+        frame.release();
+    }
+
+    private void feedFrame(int index, boolean keyFrame) {
+        byte[] nal = Fmp4MuxerTest.nal(200 + index % 7, keyFrame ? 0x65 : 0x41, index);
+        feed(Fmp4MuxerTest.annexB(nal), 1000000 + index * FRAME_US, keyFrame ? FrameRing.FLAG_KEY_FRAME : 0);
+    }
+
+    private List<Double> partDurations() {
+        ByteBuffer buffer = stream.getPlaylist();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        Matcher m = Pattern.compile("#EXT-X-PART:DURATION=([0-9.]+)").matcher(new String(bytes, StandardCharsets.UTF_8));
+        List<Double> durations = new ArrayList<>();
+        while (m.find()) {
+            durations.add(Double.parseDouble(m.group(1)));
+        }
+        return durations;
+    }
+
+    @Test
+    public void waitsForConfigAndKeyFrame() {
+        feedFrame(0, true);
+        feed(CONFIG, 0, FrameRing.FLAG_CODEC_CONFIG);
+        feedFrame(1, false);
+        assertEquals(2, packager.getDroppedFrames());
+        assertNotNull(stream.getInitSegment(1));
+        assertFalse(stream.hasMedia());
+
+        for (int i = 2; i < 30; i++) {
+            feedFrame(i, i == 2);
+        }
+        assertTrue(stream.hasMedia());
+        assertNotNull(stream.getPart(0, 0));
+    }
+
+    @Test
+    public void partsStayWithinTargetAndSegmentsCutOnKeyFrames() {
+        packager.setParameterSets(ByteBuffer.wrap(CONFIG), 1280, 720);
+        // Keyframe every 90 frames (3 s); the packager should ask for one after 1.5 s
+        for (int i = 0; i < 200; i++) {
+            feedFrame(i, i % 90 == 0);
+        }
+        assertEquals(2, keyFrameRequests);
+        List<Double> durations = partDurations();
+        assertTrue(durations.size() > 6);
+        for (double duration : durations) {
+            assertTrue("Part of " + duration + " s", duration <= 0.5);
+            assertTrue("Part of " + duration + " s", duration > 0.4);
+        }
+        // The encoder ignored the requests, so segments run until its own keyframes
+        assertEquals(6, stream.getSegment(0).length);
+        assertTrue(stream.hasReached(1, -1));
+        assertFalse(stream.hasReached(2, -1));
+    }
+
+    @Test
+    public void requestedKeyFrameEndsSegmentNearTarget() {
+        packager.setParameterSets(ByteBuffer.wrap(CONFIG), 1280, 720);
+        boolean pendingKeyFrame = true;
+        int lastRequests = 0;
+        int segmentStarts = 0;
+        for (int i = 0; i < 130; i++) {
+            feedFrame(i, pendingKeyFrame);
+            if (pendingKeyFrame) {
+                segmentStarts++;
+            }
+            pendingKeyFrame = keyFrameRequests > lastRequests;
+            lastRequests = keyFrameRequests;
+        }
+        assertEquals(3, segmentStarts);
+        ByteBuffer buffer = stream.getPlaylist();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        assertTrue(text, text.contains("#EXT-X-PART:DURATION=0.067,URI=\"part-0-3.m4s\"\n#EXTINF:1.567,\nseg-0.m4s\n"
+                + "#EXT-X-PART:DURATION=0.500,URI=\"part-1-0.m4s\",INDEPENDENT=YES"));
+        assertTrue(text, text.contains("#EXTINF:1.567,\nseg-1.m4s\n"));
+    }
+
+    @Test
+    public void codecChangeStartsNewInitSegment() {
+        packager.setParameterSets(ByteBuffer.wrap(CONFIG), 1280, 720);
+        for (int i = 0; i < 20; i++) {
+            feedFrame(i, i == 0);
+        }
+        feed(CONFIG, 0, FrameRing.FLAG_CODEC_CONFIG);
+        assertNotNull(stream.getSegment(0));
+        feedFrame(20, false);
+        assertEquals(1, packager.getDroppedFrames());
+        for (int i = 21; i < 40; i++) {
+            feedFrame(i, i == 21);
+        }
+        packager.finish();
+        assertNotNull(stream.getInitSegment(2));
+        assertNotNull(stream.getSegment(1));
+        ByteBuffer buffer = stream.getPlaylist();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertTrue(new String(bytes, StandardCharsets.UTF_8).contains("#EXT-X-DISCONTINUITY\n#EXT-X-MAP:URI=\"init-2.mp4\""));
+    }
+}
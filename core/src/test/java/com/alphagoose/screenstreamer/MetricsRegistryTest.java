@@ -0,0 +1,104 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void metricsAreSharedByName() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        assertSame(metrics.counter("frames"), metrics.counter("frames"));
+        assertSame(metrics.histogram("latency"), metrics.histogram("latency"));
+
+        LatencyHistogram owned = new LatencyHistogram("latency");
+        metrics.register(owned);
+        assertSame(owned, metrics.histogram("latency"));
+        metrics.remove("latency");
+        assertNotSame(owned, metrics.histogram("latency"));
+    }
+
+    @Test
+    public void jsonSnapshotHasEveryMetricSortedByName() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("b.frames").add(3);
+        metrics.counter("a.bytes").add(1200);
+        metrics.registerGauge("rtt_ms", () -> 12.5);
+        metrics.registerGauge("bitrate", () -> 2000000);
+        metrics.registerGauge("unknown", () -> Double.NaN);
+        LatencyHistogram latency = metrics.histogram("send_us");
+        for (int i = 1; i <= 100; i++) {
+            latency.record(i);
+        }
+        metrics.histogram("empty_us");
+
+        assertEquals("{\"timestampMs\":42,"
+                + "\"counters\":{\"a.bytes\":1200,\"b.frames\":3},"
+                + "\"gauges\":{\"bitrate\":2000000,\"rtt_ms\":12.5,\"unknown\":null},"
+                + "\"histograms\":{\"empty_us\":{\"count\":0,\"mean\":0,\"p50\":0,\"p90\":0,\"p99\":0,\"max\":0},"
+                + "\"send_us\":{\"count\":100,\"mean\":50.5,\"p50\":50,\"p90\":91,\"p99\":99,\"max\":100}}}",
+                metrics.toJson(42));
+    }
+
+    @Test
+    public void namesAreEscapedInJson() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("say \"hi\"\\\n").increment();
+        assertTrue(metrics.toJson(0).contains("\"say \\\"hi\\\"\\\\\\u000a\":1"));
+    }
+
+    @Test
+    public void summaryLeavesOutEmptyHistograms() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.histogram("idle_us");
+        metrics.histogram("send_us").record(900);
+        metrics.counter("frames").increment();
+        String summary = metrics.formatSummary();
+        assertFalse(summary, summary.contains("idle_us"));
+        assertTrue(summary, summary.contains("send_us p50 "));
+        assertTrue(summary, summary.contains("frames 1\n"));
+    }
+
+    @Test
+    public void resetZeroesCountersAndHistograms() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("frames").add(5);
+        metrics.histogram("send_us").record(10);
+        metrics.reset();
+        assertEquals(0, metrics.counter("frames").get());
+        assertEquals(0, metrics.histogram("send_us").getCount());
+    }
+
+    /**
+     * Records what the encoder drain path records for each frame: three histograms and three
+     * counters. How long that takes is measured by MetricsRegistryBenchmark in :bench.
+     */
+    @Test
+    public void drainPathRecordingAddsUp() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        LatencyHistogram captureToDequeue = metrics.histogram("video.capture_to_dequeue_us");
+        LatencyHistogram dequeueToDispatch = metrics.histogram("video.dequeue_to_dispatch_us");
+        LatencyHistogram sendLatency = metrics.histogram("video.send_latency_us");
+        MetricsRegistry.Counter frames = metrics.counter("video.frames_encoded");
+        MetricsRegistry.Counter bytes = metrics.counter("video.bytes_encoded");
+        MetricsRegistry.Counter keyFrames = metrics.counter("video.key_frames");
+        int frameCount = 600;
+        for (int i = 0; i < frameCount; i++) {
+            sendLatency.record(16000 + i);
+            captureToDequeue.record(12000 + i);
+            dequeueToDispatch.record(40);
+            frames.increment();
+            bytes.add(20000);
+            if ((i % 60) == 0) {
+                keyFrames.increment();
+            }
+        }
+        assertEquals(frameCount, frames.get());
+        assertEquals(20000L * frameCount, bytes.get());
+        assertEquals(10, keyFrames.get());
+        assertEquals(frameCount, sendLatency.getCount());
+        assertEquals(frameCount, captureToDequeue.getCount());
+        assertEquals(frameCount, dequeueToDispatch.getCount());
+    }
+}
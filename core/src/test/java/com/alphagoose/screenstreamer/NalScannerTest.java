@@ -0,0 +1,139 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.alphagoose.screenstreamer.Fmp4MuxerTest.annexB;
+import static com.alphagoose.screenstreamer.Fmp4MuxerTest.bytes;
+import static com.alphagoose.screenstreamer.Fmp4MuxerTest.nal;
+import static org.junit.Assert.*;
+
+public class NalScannerTest {
+
+    private static ByteBuffer direct(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        return buffer;
+    }
+
+    /**
+     * Joins NAL units with 4-byte start codes, as MediaCodec writes them.
+     */
+    private static byte[] annexB4(byte[]... nals) {
+        ByteBuffer out = ByteBuffer.allocate(Arrays.stream(nals).mapToInt(unit -> unit.length + 4).sum());
+        for (byte[] unit : nals) {
+            out.putInt(1).put(unit);
+        }
+        return out.array();
+    }
+
+    @Test
+    public void directAndHeapBuffersGiveTheSameUnits() {
+        byte[] sps = nal(9, 0x67, 1);
+        byte[] pps = nal(4, 0x68, 2);
+        byte[] idr = nal(300, 0x65, 3);
+        byte[] data = annexB(sps, pps, idr);
+        byte[] padded = new byte[data.length + 10];
+        System.arraycopy(data, 0, padded, 5, data.length);
+
+        for (ByteBuffer buffer : new ByteBuffer[]{direct(data),
+                ByteBuffer.wrap(padded, 5, data.length).slice(), ByteBuffer.wrap(padded, 5, data.length)}) {
+            NalScanner scanner = new NalScanner();
+            scanner.reset(buffer);
+            int base = buffer.position();
+            assertTrue(scanner.next());
+            assertEquals(NalScanner.H264_SPS, scanner.h264Type());
+            assertEquals(base + 4, scanner.nalOffset);
+            assertEquals(9, scanner.nalLength());
+            assertTrue(scanner.next());
+            assertEquals(NalScanner.H264_PPS, scanner.h264Type());
+            assertEquals(4, scanner.nalLength());
+            assertTrue(scanner.next());
+            assertEquals(NalScanner.H264_IDR, scanner.h264Type());
+            assertEquals(3, scanner.h264RefIdc());
+            assertEquals(300, scanner.nalLength());
+            assertFalse(scanner.next());
+            assertEquals(base, buffer.position());
+        }
+    }
+
+    @Test
+    public void unitsAreFoundWithoutMeasuringEachOne() {
+        byte[] aud = {0x09, (byte) 0xf0};
+        byte[] slice = nal(50, 0x41, 4);
+        NalScanner scanner = new NalScanner();
+        byte[] data = annexB(aud, slice, nal(20, 0x01, 5));
+        scanner.reset(data, 0, data.length);
+        assertTrue(scanner.next());
+        assertTrue(scanner.next());
+        assertEquals(NalScanner.H264_NON_IDR, scanner.h264Type());
+        assertTrue(scanner.next());
+        assertEquals(0, scanner.h264RefIdc());
+        assertEquals(20, scanner.nalLength());
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void zeroPaddingIsSkipped() {
+        byte[] data = {0, 0, 0, 1, 0x67, 1, 2, 3, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0x68, 5, 6};
+        NalScanner scanner = new NalScanner();
+        scanner.reset(data, 0, data.length);
+        assertTrue(scanner.next());
+        assertEquals(4, scanner.nalLength());
+        assertTrue(scanner.next());
+        assertEquals(NalScanner.H264_PPS, scanner.h264Type());
+        assertEquals(19, scanner.nalOffset);
+        assertEquals(3, scanner.nalLength());
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void h265HeadersAreDecoded() {
+        byte[] vps = {0x40, 0x01, 0x0c};
+        byte[] cra = nal(30, 21 << 1, 7);
+        byte[] data = annexB(vps, cra);
+        NalScanner scanner = new NalScanner();
+        scanner.reset(direct(data));
+        assertTrue(scanner.next());
+        assertEquals(NalScanner.H265_VPS, scanner.h265Type());
+        assertTrue(scanner.next());
+        assertEquals(21, scanner.h265Type());
+    }
+
+    @Test
+    public void convertsBetweenAnnexBAndLengthPrefixedInPlace() {
+        byte[] sps = nal(9, 0x67, 1);
+        byte[] idr = nal(70000, 0x65, 2);
+        byte[] data = annexB4(sps, idr);
+        for (ByteBuffer buffer : new ByteBuffer[]{direct(data), ByteBuffer.wrap(data.clone())}) {
+            assertTrue(new NalScanner().annexBToLengthPrefixed(buffer));
+            byte[] converted = bytes(buffer);
+            assertEquals(9, ByteBuffer.wrap(converted).getInt(0));
+            assertEquals(70000, ByteBuffer.wrap(converted).getInt(13));
+            assertArrayEquals(sps, Arrays.copyOfRange(converted, 4, 13));
+            assertEquals(0, buffer.position());
+
+            assertTrue(NalScanner.lengthPrefixedToAnnexB(buffer));
+            assertArrayEquals(data, bytes(buffer));
+        }
+    }
+
+    @Test
+    public void refusesWhatDoesNotFitInPlace() {
+        NalScanner scanner = new NalScanner();
+        // A 3-byte start code has no room for a 4-byte length
+        byte[] shortStart = annexB(nal(5, 0x67, 1), nal(5, 0x68, 2));
+        byte[] copy = shortStart.clone();
+        assertFalse(scanner.annexBToLengthPrefixed(ByteBuffer.wrap(copy)));
+        assertArrayEquals(shortStart, copy);
+        assertFalse(scanner.annexBToLengthPrefixed(ByteBuffer.allocate(0)));
+        assertFalse(scanner.annexBToLengthPrefixed(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5})));
+
+        byte[] overrun = {0, 0, 0, 9, 0x65, 1, 2};
+        assertFalse(NalScanner.lengthPrefixedToAnnexB(ByteBuffer.wrap(overrun)));
+        assertEquals(9, overrun[3]);
+        assertFalse(NalScanner.lengthPrefixedToAnnexB(ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x65, 0, 0})));
+    }
+}
@@ -0,0 +1,61 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void delaysDoubleUpToTheCap() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 3000, new Random(1));
+        long[] ceilings = {100, 200, 400, 800, 1600, 3000, 3000, 3000};
+        for (long ceiling : ceilings) {
+            long delay = backoff.nextDelayMs();
+            assertTrue(delay + " outside [" + ceiling / 2 + ", " + ceiling + "]",
+                    delay >= ceiling - ceiling / 2 && delay <= ceiling);
+        }
+        assertEquals(ceilings.length, backoff.getAttempts());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 3000, new Random(2));
+        for (int i = 0; i < 6; i++) {
+            backoff.nextDelayMs();
+        }
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelayMs() <= 100);
+    }
+
+    @Test
+    public void manyAttemptsDoNotOverflow() {
+        ReconnectBackoff backoff = new ReconnectBackoff(500, 30000, new Random(3));
+        for (int i = 0; i < 200; i++) {
+            long delay = backoff.nextDelayMs();
+            assertTrue(delay > 0 && delay <= 30000);
+        }
+    }
+
+    @Test
+    public void clientsStartingTogetherSpreadOut() {
+        Set<Long> delays = new HashSet<>();
+        Random seeds = new Random(4);
+        for (int client = 0; client < 50; client++) {
+            ReconnectBackoff backoff = new ReconnectBackoff(1000, 30000, new Random(seeds.nextLong()));
+            backoff.nextDelayMs();
+            delays.add(backoff.nextDelayMs());
+        }
+        assertTrue(delays.size() > 40);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapBelowBase() {
+        new ReconnectBackoff(1000, 500, new Random());
+    }
+}
@@ -0,0 +1,40 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RemoteClockTest {
+
+    private final RemoteClock clock = new RemoteClock();
+
+    @Test
+    public void offsetComesFromTheFastestRoundTrip() {
+        // The viewer's clock runs 5 s ahead of ours
+        assertFalse(clock.isSynchronized());
+        // A queued pong: the viewer answered 10 ms after the ping but the reply sat for 90 ms
+        assertEquals(100000, clock.onPong(1000000, 6010000, 1100000));
+        // A clean 20 ms round trip
+        assertEquals(20000, clock.onPong(2000000, 7010000, 2020000));
+        assertEquals(20000, clock.getMinRttUs());
+
+        assertEquals(3000000, clock.toLocalUs(8000000, 3005000));
+        // A later, slower pong does not displace it
+        clock.onPong(4000000, 9060000, 4080000);
+        assertEquals(3000000, clock.toLocalUs(8000000, 3005000));
+    }
+
+    @Test
+    public void restoresTheBitsTheViewerDropped() {
+        long nowUs = (7L << 32) + 1000;
+        clock.onPong((int) (nowUs - 10000), (int) (nowUs - 5000), nowUs);
+        // An event from just before our clock's low 32 bits wrapped
+        assertEquals(nowUs - 3000, clock.toLocalUs((int) (nowUs - 3000), nowUs));
+    }
+
+    @Test
+    public void ignoresPongsFromTheFuture() {
+        assertEquals(-1, clock.onPong(5000, 0, 1000));
+        assertFalse(clock.isSynchronized());
+    }
+}
@@ -0,0 +1,202 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SegmentRecorderTest {
+
+    private static final long FRAME_US = 33333;
+
+    // Tests other than the stall test size the queue to hold everything, so no frame is dropped
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> closed = Collections.synchronizedList(new ArrayList<>());
+    private final List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger keyFrameRequests = new AtomicInteger();
+    private final EncodedFrame.Pool pool = new EncodedFrame.Pool(frame -> { });
+
+    private SegmentRecorder newRecorder(File dir, long maxBytes, long maxDurationUs, int maxFrames, long maxQueuedBytes) {
+        return new SegmentRecorder(dir, EncoderRegistry.MIME_AVC, maxBytes, maxDurationUs, maxFrames, maxQueuedBytes,
+                new SegmentRecorder.Listener() {
+                    @Override
+                    public void onSegmentClosed(File file, long durationUs, long bytes) {
+                        assertEquals(file.length(), bytes);
+                        closed.add(file.getName() + ":" + durationUs);
+                    }
+
+                    @Override
+                    public void onError(IOException e) {
+                        errors.add(e);
+                    }
+                }, keyFrameRequests::incrementAndGet);
+    }
+
+    private void feed(SegmentRecorder recorder, byte[] data, long ptsUs, int flags) {
+        EncodedFrame frame = pool.obtain(0, ByteBuffer.wrap(data), ptsUs, flags, 1280, 720);
+        recorder.onEncodedFrame(frame);
+        frame.release();
+    }
+
+    /**
+     * A GOP of {@code gop} frames: one keyframe then deltas, all of {@code size} bytes.
+     */
+    private void feedFrames(SegmentRecorder recorder, int count, int gop, int size, int startIndex) {
+        for (int i = startIndex; i < startIndex + count; i++) {
+            boolean key = i % gop == 0;
+            feed(recorder, TsMuxerTest.accessUnit(size, key, i), 1000000 + i * FRAME_US,
+                    key ? FrameRing.FLAG_KEY_FRAME : 0);
+        }
+    }
+
+    private static List<TransportStreamReader> parseAll(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        List<File> sorted = new ArrayList<>();
+        Collections.addAll(sorted, files);
+        Collections.sort(sorted);
+        List<TransportStreamReader> segments = new ArrayList<>();
+        for (File file : sorted) {
+            TransportStreamReader reader = TransportStreamReader.parse(Files.readAllBytes(file.toPath()));
+            assertTrue(file.getName() + " must open on a keyframe", reader.pes.get(0).randomAccess);
+            segments.add(reader);
+        }
+        return segments;
+    }
+
+    @Test
+    public void segmentsParseAndRotateBySize() throws Exception {
+        File dir = folder.newFolder();
+        SegmentRecorder recorder = newRecorder(dir, 40 * 1024, 60000000, 256, 16 << 20);
+        recorder.start();
+        feed(recorder, TsMuxerTest.SPS_PPS, 0, FrameRing.FLAG_CODEC_CONFIG);
+        feedFrames(recorder, 120, 10, 2000, 0);
+        recorder.stop();
+        assertTrue(recorder.join(2000));
+
+        assertTrue(errors.isEmpty());
+        List<TransportStreamReader> segments = parseAll(dir);
+        assertTrue("Expected several segments, got " + segments.size(), segments.size() > 2);
+        assertEquals(segments.size(), recorder.getSegmentCount());
+        assertEquals(segments.size(), closed.size());
+
+        int index = 0;
+        long previousPts = -1;
+        for (TransportStreamReader segment : segments) {
+            for (TransportStreamReader.Pes pes : segment.pes) {
+                boolean key = index % 10 == 0;
+                byte[] unit = TsMuxerTest.accessUnit(2000, key, index);
+                // Access unit delimiter, then SPS/PPS on keyframes, then the frame itself
+                int prefix = 6 + (key ? TsMuxerTest.SPS_PPS.length : 0);
+                assertEquals(prefix + unit.length, pes.payload.length);
+                assertEquals(unit[4], pes.payload[prefix + 4]);
+                assertEquals(key, pes.randomAccess);
+                assertTrue(pes.pts90k > previousPts);
+                previousPts = pes.pts90k;
+                index++;
+            }
+        }
+        assertEquals(120, index);
+        assertEquals(120, recorder.getWrittenFrames());
+        assertEquals(0, recorder.getDroppedFrames());
+    }
+
+    @Test
+    public void rotatesByDurationOnKeyFrames() throws Exception {
+        File dir = folder.newFolder();
+        SegmentRecorder recorder = newRecorder(dir, Long.MAX_VALUE, 900000, 256, 16 << 20);
+        recorder.start();
+        feed(recorder, TsMuxerTest.SPS_PPS, 0, FrameRing.FLAG_CODEC_CONFIG);
+        // 15-frame GOPs at 30 fps: a new keyframe every 0.5 s, so segments close after two GOPs
+        feedFrames(recorder, 150, 15, 500, 0);
+        recorder.stop();
+        assertTrue(recorder.join(2000));
+
+        List<TransportStreamReader> segments = parseAll(dir);
+        assertEquals(5, segments.size());
+        for (int i = 0; i < segments.size() - 1; i++) {
+            assertEquals(30, segments.get(i).pes.size());
+            assertTrue(closed.get(i), closed.get(i).endsWith(":" + (30 * FRAME_US)));
+        }
+    }
+
+    @Test
+    public void requestsAKeyFrameOnceASegmentIsDue() throws Exception {
+        File dir = folder.newFolder();
+        SegmentRecorder recorder = newRecorder(dir, Long.MAX_VALUE, 1000000, 256, 16 << 20);
+        recorder.start();
+        feed(recorder, TsMuxerTest.SPS_PPS, 0, FrameRing.FLAG_CODEC_CONFIG);
+        // A 10 s GOP; the segment is due after 30 frames
+        feedFrames(recorder, 29, 300, 500, 0);
+        assertEquals(0, keyFrameRequests.get());
+        feedFrames(recorder, 10, 300, 500, 29);
+        assertEquals(1, keyFrameRequests.get());
+        // The requested keyframe arrives and closes the segment
+        feed(recorder, TsMuxerTest.accessUnit(500, true, 39), 1000000 + 39 * FRAME_US, FrameRing.FLAG_KEY_FRAME);
+        feedFrames(recorder, 29, 300, 500, 40);
+        recorder.stop();
+        assertTrue(recorder.join(2000));
+
+        assertEquals(1, keyFrameRequests.get());
+        assertEquals(2, parseAll(dir).size());
+    }
+
+    // A recorder that blocked the drain thread would never return from feedFrames below
+    @Test(timeout = 10000)
+    public void dropsToTheNextKeyFrameInsteadOfBlocking() throws Exception {
+        File dir = folder.newFolder();
+        // Not started yet, so nothing drains: this is a disk that has stalled
+        SegmentRecorder recorder = newRecorder(dir, Long.MAX_VALUE, Long.MAX_VALUE, 8, 1 << 20);
+        feed(recorder, TsMuxerTest.SPS_PPS, 0, FrameRing.FLAG_CODEC_CONFIG);
+        feedFrames(recorder, 40, 10, 1000, 0);
+        assertEquals(32, recorder.getDroppedFrames());
+        assertEquals(8000, recorder.getQueuedBytes());
+        // Asked once at frame 8, then again after each keyframe the stall swallows (10, 20, 30)
+        assertEquals(4, keyFrameRequests.get());
+
+        recorder.start();
+        // Frames 8-39 were dropped; recording resumes at keyframe 40 once the writer catches up.
+        // Paced so that only the stall above drops anything.
+        for (int i = 40; i < 55; i++) {
+            while (recorder.getQueuedBytes() > 0) {
+                Thread.sleep(1);
+            }
+            feedFrames(recorder, 1, 10, 1000, i);
+        }
+        recorder.stop();
+        assertTrue(recorder.join(2000));
+
+        List<TransportStreamReader> segments = parseAll(dir);
+        assertEquals(1, segments.size());
+        List<TransportStreamReader.Pes> written = segments.get(0).pes;
+        assertEquals(8 + 15, written.size());
+        assertTrue(written.get(8).randomAccess);
+        assertEquals(0, recorder.getQueuedBytes());
+    }
+
+    @Test
+    public void framesBeforeTheFirstKeyFrameAreSkipped() throws Exception {
+        File dir = folder.newFolder();
+        SegmentRecorder recorder = newRecorder(dir, Long.MAX_VALUE, Long.MAX_VALUE, 64, 1 << 20);
+        recorder.start();
+        feed(recorder, TsMuxerTest.SPS_PPS, 0, FrameRing.FLAG_CODEC_CONFIG);
+        feedFrames(recorder, 25, 10, 300, 5);
+        recorder.stop();
+        assertTrue(recorder.join(2000));
+        assertEquals(5, recorder.getDroppedFrames());
+        assertEquals(20, parseAll(dir).get(0).pes.size());
+    }
+}
@@ -0,0 +1,50 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SendPacerTest {
+
+    private static final long MS = 1000000;
+
+    // 8 Mbps is 1000 bytes per millisecond, so a 40 ms window holds 40 kB
+    private final SendPacer pacer = new SendPacer(40);
+
+    @Test
+    public void unpacedUntilARateIsSet() {
+        assertEquals(0, pacer.delayNs(0));
+        assertEquals(0, pacer.onSent(1 << 20, 0));
+        assertEquals(0, pacer.delayNs(1));
+    }
+
+    @Test
+    public void keyFrameGoesAtOnceAndTheFramesAfterItWait() {
+        pacer.setRate(8000000);
+        assertEquals(0, pacer.delayNs(0));
+        assertEquals(60000, pacer.onSent(100000, 0));
+        // The debt is paid back at 1000 bytes per millisecond
+        assertEquals(60 * MS, pacer.delayNs(0));
+        assertEquals(27 * MS, pacer.delayNs(33 * MS));
+        assertEquals(0, pacer.delayNs(60 * MS));
+        assertEquals(5000, pacer.onSent(5000, 60 * MS));
+    }
+
+    @Test
+    public void idleTimeOnlySavesUpOneWindow() {
+        pacer.setRate(8000000);
+        pacer.onSent(1000, 0);
+        assertEquals(10000, pacer.onSent(50000, 10000 * MS));
+    }
+
+    @Test
+    public void smallFramesAtTheRateAreNeverHeld() {
+        pacer.setRate(8000000);
+        // 30 fps at 4.8 Mbps against an 8 Mbps pacing rate
+        for (int i = 0; i < 300; i++) {
+            long nowNs = i * 33 * MS;
+            assertEquals(0, pacer.delayNs(nowNs));
+            assertEquals(0, pacer.onSent(20000, nowNs));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SignalingCodecTest {
+
+    private final SignalingCodec codec = new SignalingCodec(true);
+
+    /**
+     * Roughly what PeerConnection.createOffer produces for one H.264 video section.
+     */
+    static String sampleSdp() {
+        StringBuilder sdp = new StringBuilder();
+        sdp.append("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n")
+                .append("a=group:BUNDLE 0\r\na=extmap-allow-mixed\r\na=msid-semantic: WMS screenStream\r\n")
+                .append("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101\r\nc=IN IP4 0.0.0.0\r\n")
+                .append("a=rtcp:9 IN IP4 0.0.0.0\r\na=ice-ufrag:Jf3d\r\na=ice-pwd:r0Qk3nZ1yV6bX9fG2hT8uW4e\r\n")
+                .append("a=ice-options:trickle\r\na=fingerprint:sha-256 ");
+        for (int i = 0; i < 32; i++) {
+            sdp.append(String.format("%02X", (i * 37) & 0xff)).append(i < 31 ? ":" : "\r\n");
+        }
+        sdp.append("a=setup:actpass\r\na=mid:0\r\na=sendonly\r\na=rtcp-mux\r\na=rtcp-rsize\r\n");
+        for (int pt = 96; pt <= 101; pt++) {
+            sdp.append("a=rtpmap:").append(pt).append(" H264/90000\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" goog-remb\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" transport-cc\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" ccm fir\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" nack\r\n")
+                    .append("a=rtcp-fb:").append(pt).append(" nack pli\r\n")
+                    .append("a=fmtp:").append(pt)
+                    .append(" level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n");
+        }
+        for (int i = 1; i <= 12; i++) {
+            sdp.append("a=extmap:").append(i).append(" urn:ietf:params:rtp-hdrext:extension-").append(i).append("\r\n");
+        }
+        sdp.append("a=ssrc:2857416309 cname:Yp1oFhB8aW3qS7vJ\r\na=ssrc:2857416309 msid:screenStream screen\r\n");
+        return sdp.toString();
+    }
+
+    private static List<SignalingCandidate> sampleCandidates(int count) {
+        List<SignalingCandidate> candidates = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            candidates.add(new SignalingCandidate("0", 0,
+                    "candidate:" + (842163049 + i) + " 1 udp 1677729535 203.0.113." + i + " " + (50000 + i)
+                            + " typ srflx raddr 192.168.1.20 rport " + (50000 + i) + " generation 0 network-cost 999"));
+        }
+        return candidates;
+    }
+
+    private SignalingMessage roundTrip(SignalingMessage message) {
+        return codec.decode(codec.encode(message));
+    }
+
+    @Test
+    public void everyMessageTypeRoundTrips() {
+        List<SignalingMessage> messages = Arrays.asList(
+                SignalingMessage.offer("viewer-1", sampleSdp()),
+                SignalingMessage.answer("viewer-2", "v=0\r\n"),
+                SignalingMessage.candidates("viewer-3", sampleCandidates(5)),
+                SignalingMessage.candidates("viewer-4", Arrays.asList(new SignalingCandidate(null, 3, "candidate:x"))),
+                SignalingMessage.viewerJoined("viewer-5"),
+                SignalingMessage.viewerLeft("viewer-6"),
+                SignalingMessage.ping(),
+                SignalingMessage.pong());
+        for (SignalingMessage message : messages) {
+            assertEquals(message, roundTrip(message));
+        }
+    }
+
+    @Test
+    public void nonAsciiSurvives() {
+        SignalingMessage message = SignalingMessage.offer("zuschauer-\u00e4-\u89c6", "s=Bildschirm \u2013 \u00fcbertragung\r\n");
+        assertEquals(message, roundTrip(message));
+    }
+
+    @Test
+    public void largeSdpIsCompressed() {
+        String sdp = sampleSdp();
+        int jsonSize = ("{\"type\":\"offer\",\"viewerId\":\"viewer-1\",\"sdp\":\""
+                + sdp.replace("\r\n", "\\r\\n") + "\"}").getBytes(StandardCharsets.UTF_8).length;
+        byte[] compressed = codec.encode(SignalingMessage.offer("viewer-1", sdp));
+        byte[] plain = new SignalingCodec(false).encode(SignalingMessage.offer("viewer-1", sdp));
+
+        assertTrue(plain.length < jsonSize);
+        assertTrue("compressed " + compressed.length + " vs " + plain.length, compressed.length < plain.length / 2);
+        // Either form decodes regardless of the decoder's own setting
+        assertEquals(sdp, new SignalingCodec(false).decode(compressed).sdp);
+        assertEquals(sdp, codec.decode(plain).sdp);
+    }
+
+    @Test
+    public void recognisesOwnFrames() {
+        assertTrue(SignalingCodec.isBinaryFrame(codec.encode(SignalingMessage.ping())));
+        assertFalse(SignalingCodec.isBinaryFrame("{\"type\":\"ping\"}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void rejectsTruncatedFrames() {
+        byte[] frame = codec.encode(SignalingMessage.candidates("viewer", sampleCandidates(3)));
+        for (int length = 0; length < frame.length; length++) {
+            try {
+                codec.decode(Arrays.copyOf(frame, length));
+                fail("Decoded a frame truncated to " + length + " bytes");
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        byte[] frame = codec.encode(SignalingMessage.ping());
+        frame[2] = (byte) (SignalingCodec.VERSION + 1);
+        codec.decode(frame);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCorruptCompressedSdp() {
+        byte[] frame = codec.encode(SignalingMessage.offer("v", sampleSdp()));
+        frame[frame.length - 10] ^= 0x5a;
+        frame[frame.length - 20] ^= 0x5a;
+        codec.decode(frame);
+    }
+
+    @Test
+    public void throughput() {
+        SignalingMessage offer = SignalingMessage.offer("viewer-1", sampleSdp());
+        SignalingMessage candidates = SignalingMessage.candidates("viewer-1", sampleCandidates(4));
+        for (int i = 0; i < 2000; i++) {
+            codec.decode(codec.encode(offer));
+            codec.decode(codec.encode(candidates));
+        }
+
+        int iterations = 20000;
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            byte[] frame = codec.encode(i % 4 == 0 ? offer : candidates);
+            bytes += frame.length;
+            assertNotNull(codec.decode(frame));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("SignalingCodec: %.0f messages/s round trip, %.0f bytes/message average%n",
+                iterations / seconds, (double) bytes / iterations);
+    }
+}
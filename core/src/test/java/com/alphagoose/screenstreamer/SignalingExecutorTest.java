@@ -0,0 +1,104 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SignalingExecutorTest {
+
+    private final SignalingExecutor executor = new SignalingExecutor("SignalingTest");
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1000);
+    }
+
+    @Test
+    public void tasksRunInSubmissionOrder() throws InterruptedException {
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 500; i++) {
+            final int index = i;
+            executor.execute(() -> order.add(index));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1000));
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+        assertEquals(500, executor.getHandlingTime().getCount());
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void queueDepthCountsTasksWaitingBehindASlowOne() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            executor.execute(() -> { });
+        }
+        // The blocking task may or may not have started yet
+        assertTrue(executor.getQueueDepth() >= 10);
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1000));
+        assertEquals(0, executor.getQueueDepth());
+        assertTrue(executor.getMaxQueueDepth() >= 10);
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheQueue() throws InterruptedException {
+        List<Throwable> errors = new ArrayList<>();
+        executor.setErrorHandler((thread, error) -> errors.add(error));
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(() -> {
+            throw new IllegalStateException("bad message");
+        });
+        executor.execute(ran::countDown);
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void delayedTaskRunsAfterImmediateOnes() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        executor.executeDelayed(() -> {
+            order.add("flush");
+            done.countDown();
+        }, 30);
+        executor.execute(() -> order.add("candidate"));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("candidate", "flush"), order);
+    }
+
+    @Test
+    public void pendingDelayedTasksAreDroppedAtShutdown() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        executor.executeDelayed(() -> order.add("late"), 10000);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1000));
+        assertTrue(order.isEmpty());
+    }
+
+    @Test
+    public void rejectsAfterShutdown() {
+        executor.shutdown();
+        assertFalse(executor.execute(() -> { }));
+        assertEquals(0, executor.getQueueDepth());
+    }
+}
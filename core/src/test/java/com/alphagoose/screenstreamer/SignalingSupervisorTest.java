@@ -0,0 +1,161 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SignalingSupervisorTest {
+
+    private static final long TIMEOUT_MS = 3000;
+
+    private final SignalingExecutor executor = new SignalingExecutor("SupervisorTest");
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private StandInSignalingServer server;
+    private SocketSignalingConnector connector;
+    private SignalingSupervisor supervisor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInSignalingServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (supervisor != null) {
+            supervisor.stop();
+        }
+        executor.shutdown();
+        executor.awaitTermination(1000);
+        connector.shutdown();
+        server.close();
+    }
+
+    private void start(long heartbeatMs, long baseDelayMs, long stableMs) {
+        connector = new SocketSignalingConnector(server.getPort(), heartbeatMs);
+        supervisor = new SignalingSupervisor(connector, executor,
+                new ReconnectBackoff(baseDelayMs, baseDelayMs * 8, new Random(5)), stableMs,
+                new SignalingSupervisor.Callback() {
+                    @Override
+                    public void onConnected(boolean resumed) {
+                        events.add(resumed ? "resumed" : "connected");
+                    }
+
+                    @Override
+                    public void onText(String text) {
+                        events.add("text:" + text);
+                    }
+
+                    @Override
+                    public void onBinary(byte[] bytes) {
+                        events.add("binary:" + bytes.length);
+                    }
+
+                    @Override
+                    public void onDisconnected(String reason, long retryInMs) {
+                        events.add("disconnected:" + reason);
+                    }
+                });
+        supervisor.start();
+    }
+
+    private String next() throws InterruptedException {
+        String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Timed out waiting for a supervisor event", event);
+        return event;
+    }
+
+    private boolean sendOnSignalingThread(String text) throws InterruptedException {
+        BlockingQueue<Boolean> result = new LinkedBlockingQueue<>();
+        executor.execute(() -> result.add(supervisor.send(text)));
+        return result.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void exchangesMessagesOnceOpen() throws Exception {
+        start(1000, 20, 0);
+        assertEquals("connected", next());
+        assertTrue(sendOnSignalingThread("hello"));
+        assertEquals("hello", server.takeText(TIMEOUT_MS));
+        server.sendText("welcome");
+        assertEquals("text:welcome", next());
+        assertEquals(SignalingSupervisor.State.OPEN, supervisor.getState());
+    }
+
+    @Test
+    public void reconnectsAfterTheServerDropsTheConnection() throws Exception {
+        start(1000, 20, 0);
+        assertEquals("connected", next());
+        server.dropConnections();
+        assertTrue(next().startsWith("disconnected:"));
+        assertFalse(sendOnSignalingThread("lost"));
+        assertEquals("resumed", next());
+        assertEquals(1, supervisor.getReconnects());
+        assertEquals(2, server.getAcceptedConnections());
+        assertTrue(sendOnSignalingThread("again"));
+        assertEquals("again", server.takeText(TIMEOUT_MS));
+    }
+
+    @Test
+    public void keepsRetryingWhileRefused() throws Exception {
+        server.setRefuseConnections(true);
+        start(1000, 10, 0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(next().startsWith("disconnected:Upgrade refused"));
+        }
+        server.setRefuseConnections(false);
+        String event;
+        while ((event = next()).startsWith("disconnected:")) {
+            // Attempts already under way when the server came back
+        }
+        // Never opened before, so this is a first connection rather than a resume
+        assertEquals("connected", event);
+        assertTrue(supervisor.getConnectAttempts() >= 4);
+    }
+
+    @Test
+    public void missingPongsCountAsADeadConnection() throws Exception {
+        start(50, 20, 0);
+        assertEquals("connected", next());
+        server.setAnswerPings(false);
+        String event = next();
+        assertTrue(event, event.contains("pong"));
+        server.setAnswerPings(true);
+        assertEquals("resumed", next());
+    }
+
+    @Test
+    public void latencyBelowTheHeartbeatKeepsTheConnection() throws Exception {
+        server.setLatencyMs(60);
+        start(200, 20, 0);
+        assertEquals("connected", next());
+        long startNs = System.nanoTime();
+        server.sendText("slow");
+        assertEquals("text:slow", next());
+        assertTrue((System.nanoTime() - startNs) / 1000000 >= 50);
+        // Several heartbeats, each answered late but in time
+        Thread.sleep(700);
+        assertTrue(server.getPingsAnswered() >= 2);
+        assertNull(events.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, server.getAcceptedConnections());
+    }
+
+    @Test
+    public void stopAbandonsPendingReconnects() throws Exception {
+        start(1000, 200, 0);
+        assertEquals("connected", next());
+        server.dropConnections();
+        assertTrue(next().startsWith("disconnected:"));
+        supervisor.stop();
+        Thread.sleep(500);
+        assertEquals(1, server.getAcceptedConnections());
+        assertEquals(SignalingSupervisor.State.STOPPED, supervisor.getState());
+    }
+}
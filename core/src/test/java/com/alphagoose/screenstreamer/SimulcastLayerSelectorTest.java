@@ -0,0 +1,80 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SimulcastLayerSelectorTest {
+
+    private static final long HOLD_MS = 10000;
+    // 4 Mbps high layer and the fractions below it
+    private static final int[] BITRATES = {4000000, 1400000, 480000};
+
+    private final SimulcastLayerSelector selector = new SimulcastLayerSelector(HOLD_MS);
+
+    @Test
+    public void firstEstimatePicksTheLayerDirectly() {
+        assertEquals(1, selector.select(2000000, BITRATES, 0));
+        SimulcastLayerSelector fast = new SimulcastLayerSelector(HOLD_MS);
+        assertEquals(0, fast.select(20000000, BITRATES, 0));
+        assertEquals(0, selector.getSwitchCount());
+    }
+
+    @Test
+    public void startsOnTheLowestLayerUntilThereIsAnEstimate() {
+        assertEquals(2, selector.select(0, BITRATES, 0));
+        assertEquals(-1, selector.getLayer());
+        assertEquals(0, selector.select(8000000, BITRATES, 1000));
+    }
+
+    @Test
+    public void dropsStraightToTheLayerThatFits() {
+        selector.select(8000000, BITRATES, 0);
+        assertEquals(0, selector.select(4000000, BITRATES, 1000));
+        assertEquals(2, selector.select(600000, BITRATES, 2000));
+        // Nothing fits: the lowest layer is still the best there is
+        assertEquals(2, selector.select(100000, BITRATES, 3000));
+        assertEquals(1, selector.getSwitchCount());
+    }
+
+    @Test
+    public void stepsUpOneLayerPerHold() {
+        selector.select(600000, BITRATES, 0);
+        int[] layers = new int[25];
+        for (int second = 1; second < layers.length; second++) {
+            layers[second] = selector.select(20000000, BITRATES, second * 1000L);
+        }
+        // The first good sample starts the hold
+        assertEquals(2, layers[10]);
+        assertEquals(1, layers[11]);
+        assertEquals(1, layers[20]);
+        assertEquals(0, layers[21]);
+        assertEquals(2, selector.getSwitchCount());
+    }
+
+    @Test
+    public void needsHeadroomToStepUp() {
+        selector.select(2000000, BITRATES, 0);
+        for (int second = 1; second < 60; second++) {
+            // Covers the high layer, but not by enough to be worth the switch
+            assertEquals(1, selector.select(4500000, BITRATES, second * 1000L));
+        }
+    }
+
+    @Test
+    public void aWobblingEstimateDoesNotFlap() {
+        selector.select(2000000, BITRATES, 0);
+        for (int second = 1; second < 120; second++) {
+            long estimate = second % 4 == 0 ? 4200000 : 6000000;
+            assertEquals(1, selector.select(estimate, BITRATES, second * 1000L));
+        }
+        assertEquals(0, selector.getSwitchCount());
+    }
+
+    @Test
+    public void followsLayersBeingTakenAway() {
+        selector.select(600000, BITRATES, 0);
+        assertEquals(1, selector.select(600000, new int[]{4000000, 1400000}, 1000));
+        assertEquals(0, selector.select(600000, new int[]{4000000}, 2000));
+    }
+}
@@ -0,0 +1,183 @@
+package com.alphagoose.screenstreamer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plain-socket client for {@link StandInSignalingServer}, behaving like the OkHttp connector:
+ * a ping every heartbeat interval, and a failure if the previous ping is still unanswered.
+ */
+class SocketSignalingConnector implements SignalingSupervisor.Connector {
+    private final int port;
+    private final long heartbeatIntervalMs;
+    private final Random random = new Random(7);
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SocketSignalingConnector-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SocketSignalingConnector(int port, long heartbeatIntervalMs) {
+        this.port = port;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+    }
+
+    void shutdown() {
+        heartbeat.shutdownNow();
+    }
+
+    @Override
+    public SignalingSupervisor.Connection connect(SignalingSupervisor.Events events) {
+        ClientConnection connection = new ClientConnection(events);
+        Thread reader = new Thread(connection::run, "SocketSignalingConnector-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    private final class ClientConnection implements SignalingSupervisor.Connection {
+        private final SignalingSupervisor.Events events;
+        private final Socket socket = new Socket();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile boolean awaitingPong;
+        private volatile boolean open;
+
+        ClientConnection(SignalingSupervisor.Events events) {
+            this.events = events;
+        }
+
+        void run() {
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+                socket.setTcpNoDelay(true);
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                byte[] nonce = new byte[16];
+                synchronized (random) {
+                    random.nextBytes(nonce);
+                }
+                String key = Base64.getEncoder().encodeToString(nonce);
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET / HTTP/1.1\r\nHost: localhost:" + port + "\r\nUpgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\nSec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                String status = StandInSignalingServer.readLine(in);
+                String accept = null;
+                String line;
+                while (!(line = StandInSignalingServer.readLine(in)).isEmpty()) {
+                    if (line.toLowerCase(Locale.US).startsWith("sec-websocket-accept:")) {
+                        accept = line.substring(line.indexOf(':') + 1).trim();
+                    }
+                }
+                if (!status.contains(" 101 ") || !StandInSignalingServer.acceptKey(key).equals(accept)) {
+                    fail("Upgrade refused: " + status);
+                    return;
+                }
+                open = true;
+                events.onOpen();
+                heartbeat.scheduleAtFixedRate(this::ping, heartbeatIntervalMs, heartbeatIntervalMs,
+                        TimeUnit.MILLISECONDS);
+
+                while (!finished.get()) {
+                    StandInSignalingServer.Frame frame = StandInSignalingServer.readFrame(in);
+                    switch (frame.opcode) {
+                        case StandInSignalingServer.OP_TEXT:
+                            events.onText(new String(frame.payload, StandardCharsets.UTF_8));
+                            break;
+                        case StandInSignalingServer.OP_BINARY:
+                            events.onBinary(frame.payload);
+                            break;
+                        case StandInSignalingServer.OP_PONG:
+                            awaitingPong = false;
+                            break;
+                        case StandInSignalingServer.OP_CLOSE:
+                            fail("Closed by server");
+                            return;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                fail("Failure: " + e);
+            }
+        }
+
+        private void ping() {
+            if (finished.get()) {
+                throw new IllegalStateException("Stop the heartbeat");
+            }
+            if (awaitingPong) {
+                fail("Failure: sent ping but didn't receive pong within " + heartbeatIntervalMs + "ms");
+                throw new IllegalStateException("Stop the heartbeat");
+            }
+            awaitingPong = true;
+            write(StandInSignalingServer.OP_PING, new byte[0]);
+        }
+
+        private synchronized boolean write(int opcode, byte[] payload) {
+            if (!open || finished.get()) {
+                return false;
+            }
+            byte[] frame;
+            synchronized (random) {
+                frame = StandInSignalingServer.encodeFrame(opcode, payload, random);
+            }
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(frame);
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                fail("Failure: " + e);
+                return false;
+            }
+        }
+
+        private void fail(String reason) {
+            if (finished.compareAndSet(false, true)) {
+                closeSocket();
+                events.onClosed(reason);
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+
+        @Override
+        public boolean send(String text) {
+            return write(StandInSignalingServer.OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public boolean send(ByteBuffer bytes) {
+            byte[] payload = new byte[bytes.remaining()];
+            bytes.duplicate().get(payload);
+            return write(StandInSignalingServer.OP_BINARY, payload);
+        }
+
+        @Override
+        public void cancel() {
+            finished.set(true);
+            closeSocket();
+        }
+    }
+}
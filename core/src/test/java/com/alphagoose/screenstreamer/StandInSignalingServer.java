@@ -0,0 +1,354 @@
+package com.alphagoose.screenstreamer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal WebSocket server on loopback standing in for the signaling server, with knobs to
+ * misbehave: drop every connection, refuse new ones, delay everything it sends, or stop
+ * answering pings. Only what the signaling client uses is implemented; no extensions, no
+ * fragmented messages.
+ */
+class StandInSignalingServer implements AutoCloseable {
+    static final int OP_TEXT = 1;
+    static final int OP_BINARY = 2;
+    static final int OP_CLOSE = 8;
+    static final int OP_PING = 9;
+    static final int OP_PONG = 10;
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicInteger pingsAnswered = new AtomicInteger();
+    private volatile long latencyMs;
+    private volatile boolean answerPings = true;
+    private volatile boolean refuseConnections;
+    private volatile boolean closed;
+
+    StandInSignalingServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(this::acceptLoop, "StandInSignalingServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Delays every frame the server sends, pongs included.
+     */
+    void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    void setAnswerPings(boolean answerPings) {
+        this.answerPings = answerPings;
+    }
+
+    /**
+     * Answers new upgrade requests with 503, as a restarting server behind a proxy would.
+     */
+    void setRefuseConnections(boolean refuseConnections) {
+        this.refuseConnections = refuseConnections;
+    }
+
+    /**
+     * Closes every open socket without a close frame, as a crashed server or a dead NAT mapping
+     * would look to the client.
+     */
+    void dropConnections() {
+        for (Peer peer : peers) {
+            peer.close();
+        }
+    }
+
+    void sendText(String text) {
+        for (Peer peer : peers) {
+            peer.send(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @return the next text message received from any client, or null after {@code timeoutMs}
+     */
+    String takeText(long timeoutMs) throws InterruptedException {
+        return received.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    int getAcceptedConnections() {
+        return accepted.get();
+    }
+
+    int getOpenConnections() {
+        return peers.size();
+    }
+
+    int getPingsAnswered() {
+        return pingsAnswered.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        dropConnections();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> serve(socket), "StandInSignalingServer-peer");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Peer peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String key = readUpgradeRequest(in);
+            OutputStream out = socket.getOutputStream();
+            if (refuseConnections || key == null) {
+                out.write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                socket.close();
+                return;
+            }
+            // Registered before the client can see the upgrade, so dropConnections() catches it
+            peer = new Peer(socket);
+            peers.add(peer);
+            accepted.incrementAndGet();
+            out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            while (true) {
+                Frame frame = readFrame(in);
+                switch (frame.opcode) {
+                    case OP_TEXT:
+                        received.add(new String(frame.payload, StandardCharsets.UTF_8));
+                        break;
+                    case OP_PING:
+                        if (answerPings) {
+                            pingsAnswered.incrementAndGet();
+                            peer.send(OP_PONG, frame.payload);
+                        }
+                        break;
+                    case OP_CLOSE:
+                        peer.send(OP_CLOSE, frame.payload);
+                        return;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // Dropped by either side
+        } finally {
+            if (peer != null) {
+                peers.remove(peer);
+                peer.closeAfterPendingWrites();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the Sec-WebSocket-Key, or null if the request is not a WebSocket upgrade
+     */
+    private static String readUpgradeRequest(InputStream in) throws IOException {
+        String key = null;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        return key;
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static final class Frame {
+        final int opcode;
+        final byte[] payload;
+
+        Frame(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+
+    static Frame readFrame(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        long length = b1 & 0x7f;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        if (length > 1 << 24) {
+            throw new IOException("Frame too large: " + length);
+        }
+        byte[] mask = null;
+        if ((b1 & 0x80) != 0) {
+            mask = new byte[4];
+            in.readFully(mask);
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        if (mask != null) {
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+        }
+        return new Frame(b0 & 0x0f, payload);
+    }
+
+    /**
+     * Clients must mask what they send and servers must not.
+     */
+    static byte[] encodeFrame(int opcode, byte[] payload, Random maskSource) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 14);
+        out.write(0x80 | opcode);
+        int maskBit = maskSource != null ? 0x80 : 0;
+        if (payload.length < 126) {
+            out.write(maskBit | payload.length);
+        } else if (payload.length <= 0xffff) {
+            out.write(maskBit | 126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(maskBit | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) payload.length >>> shift));
+            }
+        }
+        if (maskSource == null) {
+            out.write(payload, 0, payload.length);
+        } else {
+            byte[] mask = new byte[4];
+            maskSource.nextBytes(mask);
+            out.write(mask, 0, 4);
+            for (int i = 0; i < payload.length; i++) {
+                out.write(payload[i] ^ mask[i & 3]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * One accepted client. Writes go through a single thread so injected latency delays frames
+     * without reordering them.
+     */
+    private final class Peer {
+        private final Socket socket;
+        private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "StandInSignalingServer-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Peer(Socket socket) {
+            this.socket = socket;
+        }
+
+        void send(int opcode, byte[] payload) {
+            byte[] frame = encodeFrame(opcode, payload, null);
+            try {
+                writer.schedule(() -> {
+                    try {
+                        OutputStream out = socket.getOutputStream();
+                        out.write(frame);
+                        out.flush();
+                    } catch (IOException e) {
+                        // The reader notices too and cleans up
+                    }
+                }, latencyMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closing
+            }
+        }
+
+        void close() {
+            writer.shutdownNow();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+
+        void closeAfterPendingWrites() {
+            try {
+                writer.schedule(this::close, latencyMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamingGovernorTest {
+
+    private static final long HOLD_MS = 60000;
+
+    /**
+     * Device state replayed from a script of "seconds status headroom battery [charging]" lines,
+     * each holding until the next; "-" marks an unknown value.
+     */
+    private static class TraceSource implements StreamingGovernor.SignalSource {
+        private final List<Long> times = new ArrayList<>();
+        private final List<StreamingGovernor.Signals> samples = new ArrayList<>();
+        long nowMs;
+
+        TraceSource(String... lines) {
+            for (String line : lines) {
+                String[] fields = line.trim().split("\\s+");
+                times.add(Long.parseLong(fields[0]) * 1000);
+                samples.add(new StreamingGovernor.Signals(
+                        fields[1].equals("-") ? StreamingGovernor.Signals.THERMAL_UNKNOWN : Integer.parseInt(fields[1]),
+                        fields[2].equals("-") ? Float.NaN : Float.parseFloat(fields[2]),
+                        fields[3].equals("-") ? -1 : Integer.parseInt(fields[3]),
+                        fields.length > 4 && fields[4].equals("charging")));
+            }
+        }
+
+        @Override
+        public StreamingGovernor.Signals read() {
+            int index = 0;
+            while (index + 1 < times.size() && times.get(index + 1) <= nowMs) {
+                index++;
+            }
+            return samples.get(index);
+        }
+    }
+
+    private final List<String> changes = new ArrayList<>();
+
+    /**
+     * Polls every 5 s, like the service, and returns the profile at each whole minute.
+     */
+    private List<StreamingGovernor.Profile> replay(TraceSource trace, int minutes) {
+        StreamingGovernor governor = new StreamingGovernor(trace,
+                (profile, signals) -> changes.add(trace.nowMs / 1000 + "s " + profile), HOLD_MS);
+        List<StreamingGovernor.Profile> perMinute = new ArrayList<>();
+        for (long t = 0; t <= minutes * 60000L; t += 5000) {
+            trace.nowMs = t;
+            StreamingGovernor.Profile profile = governor.poll(t);
+            if (t % 60000 == 0) {
+                perMinute.add(profile);
+            }
+        }
+        return perMinute;
+    }
+
+    @Test
+    public void stepsDownOnTheForecastBeforeTheDeviceThrottles() {
+        // A phone warming up over a long session; status never goes past LIGHT
+        TraceSource trace = new TraceSource(
+                "0    0 0.40 90 charging",
+                "300  0 0.72 90 charging",
+                "600  1 0.86 90 charging",
+                "900  1 0.80 90 charging");
+        replay(trace, 20);
+        assertEquals(2, changes.size());
+        assertEquals("300s BALANCED", changes.get(0));
+        assertEquals("600s SAVER", changes.get(1));
+    }
+
+    @Test
+    public void severeStatusDropsStraightToCritical() {
+        TraceSource trace = new TraceSource(
+                "0    0 -  80",
+                "60   3 -  80");
+        List<StreamingGovernor.Profile> profiles = replay(trace, 2);
+        assertEquals(StreamingGovernor.Profile.CRITICAL, profiles.get(2));
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void recoversOneStepPerHoldOnceClearlyCool() {
+        TraceSource trace = new TraceSource(
+                "0    3 0.97 80",
+                "60   0 0.50 80");
+        replay(trace, 6);
+        assertEquals(4, changes.size());
+        assertEquals("0s CRITICAL", changes.get(0));
+        // Cool from 60 s: the first poll starts the hold, each step then waits a full hold
+        assertEquals("120s SAVER", changes.get(1));
+        assertEquals("180s BALANCED", changes.get(2));
+        assertEquals("240s FULL", changes.get(3));
+    }
+
+    @Test
+    public void hoveringAtAThresholdDoesNotFlap() {
+        // Headroom wobbling just either side of the BALANCED threshold
+        String[] lines = new String[40];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = (i * 30) + " 0 " + (i % 2 == 0 ? "0.71" : "0.66") + " 80";
+        }
+        replay(new TraceSource(lines), 20);
+        assertEquals(1, changes.size());
+        assertEquals("0s BALANCED", changes.get(0));
+    }
+
+    @Test
+    public void lowBatteryOnlyCountsWhenNotCharging() {
+        TraceSource trace = new TraceSource(
+                "0    0 - 25",
+                "120  0 - 12",
+                "240  0 - 12 charging");
+        List<StreamingGovernor.Profile> profiles = replay(trace, 8);
+        assertEquals(StreamingGovernor.Profile.BALANCED, profiles.get(1));
+        assertEquals(StreamingGovernor.Profile.SAVER, profiles.get(3));
+        assertEquals(StreamingGovernor.Profile.FULL, profiles.get(8));
+    }
+
+    @Test
+    public void unknownSignalsKeepFullQuality() {
+        replay(new TraceSource("0 - - -"), 5);
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void profilesGetLighterDownTheLadder() {
+        StreamingGovernor.Profile[] profiles = StreamingGovernor.Profile.values();
+        for (int i = 1; i < profiles.length; i++) {
+            assertTrue(profiles[i].frameRate <= profiles[i - 1].frameRate);
+            assertTrue(profiles[i].maxResolutionScale <= profiles[i - 1].maxResolutionScale);
+            assertTrue(profiles[i].complexity <= profiles[i - 1].complexity);
+        }
+    }
+}
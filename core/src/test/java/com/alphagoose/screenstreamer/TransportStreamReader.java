@@ -0,0 +1,136 @@
+package com.alphagoose.screenstreamer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Strict reader for the transport streams {@link TsMuxer} writes: checks packet framing, table
+ * CRCs and continuity counters, and reassembles the video PES packets.
+ */
+class TransportStreamReader {
+
+    static final class Pes {
+        final long pts90k;
+        final boolean randomAccess;
+        final byte[] payload;
+
+        Pes(long pts90k, boolean randomAccess, byte[] payload) {
+            this.pts90k = pts90k;
+            this.randomAccess = randomAccess;
+            this.payload = payload;
+        }
+    }
+
+    int streamType = -1;
+    final List<Pes> pes = new ArrayList<>();
+
+    private ByteArrayOutputStream current;
+    private boolean currentRandomAccess;
+    private final int[] continuity = new int[0x2000];
+
+    TransportStreamReader() {
+        Arrays.fill(continuity, -1);
+    }
+
+    static TransportStreamReader parse(byte[] stream) {
+        TransportStreamReader reader = new TransportStreamReader();
+        reader.read(stream);
+        return reader;
+    }
+
+    void read(byte[] stream) {
+        assertEquals("Not a whole number of packets", 0, stream.length % TsMuxer.PACKET_SIZE);
+        assertTrue("Too short for PAT and PMT", stream.length >= 2 * TsMuxer.PACKET_SIZE);
+        assertEquals("Must start with the PAT", TsMuxer.PID_PAT, pid(stream, 0));
+        assertEquals("PMT must follow the PAT", TsMuxer.PID_PMT, pid(stream, TsMuxer.PACKET_SIZE));
+        for (int offset = 0; offset < stream.length; offset += TsMuxer.PACKET_SIZE) {
+            readPacket(stream, offset);
+        }
+        finishPes();
+    }
+
+    private static int pid(byte[] stream, int offset) {
+        return ((stream[offset + 1] & 0x1f) << 8) | (stream[offset + 2] & 0xff);
+    }
+
+    private void readPacket(byte[] stream, int offset) {
+        assertEquals("Lost sync at " + offset, 0x47, stream[offset] & 0xff);
+        boolean unitStart = (stream[offset + 1] & 0x40) != 0;
+        int pid = pid(stream, offset);
+        int control = (stream[offset + 3] >> 4) & 0x3;
+        int counter = stream[offset + 3] & 0x0f;
+        if (continuity[pid] >= 0) {
+            assertEquals("Continuity error on PID " + pid + " at " + offset, (continuity[pid] + 1) & 0x0f, counter);
+        }
+        continuity[pid] = counter;
+
+        int position = offset + 4;
+        boolean randomAccess = false;
+        if ((control & 0x2) != 0) {
+            int length = stream[position] & 0xff;
+            if (length > 0) {
+                randomAccess = (stream[position + 1] & 0x40) != 0;
+            }
+            position += 1 + length;
+        }
+        int end = offset + TsMuxer.PACKET_SIZE;
+        assertTrue("Adaptation field overruns the packet", position <= end);
+        if ((control & 0x1) == 0) {
+            return;
+        }
+        if (pid == TsMuxer.PID_PAT || pid == TsMuxer.PID_PMT) {
+            assertTrue(unitStart);
+            readSection(stream, position + 1 + (stream[position] & 0xff), pid);
+        } else if (pid == TsMuxer.PID_VIDEO) {
+            if (unitStart) {
+                finishPes();
+                current = new ByteArrayOutputStream();
+                currentRandomAccess = randomAccess;
+            }
+            assertNotNull("Video payload before any unit start", current);
+            current.write(stream, position, end - position);
+        } else {
+            fail("Unexpected PID " + pid);
+        }
+    }
+
+    private void readSection(byte[] stream, int position, int pid) {
+        int sectionLength = ((stream[position + 1] & 0x0f) << 8) | (stream[position + 2] & 0xff);
+        int total = 3 + sectionLength;
+        int crc = TsMuxer.crc32(Arrays.copyOfRange(stream, position, position + total - 4), total - 4);
+        int stored = ((stream[position + total - 4] & 0xff) << 24) | ((stream[position + total - 3] & 0xff) << 16)
+                | ((stream[position + total - 2] & 0xff) << 8) | (stream[position + total - 1] & 0xff);
+        assertEquals("Bad CRC on PID " + pid, crc, stored);
+        if (pid == TsMuxer.PID_PAT) {
+            assertEquals(0x00, stream[position] & 0xff);
+            int pmtPid = ((stream[position + 10] & 0x1f) << 8) | (stream[position + 11] & 0xff);
+            assertEquals(TsMuxer.PID_PMT, pmtPid);
+        } else {
+            assertEquals(0x02, stream[position] & 0xff);
+            int pcrPid = ((stream[position + 8] & 0x1f) << 8) | (stream[position + 9] & 0xff);
+            assertEquals(TsMuxer.PID_VIDEO, pcrPid);
+            streamType = stream[position + 12] & 0xff;
+            int esPid = ((stream[position + 13] & 0x1f) << 8) | (stream[position + 14] & 0xff);
+            assertEquals(TsMuxer.PID_VIDEO, esPid);
+        }
+    }
+
+    private void finishPes() {
+        if (current == null) {
+            return;
+        }
+        byte[] bytes = current.toByteArray();
+        current = null;
+        assertEquals("Missing PES start code", 1, (bytes[0] << 16) | (bytes[1] << 8) | bytes[2]);
+        assertEquals(0xe0, bytes[3] & 0xff);
+        assertEquals("PTS flag", 0x80, bytes[7] & 0xc0);
+        int headerLength = bytes[8] & 0xff;
+        long pts = ((long) (bytes[9] & 0x0e) << 29) | ((bytes[10] & 0xff) << 22) | ((bytes[11] & 0xfe) << 14)
+                | ((bytes[12] & 0xff) << 7) | ((bytes[13] & 0xff) >> 1);
+        pes.add(new Pes(pts, currentRandomAccess, Arrays.copyOfRange(bytes, 9 + headerLength, bytes.length)));
+    }
+}
@@ -0,0 +1,97 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TsMuxerTest {
+
+    static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, 0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+
+    static byte[] accessUnit(int size, boolean keyFrame, int seed) {
+        byte[] unit = new byte[size];
+        unit[3] = 1;
+        unit[4] = (byte) (keyFrame ? 0x65 : 0x41);
+        for (int i = 5; i < size; i++) {
+            unit[i] = (byte) (seed * 31 + i * 7);
+        }
+        return unit;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void append(ByteArrayOutputStream out, ByteBuffer buffer) {
+        out.write(buffer.array(), buffer.position(), buffer.remaining());
+    }
+
+    @Test
+    public void crcMatchesMpeg2CheckValue() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0x0376e6e7, TsMuxer.crc32(check, check.length));
+    }
+
+    @Test
+    public void samplesOfEverySizeAroundPacketBoundariesSurvive() {
+        TsMuxer muxer = new TsMuxer(EncoderRegistry.MIME_AVC);
+        muxer.setParameterSets(ByteBuffer.wrap(SPS_PPS));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        append(stream, muxer.writeTables());
+        int[] sizes = {6, 150, 155, 156, 157, 183, 184, 185, 340, 341, 342, 1000, 70000};
+        for (int i = 0; i < sizes.length; i++) {
+            append(stream, muxer.writeSample(ByteBuffer.wrap(accessUnit(sizes[i], i == 0, i)), i * 3000L, i == 0));
+        }
+
+        TransportStreamReader reader = TransportStreamReader.parse(stream.toByteArray());
+        assertEquals(TsMuxer.STREAM_TYPE_H264, reader.streamType);
+        assertEquals(sizes.length, reader.pes.size());
+        for (int i = 0; i < sizes.length; i++) {
+            TransportStreamReader.Pes pes = reader.pes.get(i);
+            byte[] expected = i == 0
+                    ? concat(AUD, SPS_PPS, accessUnit(sizes[i], true, i))
+                    : concat(AUD, accessUnit(sizes[i], false, i));
+            assertArrayEquals("Sample " + i + " of " + sizes[i] + " bytes", expected, pes.payload);
+            assertEquals(i * 3000L, pes.pts90k);
+            assertEquals(i == 0, pes.randomAccess);
+        }
+    }
+
+    @Test
+    public void ptsUsesAll33Bits() {
+        TsMuxer muxer = new TsMuxer(EncoderRegistry.MIME_HEVC);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        append(stream, muxer.writeTables());
+        long pts = (1L << 33) - 1;
+        append(stream, muxer.writeSample(ByteBuffer.wrap(accessUnit(100, false, 1)), pts, false));
+        TransportStreamReader reader = TransportStreamReader.parse(stream.toByteArray());
+        assertEquals(TsMuxer.STREAM_TYPE_H265, reader.streamType);
+        assertEquals(pts, reader.pes.get(0).pts90k);
+    }
+
+    @Test
+    public void onlyKeyFramesCarryParameterSets() {
+        TsMuxer muxer = new TsMuxer(EncoderRegistry.MIME_AVC);
+        muxer.setParameterSets(ByteBuffer.wrap(SPS_PPS));
+        ByteBuffer delta = muxer.writeSample(ByteBuffer.wrap(accessUnit(500, false, 2)), 0, false);
+        byte[] deltaBytes = Arrays.copyOfRange(delta.array(), delta.position(), delta.limit());
+        ByteBuffer key = muxer.writeSample(ByteBuffer.wrap(accessUnit(500, true, 2)), 0, true);
+        assertTrue(key.remaining() >= deltaBytes.length);
+        assertEquals(0, deltaBytes.length % TsMuxer.PACKET_SIZE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCodecsTransportStreamCannotCarry() {
+        new TsMuxer(EncoderRegistry.MIME_VP9);
+    }
+}
@@ -0,0 +1,106 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.alphagoose.screenstreamer.Fmp4MuxerTest.annexB;
+import static com.alphagoose.screenstreamer.Fmp4MuxerTest.bytes;
+import static com.alphagoose.screenstreamer.Fmp4MuxerTest.nal;
+import static org.junit.Assert.*;
+
+public class VideoStreamIndexTest {
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0x8c};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUD = {0x09, (byte) 0xf0};
+
+    private static ByteBuffer direct(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        return buffer;
+    }
+
+    @Test
+    public void classifiesH264AccessUnits() {
+        VideoStreamIndex index = new VideoStreamIndex(EncoderRegistry.MIME_AVC);
+        assertEquals(VideoStreamIndex.FRAME_PARAMETER_SETS, index.inspect(direct(annexB(SPS, PPS)), 0));
+        assertEquals(VideoStreamIndex.FRAME_SLICE | VideoStreamIndex.FRAME_KEY,
+                index.inspect(direct(annexB(nal(200, 0x65, 1))), 0));
+        assertEquals(VideoStreamIndex.FRAME_SLICE, index.inspect(direct(annexB(nal(80, 0x41, 2))), 33_333));
+        assertEquals(VideoStreamIndex.FRAME_SLICE | VideoStreamIndex.FRAME_DISPOSABLE,
+                index.inspect(direct(annexB(nal(80, 0x01, 3))), 66_666));
+        assertEquals(1, index.getKeyFrameCount());
+        assertEquals(0, index.getLatestKeyFramePtsUs());
+    }
+
+    @Test
+    public void findsTheKeySliceBehindInBandParameterSets() {
+        VideoStreamIndex index = new VideoStreamIndex(EncoderRegistry.MIME_AVC);
+        assertNull(index.getCodecConfig());
+        assertEquals(-1, index.getLatestKeyFramePtsUs());
+
+        ByteBuffer accessUnit = ByteBuffer.allocate(400);
+        accessUnit.position(10);
+        accessUnit.put(annexB(AUD, SPS, PPS, nal(200, 0x65, 1))).flip();
+        accessUnit.position(10);
+        int result = index.inspect(accessUnit, 5_000_000);
+        assertEquals(VideoStreamIndex.FRAME_KEY | VideoStreamIndex.FRAME_SLICE | VideoStreamIndex.FRAME_PARAMETER_SETS,
+                result);
+        assertEquals(5_000_000, index.getLatestKeyFramePtsUs());
+        // 4 + 2 (AUD), 3 + 5 (SPS), 4 + 4 (PPS), then the 3-byte start code
+        assertEquals(25, index.getLatestKeyFrameSliceOffset());
+        assertEquals(10, accessUnit.position());
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0x8c,
+                0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80}, bytes(index.getCodecConfig()));
+    }
+
+    @Test
+    public void codecConfigIsOnlyRebuiltWhenParameterSetsChange() {
+        VideoStreamIndex index = new VideoStreamIndex(EncoderRegistry.MIME_AVC);
+        index.addCodecConfig(direct(annexB(SPS)));
+        assertNull(index.getCodecConfig());
+        index.addCodecConfig(direct(annexB(PPS)));
+        ByteBuffer config = index.getCodecConfig();
+        assertNotNull(config);
+
+        index.inspect(direct(annexB(SPS, PPS, nal(100, 0x65, 1))), 0);
+        assertArrayEquals(bytes(config), bytes(index.getCodecConfig()));
+        index.getCodecConfig().position(4);
+        assertEquals(0, index.getCodecConfig().position());
+
+        byte[] newSps = {0x67, 0x64, 0x00, 0x28, (byte) 0xac, 0x2b};
+        index.inspect(direct(annexB(newSps, PPS, nal(100, 0x65, 2))), 0);
+        byte[] rebuilt = bytes(index.getCodecConfig());
+        assertEquals(4 + newSps.length + 4 + PPS.length, rebuilt.length);
+        assertEquals(0x64, rebuilt[5]);
+    }
+
+    @Test
+    public void classifiesH265AccessUnits() {
+        VideoStreamIndex index = new VideoStreamIndex(EncoderRegistry.MIME_HEVC);
+        byte[] vps = {0x40, 0x01, 0x0c, 0x01};
+        byte[] sps = {0x42, 0x01, 0x01, 0x01, 0x60};
+        byte[] pps = {0x44, 0x01, (byte) 0xc1, 0x72};
+        index.inspect(direct(annexB(sps, pps)), 0);
+        // Nothing is usable without a VPS
+        assertNull(index.getCodecConfig());
+        index.inspect(direct(annexB(vps, sps, pps)), 0);
+        assertEquals(4 * 3 + vps.length + sps.length + pps.length, index.getCodecConfig().remaining());
+
+        // IDR_W_RADL, CRA, TRAIL_R and TRAIL_N
+        assertEquals(VideoStreamIndex.FRAME_KEY | VideoStreamIndex.FRAME_SLICE,
+                index.inspect(direct(annexB(nal(90, 19 << 1, 1))), 0));
+        assertEquals(VideoStreamIndex.FRAME_KEY | VideoStreamIndex.FRAME_SLICE,
+                index.inspect(direct(annexB(nal(90, 21 << 1, 2))), 0));
+        assertEquals(VideoStreamIndex.FRAME_SLICE, index.inspect(direct(annexB(nal(90, 1 << 1, 3))), 0));
+        assertEquals(VideoStreamIndex.FRAME_SLICE | VideoStreamIndex.FRAME_DISPOSABLE,
+                index.inspect(direct(annexB(nal(90, 0, 4))), 0));
+        assertEquals(2, index.getKeyFrameCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCodecsWithoutNalUnits() {
+        new VideoStreamIndex(EncoderRegistry.MIME_VP9);
+    }
+}
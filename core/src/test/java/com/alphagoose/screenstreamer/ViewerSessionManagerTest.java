@@ -0,0 +1,372 @@
+package com.alphagoose.screenstreamer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ViewerSessionManagerTest {
+
+    private static final int GOP_FRAMES = 30;
+
+    private final AtomicInteger keyFrameRequests = new AtomicInteger();
+    private final AtomicBoolean forceKeyFrame = new AtomicBoolean();
+    private final ViewerSessionManager manager = new ViewerSessionManager(() -> {
+        keyFrameRequests.incrementAndGet();
+        forceKeyFrame.set(true);
+    }, 32, 256, 1000);
+
+    private final AtomicInteger codecBuffersOut = new AtomicInteger();
+    private final EncodedFrame.Pool codec = new EncodedFrame.Pool(frame -> codecBuffersOut.decrementAndGet());
+    private final ByteBuffer codecBuffer = ByteBuffer.allocateDirect(4096);
+    private long nextPts;
+
+    @After
+    public void tearDown() {
+        manager.close();
+    }
+
+    /**
+     * Emits one frame the way the drain thread does: obtain, dispatch, drop our reference.
+     */
+    private void encode(int size) {
+        boolean key = nextPts % GOP_FRAMES == 0 || forceKeyFrame.getAndSet(false);
+        codecBuffer.clear();
+        codecBuffer.putLong(nextPts);
+        codecBuffer.position(0).limit(size);
+        codecBuffersOut.incrementAndGet();
+        EncodedFrame frame = codec.obtain(0, codecBuffer, nextPts++, key ? FrameRing.FLAG_KEY_FRAME : 0, 1280, 720);
+        try {
+            manager.onEncodedFrame(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void viewersJoiningTogetherShareOneKeyFrameRequest() {
+        for (int i = 0; i < 12; i++) {
+            manager.addViewer("viewer-" + i, new FakeViewer(0));
+        }
+        assertEquals(12, manager.getViewerCount());
+        assertEquals(1, keyFrameRequests.get());
+        assertEquals(12, manager.getKeyFrameCoalescer().getRequestCount());
+
+        encode(100);
+        manager.addViewer("late", new FakeViewer(0));
+        assertEquals(2, keyFrameRequests.get());
+    }
+
+    @Test
+    public void newViewerWaitsForKeyFrame() throws Exception {
+        FakeViewer viewer = new FakeViewer(0);
+        manager.addViewer("a", viewer);
+        forceKeyFrame.set(false);
+        nextPts = 1;
+        for (int i = 0; i < GOP_FRAMES + 5; i++) {
+            encode(100);
+        }
+        waitForDrain(viewer, 6);
+        assertEquals(GOP_FRAMES, viewer.received.get(0).longValue());
+        assertEquals(GOP_FRAMES - 1, manager.getViewer("a").getDroppedFrames());
+        assertNull(viewer.failure);
+    }
+
+    @Test
+    public void slowViewerDropsToKeyFrameWithoutHoldingBackOthers() throws Exception {
+        List<FakeViewer> fast = new ArrayList<>();
+        for (int i = 0; i < 11; i++) {
+            FakeViewer viewer = new FakeViewer(0);
+            fast.add(viewer);
+            manager.addViewer("fast-" + i, viewer);
+        }
+        FakeViewer slow = new FakeViewer(15);
+        manager.addViewer("slow", slow);
+
+        int frames = 600;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            encode(1500);
+            // The codec buffer goes back before the next frame, however far behind anyone is
+            assertEquals(0, codecBuffersOut.get());
+            Thread.sleep(1);
+        }
+        double elapsedMs = (System.nanoTime() - start) / 1e6;
+
+        for (FakeViewer viewer : fast) {
+            waitForDrain(viewer, frames);
+            assertNull(viewer.failure, viewer.failure);
+            assertEquals(frames, viewer.received.size());
+        }
+        ViewerSession slowSession = manager.getViewer("slow");
+        assertTrue(slowSession.getDroppedFrames() > 0);
+        assertTrue(slow.received.size() > 0);
+        assertNull(slow.failure, slow.failure);
+        // Several overflows, but requests merge while one keyframe is still on its way
+        assertTrue(keyFrameRequests.get() < manager.getKeyFrameCoalescer().getRequestCount());
+
+        System.out.printf("12 viewers, %d frames in %.0f ms: slow viewer got %d, dropped %d, keyframe requests %d/%d%n",
+                frames, elapsedMs, slow.received.size(), slowSession.getDroppedFrames(),
+                keyFrameRequests.get(), manager.getKeyFrameCoalescer().getRequestCount());
+
+        manager.close();
+        assertEquals(0, manager.getLiveCopies());
+        assertEquals(0, manager.getPoolExhaustedFrames());
+    }
+
+    @Test
+    public void exhaustedPoolMakesEveryoneWaitForKeyFrame() throws Exception {
+        ViewerSessionManager tiny = new ViewerSessionManager(() -> forceKeyFrame.set(true), 4, 1, 1000);
+        try {
+            FakeViewer stuck = new FakeViewer(10000);
+            tiny.addViewer("stuck", stuck);
+            EncodedFrame frame = codec.obtain(0, codecBuffer, 0, FrameRing.FLAG_KEY_FRAME, 0, 0);
+            tiny.onEncodedFrame(frame);
+            frame.release();
+            frame = codec.obtain(0, codecBuffer, 1, 0, 0, 0);
+            tiny.onEncodedFrame(frame);
+            frame.release();
+            assertEquals(1, tiny.getPoolExhaustedFrames());
+            assertTrue(tiny.getViewer("stuck").isAwaitingKeyFrame());
+        } finally {
+            tiny.close();
+        }
+    }
+
+    @Test
+    public void pacingHoldsFramesAfterAKeyFrameAndDropsStaleDisposableOnes() throws Exception {
+        FakeViewer viewer = new FakeViewer(0);
+        ViewerSession session = manager.addViewer("paced", viewer);
+        // 10 kB/s: the 4 kB keyframe leaves the bucket about 370 ms in debt
+        session.setPacingRate(80_000);
+        int[] flags = {FrameRing.FLAG_KEY_FRAME, FrameRing.FLAG_DISPOSABLE, 0};
+        int[] sizes = {4096, 100, 100};
+        for (int i = 0; i < flags.length; i++) {
+            codecBuffer.clear();
+            codecBuffer.putLong(i);
+            codecBuffer.position(0).limit(sizes[i]);
+            EncodedFrame frame = codec.obtain(0, codecBuffer, i, flags[i], 1280, 720);
+            frame.setDequeueTimeNs(System.nanoTime());
+            manager.onEncodedFrame(frame);
+            frame.release();
+        }
+        waitForDrain(viewer, 2);
+
+        assertEquals(Arrays.asList(0L, 2L), viewer.received);
+        assertEquals(1, session.getStaleFrames());
+        long heldMs = (viewer.sentAtNs.get(1) - viewer.sentAtNs.get(0)) / 1000000;
+        assertTrue("Held for " + heldMs + " ms", heldMs >= 300);
+    }
+
+    @Test
+    public void viewerSwitchesLayerOnTheNewLayersKeyFrame() throws Exception {
+        List<Integer> layerRequests = Collections.synchronizedList(new ArrayList<>());
+        ViewerSessionManager layered = new ViewerSessionManager(layerRequests::add, 2, 32, 64, 1000,
+                new DirectBufferPool(), layer -> null);
+        try {
+            FakeViewer viewer = new FakeViewer(0);
+            ViewerSession session = layered.addViewer("a", viewer, 1);
+            assertEquals(Collections.singletonList(1), layerRequests);
+
+            // Layer 1 counts from 0, layer 0 from 1000
+            encodeOnLayer(layered, 1, 0, true);
+            encodeOnLayer(layered, 0, 1000, false);
+            encodeOnLayer(layered, 1, 1, false);
+            layered.setLayer("a", 0);
+            layered.setLayer("a", 0);
+            assertEquals(Arrays.asList(1, 0), layerRequests);
+            // Still on layer 1 until layer 0 has a keyframe
+            encodeOnLayer(layered, 0, 1001, false);
+            encodeOnLayer(layered, 1, 2, false);
+            encodeOnLayer(layered, 0, 1002, true);
+            encodeOnLayer(layered, 1, 3, false);
+            encodeOnLayer(layered, 0, 1003, false);
+            waitForDrain(viewer, 5);
+
+            assertNull(viewer.failure, viewer.failure);
+            assertEquals(Arrays.asList(0L, 1L, 2L, 1002L, 1003L), viewer.received);
+            assertEquals(0, session.getLayer());
+            assertEquals(1, session.getLayerSwitches());
+            assertEquals(1, layered.getLayerSwitches());
+        } finally {
+            layered.close();
+        }
+        assertEquals(0, layered.getLiveCopies());
+    }
+
+    @Test
+    public void framesOfALayerNobodyWatchesAreNotCopied() {
+        ViewerSessionManager layered = new ViewerSessionManager(layer -> { }, 3, 32, 64, 1000,
+                new DirectBufferPool(), layer -> null);
+        try {
+            layered.addViewer("a", new FakeViewer(10000), 0);
+            for (int i = 0; i < 10; i++) {
+                encodeOnLayer(layered, 2, i, i == 0);
+            }
+            assertEquals(0, layered.getLiveCopies());
+            assertEquals(0, layered.getPoolExhaustedFrames());
+        } finally {
+            layered.close();
+        }
+    }
+
+    @Test
+    public void keyFramesWithoutParameterSetsGetTheLatestOnes() throws Exception {
+        ByteBuffer sps = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68, (byte) 0xce});
+        ViewerSessionManager withConfig = new ViewerSessionManager(layer -> { }, 1, 32, 64, 1000,
+                new DirectBufferPool(), layer -> sps.duplicate());
+        try {
+            RecordingViewer viewer = new RecordingViewer();
+            withConfig.addViewer("late", viewer);
+            encodeOnLayer(withConfig, 0, 0, true);
+            encodeOnLayer(withConfig, 0, 1, false);
+            codecBuffer.clear();
+            codecBuffer.put(sps.duplicate()).putLong(2);
+            codecBuffer.flip();
+            EncodedFrame inBand = codec.obtain(0, codecBuffer, 2,
+                    FrameRing.FLAG_KEY_FRAME | FrameRing.FLAG_PARAMETER_SETS, 1280, 720);
+            withConfig.onEncodedFrame(inBand);
+            inBand.release();
+            List<byte[]> payloads = viewer.await(3);
+
+            assertEquals(3, payloads.size());
+            int configSize = sps.remaining();
+            // Parameter sets in front of the keyframe the viewer starts on
+            assertEquals(configSize + 100, payloads.get(0).length);
+            assertArrayEquals(sps.array(), Arrays.copyOf(payloads.get(0), configSize));
+            assertEquals(0, ByteBuffer.wrap(payloads.get(0), configSize, 8).getLong());
+            assertEquals(100, payloads.get(1).length);
+            // Already carried in-band, so not doubled up
+            assertEquals(configSize + 8, payloads.get(2).length);
+        } finally {
+            withConfig.close();
+        }
+        assertEquals(0, withConfig.getLiveCopies());
+    }
+
+    @Test
+    public void switchKeyFrameCarriesTheNewLayersParameterSets() throws Exception {
+        ByteBuffer[] configs = {
+                ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x64, 0, 0, 0, 1, 0x68, 0x01}),
+                ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68, 0x02})};
+        ViewerSessionManager layered = new ViewerSessionManager(layer -> { }, 2, 32, 64, 1000,
+                new DirectBufferPool(), layer -> configs[layer].duplicate());
+        try {
+            RecordingViewer viewer = new RecordingViewer();
+            layered.addViewer("a", viewer, 1);
+            encodeOnLayer(layered, 1, 0, true);
+            encodeOnLayer(layered, 1, 1, false);
+            layered.setLayer("a", 0);
+            encodeOnLayer(layered, 0, 1000, true);
+            List<byte[]> payloads = viewer.await(3);
+
+            assertEquals(3, payloads.size());
+            int configSize = configs[0].remaining();
+            assertArrayEquals(configs[1].array(), Arrays.copyOf(payloads.get(0), configSize));
+            assertEquals(100, payloads.get(1).length);
+            // The layer 0 keyframe it switched on brings layer 0's SPS and PPS, not layer 1's
+            assertArrayEquals(configs[0].array(), Arrays.copyOf(payloads.get(2), configSize));
+            assertEquals(1000, ByteBuffer.wrap(payloads.get(2), configSize, 8).getLong());
+        } finally {
+            layered.close();
+        }
+    }
+
+    private void encodeOnLayer(ViewerSessionManager target, int layer, long pts, boolean key) {
+        codecBuffer.clear();
+        codecBuffer.putLong(pts);
+        codecBuffer.position(0).limit(100);
+        EncodedFrame frame = codec.obtain(0, codecBuffer, pts, key ? FrameRing.FLAG_KEY_FRAME : 0, 1280, 720);
+        try {
+            target.getLayerSink(layer).onEncodedFrame(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static void waitForDrain(FakeViewer viewer, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (viewer.received.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Keeps a copy of every payload sent, for checking what was put in front of a frame.
+     */
+    private static class RecordingViewer implements ViewerSession.Transport {
+        final List<byte[]> payloads = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void send(EncodedFrame frame) {
+            ByteBuffer data = frame.getData();
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            payloads.add(bytes);
+            frame.release();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        List<byte[]> await(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (payloads.size() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            return payloads;
+        }
+    }
+
+    /**
+     * Records what a viewer would decode, and checks every gap is followed by a keyframe.
+     */
+    private static class FakeViewer implements ViewerSession.Transport {
+        final List<Long> received = Collections.synchronizedList(new ArrayList<>());
+        final List<Long> sentAtNs = Collections.synchronizedList(new ArrayList<>());
+        final long sendDelayMs;
+        volatile String failure;
+        private long lastPts = -1;
+
+        FakeViewer(long sendDelayMs) {
+            this.sendDelayMs = sendDelayMs;
+        }
+
+        @Override
+        public void send(EncodedFrame frame) {
+            try {
+                long pts = frame.getData().getLong(frame.getData().position());
+                if (pts != frame.getPresentationTimeUs()) {
+                    failure = "Payload of " + frame.getPresentationTimeUs() + " was overwritten";
+                } else if (lastPts >= 0 && pts != lastPts + 1 && !frame.isKeyFrame()) {
+                    failure = "Gap before delta frame " + pts;
+                } else if (lastPts < 0 && !frame.isKeyFrame()) {
+                    failure = "First frame " + pts + " is not a keyframe";
+                }
+                lastPts = pts;
+                sentAtNs.add(System.nanoTime());
+                received.add(pts);
+                if (sendDelayMs > 0) {
+                    Thread.sleep(sendDelayMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}